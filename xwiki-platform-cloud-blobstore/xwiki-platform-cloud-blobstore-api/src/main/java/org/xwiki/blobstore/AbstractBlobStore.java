@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base class for blob stores, implementing the optional operations on top of the basic ones. Subclasses only have to
+ * put, get, delete and list blobs, and override the other operations when the storage supports them natively:
+ * <ul>
+ * <li>ranges are read by skipping the bytes before them;</li>
+ * <li>reads are never conditional, and return the content without metadata;</li>
+ * <li>the metadata of a blob is read by opening it;</li>
+ * <li>blobs are deleted one by one;</li>
+ * <li>blobs are moved by copying them and deleting the source.</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public abstract class AbstractBlobStore implements BlobStore
+{
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        InputStream content = getBlob(path);
+
+        return content != null ? new RangeInputStream(content, offset, length) : null;
+    }
+
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        InputStream content = getBlob(path);
+
+        return content != null ? new Blob(new BlobMetadata(path, -1, null, null), content) : null;
+    }
+
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        Blob blob = readBlob(path, null, null);
+        if (blob == null) {
+            return null;
+        }
+
+        try {
+            blob.close();
+        } catch (IOException e) {
+            // Nothing was read from the blob.
+        }
+
+        return blob.getMetadata();
+    }
+
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        Map<String, BlobMetadata> metadata = new LinkedHashMap<String, BlobMetadata>();
+        for (String path : paths) {
+            BlobMetadata blobMetadata = getBlobMetadata(path);
+            if (blobMetadata != null) {
+                metadata.put(path, blobMetadata);
+            }
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        for (String path : paths) {
+            try {
+                deleteBlob(path);
+            } catch (RuntimeException e) {
+                failures.put(path, e);
+            }
+        }
+
+        return failures;
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        InputStream content = getBlob(sourcePath);
+        if (content == null) {
+            throw new BlobStoreException(String.format("Unable to move missing blob [%s]", sourcePath));
+        }
+
+        try {
+            putBlob(targetPath, content);
+        } finally {
+            try {
+                content.close();
+            } catch (IOException e) {
+                // The content has been read entirely anyway.
+            }
+        }
+
+        deleteBlob(sourcePath);
+    }
+
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        InputStream content = getBlob(sourcePath);
+        if (content == null) {
+            throw new BlobStoreException(String.format("Unable to copy missing blob [%s]", sourcePath));
+        }
+
+        try {
+            putBlob(targetPath, content);
+        } finally {
+            try {
+                content.close();
+            } catch (IOException e) {
+                // The content has been read entirely anyway.
+            }
+        }
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return listBlobs(prefix, null);
+    }
+
+    @Override
+    public abstract Iterator<BlobMetadata> listBlobs(String prefix, String startAfter);
+}
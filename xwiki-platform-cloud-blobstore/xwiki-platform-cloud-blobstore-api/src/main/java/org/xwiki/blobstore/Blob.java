@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A blob read from a blob store: its metadata, and its content unless the blob was not modified according to the
+ * conditions of the read.
+ *
+ * @version $Id$
+ */
+public class Blob implements Closeable
+{
+    /**
+     * The metadata of the blob.
+     */
+    private final BlobMetadata metadata;
+
+    /**
+     * The content of the blob, null if it was not modified.
+     */
+    private final InputStream content;
+
+    /**
+     * Constructor.
+     *
+     * @param metadata The metadata of the blob. Its length, date, entity tag and content type may be unknown.
+     * @param content The stream for reading the content of the blob, or null if the blob was not modified.
+     */
+    public Blob(BlobMetadata metadata, InputStream content)
+    {
+        this.metadata = metadata;
+        this.content = content;
+    }
+
+    /**
+     * @param metadata The metadata of a blob, as known by the blob store.
+     * @return A blob that was not modified according to the conditions of the read, and whose content was thus not
+     *         transferred.
+     */
+    public static Blob notModified(BlobMetadata metadata)
+    {
+        return new Blob(metadata, null);
+    }
+
+    /**
+     * @return The metadata of the blob.
+     */
+    public BlobMetadata getMetadata()
+    {
+        return this.metadata;
+    }
+
+    /**
+     * @return The stream for reading the content of the blob, or null if the blob was not modified.
+     */
+    public InputStream getContent()
+    {
+        return this.content;
+    }
+
+    /**
+     * @return false if the blob was not modified according to the conditions of the read, in which case it has no
+     *         content.
+     */
+    public boolean isModified()
+    {
+        return this.content != null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.content != null) {
+            this.content.close();
+        }
+    }
+}
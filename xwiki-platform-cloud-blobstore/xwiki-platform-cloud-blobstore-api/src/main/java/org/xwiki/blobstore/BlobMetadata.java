@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metadata of a blob, as known by the blob store without reading its content.
+ *
+ * @version $Id$
+ */
+public class BlobMetadata
+{
+    /**
+     * The path of the blob.
+     */
+    private final String path;
+
+    /**
+     * The length of the content of the blob.
+     */
+    private final long length;
+
+    /**
+     * The date when the blob was last written.
+     */
+    private final Date lastModified;
+
+    /**
+     * The entity tag of the blob.
+     */
+    private final String etag;
+
+    /**
+     * The type of the content of the blob.
+     */
+    private final String contentType;
+
+    /**
+     * Constructor.
+     *
+     * @param path The path of the blob.
+     * @param length The length of the content of the blob, or -1 if unknown.
+     * @param lastModified The date when the blob was last written, or null if unknown.
+     * @param etag The entity tag of the blob, or null if unknown.
+     */
+    public BlobMetadata(String path, long length, Date lastModified, String etag)
+    {
+        this(path, length, lastModified, etag, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param path The path of the blob.
+     * @param length The length of the content of the blob, or -1 if unknown.
+     * @param lastModified The date when the blob was last written, or null if unknown.
+     * @param etag The entity tag of the blob, or null if unknown.
+     * @param contentType The type of the content of the blob, or null if unknown.
+     */
+    public BlobMetadata(String path, long length, Date lastModified, String etag, String contentType)
+    {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return The path of the blob.
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * @return The length of the content of the blob, or -1 if unknown.
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @return The date when the blob was last written, or null if unknown.
+     */
+    public Date getLastModified()
+    {
+        return this.lastModified;
+    }
+
+    /**
+     * @return The entity tag of the blob, which changes whenever the content of the blob changes, or null if unknown.
+     */
+    public String getEtag()
+    {
+        return this.etag;
+    }
+
+    /**
+     * @return The type of the content of the blob, or null if unknown.
+     */
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+    /**
+     * Evaluate the conditions of a read against this metadata, like HTTP does for {@code If-None-Match} and
+     * {@code If-Modified-Since}: the entity tag takes precedence over the date, which is compared with a precision of
+     * a second. A blob whose entity tag or date is unknown is always considered modified.
+     *
+     * @param ifNoneMatch The entity tag of the copy of the blob held by the caller, or null.
+     * @param ifModifiedSince The date of the copy of the blob held by the caller, or null.
+     * @return true if the blob was modified according to the conditions, or if there is no condition.
+     */
+    public boolean isModified(String ifNoneMatch, Date ifModifiedSince)
+    {
+        if (ifNoneMatch != null) {
+            return this.etag == null || !this.etag.equals(ifNoneMatch);
+        }
+        if (ifModifiedSince != null && this.lastModified != null) {
+            return TimeUnit.MILLISECONDS.toSeconds(this.lastModified.getTime())
+                > TimeUnit.MILLISECONDS.toSeconds(ifModifiedSince.getTime());
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%d bytes)", this.path, this.length);
+    }
+}
@@ -20,6 +20,10 @@
 package org.xwiki.blobstore;
 
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.xwiki.component.annotation.Role;
 
@@ -60,9 +64,9 @@
      * Store a blob.
      *
      * @param key The key to be used for storing the blog.
-     * @param content The input stream from which reading the data to be stored. This method could buffer the content
-     *            entirely in memory before storing it. If you know the data length you might be willing to use
-     *            {@link #putBlob(String, InputStream, long)}
+     * @param content The input stream from which reading the data to be stored. Since the length is unknown, the
+     *            implementation may have to buffer part of the content in memory before storing it. If you know the
+     *            data length you might be willing to use {@link #putBlob(String, InputStream, long)}
      */
     void putBlob(String key, InputStream content);
 
@@ -79,14 +83,113 @@
      * Return a stream for reading the blob content.
      *
      * @param path The path for retrieving the blob.
-     * @return An input stream for reading blob data.
+     * @return An input stream for reading blob data, or null if the blob does not exist.
      */
     InputStream getBlob(String path);
 
+    /**
+     * Get a range of a blob, for instance for answering an HTTP range request without transferring the whole blob.
+     * Implementations unable to read a range natively can extend {@link AbstractBlobStore}, which reads the blob from
+     * its start and skips the bytes before the range.
+     *
+     * @param path The path for retrieving the blob.
+     * @param offset The offset of the first byte of the range.
+     * @param length The length of the range, or -1 for reading up to the end of the blob.
+     * @return The stream for reading the range, which ends early if the blob ends before the range, or null if the
+     *         blob does not exist.
+     */
+    InputStream getBlob(String path, long offset, long length);
+
+    /**
+     * Read a blob along with its metadata, unless it was not modified since the caller read it, in which case its
+     * content is not transferred. This lets callers holding a copy of the blob, such as caches or browsers, revalidate
+     * it cheaply. The entity tag takes precedence over the date. Implementations unable to evaluate the conditions
+     * without reading the blob can extend {@link AbstractBlobStore}, which always returns the content.
+     *
+     * @param path The path for retrieving the blob.
+     * @param ifNoneMatch The entity tag of the copy held by the caller, as returned by {@link BlobMetadata#getEtag()},
+     *            or null.
+     * @param ifModifiedSince The date of the copy held by the caller, or null.
+     * @return The blob, without content if it was not modified, or null if the blob does not exist.
+     */
+    Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince);
+
+    /**
+     * Get the metadata of a blob without reading its content, for checking whether it exists or getting its size, date
+     * or entity tag. Implementations unable to do so without opening the blob can extend {@link AbstractBlobStore},
+     * which opens the blob and closes it right away.
+     *
+     * @param path The path of the blob.
+     * @return The metadata of the blob, or null if the blob does not exist.
+     */
+    BlobMetadata getBlobMetadata(String path);
+
+    /**
+     * Get the metadata of several blobs without reading their content, like {@link #getBlobMetadata(String)}.
+     * Implementations able to look several blobs up at once, or concurrently, should do so; the others can extend
+     * {@link AbstractBlobStore}, which looks the blobs up one by one.
+     *
+     * @param paths The paths of the blobs.
+     * @return The metadata of the blobs which exist, by path. The blobs which do not exist are left out.
+     */
+    Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths);
+
     /**
      * Remove a blob from the blob store.
      *
      * @param path The path to the blob to be removed.
      */
     void deleteBlob(String path);
+
+    /**
+     * Move a blob to another path, replacing the blob stored at that path if any. Implementations able to do so
+     * without transferring the content should; the others can extend {@link AbstractBlobStore}, which copies the
+     * content and then deletes the source blob.
+     *
+     * @param sourcePath The path of the blob to be moved.
+     * @param targetPath The new path of the blob.
+     */
+    void moveBlob(String sourcePath, String targetPath);
+
+    /**
+     * Copy a blob to another path, replacing the blob stored at that path if any. Implementations able to do so
+     * without transferring the content should; the others can extend {@link AbstractBlobStore}, which reads the
+     * content and writes it again.
+     *
+     * @param sourcePath The path of the blob to be copied.
+     * @param targetPath The path of the copy.
+     */
+    void copyBlob(String sourcePath, String targetPath);
+
+    /**
+     * Remove several blobs from the blob store. Implementations able to delete several blobs with a single request
+     * should do so; the others can extend {@link AbstractBlobStore}, which deletes the blobs one by one. The failure
+     * to delete a blob does not prevent the other blobs from being deleted.
+     *
+     * @param paths The paths to the blobs to be removed.
+     * @return The paths of the blobs which could not be removed, with the reason of the failure. Empty if all the
+     *         blobs have been removed.
+     */
+    Map<String, Exception> deleteBlobs(Collection<String> paths);
+
+    /**
+     * List the blobs whose path starts with a prefix, in ascending order of path. The blobs are fetched lazily, page
+     * by page, as the returned iterator is consumed, so that listing any number of blobs needs a constant amount of
+     * memory. The listing is not a snapshot: blobs written or deleted while iterating may or may not be listed.
+     *
+     * @param prefix The prefix of the paths of the listed blobs, for instance the path of a wiki or of a space
+     *            followed by a separator. Use an empty string for listing all the blobs.
+     * @return The metadata of the blobs.
+     */
+    Iterator<BlobMetadata> listBlobs(String prefix);
+
+    /**
+     * List the blobs whose path starts with a prefix and comes after a given path, in ascending order of path, like
+     * {@link #listBlobs(String)}. This lets a long listing be resumed from the last blob processed.
+     *
+     * @param prefix The prefix of the paths of the listed blobs. Use an empty string for listing all the blobs.
+     * @param startAfter The path after which the listing starts, excluded, or null for starting at the first blob.
+     * @return The metadata of the blobs.
+     */
+    Iterator<BlobMetadata> listBlobs(String prefix, String startAfter);
 }
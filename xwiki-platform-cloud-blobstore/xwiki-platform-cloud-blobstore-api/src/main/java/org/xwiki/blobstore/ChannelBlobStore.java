@@ -0,0 +1,43 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A blob store able to write a blob directly to a channel, which lets implementations backed by local files avoid
+ * copying the content through the JVM heap. Callers able to provide a channel should check whether the blob store
+ * implements this interface and fall back to {@link BlobStore#getBlob(String)} otherwise.
+ *
+ * @version $Id$
+ */
+public interface ChannelBlobStore extends BlobStore
+{
+    /**
+     * Write the content of a blob to a channel.
+     *
+     * @param path The path for retrieving the blob.
+     * @param target The channel where to write the blob content. It is not closed.
+     * @return The number of bytes written, or -1 if the blob does not exist.
+     * @throws IOException If the blob cannot be read or the channel cannot be written.
+     */
+    long transferBlob(String path, WritableByteChannel target) throws IOException;
+}
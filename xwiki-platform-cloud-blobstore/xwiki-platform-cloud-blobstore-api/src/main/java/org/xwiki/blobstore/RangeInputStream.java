@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream reading a range of another stream, for the blob stores unable to read a range of a blob natively. The
+ * bytes before the range are skipped on the first read, and the stream ends with the range or with the underlying
+ * stream, whichever comes first.
+ *
+ * @version $Id$
+ */
+public class RangeInputStream extends FilterInputStream
+{
+    /**
+     * The number of bytes left to skip before the range.
+     */
+    private long toSkip;
+
+    /**
+     * The number of bytes left to read in the range, or -1 if the range extends to the end of the stream.
+     */
+    private long remaining;
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream, positioned at its start.
+     * @param offset The offset of the first byte of the range.
+     * @param length The length of the range, or -1 for reading up to the end of the stream.
+     */
+    public RangeInputStream(InputStream in, long offset, long length)
+    {
+        super(in);
+
+        this.toSkip = offset;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        skipToRange();
+        if (this.remaining == 0) {
+            return -1;
+        }
+
+        int result = super.read();
+        if (result >= 0 && this.remaining > 0) {
+            this.remaining--;
+        }
+
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        skipToRange();
+        if (this.remaining == 0) {
+            return count == 0 ? 0 : -1;
+        }
+
+        int result = super.read(buffer, offset, this.remaining > 0 ? (int) Math.min(count, this.remaining) : count);
+        if (result > 0 && this.remaining > 0) {
+            this.remaining -= result;
+        }
+
+        return result;
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        skipToRange();
+
+        long skipped = super.skip(this.remaining >= 0 ? Math.min(count, this.remaining) : count);
+        if (skipped > 0 && this.remaining > 0) {
+            this.remaining -= skipped;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        if (this.toSkip > 0) {
+            return 0;
+        }
+
+        int available = super.available();
+
+        return this.remaining >= 0 ? (int) Math.min(available, this.remaining) : available;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+        // Not supported.
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException("Mark is not supported");
+    }
+
+    /**
+     * Skip the bytes before the range, if not done yet.
+     *
+     * @throws IOException If the bytes cannot be skipped.
+     */
+    private void skipToRange() throws IOException
+    {
+        while (this.toSkip > 0) {
+            long skipped = super.skip(this.toSkip);
+            if (skipped <= 0) {
+                // Some streams only stop skipping at their end, which is then detected by reading.
+                if (super.read() < 0) {
+                    this.toSkip = 0;
+                    this.remaining = 0;
+
+                    return;
+                }
+                skipped = 1;
+            }
+            this.toSkip -= skipped;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free metrics of one operation of a blob store: call and error counts, calls in flight, transferred bytes and a
+ * latency histogram with fixed buckets.
+ *
+ * @version $Id$
+ */
+public class BlobStoreOperationMetrics implements BlobStoreOperationMetricsMBean
+{
+    /**
+     * The upper bounds of the latency buckets, in milliseconds. A last bucket holds the longer calls.
+     */
+    private static final long[] BUCKET_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /**
+     * The number of nanoseconds in a millisecond, as a double.
+     */
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The number of completed calls.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The number of failed calls.
+     */
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * The number of running calls.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The number of transferred bytes.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * The total duration of the completed calls, in nanoseconds.
+     */
+    private final AtomicLong totalTime = new AtomicLong();
+
+    /**
+     * The longest duration of a completed call, in nanoseconds.
+     */
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * The number of calls per latency bucket.
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    /**
+     * Record the start of a call.
+     *
+     * @return The start time, to be given to {@link #stop(long, boolean)}.
+     */
+    public long start()
+    {
+        this.inFlight.incrementAndGet();
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the end of a call.
+     *
+     * @param startTime The value returned by {@link #start()}.
+     * @param failed true if the call threw an exception.
+     */
+    public void stop(long startTime, boolean failed)
+    {
+        long duration = System.nanoTime() - startTime;
+
+        this.inFlight.decrementAndGet();
+        this.count.incrementAndGet();
+        if (failed) {
+            this.errorCount.incrementAndGet();
+        }
+        this.totalTime.addAndGet(duration);
+
+        long max = this.maxTime.get();
+        while (duration > max && !this.maxTime.compareAndSet(max, duration)) {
+            max = this.maxTime.get();
+        }
+
+        this.histogram.incrementAndGet(bucket(duration));
+    }
+
+    /**
+     * Record transferred bytes.
+     *
+     * @param length The number of bytes.
+     */
+    public void addBytes(long length)
+    {
+        this.bytes.addAndGet(length);
+    }
+
+    @Override
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    @Override
+    public long getErrorCount()
+    {
+        return this.errorCount.get();
+    }
+
+    @Override
+    public int getInFlight()
+    {
+        return this.inFlight.get();
+    }
+
+    @Override
+    public long getBytes()
+    {
+        return this.bytes.get();
+    }
+
+    @Override
+    public double getTotalTimeMillis()
+    {
+        return this.totalTime.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanTimeMillis()
+    {
+        long calls = this.count.get();
+
+        return calls == 0 ? 0 : this.totalTime.get() / NANOS_PER_MILLI / calls;
+    }
+
+    @Override
+    public double getMaxTimeMillis()
+    {
+        return this.maxTime.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getLatency50thPercentileMillis()
+    {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long getLatency95thPercentileMillis()
+    {
+        return getPercentile(0.95);
+    }
+
+    @Override
+    public long getLatency99thPercentileMillis()
+    {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getLatencyBucketBounds()
+    {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getLatencyHistogram()
+    {
+        long[] result = new long[this.histogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = this.histogram.get(i);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void reset()
+    {
+        this.count.set(0);
+        this.errorCount.set(0);
+        this.bytes.set(0);
+        this.totalTime.set(0);
+        this.maxTime.set(0);
+        for (int i = 0; i < this.histogram.length(); i++) {
+            this.histogram.set(i, 0);
+        }
+    }
+
+    /**
+     * Estimate a latency percentile from the histogram.
+     *
+     * @param fraction The percentile, between 0 and 1.
+     * @return The upper bound of the bucket holding the percentile, the longest call if it is the last bucket, or 0
+     *         if there was no call.
+     */
+    private long getPercentile(double fraction)
+    {
+        long[] counts = getLatencyHistogram();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(this.maxTime.get());
+    }
+
+    /**
+     * @param nanos A duration in nanoseconds.
+     * @return The index of the bucket holding the duration.
+     */
+    private static int bucket(long nanos)
+    {
+        int i = 0;
+        while (i < BUCKET_BOUNDS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BUCKET_BOUNDS[i])) {
+            i++;
+        }
+
+        return i;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.internal;
+
+/**
+ * The JMX view of the metrics of one operation of a blob store.
+ *
+ * @version $Id$
+ */
+public interface BlobStoreOperationMetricsMBean
+{
+    /**
+     * @return The number of completed calls, failed or not.
+     */
+    long getCount();
+
+    /**
+     * @return The number of calls that threw an exception.
+     */
+    long getErrorCount();
+
+    /**
+     * @return The number of calls currently running.
+     */
+    int getInFlight();
+
+    /**
+     * @return The number of bytes transferred.
+     */
+    long getBytes();
+
+    /**
+     * @return The total time spent in the completed calls, in milliseconds.
+     */
+    double getTotalTimeMillis();
+
+    /**
+     * @return The mean duration of the completed calls, in milliseconds.
+     */
+    double getMeanTimeMillis();
+
+    /**
+     * @return The longest duration of a completed call, in milliseconds.
+     */
+    double getMaxTimeMillis();
+
+    /**
+     * @return The upper bound in milliseconds of the latency bucket holding the median call.
+     */
+    long getLatency50thPercentileMillis();
+
+    /**
+     * @return The upper bound in milliseconds of the latency bucket holding the 95th percentile call.
+     */
+    long getLatency95thPercentileMillis();
+
+    /**
+     * @return The upper bound in milliseconds of the latency bucket holding the 99th percentile call.
+     */
+    long getLatency99thPercentileMillis();
+
+    /**
+     * @return The upper bounds in milliseconds of the latency histogram buckets, the last bucket being unbounded.
+     */
+    long[] getLatencyBucketBounds();
+
+    /**
+     * @return The number of calls in each latency bucket.
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * Reset all the metrics but the number of calls in flight.
+     */
+    void reset();
+}
@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.internal;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread factory creating named daemon threads, so that the blob store thread pools never prevent the JVM from
+ * shutting down.
+ *
+ * @version $Id$
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    /**
+     * The prefix of the names of the created threads.
+     */
+    private final String namePrefix;
+
+    /**
+     * The number of threads created so far.
+     */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param namePrefix The prefix of the names of the created threads.
+     */
+    public DaemonThreadFactory(String namePrefix)
+    {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+        Thread thread =
+            new Thread(runnable, String.format("%s #%d", this.namePrefix, this.threadCount.incrementAndGet()));
+        thread.setDaemon(true);
+
+        return thread;
+    }
+}
@@ -19,26 +19,46 @@
  */
 package org.xwiki.blobstore.internal;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.ChannelBlobStore;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
 
 /**
- * Default blob store provider.
+ * Default blob store provider. Unless disabled, the provided blob store records metrics about its operations, which
+ * are exposed in JMX.
  *
  * @version $Id$
  */
 @Named("blobstore")
-public class DefaultBlobStoreProvider implements Provider<BlobStore>, Initializable
+public class DefaultBlobStoreProvider implements Provider<BlobStore>, Initializable, Disposable
 {
+    /**
+     * Whether the blob store operations are metered.
+     */
+    public static final String BLOBSTORE_METRICS_PROPERTY = "xwiki.store.attachments.blobstore.metrics";
+
+    /**
+     * The name of the MBeans exposing the metrics of each operation, for a given blob store and operation.
+     */
+    public static final String METRICS_MBEAN_NAME = "org.xwiki.blobstore:type=BlobStoreMetrics,store=%s,operation=%s";
+
     /**
      * Logger.
      */
@@ -63,6 +83,11 @@ public class DefaultBlobStoreProvider implements Provider<BlobStore>, Initializa
      */
     private BlobStore blobStore;
 
+    /**
+     * The names of the registered metrics MBeans.
+     */
+    private List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
     @Override
     public void initialize() throws InitializationException
     {
@@ -83,12 +108,62 @@ public void initialize() throws InitializationException
             throw new InitializationException(errorMessage, e);
         }
 
+        if (this.configurationSource.getProperty(BLOBSTORE_METRICS_PROPERTY, Boolean.TRUE)) {
+            MeteredBlobStore meteredBlobStore = MeteredBlobStore.wrap(this.blobStore);
+            registerMBeans(meteredBlobStore, blobStoreHint);
+            this.blobStore = meteredBlobStore;
+        }
+
         this.logger.debug("Blob store provider initialized with blob store '{}'", blobStoreHint);
     }
 
+    @Override
+    public void dispose()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : this.mbeanNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the blob store metrics MBean [{}]: {}", name, e.getMessage());
+            }
+        }
+        this.mbeanNames.clear();
+    }
+
     @Override
     public BlobStore get()
     {
         return this.blobStore;
     }
+
+    /**
+     * Register the metrics of each operation in JMX. Failing to do so does not prevent the metrics from being
+     * recorded.
+     *
+     * @param meteredBlobStore The metered blob store.
+     * @param blobStoreHint The hint of the blob store.
+     */
+    private void registerMBeans(MeteredBlobStore meteredBlobStore, String blobStoreHint)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (MeteredBlobStore.Operation operation : MeteredBlobStore.Operation.values()) {
+            if (operation == MeteredBlobStore.Operation.TRANSFER && !(meteredBlobStore instanceof ChannelBlobStore)) {
+                continue;
+            }
+
+            try {
+                ObjectName name = new ObjectName(String.format(METRICS_MBEAN_NAME, blobStoreHint,
+                    operation.name().toLowerCase()));
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(meteredBlobStore.getMetrics(operation), name);
+                this.mbeanNames.add(name);
+            } catch (JMException e) {
+                this.logger.warn("Unable to register the blob store metrics MBean for [{}]: {}", operation,
+                    e.getMessage());
+            }
+        }
+    }
 }
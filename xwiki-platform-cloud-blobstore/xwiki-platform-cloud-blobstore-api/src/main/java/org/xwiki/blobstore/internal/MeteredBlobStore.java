@@ -0,0 +1,421 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.ChannelBlobStore;
+
+/**
+ * Blob store recording the number of calls, the errors, the calls in flight, the latency and the transferred bytes of
+ * each operation of another blob store. The latency of {@link #getBlob(String)} is the time needed for opening the
+ * blob, while its bytes are counted as the returned stream is read.
+ *
+ * @version $Id$
+ */
+public class MeteredBlobStore implements BlobStore
+{
+    /**
+     * The metered operations.
+     */
+    public enum Operation
+    {
+        /**
+         * {@link BlobStore#putBlob(String, InputStream, long)} and {@link BlobStore#putBlob(String, InputStream)}.
+         */
+        PUT,
+
+        /**
+         * {@link BlobStore#getBlob(String)}, {@link BlobStore#getBlob(String, long, long)} and
+         * {@link BlobStore#readBlob(String, String, Date)}.
+         */
+        GET,
+
+        /**
+         * {@link BlobStore#getBlobMetadata(String)}.
+         */
+        HEAD,
+
+        /**
+         * {@link BlobStore#getBlobMetadata(Collection)}.
+         */
+        BATCH_HEAD,
+
+        /**
+         * {@link BlobStore#deleteBlob(String)}.
+         */
+        DELETE,
+
+        /**
+         * {@link BlobStore#deleteBlobs(Collection)}. A call is counted as failed when a blob could not be deleted.
+         */
+        BATCH_DELETE,
+
+        /**
+         * {@link BlobStore#moveBlob(String, String)}.
+         */
+        MOVE,
+
+        /**
+         * {@link BlobStore#copyBlob(String, String)}.
+         */
+        COPY,
+
+        /**
+         * {@link ChannelBlobStore#transferBlob(String, WritableByteChannel)}.
+         */
+        TRANSFER
+    }
+
+    /**
+     * The metered blob store.
+     */
+    protected final BlobStore store;
+
+    /**
+     * The metrics of each operation.
+     */
+    private final Map<Operation, BlobStoreOperationMetrics> metrics =
+        new EnumMap<Operation, BlobStoreOperationMetrics>(Operation.class);
+
+    /**
+     * Constructor.
+     *
+     * @param store The metered blob store.
+     */
+    protected MeteredBlobStore(BlobStore store)
+    {
+        this.store = store;
+
+        for (Operation operation : Operation.values()) {
+            this.metrics.put(operation, new BlobStoreOperationMetrics());
+        }
+    }
+
+    /**
+     * Meter a blob store.
+     *
+     * @param store The blob store.
+     * @return The metered blob store, implementing {@link ChannelBlobStore} if the given one does.
+     */
+    public static MeteredBlobStore wrap(BlobStore store)
+    {
+        if (store instanceof ChannelBlobStore) {
+            return new MeteredChannelBlobStore((ChannelBlobStore) store);
+        }
+
+        return new MeteredBlobStore(store);
+    }
+
+    /**
+     * @return The metered blob store.
+     */
+    public BlobStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * @param operation An operation.
+     * @return The metrics of the operation.
+     */
+    public BlobStoreOperationMetrics getMetrics(Operation operation)
+    {
+        return this.metrics.get(operation);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.PUT);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            this.store.putBlob(path, new CountingInputStream(content, operationMetrics));
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.PUT);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            this.store.putBlob(path, new CountingInputStream(content, operationMetrics), length);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.GET);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        InputStream content;
+        try {
+            content = this.store.getBlob(path);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+
+        return content != null ? new CountingInputStream(content, operationMetrics) : null;
+    }
+
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.GET);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        InputStream content;
+        try {
+            content = this.store.getBlob(path, offset, length);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+
+        return content != null ? new CountingInputStream(content, operationMetrics) : null;
+    }
+
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.GET);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        Blob blob;
+        try {
+            blob = this.store.readBlob(path, ifNoneMatch, ifModifiedSince);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+
+        if (blob == null || !blob.isModified()) {
+            return blob;
+        }
+
+        return new Blob(blob.getMetadata(), new CountingInputStream(blob.getContent(), operationMetrics));
+    }
+
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.HEAD);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            BlobMetadata metadata = this.store.getBlobMetadata(path);
+            failed = false;
+
+            return metadata;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.BATCH_HEAD);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            Map<String, BlobMetadata> metadata = this.store.getBlobMetadata(paths);
+            failed = false;
+
+            return metadata;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.DELETE);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            this.store.deleteBlob(path);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.BATCH_DELETE);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            Map<String, Exception> failures = this.store.deleteBlobs(paths);
+            failed = !failures.isEmpty();
+
+            return failures;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.MOVE);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            this.store.moveBlob(sourcePath, targetPath);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.COPY);
+        long start = operationMetrics.start();
+        boolean failed = true;
+        try {
+            this.store.copyBlob(sourcePath, targetPath);
+            failed = false;
+        } finally {
+            operationMetrics.stop(start, failed);
+        }
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        // The listing is lazy so there is no single call to time.
+        return this.store.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        return this.store.listBlobs(prefix, startAfter);
+    }
+
+    /**
+     * Metered blob store for the blob stores able to write to a channel.
+     */
+    private static class MeteredChannelBlobStore extends MeteredBlobStore implements ChannelBlobStore
+    {
+        /**
+         * Constructor.
+         *
+         * @param store The metered blob store.
+         */
+        MeteredChannelBlobStore(ChannelBlobStore store)
+        {
+            super(store);
+        }
+
+        @Override
+        public long transferBlob(String path, WritableByteChannel target) throws IOException
+        {
+            BlobStoreOperationMetrics operationMetrics = getMetrics(Operation.TRANSFER);
+            long start = operationMetrics.start();
+            boolean failed = true;
+            try {
+                long transferred = ((ChannelBlobStore) this.store).transferBlob(path, target);
+                if (transferred > 0) {
+                    operationMetrics.addBytes(transferred);
+                }
+                failed = false;
+
+                return transferred;
+            } finally {
+                operationMetrics.stop(start, failed);
+            }
+        }
+    }
+
+    /**
+     * Input stream adding the number of bytes read to the metrics of an operation.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        /**
+         * The metrics of the operation.
+         */
+        private final BlobStoreOperationMetrics operationMetrics;
+
+        /**
+         * Constructor.
+         *
+         * @param in The counted stream.
+         * @param operationMetrics The metrics of the operation.
+         */
+        CountingInputStream(InputStream in, BlobStoreOperationMetrics operationMetrics)
+        {
+            super(in);
+
+            this.operationMetrics = operationMetrics;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                this.operationMetrics.addBytes(1);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.operationMetrics.addBytes(read);
+            }
+
+            return read;
+        }
+    }
+}
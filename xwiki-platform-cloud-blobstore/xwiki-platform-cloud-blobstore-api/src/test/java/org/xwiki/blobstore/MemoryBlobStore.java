@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Blob store keeping the blobs in memory, shared by the tests of the blob stores and of their users. It records the
+ * paths of the blobs written and counts the blobs read, for checking how many requests an operation costs. Each write
+ * is dated later than the previous one, while the blobs modified through {@link #getBlobs()} keep their date.
+ *
+ * @version $Id$
+ */
+public class MemoryBlobStore extends AbstractBlobStore
+{
+    /**
+     * The blobs, by path.
+     */
+    private final SortedMap<String, byte[]> blobs = Collections.synchronizedSortedMap(new TreeMap<String, byte[]>());
+
+    /**
+     * The dates the blobs were last written, by path.
+     */
+    private final Map<String, Date> dates = Collections.synchronizedMap(new TreeMap<String, Date>());
+
+    /**
+     * The paths of the blobs written, in order.
+     */
+    private final List<String> writtenPaths = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * The number of blobs read.
+     */
+    private int readCount;
+
+    /**
+     * The number of blobs written, giving the date of the next write.
+     */
+    private long writeCount;
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int count;
+            while ((count = content.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to store blob [%s]", path), e);
+        }
+
+        synchronized (this) {
+            this.blobs.put(path, output.toByteArray());
+            this.dates.put(path, new Date(++this.writeCount * 1000));
+        }
+        this.writtenPaths.add(path);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        putBlob(path, content);
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        synchronized (this) {
+            this.readCount++;
+        }
+        byte[] content = this.blobs.get(path);
+
+        return content != null ? new ByteArrayInputStream(content) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The conditions are ignored, but the metadata holds the length and the date of the blob.
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        InputStream content = getBlob(path);
+        BlobMetadata metadata = getBlobMetadata(path);
+
+        return content != null && metadata != null ? new Blob(metadata, content) : null;
+    }
+
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        byte[] content = this.blobs.get(path);
+
+        return content != null ? new BlobMetadata(path, content.length, this.dates.get(path), null) : null;
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        this.blobs.remove(path);
+        this.dates.remove(path);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        List<BlobMetadata> metadata = new ArrayList<BlobMetadata>();
+        synchronized (this.blobs) {
+            for (Map.Entry<String, byte[]> blob : this.blobs.tailMap(prefix).entrySet()) {
+                if (!blob.getKey().startsWith(prefix)) {
+                    break;
+                } else if (startAfter == null || blob.getKey().compareTo(startAfter) > 0) {
+                    metadata.add(new BlobMetadata(blob.getKey(), blob.getValue().length, this.dates.get(blob.getKey()),
+                        null));
+                }
+            }
+        }
+
+        return metadata.iterator();
+    }
+
+    /**
+     * @return The blobs, by path, which can be modified for simulating blobs stored by other means.
+     */
+    public Map<String, byte[]> getBlobs()
+    {
+        return this.blobs;
+    }
+
+    /**
+     * @return The paths of the blobs written, in order.
+     */
+    public List<String> getWrittenPaths()
+    {
+        return this.writtenPaths;
+    }
+
+    /**
+     * @return The number of blobs read.
+     */
+    public synchronized int getReadCount()
+    {
+        return this.readCount;
+    }
+
+    /**
+     * Reset the recorded writes and the number of reads.
+     */
+    public synchronized void resetCounts()
+    {
+        this.writtenPaths.clear();
+        this.readCount = 0;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.ChannelBlobStore;
+import org.xwiki.blobstore.internal.MeteredBlobStore.Operation;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link MeteredBlobStore}.
+ *
+ * @version $Id$
+ */
+public class MeteredBlobStoreTest
+{
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The content of the blob used by the tests.
+     */
+    private static final byte[] CONTENT = "Hello world".getBytes();
+
+    /**
+     * The metered blob store.
+     */
+    private BlobStore store;
+
+    /**
+     * The tested blob store.
+     */
+    private MeteredBlobStore meteredStore;
+
+    /**
+     * Setup the metered blob store for tests.
+     */
+    @Before
+    public void setUp()
+    {
+        this.store = mock(BlobStore.class);
+        this.meteredStore = MeteredBlobStore.wrap(this.store);
+    }
+
+    /**
+     * Check that the bytes read by the metered blob store while writing are counted.
+     */
+    @Test
+    public void testPutBlob()
+    {
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                InputStream content = (InputStream) invocation.getArguments()[1];
+                while (content.read(new byte[4]) >= 0) {
+                    // Consume the content.
+                }
+
+                return null;
+            }
+        }).when(this.store).putBlob(eq(PATH), any(InputStream.class), anyLong());
+
+        this.meteredStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        BlobStoreOperationMetrics metrics = this.meteredStore.getMetrics(Operation.PUT);
+        Assert.assertEquals(1, metrics.getCount());
+        Assert.assertEquals(0, metrics.getErrorCount());
+        Assert.assertEquals(0, metrics.getInFlight());
+        Assert.assertEquals(CONTENT.length, metrics.getBytes());
+        Assert.assertEquals(1, sum(metrics.getLatencyHistogram()));
+    }
+
+    /**
+     * Check that the bytes of a blob are counted while it is read.
+     *
+     * @throws Exception If the blob cannot be read.
+     */
+    @Test
+    public void testGetBlob() throws Exception
+    {
+        when(this.store.getBlob(PATH)).thenReturn(new ByteArrayInputStream(CONTENT));
+
+        InputStream content = this.meteredStore.getBlob(PATH);
+
+        BlobStoreOperationMetrics metrics = this.meteredStore.getMetrics(Operation.GET);
+        Assert.assertEquals(1, metrics.getCount());
+        Assert.assertEquals(0, metrics.getBytes());
+
+        Assert.assertEquals(CONTENT[0], content.read());
+        Assert.assertEquals(CONTENT.length - 1, content.read(new byte[CONTENT.length]));
+        Assert.assertEquals(-1, content.read());
+        Assert.assertEquals(CONTENT.length, metrics.getBytes());
+
+        Assert.assertNull(this.meteredStore.getBlob("missing"));
+        Assert.assertEquals(2, metrics.getCount());
+    }
+
+    /**
+     * Check that failures are counted and propagated.
+     */
+    @Test
+    public void testDeleteBlobFailure()
+    {
+        RuntimeException failure = new RuntimeException("Delete failed");
+        doThrow(failure).when(this.store).deleteBlob(PATH);
+
+        try {
+            this.meteredStore.deleteBlob(PATH);
+            Assert.fail("The failure should have been propagated");
+        } catch (RuntimeException e) {
+            Assert.assertSame(failure, e);
+        }
+
+        BlobStoreOperationMetrics metrics = this.meteredStore.getMetrics(Operation.DELETE);
+        Assert.assertEquals(1, metrics.getCount());
+        Assert.assertEquals(1, metrics.getErrorCount());
+        Assert.assertEquals(0, metrics.getInFlight());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getCount());
+        Assert.assertEquals(0, metrics.getErrorCount());
+        Assert.assertEquals(0, metrics.getLatency99thPercentileMillis());
+    }
+
+    /**
+     * Check that a batch delete is counted once, and as failed when a blob could not be deleted.
+     */
+    @Test
+    public void testDeleteBlobsWithFailures()
+    {
+        List<String> paths = Arrays.asList(PATH, "other");
+        Map<String, Exception> failures =
+            Collections.<String, Exception>singletonMap("other", new RuntimeException("Delete failed"));
+        when(this.store.deleteBlobs(paths)).thenReturn(failures);
+
+        Assert.assertSame(failures, this.meteredStore.deleteBlobs(paths));
+
+        BlobStoreOperationMetrics metrics = this.meteredStore.getMetrics(Operation.BATCH_DELETE);
+        Assert.assertEquals(1, metrics.getCount());
+        Assert.assertEquals(1, metrics.getErrorCount());
+        Assert.assertEquals(0, this.meteredStore.getMetrics(Operation.DELETE).getCount());
+    }
+
+    /**
+     * Check that metering a channel blob store keeps it a channel blob store.
+     *
+     * @throws Exception If the blob cannot be transferred.
+     */
+    @Test
+    public void testTransferBlob() throws Exception
+    {
+        Assert.assertFalse(this.meteredStore instanceof ChannelBlobStore);
+
+        ChannelBlobStore channelStore = mock(ChannelBlobStore.class);
+        MeteredBlobStore meteredChannelStore = MeteredBlobStore.wrap(channelStore);
+        Assert.assertTrue(meteredChannelStore instanceof ChannelBlobStore);
+
+        WritableByteChannel target = Channels.newChannel(new ByteArrayOutputStream());
+        when(channelStore.transferBlob(PATH, target)).thenReturn((long) CONTENT.length);
+
+        Assert.assertEquals(CONTENT.length, ((ChannelBlobStore) meteredChannelStore).transferBlob(PATH, target));
+
+        BlobStoreOperationMetrics metrics = meteredChannelStore.getMetrics(Operation.TRANSFER);
+        Assert.assertEquals(1, metrics.getCount());
+        Assert.assertEquals(CONTENT.length, metrics.getBytes());
+    }
+
+    /**
+     * Check the latency percentiles computed from the histogram.
+     */
+    @Test
+    public void testLatencyPercentiles()
+    {
+        BlobStoreOperationMetrics metrics = new BlobStoreOperationMetrics();
+        long now = System.nanoTime();
+        for (int i = 0; i < 99; i++) {
+            metrics.start();
+            metrics.stop(now, false);
+        }
+        // A call that started 3 seconds ago.
+        metrics.start();
+        metrics.stop(now - 3000000000L, false);
+
+        Assert.assertEquals(1, metrics.getLatency50thPercentileMillis());
+        Assert.assertEquals(1, metrics.getLatency95thPercentileMillis());
+        Assert.assertEquals(1, metrics.getLatency99thPercentileMillis());
+        Assert.assertTrue(metrics.getMaxTimeMillis() >= 3000);
+
+        metrics.start();
+        metrics.stop(now - 3000000000L, false);
+        Assert.assertEquals(5000, metrics.getLatency99thPercentileMillis());
+    }
+
+    /**
+     * @param values Some numbers.
+     * @return The sum of the numbers.
+     */
+    private static long sum(long[] values)
+    {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+
+        return sum;
+    }
+}
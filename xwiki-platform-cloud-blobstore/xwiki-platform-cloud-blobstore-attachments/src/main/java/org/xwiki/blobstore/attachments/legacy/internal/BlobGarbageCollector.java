@@ -0,0 +1,792 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationReadyEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Finds the attachment blobs that no attachment references anymore, left behind when saving or deleting attachments
+ * failed halfway, and reports or deletes them.
+ * <p>
+ * The blobs are listed in order of path and checked by batches: the attachments of the documents a batch may belong
+ * to are loaded with a single query, sorted the same way, and merge-joined with the blobs, so that memory does not
+ * depend on the number of blobs. The path of the last checked blob is stored as a checkpoint after each batch, so a
+ * stopped or crashed collection resumes where it stopped. The blobs more recent than a minimum age are skipped, since
+ * their attachment may not be committed yet, as well as the blobs still holding the content of a deleted attachment.
+ * <p>
+ * Before the attachment blobs, the sidecar blobs that decorating blob stores keep next to each blob, such as the
+ * checksums, are checked the same way: a sidecar blob is an orphan when the blob it belongs to no longer exists.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(BlobGarbageCollector.NAME)
+@Singleton
+public class BlobGarbageCollector implements EventListener, BlobGarbageCollectorMBean, Disposable
+{
+    /**
+     * The name of this listener.
+     */
+    public static final String NAME = "blobGarbageCollector";
+
+    /**
+     * The name of the MBean of the collector.
+     */
+    public static final String MBEAN_NAME = "org.xwiki.blobstore:type=BlobGarbageCollector";
+
+    /**
+     * The number of hours between two collections, 0 for running them only on demand.
+     */
+    public static final String GC_INTERVAL_PROPERTY = "xwiki.store.attachments.blobstore.gc.interval";
+
+    /**
+     * Whether the orphan blobs are deleted rather than only reported.
+     */
+    public static final String GC_DELETE_PROPERTY = "xwiki.store.attachments.blobstore.gc.delete";
+
+    /**
+     * The maximum number of orphan blobs deleted per second.
+     */
+    public static final String GC_RATE_PROPERTY = "xwiki.store.attachments.blobstore.gc.rate";
+
+    /**
+     * The minimum age in seconds of the blobs checked.
+     */
+    public static final String GC_MIN_AGE_PROPERTY = "xwiki.store.attachments.blobstore.gc.minAge";
+
+    /**
+     * The comma separated prefixes under which sidecar blobs are stored, each at the path of the blob it belongs to
+     * prefixed.
+     */
+    public static final String GC_SIDECAR_PREFIXES_PROPERTY = "xwiki.store.attachments.blobstore.gc.sidecarPrefixes";
+
+    /**
+     * The path of the blob storing the path of the last checked blob.
+     */
+    public static final String CHECKPOINT_PATH = ".gc/checkpoint";
+
+    /**
+     * The number of blobs checked together.
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * The maximum number of documents loaded by a query.
+     */
+    private static final int QUERY_SIZE = 500;
+
+    /**
+     * The default maximum number of orphan blobs deleted per second.
+     */
+    private static final int DEFAULT_RATE = 100;
+
+    /**
+     * The default minimum age of the blobs checked: one day.
+     */
+    private static final long DEFAULT_MIN_AGE = 86400;
+
+    /**
+     * The default prefixes of the sidecar blobs: the checksums of the integrity checking blob store.
+     */
+    private static final String DEFAULT_SIDECAR_PREFIXES = ".checksums/";
+
+    /**
+     * The path after which the attachment blobs are listed. The internal blobs, such as the history and the recycle
+     * bin, are stored under paths starting with a dot, which come before it.
+     */
+    private static final String ATTACHMENTS_START = "/";
+
+    /**
+     * The separator of the blob path components.
+     */
+    private static final char PATH_SEPARATOR = '/';
+
+    /**
+     * The query loading the attachments of some documents, given their full names.
+     */
+    private static final String ATTACHMENTS_QUERY = "select doc.space, doc.name, attachment.filename"
+        + " from XWikiDocument as doc, XWikiAttachment as attachment"
+        + " where attachment.docId = doc.id and doc.fullName in (%s)";
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The blob store provider.
+     */
+    @Inject
+    @Named("blobstore")
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * For setting up an execution context in the collector thread.
+     */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /**
+     * For removing the execution context of the collector thread.
+     */
+    @Inject
+    private Execution execution;
+
+    /**
+     * The XWiki context provider.
+     */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /**
+     * The thread running the collections.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * The name of the registered MBean, null if it could not be registered.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * Whether a collection is running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Whether the running collection should stop.
+     */
+    private volatile boolean stopping;
+
+    /**
+     * The path of the last checked blob.
+     */
+    private volatile String checkpoint;
+
+    /**
+     * The number of blobs listed by the last collection.
+     */
+    private volatile long scannedCount;
+
+    /**
+     * The number of orphan blobs found by the last collection.
+     */
+    private volatile long orphanCount;
+
+    /**
+     * The number of orphan blobs deleted by the last collection.
+     */
+    private volatile long deletedCount;
+
+    /**
+     * The time before which no orphan blob should be deleted, for limiting the rate of deletions.
+     */
+    private long nextDeletionTime;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Blob garbage collector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long interval = this.configurationSource.getProperty(GC_INTERVAL_PROPERTY, 0L);
+        if (interval > 0) {
+            this.executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runCollection();
+                }
+            }, interval, interval, TimeUnit.HOURS);
+        }
+
+        registerMBean();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.stopping = true;
+
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+
+        if (this.mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the blob garbage collector MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        if (!isRunning()) {
+            this.executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runCollection();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        this.stopping = true;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return this.running.get();
+    }
+
+    @Override
+    public boolean isDeleting()
+    {
+        return this.configurationSource.getProperty(GC_DELETE_PROPERTY, false);
+    }
+
+    @Override
+    public String getCheckpoint()
+    {
+        return this.checkpoint;
+    }
+
+    @Override
+    public long getScannedCount()
+    {
+        return this.scannedCount;
+    }
+
+    @Override
+    public long getOrphanCount()
+    {
+        return this.orphanCount;
+    }
+
+    @Override
+    public long getDeletedCount()
+    {
+        return this.deletedCount;
+    }
+
+    /**
+     * Run a collection in an execution context of its own, the collector thread not being tied to a request.
+     */
+    private void runCollection()
+    {
+        try {
+            this.executionContextManager.initialize(new ExecutionContext());
+        } catch (ExecutionContextException e) {
+            this.logger.error("Failed to initialize the execution context of the blob garbage collector", e);
+            return;
+        }
+
+        try {
+            collect(this.xcontextProvider.get());
+        } catch (RuntimeException e) {
+            this.logger.error("Blob garbage collection failed, it will resume from its last checkpoint", e);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    /**
+     * Check all the attachment blobs, resuming from the checkpoint if any, unless a collection is already running.
+     *
+     * @param xcontext The XWiki context.
+     */
+    void collect(XWikiContext xcontext)
+    {
+        if (!this.running.compareAndSet(false, true)) {
+            return;
+        }
+
+        String currentWiki = xcontext.getWikiId();
+        try {
+            this.stopping = false;
+            this.scannedCount = 0;
+            this.orphanCount = 0;
+            this.deletedCount = 0;
+
+            BlobStore blobStore = this.blobStoreProvider.get();
+            this.checkpoint = readCheckpoint(blobStore);
+            this.logger.info("Starting blob garbage collection after [{}]", this.checkpoint);
+
+            if (collect(blobStore, xcontext)) {
+                blobStore.deleteBlob(CHECKPOINT_PATH);
+                this.checkpoint = null;
+                this.logger.info("Blob garbage collection done: {} blobs checked, {} orphans found, {} deleted",
+                    this.scannedCount, this.orphanCount, this.deletedCount);
+            } else {
+                this.logger.info("Blob garbage collection stopped after [{}]", this.checkpoint);
+            }
+        } finally {
+            xcontext.setWikiId(currentWiki);
+            this.running.set(false);
+        }
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param xcontext The XWiki context.
+     * @return true if all the blobs have been checked, false if the collection was stopped.
+     */
+    private boolean collect(BlobStore blobStore, XWikiContext xcontext)
+    {
+        boolean delete = isDeleting();
+        long maxLastModified =
+            System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(
+                this.configurationSource.getProperty(GC_MIN_AGE_PROPERTY, DEFAULT_MIN_AGE));
+
+        // The sidecar blobs come before the attachment blobs, in the order of the checkpoints.
+        for (String prefix : getSidecarPrefixes()) {
+            if (this.checkpoint == null || this.checkpoint.compareTo(prefix) < 0
+                || this.checkpoint.startsWith(prefix)) {
+                String sidecarStartAfter = this.checkpoint != null && this.checkpoint.startsWith(prefix)
+                    ? this.checkpoint : null;
+                if (!collectSidecars(blobStore, prefix, sidecarStartAfter, delete, maxLastModified)) {
+                    return false;
+                }
+            }
+        }
+
+        String startAfter = this.checkpoint;
+        if (startAfter == null || startAfter.compareTo(ATTACHMENTS_START) < 0) {
+            startAfter = ATTACHMENTS_START;
+        }
+
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs("", startAfter);
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        String batchWiki = null;
+        String lastPath = null;
+        while (blobs.hasNext()) {
+            if (this.stopping) {
+                return false;
+            }
+
+            BlobMetadata blob = blobs.next();
+            String path = blob.getPath();
+            int separator = path.indexOf(PATH_SEPARATOR);
+            String wiki = separator > 0 ? path.substring(0, separator) : null;
+
+            // A batch only holds blobs of a single wiki, since the attachments of each wiki are in its own database.
+            if (!batch.isEmpty() && (batch.size() == BATCH_SIZE || !batchWiki.equals(wiki))) {
+                checkBatch(blobStore, batchWiki, batch, delete, xcontext);
+                batch.clear();
+                writeCheckpoint(blobStore, lastPath);
+            }
+
+            this.scannedCount++;
+            lastPath = path;
+            if (wiki != null && (blob.getLastModified() == null
+                || blob.getLastModified().getTime() <= maxLastModified)) {
+                batchWiki = wiki;
+                batch.add(path);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            checkBatch(blobStore, batchWiki, batch, delete, xcontext);
+        }
+
+        return !this.stopping;
+    }
+
+    /**
+     * @return The prefixes of the sidecar blobs located before the attachment blobs, sorted.
+     */
+    private List<String> getSidecarPrefixes()
+    {
+        List<String> prefixes = new ArrayList<String>();
+        for (String prefix : this.configurationSource.getProperty(GC_SIDECAR_PREFIXES_PROPERTY,
+            DEFAULT_SIDECAR_PREFIXES).split(",")) {
+            String trimmedPrefix = prefix.trim();
+            if (trimmedPrefix.compareTo(ATTACHMENTS_START) < 0 && !trimmedPrefix.isEmpty()) {
+                prefixes.add(trimmedPrefix);
+            } else if (!trimmedPrefix.isEmpty()) {
+                this.logger.warn("Ignoring the sidecar blob prefix [{}], which is not before the attachment blobs",
+                    trimmedPrefix);
+            }
+        }
+        Collections.sort(prefixes);
+
+        return prefixes;
+    }
+
+    /**
+     * Check the sidecar blobs stored under a prefix.
+     *
+     * @param blobStore The blob store.
+     * @param prefix The prefix of the sidecar blobs.
+     * @param startAfter The path after which the sidecar blobs are listed, or null for listing them all.
+     * @param delete Whether the orphans are deleted.
+     * @param maxLastModified The date after which the blobs are too recent to be checked.
+     * @return true if all the sidecar blobs have been checked, false if the collection was stopped.
+     */
+    private boolean collectSidecars(BlobStore blobStore, String prefix, String startAfter, boolean delete,
+        long maxLastModified)
+    {
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs(prefix, startAfter);
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        String lastPath = null;
+        while (blobs.hasNext()) {
+            if (this.stopping) {
+                return false;
+            }
+
+            if (batch.size() == BATCH_SIZE) {
+                checkSidecarBatch(blobStore, prefix, batch, delete);
+                batch.clear();
+                writeCheckpoint(blobStore, lastPath);
+            }
+
+            BlobMetadata blob = blobs.next();
+            this.scannedCount++;
+            lastPath = blob.getPath();
+            if (blob.getLastModified() == null || blob.getLastModified().getTime() <= maxLastModified) {
+                batch.add(lastPath);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            checkSidecarBatch(blobStore, prefix, batch, delete);
+        }
+
+        return !this.stopping;
+    }
+
+    /**
+     * Find the sidecar blobs of a batch whose blob no longer exists and report or delete them.
+     *
+     * @param blobStore The blob store.
+     * @param prefix The prefix of the sidecar blobs.
+     * @param paths The paths of the sidecar blobs.
+     * @param delete Whether the orphans are deleted.
+     */
+    private void checkSidecarBatch(BlobStore blobStore, String prefix, List<String> paths, boolean delete)
+    {
+        List<String> blobPaths = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            blobPaths.add(path.substring(prefix.length()));
+        }
+        Map<String, BlobMetadata> existing = blobStore.getBlobMetadata(blobPaths);
+
+        List<String> orphans = new ArrayList<String>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (!existing.containsKey(blobPaths.get(i))) {
+                this.logger.info("Orphan blob [{}]", paths.get(i));
+                orphans.add(paths.get(i));
+            }
+        }
+        this.orphanCount += orphans.size();
+
+        if (delete && !orphans.isEmpty()) {
+            delete(blobStore, orphans);
+        }
+    }
+
+    /**
+     * Find the orphan blobs of a batch and report or delete them.
+     *
+     * @param blobStore The blob store.
+     * @param wiki The wiki the blobs belong to.
+     * @param paths The paths of the blobs.
+     * @param delete Whether the orphans are deleted.
+     * @param xcontext The XWiki context.
+     */
+    private void checkBatch(BlobStore blobStore, String wiki, List<String> paths, boolean delete,
+        XWikiContext xcontext)
+    {
+        List<String> attachmentPaths;
+        try {
+            attachmentPaths = getAttachmentPaths(wiki, paths, xcontext);
+        } catch (XWikiException e) {
+            this.logger.warn("Failed to load the attachments of wiki [{}], skipping {} blobs: {}", wiki,
+                paths.size(), e.getMessage());
+            return;
+        }
+
+        // The blob store may not sort paths exactly like Java does, for instance by UTF-8 bytes.
+        Collections.sort(paths);
+        Collections.sort(attachmentPaths);
+
+        List<String> orphans = new ArrayList<String>();
+        int i = 0;
+        for (String path : paths) {
+            int comparison = -1;
+            while (i < attachmentPaths.size() && (comparison = attachmentPaths.get(i).compareTo(path)) < 0) {
+                i++;
+            }
+            if (comparison != 0 && !isInRecycleBin(blobStore, wiki, path)) {
+                this.logger.info("Orphan blob [{}]", path);
+                orphans.add(path);
+            }
+        }
+        this.orphanCount += orphans.size();
+
+        if (delete && !orphans.isEmpty()) {
+            delete(blobStore, orphans);
+        }
+    }
+
+    /**
+     * Load the paths of the attachments of the documents some blobs may belong to. Since the names of spaces and
+     * documents may contain the path separator, a blob may belong to several documents: all of them are loaded.
+     *
+     * @param wiki The wiki the blobs belong to.
+     * @param paths The paths of the blobs.
+     * @param xcontext The XWiki context.
+     * @return The paths of the attachments.
+     * @throws XWikiException If the attachments cannot be loaded.
+     */
+    private List<String> getAttachmentPaths(String wiki, List<String> paths, XWikiContext xcontext)
+        throws XWikiException
+    {
+        Set<String> fullNames = new LinkedHashSet<String>();
+        for (String path : paths) {
+            for (String[] split : split(wiki, path)) {
+                fullNames.add(split[0] + '.' + split[1]);
+            }
+        }
+
+        xcontext.setWikiId(wiki);
+
+        List<String> attachmentPaths = new ArrayList<String>();
+        List<String> names = new ArrayList<String>(fullNames);
+        for (int start = 0; start < names.size(); start += QUERY_SIZE) {
+            List<String> parameters = names.subList(start, Math.min(start + QUERY_SIZE, names.size()));
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int j = 1; j < parameters.size(); j++) {
+                placeholders.append(", ?");
+            }
+
+            List<Object[]> rows = xcontext.getWiki().getHibernateStore()
+                .search(String.format(ATTACHMENTS_QUERY, placeholders), 0, 0, parameters, xcontext);
+            for (Object[] row : rows) {
+                attachmentPaths.add(new StringBuilder(wiki).append(PATH_SEPARATOR).append(row[0])
+                    .append(PATH_SEPARATOR).append(row[1]).append(PATH_SEPARATOR).append(row[2]).toString());
+            }
+        }
+
+        return attachmentPaths;
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param wiki The wiki the blob belongs to.
+     * @param path The path of a blob.
+     * @return true if the blob holds the content of a deleted attachment.
+     */
+    private boolean isInRecycleBin(BlobStore blobStore, String wiki, String path)
+    {
+        for (String[] split : split(wiki, path)) {
+            if (BlobStoreAttachmentRecycleBinStore.isContentInPlace(blobStore,
+                new DocumentReference(wiki, split[0], split[1]), split[2])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param wiki The wiki a blob belongs to.
+     * @param path The path of the blob.
+     * @return The space, document and file names the blob may belong to.
+     */
+    private List<String[]> split(String wiki, String path)
+    {
+        List<String[]> splits = new ArrayList<String[]>();
+        int start = wiki.length() + 1;
+        for (int i = path.indexOf(PATH_SEPARATOR, start); i >= 0; i = path.indexOf(PATH_SEPARATOR, i + 1)) {
+            for (int j = path.indexOf(PATH_SEPARATOR, i + 1); j >= 0; j = path.indexOf(PATH_SEPARATOR, j + 1)) {
+                splits.add(new String[] {path.substring(start, i), path.substring(i + 1, j), path.substring(j + 1)});
+            }
+        }
+
+        return splits;
+    }
+
+    /**
+     * Delete orphan blobs, without deleting more than the configured number of blobs per second.
+     *
+     * @param blobStore The blob store.
+     * @param orphans The paths of the orphan blobs.
+     */
+    private void delete(BlobStore blobStore, List<String> orphans)
+    {
+        int rate = Math.max(1, this.configurationSource.getProperty(GC_RATE_PROPERTY, DEFAULT_RATE));
+        for (int start = 0; start < orphans.size() && !this.stopping; start += rate) {
+            List<String> chunk = orphans.subList(start, Math.min(start + rate, orphans.size()));
+
+            long delay = this.nextDeletionTime - System.currentTimeMillis();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.stopping = true;
+                    return;
+                }
+            }
+
+            Map<String, Exception> failures = blobStore.deleteBlobs(chunk);
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                this.logger.warn("Failed to delete orphan blob [{}]: {}", failure.getKey(),
+                    failure.getValue().getMessage());
+            }
+            this.deletedCount += chunk.size() - failures.size();
+            this.nextDeletionTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(chunk.size()) / rate;
+        }
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @return The path of the last blob checked by the previous collection, or null if it completed.
+     */
+    private String readCheckpoint(BlobStore blobStore)
+    {
+        InputStream content = blobStore.getBlob(CHECKPOINT_PATH);
+        if (content == null) {
+            return null;
+        }
+
+        try {
+            return IOUtils.toString(content, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the blob garbage collection checkpoint, starting from the beginning: {}",
+                e.getMessage());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param path The path of the last checked blob.
+     */
+    private void writeCheckpoint(BlobStore blobStore, String path)
+    {
+        byte[] content = path.getBytes(StandardCharsets.UTF_8);
+        blobStore.putBlob(CHECKPOINT_PATH, new ByteArrayInputStream(content), content.length);
+        this.checkpoint = path;
+    }
+
+    /**
+     * Register the collector in JMX. Failing to do so only prevents running collections on demand.
+     */
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.mbeanName = name;
+        } catch (JMException e) {
+            this.logger.warn("Unable to register the blob garbage collector MBean: {}", e.getMessage());
+        }
+    }
+}
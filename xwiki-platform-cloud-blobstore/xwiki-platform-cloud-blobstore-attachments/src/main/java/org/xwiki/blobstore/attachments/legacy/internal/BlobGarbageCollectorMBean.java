@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+/**
+ * The JMX view of the blob garbage collector, for running it on demand and following its progress.
+ *
+ * @version $Id$
+ */
+public interface BlobGarbageCollectorMBean
+{
+    /**
+     * Start a collection in the background, resuming from the checkpoint of the previous collection if it was
+     * stopped. Does nothing if a collection is already running.
+     */
+    void start();
+
+    /**
+     * Stop the running collection after the current batch. The checkpoint is kept, so that the next collection
+     * resumes where this one stopped.
+     */
+    void stop();
+
+    /**
+     * @return true if a collection is running.
+     */
+    boolean isRunning();
+
+    /**
+     * @return true if the orphan blobs are deleted, false if they are only reported in the logs.
+     */
+    boolean isDeleting();
+
+    /**
+     * @return The path of the last blob checked by the running or stopped collection, null if none.
+     */
+    String getCheckpoint();
+
+    /**
+     * @return The number of blobs listed by the last collection.
+     */
+    long getScannedCount();
+
+    /**
+     * @return The number of orphan blobs found by the last collection.
+     */
+    long getOrphanCount();
+
+    /**
+     * @return The number of orphan blobs deleted by the last collection.
+     */
+    long getDeletedCount();
+}
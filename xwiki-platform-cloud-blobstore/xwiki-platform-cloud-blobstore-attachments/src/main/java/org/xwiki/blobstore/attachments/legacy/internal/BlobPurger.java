@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Deletes blobs in the background, so that the requests deleting attachments do not wait for the blob store.
+ *
+ * @version $Id$
+ */
+@Role
+public interface BlobPurger
+{
+    /**
+     * Schedule the deletion of a blob.
+     *
+     * @param path The path of the blob.
+     */
+    void purge(String path);
+
+    /**
+     * Cancel the scheduled deletion of a blob about to be written again, so that the new blob is not deleted. If the
+     * blob is being deleted, wait for its deletion to end.
+     *
+     * @param path The path of the blob.
+     * @throws InterruptedException If interrupted while waiting for the deletion of the blob to end, in which case the
+     *             new blob may still be deleted.
+     */
+    void cancel(String path) throws InterruptedException;
+
+    /**
+     * @return The number of blobs waiting to be deleted.
+     */
+    int getPendingCount();
+}
@@ -0,0 +1,527 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.suigeneris.jrcs.rcs.Version;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.transactions.StagedBlobsTransactionRunnable;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+
+/**
+ * The history of an attachment stored in a blob store, as a small index listing the versions and their metadata. The
+ * content of the latest version is the blob of the attachment itself, so that saving a new version does not upload it
+ * twice. When a newer version replaces it, its content is copied within the blob store to its own blob in the
+ * archive, where the content of each older version is stored. The index is only read when the history is actually
+ * used.
+ *
+ * @version $Id$
+ */
+public class BlobStoreAttachmentArchive extends XWikiAttachmentArchive
+{
+    /**
+     * The path under which the archives are stored, followed by the path of the attachment.
+     */
+    public static final String ARCHIVE_PREFIX = ".archive/";
+
+    /**
+     * The name of the index blob in the archive.
+     */
+    private static final String INDEX_NAME = "index";
+
+    /**
+     * The separator of the fields of an index line.
+     */
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * The number of fields of an index line.
+     */
+    private static final int FIELD_COUNT = 4;
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(BlobStoreAttachmentArchive.class);
+
+    /**
+     * The blob store.
+     */
+    private final BlobStore blobStore;
+
+    /**
+     * The path of the archive, ending with a separator.
+     */
+    private final String path;
+
+    /**
+     * The path of the blob of the attachment, holding the content of the latest version.
+     */
+    private final String contentPath;
+
+    /**
+     * The versions of the attachment, from the oldest to the newest, or null if the index has not been read yet.
+     */
+    private List<Revision> revisions;
+
+    /**
+     * The versions added since the archive was loaded, whose content is not stored yet.
+     */
+    private final List<Revision> pendingRevisions = new ArrayList<Revision>();
+
+    /**
+     * Constructor.
+     *
+     * @param blobStore The blob store containing the archive.
+     * @param attachment The attachment this archive belongs to.
+     */
+    public BlobStoreAttachmentArchive(BlobStore blobStore, XWikiAttachment attachment)
+    {
+        this.blobStore = blobStore;
+        this.path = Utils.appendPath(attachment.getReference(), new StringBuilder(ARCHIVE_PREFIX)).append('/')
+            .toString();
+        this.contentPath = Utils.generatePath(attachment.getReference());
+
+        setAttachment(attachment);
+    }
+
+    /**
+     * Record the current content of the attachment as a new version, whose content is the one stored in the blob of
+     * the attachment. The version of the attachment is incremented if it is already in the archive.
+     *
+     * @throws IOException If the index of the archive cannot be read.
+     */
+    public void addRevision() throws IOException
+    {
+        XWikiAttachment attachment = getAttachment();
+        if (findRevision(attachment.getVersion()) != null) {
+            attachment.incrementVersion();
+            attachment.setDate(new Date());
+        }
+
+        recordRevision(attachment).inAttachment = true;
+    }
+
+    /**
+     * Record a version of the attachment, replacing the one with the same version number if any. The content is read
+     * when the archive is saved.
+     *
+     * @param revisionAttachment The attachment in the recorded version.
+     * @throws IOException If the index of the archive cannot be read.
+     */
+    public void addRevision(XWikiAttachment revisionAttachment) throws IOException
+    {
+        recordRevision(revisionAttachment).content = revisionAttachment.getAttachment_content();
+    }
+
+    /**
+     * @param revisionAttachment The attachment in the recorded version.
+     * @return The recorded version.
+     * @throws IOException If the index of the archive cannot be read.
+     */
+    private Revision recordRevision(XWikiAttachment revisionAttachment) throws IOException
+    {
+        Revision existing = findRevision(revisionAttachment.getVersion());
+        if (existing != null) {
+            this.revisions.remove(existing);
+            this.pendingRevisions.remove(existing);
+        }
+
+        Date date = revisionAttachment.getDate() != null ? revisionAttachment.getDate() : new Date();
+        Revision revision = new Revision(revisionAttachment.getVersion(), date, revisionAttachment.getFilesize(),
+            revisionAttachment.getAuthor());
+
+        getRevisions().add(revision);
+        this.pendingRevisions.add(revision);
+
+        return revision;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The given data is ignored since the content is streamed from the attachment when the archive is saved.
+     *
+     * @see com.xpn.xwiki.doc.XWikiAttachmentArchive#updateArchive(byte[], com.xpn.xwiki.XWikiContext)
+     */
+    @Override
+    public void updateArchive(byte[] data, XWikiContext context) throws XWikiException
+    {
+        try {
+            addRevision();
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_ATTACHMENT_ARCHIVE,
+                "Exception while loading the attachment archive", e);
+        }
+    }
+
+    /**
+     * Store the content of the versions added since the archive was loaded, and then the index. The content of the
+     * version replaced as the latest one is copied from the blob of the attachment, which must thus not be replaced
+     * yet.
+     *
+     * @param blobPurger The purger whose scheduled deletions of the blobs of the archive, left by a previous deletion
+     *            of the archive, are cancelled.
+     * @throws IOException If the content of a version or the index cannot be read.
+     */
+    public void save(BlobPurger blobPurger) throws IOException
+    {
+        save(null, blobPurger);
+    }
+
+    /**
+     * Stage the content of the versions added since the archive was loaded, and then the index, so that they are only
+     * stored once the transaction saving the attachment is committed. The content of the version replaced as the
+     * latest one is staged as a copy of the blob of the attachment, which the transaction only replaces once
+     * committed.
+     *
+     * @param stagedBlobs The runnable staging the blobs of the transaction.
+     * @throws IOException If the content of a version cannot be read, or a blob cannot be staged.
+     */
+    public void save(StagedBlobsTransactionRunnable stagedBlobs) throws IOException
+    {
+        save(stagedBlobs, null);
+    }
+
+    /**
+     * @param stagedBlobs The runnable staging the blobs of the transaction, or null for storing the blobs directly.
+     * @param blobPurger The purger whose scheduled deletions are cancelled when storing the blobs directly.
+     * @throws IOException If the content of a version cannot be read, or a blob cannot be staged.
+     */
+    private void save(StagedBlobsTransactionRunnable stagedBlobs, BlobPurger blobPurger) throws IOException
+    {
+        if (this.pendingRevisions.isEmpty()) {
+            return;
+        }
+
+        List<Revision> list = getRevisions();
+        Revision latest = list.isEmpty() ? null : list.get(list.size() - 1);
+        for (Revision revision : list) {
+            if (revision.inAttachment && revision != latest) {
+                // The content is about to be replaced in the blob of the attachment.
+                copyBlob(this.contentPath, this.path + revision.version, stagedBlobs, blobPurger);
+                revision.inAttachment = false;
+            }
+        }
+
+        for (Revision revision : this.pendingRevisions) {
+            if (revision.content != null) {
+                InputStream content = revision.content.getContentInputStream();
+                try {
+                    putBlob(this.path + revision.version, content, revision.filesize, stagedBlobs, blobPurger);
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+                revision.content = null;
+            }
+        }
+        this.pendingRevisions.clear();
+
+        StringBuilder index = new StringBuilder();
+        for (Revision revision : list) {
+            index.append(revision.version).append(FIELD_SEPARATOR).append(revision.date.getTime())
+                .append(FIELD_SEPARATOR).append(revision.filesize).append(FIELD_SEPARATOR)
+                .append(revision.author != null ? revision.author : "").append('\n');
+        }
+        byte[] indexContent = index.toString().getBytes(StandardCharsets.UTF_8);
+        putBlob(this.path + INDEX_NAME, new ByteArrayInputStream(indexContent), indexContent.length, stagedBlobs,
+            blobPurger);
+    }
+
+    /**
+     * @param blobPath The path of the blob.
+     * @param content The content of the blob.
+     * @param length The length of the content.
+     * @param stagedBlobs The runnable staging the blobs of the transaction, or null for storing the blob directly.
+     * @param blobPurger The purger whose scheduled deletion of the blob is cancelled when storing it directly.
+     * @throws IOException If the blob cannot be staged.
+     */
+    private void putBlob(String blobPath, InputStream content, long length,
+        StagedBlobsTransactionRunnable stagedBlobs, BlobPurger blobPurger) throws IOException
+    {
+        if (stagedBlobs != null) {
+            // The scheduled deletion is cancelled when the staged blob is moved to its path.
+            stagedBlobs.putBlob(blobPath, content, length, getAttachment());
+        } else {
+            try {
+                blobPurger.cancel(blobPath);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted before storing blob %s", blobPath));
+            }
+            this.blobStore.putBlob(blobPath, content, length);
+        }
+    }
+
+    /**
+     * @param sourcePath The path of the blob to copy.
+     * @param blobPath The path of the copy.
+     * @param stagedBlobs The runnable staging the blobs of the transaction, or null for copying the blob directly.
+     * @param blobPurger The purger whose scheduled deletion of the copy is cancelled when copying it directly.
+     * @throws IOException If the copy cannot be staged.
+     */
+    private void copyBlob(String sourcePath, String blobPath, StagedBlobsTransactionRunnable stagedBlobs,
+        BlobPurger blobPurger) throws IOException
+    {
+        if (stagedBlobs != null) {
+            stagedBlobs.copyBlob(sourcePath, blobPath, getAttachment());
+        } else {
+            try {
+                blobPurger.cancel(blobPath);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted before storing blob %s", blobPath));
+            }
+            this.blobStore.copyBlob(sourcePath, blobPath);
+        }
+    }
+
+    /**
+     * Delete the content of all the versions and the index. The blob of the attachment is left untouched.
+     *
+     * @param blobPurger The purger deleting the blobs.
+     * @throws IOException If the index of the archive cannot be read.
+     */
+    public void delete(BlobPurger blobPurger) throws IOException
+    {
+        // The latest version may also have its own blob, when stored by an earlier version.
+        for (Revision revision : getRevisions()) {
+            blobPurger.purge(this.path + revision.version);
+        }
+        blobPurger.purge(this.path + INDEX_NAME);
+
+        this.revisions.clear();
+        this.pendingRevisions.clear();
+    }
+
+    @Override
+    public Version[] getVersions()
+    {
+        List<Revision> list;
+        try {
+            list = getRevisions();
+        } catch (IOException e) {
+            this.logger.error("Unable to read the history of attachment {}: {}", getAttachment().getReference(),
+                e.getMessage());
+
+            return new Version[0];
+        }
+        Version[] versions = new Version[list.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = new Version(list.get(i).version);
+        }
+
+        return versions;
+    }
+
+    @Override
+    public XWikiAttachment getRevision(XWikiAttachment attachment, String rev, XWikiContext context)
+        throws XWikiException
+    {
+        Revision revision;
+        try {
+            revision = findRevision(rev);
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_ATTACHMENT_ARCHIVE,
+                "Exception while loading the attachment archive", e);
+        }
+        if (revision == null) {
+            return null;
+        }
+
+        XWikiAttachment revisionAttachment = new XWikiAttachment(attachment.getDoc(), attachment.getFilename());
+        revisionAttachment.setVersion(revision.version);
+        revisionAttachment.setDate(revision.date);
+        revisionAttachment.setFilesize(revision.filesize);
+        revisionAttachment.setAuthor(revision.author);
+        revisionAttachment.setAttachment_archive(this);
+        if (revision.content != null) {
+            revisionAttachment.setAttachment_content(revision.content);
+        } else {
+            String blobPath = revision.inAttachment ? this.contentPath : this.path + revision.version;
+            revisionAttachment.setAttachment_content(new BlobStoreAttachmentContent(this.blobStore, blobPath,
+                revisionAttachment));
+        }
+
+        return revisionAttachment;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The history is not exported in the RCS format, as with the void attachment versioning store.
+     *
+     * @see com.xpn.xwiki.doc.XWikiAttachmentArchive#getArchive(com.xpn.xwiki.XWikiContext)
+     */
+    @Override
+    public byte[] getArchive(XWikiContext context) throws XWikiException
+    {
+        return new byte[0];
+    }
+
+    @Override
+    public Object clone()
+    {
+        BlobStoreAttachmentArchive archive = new BlobStoreAttachmentArchive(this.blobStore, getAttachment());
+        if (this.revisions != null) {
+            archive.revisions = new ArrayList<Revision>(this.revisions);
+            archive.pendingRevisions.addAll(this.pendingRevisions);
+        }
+
+        return archive;
+    }
+
+    /**
+     * @param version A version.
+     * @return The given version of the attachment, or null if it is not in the archive.
+     * @throws IOException If the index of the archive cannot be read.
+     */
+    private Revision findRevision(String version) throws IOException
+    {
+        for (Revision revision : getRevisions()) {
+            if (revision.version.equals(version)) {
+                return revision;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The versions of the attachment, reading the index the first time.
+     * @throws IOException If the index cannot be read.
+     */
+    private List<Revision> getRevisions() throws IOException
+    {
+        if (this.revisions == null) {
+            this.revisions = readIndex();
+        }
+
+        return this.revisions;
+    }
+
+    /**
+     * @return The versions listed in the index, the content of the latest one being the blob of the attachment.
+     * @throws IOException If the index cannot be read or is invalid.
+     */
+    private List<Revision> readIndex() throws IOException
+    {
+        List<Revision> list = new ArrayList<Revision>();
+
+        InputStream content = this.blobStore.getBlob(this.path + INDEX_NAME);
+        if (content == null) {
+            return list;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), FIELD_COUNT);
+                if (fields.length == FIELD_COUNT) {
+                    list.add(new Revision(fields[0], new Date(Long.parseLong(fields[1])),
+                        Integer.parseInt(fields[2]), fields[3].isEmpty() ? null : fields[3]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid archive index %s%s", this.path, INDEX_NAME), e);
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+
+        if (!list.isEmpty()) {
+            list.get(list.size() - 1).inAttachment = true;
+        }
+
+        return list;
+    }
+
+    /**
+     * A version of the attachment.
+     */
+    private static final class Revision
+    {
+        /**
+         * The version.
+         */
+        private final String version;
+
+        /**
+         * The date of the version.
+         */
+        private final Date date;
+
+        /**
+         * The size of the content.
+         */
+        private final int filesize;
+
+        /**
+         * The author of the version.
+         */
+        private final String author;
+
+        /**
+         * The content to store, or null if it is already stored.
+         */
+        private XWikiAttachmentContent content;
+
+        /**
+         * Whether the content is the blob of the attachment, rather than a blob of the archive.
+         */
+        private boolean inAttachment;
+
+        /**
+         * Constructor.
+         *
+         * @param version The version.
+         * @param date The date of the version.
+         * @param filesize The size of the content.
+         * @param author The author of the version.
+         */
+        Revision(String version, Date date, int filesize, String author)
+        {
+            this.version = version;
+            this.date = date;
+            this.filesize = filesize;
+            this.author = author;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.xwiki.blobstore.BlobStore;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+
+/**
+ * The content of an attachment stored in a blob store. The blob is only fetched when the content is read, and is
+ * streamed from the blob store instead of being copied in memory, so loading an attachment does not cost anything
+ * until its content is actually read.
+ *
+ * @version $Id$
+ */
+public class BlobStoreAttachmentContent extends XWikiAttachmentContent
+{
+    /**
+     * The blob store.
+     */
+    private final BlobStore blobStore;
+
+    /**
+     * The path of the blob.
+     */
+    private final String path;
+
+    /**
+     * Constructor.
+     *
+     * @param blobStore The blob store containing the content.
+     * @param path The path of the blob.
+     * @param attachment The attachment this content belongs to.
+     */
+    public BlobStoreAttachmentContent(BlobStore blobStore, String path, XWikiAttachment attachment)
+    {
+        super(attachment);
+
+        this.blobStore = blobStore;
+        this.path = path;
+    }
+
+    /**
+     * @return The path of the blob.
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    @Override
+    public BlobStoreAttachmentContent clone()
+    {
+        return new BlobStoreAttachmentContent(this.blobStore, this.path, getAttachment());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blob is only opened by the first read, so that the bytes skipped before it are not transferred. A missing
+     * blob is thus reported by the first read.
+     *
+     * @see com.xpn.xwiki.doc.XWikiAttachmentContent#getContentInputStream()
+     */
+    @Override
+    public InputStream getContentInputStream()
+    {
+        return new LazyBlobInputStream(this.blobStore, this.path, getSize());
+    }
+
+    /**
+     * @param offset The offset of the first byte of the range.
+     * @param length The length of the range, or -1 for reading up to the end of the content.
+     * @return The stream for reading the range of the content.
+     * @see BlobStore#getBlob(String, long, long)
+     */
+    public InputStream getContentInputStream(long offset, long length)
+    {
+        InputStream content = this.blobStore.getBlob(this.path, offset, length);
+        if (content == null) {
+            throw new RuntimeException(String.format("Blob %s not found", this.path));
+        }
+
+        return content;
+    }
+
+    @Override
+    public byte[] getContentAsBytes()
+    {
+        InputStream content = getContentInputStream();
+        try {
+            return IOUtils.toByteArray(content);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to read blob %s", this.path), e);
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    @Override
+    public int getSize()
+    {
+        // The size is part of the attachment metadata, so there is no need to fetch the blob.
+        return getAttachment().getFilesize();
+    }
+
+    @Override
+    public void setContent(byte[] content)
+    {
+        replaceContent().setContent(content);
+    }
+
+    @Override
+    public void setContent(InputStream is, int len) throws IOException
+    {
+        replaceContent().setContent(is, len);
+    }
+
+    @Override
+    public void setContent(InputStream is) throws IOException
+    {
+        replaceContent().setContent(is);
+    }
+
+    /**
+     * Replace this content by a regular one holding the new content until it is saved to the blob store.
+     *
+     * @return The new content of the attachment.
+     */
+    private XWikiAttachmentContent replaceContent()
+    {
+        XWikiAttachmentContent content = new XWikiAttachmentContent(getAttachment());
+        getAttachment().setAttachment_content(content);
+
+        return content;
+    }
+}
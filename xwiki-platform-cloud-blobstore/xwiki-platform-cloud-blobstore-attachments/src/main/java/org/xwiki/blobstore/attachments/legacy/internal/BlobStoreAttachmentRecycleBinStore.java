@@ -19,16 +19,31 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
+import org.xwiki.blobstore.BlobStore;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
@@ -38,7 +53,13 @@
 import com.xpn.xwiki.store.AttachmentRecycleBinStore;
 
 /**
- * The recycle store for cloud attachments.
+ * The recycle bin for cloud attachments. Deleting an attachment only records its metadata in the index of the recycle
+ * bin of its document, and leaves its content in the blob of the attachment: the blob is only copied to the recycle
+ * bin when a new attachment with the same name is saved. Restoring an attachment whose content was not copied does
+ * not upload anything, and the blobs deleted from the recycle bin are purged in the background.
+ * <p>
+ * The indexes are updated under locks local to this instance, so concurrent deletions of attachments of the same
+ * document from several instances may lose entries.
  *
  * @version $Id$
  */
@@ -47,16 +68,164 @@
 @Singleton
 public class BlobStoreAttachmentRecycleBinStore implements AttachmentRecycleBinStore
 {
+    /**
+     * The path under which the recycle bin is stored, followed by the path of the documents.
+     */
+    public static final String TRASH_PREFIX = ".trash/";
+
+    /**
+     * The path under which the documents of the deleted attachments are stored, followed by their id.
+     */
+    private static final String IDS_PREFIX = TRASH_PREFIX + ".ids/";
+
+    /**
+     * The name of the index blob in the recycle bin of a document.
+     */
+    private static final String INDEX_NAME = "index";
+
+    /**
+     * The key of the context entry holding the paths of the attachments moved to the recycle bin in this request.
+     */
+    private static final String TRASHED_CONTEXT_KEY = "blobstore.trashedAttachments";
+
+    /**
+     * The number of locks the documents are spread over.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The number of ids which can be generated in the same millisecond without depending on the next one.
+     */
+    private static final int IDS_PER_MILLISECOND = 1000;
+
+    /**
+     * The separator of the document reference components in the id blobs.
+     */
+    private static final char LINE_SEPARATOR = '\n';
+
     /**
      * Logger.
      */
     @Inject
     private Logger logger;
 
+    /**
+     * The blob store provider.
+     */
+    @Inject
+    @Named("blobstore")
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * The purger deleting the blobs removed from the recycle bin.
+     */
+    @Inject
+    private BlobPurger blobPurger;
+
+    /**
+     * The last generated id.
+     */
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * The locks protecting the indexes of the documents.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Constructor.
+     */
+    public BlobStoreAttachmentRecycleBinStore()
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Check whether an attachment has been moved to the recycle bin during the current request, in which case its
+     * blob must not be deleted along with the attachment. The check only succeeds once for each move.
+     *
+     * @param xwikiAttachment The attachment being deleted.
+     * @param xwikiContext The XWiki context.
+     * @return true if the attachment has been moved to the recycle bin and its blob must be kept.
+     */
+    public static boolean consumeTrashed(XWikiAttachment xwikiAttachment, XWikiContext xwikiContext)
+    {
+        @SuppressWarnings("unchecked")
+        Set<String> trashed = (Set<String>) xwikiContext.get(TRASHED_CONTEXT_KEY);
+
+        return trashed != null && trashed.remove(Utils.generatePath(xwikiAttachment.getReference()));
+    }
+
     @Override
-    public void deleteFromRecycleBin(long index, XWikiContext xwikiContext, boolean transaction) throws XWikiException
+    public void saveToRecycleBin(XWikiAttachment xwikiAttachment, String deleter, Date date,
+        XWikiContext xwikiContext, boolean transaction) throws XWikiException
     {
-        this.logger.debug("deleteFromRecycleBin()");
+        this.logger.debug("saveToRecycleBin()");
+
+        BlobStore blobStore = this.blobStoreProvider.get();
+        DocumentReference documentReference = xwikiAttachment.getDoc().getDocumentReference();
+        String indexPath = getIndexPath(documentReference);
+
+        BlobStoreDeletedAttachment deletedAttachment =
+            new BlobStoreDeletedAttachment(blobStore, generateId(), xwikiAttachment, deleter, date);
+
+        synchronized (getLock(indexPath)) {
+            List<BlobStoreDeletedAttachment> deletedAttachments = readIndex(blobStore, documentReference);
+            deletedAttachments.add(deletedAttachment);
+            writeIndex(blobStore, documentReference, deletedAttachments);
+        }
+
+        byte[] document = (documentReference.getWikiReference().getName() + LINE_SEPARATOR
+            + documentReference.getLastSpaceReference().getName() + LINE_SEPARATOR + documentReference.getName())
+            .getBytes(StandardCharsets.UTF_8);
+        blobStore.putBlob(IDS_PREFIX + deletedAttachment.getId(), new ByteArrayInputStream(document),
+            document.length);
+
+        // The content stays in the blob of the attachment, which the attachment store must not delete.
+        @SuppressWarnings("unchecked")
+        Set<String> trashed = (Set<String>) xwikiContext.get(TRASHED_CONTEXT_KEY);
+        if (trashed == null) {
+            trashed = new HashSet<String>();
+            xwikiContext.put(TRASHED_CONTEXT_KEY, trashed);
+        }
+        trashed.add(Utils.generatePath(xwikiAttachment.getReference()));
+    }
+
+    @Override
+    public XWikiAttachment restoreFromRecycleBin(XWikiAttachment xwikiAttachment, long index,
+        XWikiContext xwikiContext, boolean transaction) throws XWikiException
+    {
+        this.logger.debug("restoreFromRecycleBin()");
+
+        DeletedAttachment deletedAttachment = getDeletedAttachment(index, xwikiContext, transaction);
+        if (deletedAttachment == null) {
+            return null;
+        }
+
+        return deletedAttachment.restoreAttachment(xwikiAttachment, xwikiContext);
+    }
+
+    @Override
+    public DeletedAttachment getDeletedAttachment(long index, XWikiContext xwikiContext, boolean transaction)
+        throws XWikiException
+    {
+        this.logger.debug("getDeletedAttachment()");
+
+        BlobStore blobStore = this.blobStoreProvider.get();
+        DocumentReference documentReference = readDocumentReference(blobStore, index);
+        if (documentReference == null) {
+            return null;
+        }
+
+        for (BlobStoreDeletedAttachment deletedAttachment : readIndex(blobStore, documentReference)) {
+            if (deletedAttachment.getId() == index) {
+                return deletedAttachment;
+            }
+        }
+
+        return null;
     }
 
     @Override
@@ -65,7 +234,15 @@ public List<DeletedAttachment> getAllDeletedAttachments(XWikiAttachment xwikiAtt
     {
         this.logger.debug("getAllDeletedAttachments(...)");
 
-        return Collections.emptyList();
+        List<DeletedAttachment> result = new ArrayList<DeletedAttachment>();
+        for (DeletedAttachment deletedAttachment : getAllDeletedAttachments(xwikiAttachment.getDoc(), xwikiContext,
+            transaction)) {
+            if (deletedAttachment.getFilename().equals(xwikiAttachment.getFilename())) {
+                result.add(deletedAttachment);
+            }
+        }
+
+        return result;
     }
 
     @Override
@@ -74,32 +251,241 @@ public List<DeletedAttachment> getAllDeletedAttachments(XWikiDocument xwikiDocum
     {
         this.logger.debug("getAllDeletedAttachments()");
 
-        return Collections.emptyList();
+        List<DeletedAttachment> result = new ArrayList<DeletedAttachment>(
+            readIndex(this.blobStoreProvider.get(), xwikiDocument.getDocumentReference()));
+
+        // Most recently deleted first, as with the Hibernate recycle bin.
+        Collections.reverse(result);
+
+        return result;
     }
 
     @Override
-    public DeletedAttachment getDeletedAttachment(long index, XWikiContext xwikiContext, boolean transaction)
-        throws XWikiException
+    public void deleteFromRecycleBin(long index, XWikiContext xwikiContext, boolean transaction) throws XWikiException
     {
-        this.logger.debug("getDeletedAttachment()");
+        this.logger.debug("deleteFromRecycleBin()");
 
-        return null;
+        BlobStore blobStore = this.blobStoreProvider.get();
+        DocumentReference documentReference = readDocumentReference(blobStore, index);
+        if (documentReference == null) {
+            return;
+        }
+
+        BlobStoreDeletedAttachment deletedAttachment = null;
+        boolean contentShared = false;
+        String indexPath = getIndexPath(documentReference);
+        synchronized (getLock(indexPath)) {
+            List<BlobStoreDeletedAttachment> deletedAttachments = readIndex(blobStore, documentReference);
+            for (Iterator<BlobStoreDeletedAttachment> it = deletedAttachments.iterator(); it.hasNext();) {
+                BlobStoreDeletedAttachment candidate = it.next();
+                if (candidate.getId() == index) {
+                    deletedAttachment = candidate;
+                    it.remove();
+                    writeIndex(blobStore, documentReference, deletedAttachments);
+                    break;
+                }
+            }
+
+            if (deletedAttachment != null && deletedAttachment.getContentPath() != null) {
+                for (BlobStoreDeletedAttachment other : deletedAttachments) {
+                    contentShared |= deletedAttachment.getContentPath().equals(other.getContentPath());
+                }
+            }
+        }
+
+        this.blobPurger.purge(IDS_PREFIX + index);
+
+        if (deletedAttachment != null && !contentShared) {
+            if (deletedAttachment.getContentPath() != null) {
+                this.blobPurger.purge(deletedAttachment.getContentPath());
+            } else {
+                // The content is still in the blob of the attachment, which is in use again if the attachment has
+                // been restored.
+                XWikiDocument document = xwikiContext.getWiki().getDocument(documentReference, xwikiContext);
+                if (document.getAttachment(deletedAttachment.getFilename()) == null) {
+                    this.blobPurger.purge(Utils.generatePath(new AttachmentReference(deletedAttachment.getFilename(),
+                        documentReference)));
+                }
+            }
+        }
     }
 
-    @Override
-    public XWikiAttachment restoreFromRecycleBin(XWikiAttachment xwikiAttachment, long index,
-        XWikiContext xwikiContext, boolean transaction) throws XWikiException
+    /**
+     * Move to the recycle bin the content of the deleted attachments with the same name as an attachment, before the
+     * blob of the attachment is overwritten. The blob is moved within the blob store, without being downloaded. Should
+     * several deleted attachments still hold it, they share the moved blob, which is only deleted with the last of
+     * them.
+     *
+     * @param xwikiAttachment The attachment about to be saved.
+     */
+    public void evacuate(XWikiAttachment xwikiAttachment)
     {
-        this.logger.debug("restoreFromRecycleBin()");
+        BlobStore blobStore = this.blobStoreProvider.get();
+        DocumentReference documentReference = xwikiAttachment.getDoc().getDocumentReference();
+        String indexPath = getIndexPath(documentReference);
+        String attachmentPath = Utils.generatePath(xwikiAttachment.getReference());
 
-        return null;
+        synchronized (getLock(indexPath)) {
+            List<BlobStoreDeletedAttachment> deletedAttachments = readIndex(blobStore, documentReference);
+
+            String contentPath = null;
+            for (int i = deletedAttachments.size() - 1; i >= 0; i--) {
+                BlobStoreDeletedAttachment deletedAttachment = deletedAttachments.get(i);
+                if (deletedAttachment.getContentPath() == null
+                    && deletedAttachment.getFilename().equals(xwikiAttachment.getFilename())) {
+                    if (contentPath == null) {
+                        if (blobStore.getBlobMetadata(attachmentPath) == null) {
+                            return;
+                        }
+                        contentPath = getTrashPath(documentReference) + deletedAttachment.getId();
+                        blobStore.moveBlob(attachmentPath, contentPath);
+                    }
+                    deletedAttachment.setContentPath(contentPath);
+                }
+            }
+
+            if (contentPath != null) {
+                writeIndex(blobStore, documentReference, deletedAttachments);
+            }
+        }
     }
 
-    @Override
-    public void saveToRecycleBin(XWikiAttachment arg0, String arg1, Date arg2, XWikiContext arg3, boolean arg4)
-        throws XWikiException
+    /**
+     * @param blobStore The blob store.
+     * @param documentReference A document.
+     * @param filename The name of an attachment of the document.
+     * @return true if the recycle bin of the document holds a deleted attachment with this name whose content is still
+     *         in the blob of the attachment.
+     */
+    static boolean isContentInPlace(BlobStore blobStore, DocumentReference documentReference, String filename)
     {
-        this.logger.debug("saveToRecycleBin()");
+        for (BlobStoreDeletedAttachment deletedAttachment : readIndex(blobStore, documentReference)) {
+            if (deletedAttachment.getContentPath() == null && deletedAttachment.getFilename().equals(filename)) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
+    /**
+     * @return A new id, made of the current time and a counter, so that it is unique across restarts.
+     */
+    private long generateId()
+    {
+        long now = System.currentTimeMillis() * IDS_PER_MILLISECOND;
+        while (true) {
+            long last = this.lastId.get();
+            long id = Math.max(now, last + 1);
+            if (this.lastId.compareAndSet(last, id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @param documentReference A document.
+     * @return The path of the recycle bin of the document, ending with a separator.
+     */
+    private static String getTrashPath(DocumentReference documentReference)
+    {
+        return Utils.appendPath(documentReference, new StringBuilder(TRASH_PREFIX)).append('/').toString();
+    }
+
+    /**
+     * @param documentReference A document.
+     * @return The path of the index of the recycle bin of the document.
+     */
+    private static String getIndexPath(DocumentReference documentReference)
+    {
+        return getTrashPath(documentReference) + INDEX_NAME;
+    }
+
+    /**
+     * @param path The path of the index of the recycle bin of a document.
+     * @return The lock protecting the index.
+     */
+    private Object getLock(String path)
+    {
+        return this.locks[(path.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param id The id of a deleted attachment.
+     * @return The document the attachment belonged to, or null if the id is unknown.
+     */
+    private DocumentReference readDocumentReference(BlobStore blobStore, long id)
+    {
+        List<String> lines = readLines(blobStore, IDS_PREFIX + id);
+        if (lines.size() != 3) {
+            return null;
+        }
+
+        return new DocumentReference(lines.get(0), lines.get(1), lines.get(2));
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param documentReference A document.
+     * @return The deleted attachments of the document, from the oldest to the most recently deleted.
+     */
+    private static List<BlobStoreDeletedAttachment> readIndex(BlobStore blobStore, DocumentReference documentReference)
+    {
+        List<BlobStoreDeletedAttachment> deletedAttachments = new ArrayList<BlobStoreDeletedAttachment>();
+        for (String line : readLines(blobStore, getIndexPath(documentReference))) {
+            BlobStoreDeletedAttachment deletedAttachment =
+                BlobStoreDeletedAttachment.fromIndexLine(blobStore, documentReference, line);
+            if (deletedAttachment != null) {
+                deletedAttachments.add(deletedAttachment);
+            }
+        }
+
+        return deletedAttachments;
+    }
+
+    /**
+     * Store the index of the recycle bin of a document, or delete it if there is no deleted attachment anymore.
+     *
+     * @param blobStore The blob store.
+     * @param documentReference A document.
+     * @param deletedAttachments The deleted attachments of the document.
+     */
+    private void writeIndex(BlobStore blobStore, DocumentReference documentReference,
+        List<BlobStoreDeletedAttachment> deletedAttachments)
+    {
+        String indexPath = getIndexPath(documentReference);
+        if (deletedAttachments.isEmpty()) {
+            blobStore.deleteBlob(indexPath);
+            return;
+        }
+
+        StringBuilder index = new StringBuilder();
+        for (BlobStoreDeletedAttachment deletedAttachment : deletedAttachments) {
+            index.append(deletedAttachment.toIndexLine()).append(LINE_SEPARATOR);
+        }
+        byte[] indexContent = index.toString().getBytes(StandardCharsets.UTF_8);
+        blobStore.putBlob(indexPath, new ByteArrayInputStream(indexContent), indexContent.length);
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param path The path of a text blob.
+     * @return The lines of the blob, or an empty list if the blob does not exist.
+     */
+    private static List<String> readLines(BlobStore blobStore, String path)
+    {
+        InputStream content = blobStore.getBlob(path);
+        if (content == null) {
+            return new ArrayList<String>();
+        }
+
+        try {
+            return IOUtils.readLines(new InputStreamReader(content, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to read the recycle bin blob %s", path), e);
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
 }
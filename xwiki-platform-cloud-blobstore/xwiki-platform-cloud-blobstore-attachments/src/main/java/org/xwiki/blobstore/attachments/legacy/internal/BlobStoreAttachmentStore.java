@@ -20,8 +20,9 @@
 package org.xwiki.blobstore.attachments.legacy.internal;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -31,14 +32,25 @@
 import org.slf4j.Logger;
 import org.xwiki.blobstore.BlobStore;
 import org.xwiki.blobstore.attachments.legacy.internal.transactions.DeleteAttachmentTransactionRunnable;
+import org.xwiki.blobstore.attachments.legacy.internal.transactions.SaveAttachmentArchiveTransactionRunnable;
 import org.xwiki.blobstore.attachments.legacy.internal.transactions.SaveAttachmentTransactionRunnable;
+import org.xwiki.blobstore.attachments.legacy.internal.transactions.SaveAttachmentsTransactionRunnable;
+import org.xwiki.blobstore.attachments.legacy.internal.transactions.StagedBlobsTransactionRunnable;
 import org.xwiki.blobstore.attachments.legacy.internal.transactions.XWikiHibernateTransaction;
+import org.xwiki.blobstore.internal.DaemonThreadFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.AttachmentRecycleBinStore;
 import com.xpn.xwiki.store.XWikiAttachmentStoreInterface;
 
 /**
@@ -49,8 +61,18 @@
 @Component
 @Named("blobstore")
 @Singleton
-public class BlobStoreAttachmentStore implements XWikiAttachmentStoreInterface
+public class BlobStoreAttachmentStore implements XWikiAttachmentStoreInterface, Initializable, Disposable
 {
+    /**
+     * The maximum number of blobs uploaded concurrently when saving several attachments at once.
+     */
+    public static final String BATCH_CONCURRENCY_PROPERTY = "xwiki.store.attachments.blobstore.batch.concurrency";
+
+    /**
+     * The default number of blobs uploaded concurrently when saving several attachments at once.
+     */
+    private static final int DEFAULT_BATCH_CONCURRENCY = 8;
+
     /**
      * The blob store provider.
      */
@@ -58,12 +80,52 @@ public class BlobStoreAttachmentStore implements XWikiAttachmentStoreInterface
     @Named("blobstore")
     private Provider<BlobStore> blobStoreProvider;
 
+    /**
+     * The purger deleting the blobs of the deleted attachments.
+     */
+    @Inject
+    private BlobPurger blobPurger;
+
+    /**
+     * The journal recording the blobs staged by the transactions.
+     */
+    @Inject
+    private BlobTransactionJournal journal;
+
     /**
      * Logger.
      */
     @Inject
     private Logger logger;
 
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The executor uploading the blobs when saving several attachments at once.
+     */
+    private ExecutorService batchExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int concurrency =
+            Math.max(1, this.configurationSource.getProperty(BATCH_CONCURRENCY_PROPERTY, DEFAULT_BATCH_CONCURRENCY));
+
+        this.batchExecutor =
+            Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("Blob store attachment batch"));
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.batchExecutor.shutdown();
+    }
+
     @Override
     public void cleanUp(XWikiContext xwikiContext)
     {
@@ -78,9 +140,12 @@ public void deleteXWikiAttachment(XWikiAttachment xwikiAttachment, boolean updat
 
         XWikiHibernateTransaction transaction = new XWikiHibernateTransaction(xwikiContext);
 
+        // The blob of an attachment moved to the recycle bin is still used by the recycle bin.
+        boolean deleteData = !BlobStoreAttachmentRecycleBinStore.consumeTrashed(xwikiAttachment, xwikiContext);
+
         DeleteAttachmentTransactionRunnable transactionRunnable =
-            new DeleteAttachmentTransactionRunnable(this.blobStoreProvider, xwikiAttachment, xwikiContext,
-                updateDocument);
+            new DeleteAttachmentTransactionRunnable(this.blobPurger, xwikiAttachment, xwikiContext, updateDocument,
+                deleteData);
         transactionRunnable.runIn(transaction);
 
         try {
@@ -113,21 +178,11 @@ public void loadAttachmentContent(XWikiAttachment xwikiAttachment, XWikiContext
     {
         this.logger.debug("loadAttachmentContent()");
 
-        BlobStore blobStore = this.blobStoreProvider.get();
-
         String path = Utils.generatePath(xwikiAttachment.getReference());
 
-        InputStream blobData = blobStore.getBlob(path);
-
-        try {
-            xwikiAttachment.setContent(blobData);
-        } catch (IOException e) {
-            this.logger.error("Exception caught in loadAttachmentContent(), rethrowing.", e);
-
-            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE, XWikiException.ERROR_XWIKI_STORE_FILENOTFOUND,
-                String.format("Blob %s not found", xwikiAttachment.getReference().getName()), e);
-        }
-
+        // The blob is only fetched, and then streamed, when the content of the attachment is actually read.
+        xwikiAttachment.setAttachment_content(new BlobStoreAttachmentContent(this.blobStoreProvider.get(), path,
+            xwikiAttachment));
     }
 
     @Override
@@ -136,13 +191,22 @@ public void saveAttachmentContent(XWikiAttachment xwikiAttachment, boolean updat
     {
         this.logger.debug("saveAttachmentContent()");
 
+        evacuateRecycleBin(xwikiAttachment, xwikiContext);
+
         XWikiHibernateTransaction transaction = new XWikiHibernateTransaction(xwikiContext);
 
+        StagedBlobsTransactionRunnable stagedBlobs = newStagedBlobs(transaction);
+        stagedBlobs.runIn(transaction);
+
         SaveAttachmentTransactionRunnable transactionRunnable =
-            new SaveAttachmentTransactionRunnable(this.blobStoreProvider, xwikiAttachment, xwikiContext,
-                updateDocument);
+            new SaveAttachmentTransactionRunnable(stagedBlobs, xwikiAttachment, xwikiContext, updateDocument);
         transactionRunnable.runIn(transaction);
 
+        BlobStoreAttachmentArchive archive = updateArchive(xwikiAttachment, xwikiContext);
+        if (archive != null) {
+            new SaveAttachmentArchiveTransactionRunnable(archive, stagedBlobs).runIn(transaction);
+        }
+
         try {
             transaction.start();
         } catch (Exception e) {
@@ -170,6 +234,119 @@ public void saveAttachmentsContent(List<XWikiAttachment> attachmentList, XWikiDo
         boolean updateDocument, XWikiContext xwikiContext, boolean bTransaction) throws XWikiException
     {
         this.logger.debug("saveAttachmentsContent()");
+
+        for (XWikiAttachment xwikiAttachment : attachmentList) {
+            evacuateRecycleBin(xwikiAttachment, xwikiContext);
+        }
+
+        XWikiHibernateTransaction transaction = new XWikiHibernateTransaction(xwikiContext);
+
+        StagedBlobsTransactionRunnable stagedBlobs = newStagedBlobs(transaction);
+        stagedBlobs.runIn(transaction);
+
+        SaveAttachmentsTransactionRunnable transactionRunnable =
+            new SaveAttachmentsTransactionRunnable(stagedBlobs, attachmentList, xwikiDocument, xwikiContext,
+                updateDocument, this.batchExecutor);
+        transactionRunnable.runIn(transaction);
+
+        for (XWikiAttachment xwikiAttachment : attachmentList) {
+            BlobStoreAttachmentArchive archive = updateArchive(xwikiAttachment, xwikiContext);
+            if (archive != null) {
+                new SaveAttachmentArchiveTransactionRunnable(archive, stagedBlobs).runIn(transaction);
+            }
+        }
+
+        try {
+            transaction.start();
+        } catch (Exception e) {
+            this.logger.error("Exception caught in saveAttachmentsContent(), rethrowing.", e);
+
+            if (e instanceof XWikiException) {
+                throw (XWikiException) e;
+            }
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SAVING_ATTACHMENT, "Exception while saving attachments", e);
+        }
+    }
+
+    /**
+     * @param transaction The Hibernate transaction the runnable runs in.
+     * @return A new runnable staging the blobs of a transaction.
+     */
+    private StagedBlobsTransactionRunnable newStagedBlobs(XWikiHibernateTransaction transaction)
+    {
+        return new StagedBlobsTransactionRunnable(transaction, this.blobStoreProvider.get(), this.journal,
+            this.blobPurger);
     }
 
+    /**
+     * Record the new content of an attachment in its history, when the history is kept in the blob store. The version
+     * of the attachment is incremented if needed, and the content of the version is only stored when the returned
+     * archive is saved.
+     *
+     * @param xwikiAttachment The attachment being saved.
+     * @param xwikiContext The XWiki context.
+     * @return The archive to save, or null if the content is unchanged or the history is not kept in the blob store.
+     * @throws XWikiException If the archive or its index cannot be loaded.
+     */
+    private BlobStoreAttachmentArchive updateArchive(XWikiAttachment xwikiAttachment, XWikiContext xwikiContext)
+        throws XWikiException
+    {
+        if (!isContentModified(xwikiAttachment)) {
+            return null;
+        }
+
+        XWikiAttachmentArchive archive = xwikiAttachment.loadArchive(xwikiContext);
+        if (!(archive instanceof BlobStoreAttachmentArchive)) {
+            return null;
+        }
+
+        BlobStoreAttachmentArchive blobStoreArchive = (BlobStoreAttachmentArchive) archive;
+        try {
+            blobStoreArchive.addRevision();
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_ATTACHMENT_ARCHIVE,
+                "Exception while loading the attachment archive", e);
+        }
+
+        return blobStoreArchive;
+    }
+
+    /**
+     * Copy to the recycle bin the content of the deleted attachments still held by the blob of a new attachment with
+     * the same name, before the blob is overwritten.
+     *
+     * @param xwikiAttachment The attachment being saved.
+     * @param xwikiContext The XWiki context.
+     */
+    private void evacuateRecycleBin(XWikiAttachment xwikiAttachment, XWikiContext xwikiContext)
+    {
+        AttachmentRecycleBinStore recycleBinStore = xwikiContext.getWiki().getAttachmentRecycleBinStore();
+        if (!(recycleBinStore instanceof BlobStoreAttachmentRecycleBinStore) || !isContentModified(xwikiAttachment)) {
+            return;
+        }
+
+        // Only a new attachment can reuse the blob of a deleted one.
+        XWikiDocument originalDocument = xwikiAttachment.getDoc().getOriginalDocument();
+        if (originalDocument == null || originalDocument.getAttachment(xwikiAttachment.getFilename()) == null) {
+            ((BlobStoreAttachmentRecycleBinStore) recycleBinStore).evacuate(xwikiAttachment);
+        }
+    }
+
+    /**
+     * @param xwikiAttachment An attachment.
+     * @return false if the content of the attachment is unchanged since it was loaded from the blob of the attachment.
+     */
+    private boolean isContentModified(XWikiAttachment xwikiAttachment)
+    {
+        XWikiAttachmentContent content = xwikiAttachment.getAttachment_content();
+        if (content instanceof BlobStoreAttachmentContent) {
+            return !((BlobStoreAttachmentContent) content).getPath().equals(
+                Utils.generatePath(xwikiAttachment.getReference()));
+        }
+
+        return content != null;
+    }
 }
@@ -19,11 +19,16 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal;
 
+import java.io.IOException;
+
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
+import org.suigeneris.jrcs.rcs.Version;
+import org.xwiki.blobstore.BlobStore;
 import org.xwiki.component.annotation.Component;
 
 import com.xpn.xwiki.XWikiContext;
@@ -33,7 +38,7 @@
 import com.xpn.xwiki.store.AttachmentVersioningStore;
 
 /**
- * The cloud attachment versioning store.
+ * The cloud attachment versioning store, keeping each version of an attachment as its own blob.
  *
  * @version $Id$
  */
@@ -42,6 +47,19 @@
 @Singleton
 public class BlobStoreAttachmentVersioningStore implements AttachmentVersioningStore
 {
+    /**
+     * The blob store provider.
+     */
+    @Inject
+    @Named("blobstore")
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * The purger deleting the blobs of the deleted archives.
+     */
+    @Inject
+    private BlobPurger blobPurger;
+
     /**
      * Logger.
      */
@@ -53,6 +71,14 @@ public void deleteArchive(XWikiAttachment xwikiAttachment, XWikiContext xwikiCon
         throws XWikiException
     {
         this.logger.debug("deleteArchive()");
+
+        try {
+            new BlobStoreAttachmentArchive(this.blobStoreProvider.get(), xwikiAttachment).delete(this.blobPurger);
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_DELETING_ATTACHMENT_ARCHIVE,
+                "Exception while deleting the attachment archive", e);
+        }
     }
 
     @Override
@@ -61,14 +87,74 @@ public XWikiAttachmentArchive loadArchive(XWikiAttachment xwikiAttachment, XWiki
     {
         this.logger.debug("loadArchive()");
 
-        return null;
+        // The index is only read when the history is used.
+        return new BlobStoreAttachmentArchive(this.blobStoreProvider.get(), xwikiAttachment);
     }
 
     @Override
-    public void saveArchive(XWikiAttachmentArchive xwikiAttachment, XWikiContext xwikiContext, boolean transaction)
-        throws XWikiException
+    public void saveArchive(XWikiAttachmentArchive xwikiAttachmentArchive, XWikiContext xwikiContext,
+        boolean transaction) throws XWikiException
     {
         this.logger.debug("saveArchive()");
+
+        BlobStoreAttachmentArchive archive;
+        if (xwikiAttachmentArchive instanceof BlobStoreAttachmentArchive) {
+            archive = (BlobStoreAttachmentArchive) xwikiAttachmentArchive;
+        } else {
+            // For instance an archive imported from a XAR, or coming from another versioning store.
+            archive = convert(xwikiAttachmentArchive, xwikiContext);
+        }
+
+        try {
+            archive.save(this.blobPurger);
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SAVING_ATTACHMENT,
+                "Exception while saving the attachment archive", e);
+        }
+    }
+
+    /**
+     * Copy the versions of an archive to a new archive stored in the blob store.
+     *
+     * @param xwikiAttachmentArchive The archive.
+     * @param xwikiContext The XWiki context.
+     * @return The new archive, whose versions still have to be saved.
+     * @throws XWikiException If a version, or the index of the new archive, cannot be read.
+     */
+    private BlobStoreAttachmentArchive convert(XWikiAttachmentArchive xwikiAttachmentArchive,
+        XWikiContext xwikiContext) throws XWikiException
+    {
+        XWikiAttachment attachment = xwikiAttachmentArchive.getAttachment();
+        BlobStoreAttachmentArchive archive = new BlobStoreAttachmentArchive(this.blobStoreProvider.get(), attachment);
+
+        Version[] versions = xwikiAttachmentArchive.getVersions();
+        if (versions != null) {
+            for (Version version : versions) {
+                XWikiAttachment revision = xwikiAttachmentArchive.getRevision(attachment, version.toString(),
+                    xwikiContext);
+                if (revision != null) {
+                    addRevision(archive, revision);
+                }
+            }
+        }
+
+        return archive;
     }
 
+    /**
+     * @param archive The archive.
+     * @param revision The attachment in the version to record in the archive.
+     * @throws XWikiException If the index of the archive cannot be read.
+     */
+    private void addRevision(BlobStoreAttachmentArchive archive, XWikiAttachment revision) throws XWikiException
+    {
+        try {
+            archive.addRevision(revision);
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_ATTACHMENT_ARCHIVE,
+                "Exception while loading the attachment archive", e);
+        }
+    }
 }
@@ -0,0 +1,317 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.util.Date;
+
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.DeletedAttachment;
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+/**
+ * An attachment in the blob store recycle bin. Instead of a XML export of the attachment, it keeps the metadata of
+ * the attachment and the path of the blob holding its content, so that restoring it does not upload the content
+ * again.
+ *
+ * @version $Id$
+ */
+public class BlobStoreDeletedAttachment extends DeletedAttachment
+{
+    /**
+     * The separator of the fields of an index line.
+     */
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * The number of fields of an index line.
+     */
+    private static final int FIELD_COUNT = 11;
+
+    /**
+     * The blob store containing the content.
+     */
+    private final BlobStore blobStore;
+
+    /**
+     * The document the attachment belonged to.
+     */
+    private final DocumentReference documentReference;
+
+    /**
+     * The version of the attachment.
+     */
+    private String version;
+
+    /**
+     * The date of the attachment.
+     */
+    private Date attachmentDate;
+
+    /**
+     * The size of the content.
+     */
+    private int filesize;
+
+    /**
+     * The author of the attachment.
+     */
+    private String author;
+
+    /**
+     * The path of the blob holding the content, or null if the content is still in the blob of the attachment.
+     */
+    private String contentPath;
+
+    /**
+     * Constructor.
+     *
+     * @param blobStore The blob store containing the content.
+     * @param documentReference The document the attachment belonged to.
+     */
+    public BlobStoreDeletedAttachment(BlobStore blobStore, DocumentReference documentReference)
+    {
+        this.blobStore = blobStore;
+        this.documentReference = documentReference;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param blobStore The blob store containing the content.
+     * @param id The id of the deleted attachment.
+     * @param attachment The deleted attachment.
+     * @param deleter The user who deleted the attachment.
+     * @param date The date of the deletion.
+     */
+    public BlobStoreDeletedAttachment(BlobStore blobStore, long id, XWikiAttachment attachment, String deleter,
+        Date date)
+    {
+        this(blobStore, attachment.getDoc().getDocumentReference());
+
+        setId(id);
+        setDocId(attachment.getDoc().getId());
+        setDocName(attachment.getDoc().getFullName());
+        setFilename(attachment.getFilename());
+        setDeleter(deleter);
+        setDate(date);
+
+        this.version = attachment.getVersion();
+        this.attachmentDate = attachment.getDate();
+        this.filesize = attachment.getFilesize();
+        this.author = attachment.getAuthor();
+    }
+
+    /**
+     * Read a deleted attachment from a line of the index of the recycle bin of a document.
+     *
+     * @param blobStore The blob store containing the content.
+     * @param documentReference The document the attachment belonged to.
+     * @param line The index line, as returned by {@link #toIndexLine()}.
+     * @return The deleted attachment, or null if the line is not valid.
+     */
+    public static BlobStoreDeletedAttachment fromIndexLine(BlobStore blobStore, DocumentReference documentReference,
+        String line)
+    {
+        // The file name comes last so that it may contain the separator.
+        String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), FIELD_COUNT);
+        if (fields.length != FIELD_COUNT) {
+            return null;
+        }
+
+        int i = 0;
+        BlobStoreDeletedAttachment deletedAttachment = new BlobStoreDeletedAttachment(blobStore, documentReference);
+        deletedAttachment.setId(Long.parseLong(fields[i++]));
+        deletedAttachment.setDate(new Date(Long.parseLong(fields[i++])));
+        deletedAttachment.setDeleter(emptyToNull(fields[i++]));
+        deletedAttachment.setDocId(Long.parseLong(fields[i++]));
+        deletedAttachment.setDocName(fields[i++]);
+        deletedAttachment.version = fields[i++];
+        deletedAttachment.attachmentDate = new Date(Long.parseLong(fields[i++]));
+        deletedAttachment.filesize = Integer.parseInt(fields[i++]);
+        deletedAttachment.author = emptyToNull(fields[i++]);
+        deletedAttachment.contentPath = emptyToNull(fields[i++]);
+        deletedAttachment.setFilename(fields[i]);
+
+        return deletedAttachment;
+    }
+
+    /**
+     * @return The line describing this deleted attachment in the index of the recycle bin of the document.
+     */
+    public String toIndexLine()
+    {
+        StringBuilder line = new StringBuilder();
+        line.append(getId()).append(FIELD_SEPARATOR);
+        line.append(getDate().getTime()).append(FIELD_SEPARATOR);
+        line.append(nullToEmpty(getDeleter())).append(FIELD_SEPARATOR);
+        line.append(getDocId()).append(FIELD_SEPARATOR);
+        line.append(getDocName()).append(FIELD_SEPARATOR);
+        line.append(this.version).append(FIELD_SEPARATOR);
+        line.append(this.attachmentDate != null ? this.attachmentDate.getTime() : getDate().getTime())
+            .append(FIELD_SEPARATOR);
+        line.append(this.filesize).append(FIELD_SEPARATOR);
+        line.append(nullToEmpty(this.author)).append(FIELD_SEPARATOR);
+        line.append(nullToEmpty(this.contentPath)).append(FIELD_SEPARATOR);
+        line.append(getFilename());
+
+        return line.toString();
+    }
+
+    /**
+     * @return The document the attachment belonged to.
+     */
+    public DocumentReference getDocumentReference()
+    {
+        return this.documentReference;
+    }
+
+    /**
+     * @return The version of the attachment.
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * @param version The version of the attachment.
+     */
+    public void setVersion(String version)
+    {
+        this.version = version;
+    }
+
+    /**
+     * @return The date of the attachment.
+     */
+    public Date getAttachmentDate()
+    {
+        return this.attachmentDate;
+    }
+
+    /**
+     * @param attachmentDate The date of the attachment.
+     */
+    public void setAttachmentDate(Date attachmentDate)
+    {
+        this.attachmentDate = attachmentDate;
+    }
+
+    /**
+     * @return The size of the content.
+     */
+    public int getFilesize()
+    {
+        return this.filesize;
+    }
+
+    /**
+     * @param filesize The size of the content.
+     */
+    public void setFilesize(int filesize)
+    {
+        this.filesize = filesize;
+    }
+
+    /**
+     * @return The author of the attachment.
+     */
+    public String getAuthor()
+    {
+        return this.author;
+    }
+
+    /**
+     * @param author The author of the attachment.
+     */
+    public void setAuthor(String author)
+    {
+        this.author = author;
+    }
+
+    /**
+     * @return The path of the blob holding the content, or null if the content is still in the blob of the
+     *         attachment.
+     */
+    public String getContentPath()
+    {
+        return this.contentPath;
+    }
+
+    /**
+     * @param contentPath The path of the blob holding the content, or null if the content is still in the blob of the
+     *            attachment.
+     */
+    public void setContentPath(String contentPath)
+    {
+        this.contentPath = contentPath;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content of the restored attachment is read lazily from the blob holding it. When this blob is still the one
+     * of the attachment, saving the restored attachment does not upload anything.
+     *
+     * @see com.xpn.xwiki.doc.DeletedAttachment#restoreAttachment(com.xpn.xwiki.doc.XWikiAttachment,
+     *      com.xpn.xwiki.XWikiContext)
+     */
+    @Override
+    public XWikiAttachment restoreAttachment(XWikiAttachment attachment, XWikiContext context) throws XWikiException
+    {
+        XWikiAttachment result = attachment != null ? attachment : new XWikiAttachment();
+
+        result.setDoc(context.getWiki().getDocument(this.documentReference, context));
+        result.setFilename(getFilename());
+        result.setVersion(this.version);
+        result.setDate(this.attachmentDate);
+        result.setFilesize(this.filesize);
+        result.setAuthor(this.author);
+
+        String path = this.contentPath != null ? this.contentPath : Utils.generatePath(result.getReference());
+        result.setAttachment_content(new BlobStoreAttachmentContent(this.blobStore, path, result));
+        result.setContentDirty(true);
+        result.setMetaDataDirty(true);
+
+        return result;
+    }
+
+    /**
+     * @param value A value.
+     * @return The value, or an empty string if it is null.
+     */
+    private static String nullToEmpty(String value)
+    {
+        return value != null ? value : "";
+    }
+
+    /**
+     * @param value A value.
+     * @return The value, or null if it is empty.
+     */
+    private static String emptyToNull(String value)
+    {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.util.Util;
+import com.xpn.xwiki.web.DownloadAction;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+
+/**
+ * Download action fetching from the blob store only what the browser needs of the attachments stored in it. The
+ * standard download action reads the content of the attachment up to the start of an HTTP range before copying the
+ * range, so seeking in a video fetches everything before the position sought from the blob store. This action reads
+ * the range with {@link BlobStoreAttachmentContent#getContentInputStream(long, long)} instead. The whole content is
+ * sent along with an entity tag made of the version and date of the attachment, and the browsers revalidating a copy
+ * that is still up to date are answered from the metadata of the attachment, without any request to the blob store.
+ * The other downloads, like the ones of older versions or of images resized by a plugin, are left to the standard
+ * download action.
+ *
+ * @version $Id$
+ */
+public class BlobStoreDownloadAction extends DownloadAction
+{
+    /**
+     * The header holding the range requested.
+     */
+    private static final String RANGE_HEADER = "Range";
+
+    /**
+     * The header making the range conditional, whose condition is not evaluated: the whole content is sent instead.
+     */
+    private static final String IF_RANGE_HEADER = "If-Range";
+
+    /**
+     * The header holding the entity tag of the copy of the browser.
+     */
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+    /**
+     * The header holding the date of the copy of the browser.
+     */
+    private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+
+    /**
+     * The header holding the entity tag of the content.
+     */
+    private static final String ETAG_HEADER = "ETag";
+
+    /**
+     * The header holding the date the content was last modified.
+     */
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+
+    /**
+     * The header holding the range sent.
+     */
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+    /**
+     * The quote delimiting entity tags.
+     */
+    private static final String QUOTE = "\"";
+
+    /**
+     * The single range this action serves, {@code bytes=start-end}, {@code bytes=start-} or {@code bytes=-suffix}.
+     */
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=([0-9]{1,18})?-([0-9]{1,18})?");
+
+    @Override
+    public String render(XWikiContext context) throws XWikiException
+    {
+        XWikiRequest request = context.getRequest();
+        XWikiAttachment attachment = getAttachment(request, context);
+        if (attachment == null || !(attachment.getAttachment_content() instanceof BlobStoreAttachmentContent)) {
+            return super.render(context);
+        }
+
+        BlobStoreAttachmentContent content = (BlobStoreAttachmentContent) attachment.getAttachment_content();
+        XWikiResponse response = context.getResponse();
+        try {
+            String range = request.getHeader(RANGE_HEADER);
+            if (range == null || request.getHeader(IF_RANGE_HEADER) != null
+                || !sendRange(range, attachment, content, request, response, context)) {
+                sendContent(attachment, content, request, response, context);
+            }
+        } catch (IOException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_APP,
+                XWikiException.ERROR_XWIKI_APP_SEND_RESPONSE_EXCEPTION, "Exception while sending response", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param request The request.
+     * @param context The context of the request.
+     * @return The attachment requested, after the plugins had a chance to replace it, or null if it does not exist or
+     *         if an older version is requested.
+     * @throws XWikiException If the content of the attachment cannot be loaded.
+     */
+    private XWikiAttachment getAttachment(XWikiRequest request, XWikiContext context) throws XWikiException
+    {
+        if (request.getParameter("rev") != null) {
+            return null;
+        }
+
+        String path = request.getRequestURI();
+        String filename = Util.decodeURI(path.substring(path.lastIndexOf('/') + 1), context);
+        XWikiAttachment attachment = context.getDoc().getAttachment(filename);
+        if (attachment == null) {
+            return null;
+        }
+
+        // Loading the content only sets the blob it is read from.
+        attachment.loadContent(context);
+
+        return context.getWiki().getPluginManager().downloadAttachment(attachment, context);
+    }
+
+    /**
+     * Send the whole content, unless the copy of the browser is still up to date.
+     *
+     * @param attachment The attachment.
+     * @param content The content of the attachment.
+     * @param request The request.
+     * @param response The response.
+     * @param context The context of the request.
+     * @throws IOException If the content cannot be sent.
+     */
+    private void sendContent(XWikiAttachment attachment, BlobStoreAttachmentContent content, XWikiRequest request,
+        XWikiResponse response, XWikiContext context) throws IOException
+    {
+        String entityTag = getEntityTag(attachment);
+        response.setHeader(ETAG_HEADER, QUOTE + entityTag + QUOTE);
+        long lastModified = attachment.getDate().getTime();
+        response.setDateHeader(LAST_MODIFIED_HEADER, lastModified);
+
+        // The copy of the browser is checked against the metadata of the attachment, loaded from the database, so
+        // answering a revalidation does not send any request to the blob store.
+        if (isNotModified(request, entityTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+            return;
+        }
+
+        setContentHeaders(attachment, request, response, context);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setContentLength(content.getSize());
+        InputStream stream = content.getContentInputStream();
+        try {
+            IOUtils.copyLarge(stream, response.getOutputStream());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Send a single range of the content, fetching only the range from the blob store.
+     *
+     * @param range The value of the range header.
+     * @param attachment The attachment.
+     * @param content The content of the attachment.
+     * @param request The request.
+     * @param response The response.
+     * @param context The context of the request.
+     * @return false if the range is not a single valid range, in which case nothing is sent.
+     * @throws IOException If the range cannot be sent.
+     */
+    private boolean sendRange(String range, XWikiAttachment attachment, BlobStoreAttachmentContent content,
+        XWikiRequest request, XWikiResponse response, XWikiContext context) throws IOException
+    {
+        Matcher matcher = RANGE_PATTERN.matcher(range);
+        if (!matcher.matches() || matcher.group(1) == null && matcher.group(2) == null) {
+            return false;
+        }
+
+        long size = content.getSize();
+        long start;
+        long end = size - 1;
+        if (matcher.group(1) == null) {
+            start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+        } else {
+            start = Long.parseLong(matcher.group(1));
+            if (matcher.group(2) != null) {
+                long lastByte = Long.parseLong(matcher.group(2));
+                if (lastByte < start) {
+                    return false;
+                }
+                end = Math.min(end, lastByte);
+            }
+        }
+
+        if (start >= size) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(CONTENT_RANGE_HEADER, "bytes */" + size);
+
+            return true;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        setContentHeaders(attachment, request, response, context);
+        response.setHeader(ETAG_HEADER, QUOTE + getEntityTag(attachment) + QUOTE);
+        response.setDateHeader(LAST_MODIFIED_HEADER, attachment.getDate().getTime());
+        response.setHeader(CONTENT_RANGE_HEADER, String.format("bytes %d-%d/%d", start, end, size));
+        response.setContentLength((int) (end - start + 1));
+
+        InputStream stream = content.getContentInputStream(start, end - start + 1);
+        try {
+            IOUtils.copyLarge(stream, response.getOutputStream());
+        } finally {
+            stream.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the type of the content and how the browser should present it, like the standard download action does.
+     *
+     * @param attachment The attachment.
+     * @param request The request.
+     * @param response The response.
+     * @param context The context of the request.
+     */
+    private void setContentHeaders(XWikiAttachment attachment, XWikiRequest request, XWikiResponse response,
+        XWikiContext context)
+    {
+        response.setContentType(attachment.getMimeType(context));
+        String dispositionType = "1".equals(request.getParameter("force-download")) ? "attachment" : "inline";
+        response.addHeader("Content-Disposition", dispositionType + "; filename*=utf-8''"
+            + Util.encodeURI(attachment.getFilename(), context).replaceAll("\\+", "%20"));
+    }
+
+    /**
+     * @param attachment The attachment.
+     * @return The entity tag of the attachment, changing with each version of its content.
+     */
+    private static String getEntityTag(XWikiAttachment attachment)
+    {
+        return attachment.getVersion() + '-' + attachment.getDate().getTime();
+    }
+
+    /**
+     * @param request The request.
+     * @param entityTag The entity tag of the attachment.
+     * @param lastModified The date of the attachment, in milliseconds.
+     * @return true if the copy the browser revalidates is still up to date.
+     */
+    private static boolean isNotModified(XWikiRequest request, String entityTag, long lastModified)
+    {
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                // A weak entity tag matches as well, since the content is the same.
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if ("*".equals(tag) || tag.equals(QUOTE + entityTag + QUOTE)) {
+                    return true;
+                }
+            }
+
+            // If-Modified-Since is ignored when If-None-Match is sent.
+            return false;
+        }
+
+        Date ifModifiedSince = getDate(request, IF_MODIFIED_SINCE_HEADER);
+
+        // HTTP dates have a precision of one second.
+        return ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince.getTime() / 1000;
+    }
+
+    /**
+     * @param request The request.
+     * @param name The name of the header.
+     * @return The date held by the header, or null if it is missing or invalid.
+     */
+    private static Date getDate(XWikiRequest request, String name)
+    {
+        try {
+            long date = request.getDateHeader(name);
+
+            return date >= 0 ? new Date(date) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
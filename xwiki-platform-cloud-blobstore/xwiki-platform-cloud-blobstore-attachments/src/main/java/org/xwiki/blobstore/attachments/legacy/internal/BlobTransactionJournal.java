@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Records the blobs staged by the transactions saving attachments until they are committed or rolled back, so that
+ * the blobs of the transactions interrupted by a crash can be promoted or deleted at the next start.
+ *
+ * @version $Id$
+ */
+@Role
+public interface BlobTransactionJournal
+{
+    /**
+     * Record a blob staged by a transaction. The blob is on the disk when this method returns, so it must be called
+     * before the blob is written to its staging path.
+     *
+     * @param transactionId The id of the transaction.
+     * @param blob The staged blob.
+     * @throws IOException If the blob cannot be recorded.
+     */
+    void record(String transactionId, StagedBlob blob) throws IOException;
+
+    /**
+     * Forget the blobs of a transaction, once they have all been promoted or deleted.
+     *
+     * @param transactionId The id of the transaction.
+     */
+    void complete(String transactionId);
+
+    /**
+     * @return The blobs recorded by the transactions not completed yet, by transaction id.
+     * @throws IOException If the journal cannot be read.
+     */
+    Map<String, List<StagedBlob>> recover() throws IOException;
+}
@@ -0,0 +1,460 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Blob purger deleting the scheduled blobs by batches from a single background thread, with
+ * {@link BlobStore#deleteBlobs(java.util.Collection)}.
+ * <p>
+ * The scheduled blobs are appended to a file on the local disk, which is compacted as the blobs are deleted, so that
+ * the blobs still waiting when the wiki stops or crashes are deleted after the next start. Since the blobs are
+ * scheduled by path, the deletion of a blob written again in the meantime is cancelled by the writer, which waits for
+ * the batch deleting it if any. The other nodes of a cluster, or the previous run, cannot cancel it though, so the
+ * blobs last modified after their deletion was scheduled are kept: the date of each blob of a batch is checked right
+ * before deleting it.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultBlobPurger implements BlobPurger, Initializable, Disposable
+{
+    /**
+     * The file holding the scheduled blobs.
+     */
+    public static final String PURGER_FILE_PROPERTY = "xwiki.store.attachments.blobstore.purger.file";
+
+    /**
+     * The maximum number of blobs deleted in a batch.
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * How much earlier than its deletion was scheduled a blob must have been last modified to be deleted, in
+     * milliseconds, since the date of the blob is given by the clock of the blob store rather than the local one.
+     */
+    static final long CLOCK_SKEW = 60000;
+
+    /**
+     * How long to wait for the remaining blobs to be deleted when the wiki stops, in seconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
+    /**
+     * The separator of the fields of a line of the file.
+     */
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * The number of fields of a line of the file, the last one being empty.
+     */
+    private static final int FIELD_COUNT = 3;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The blob store provider.
+     */
+    @Inject
+    @Named("blobstore")
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the default file.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The lock protecting the scheduled blobs, the blobs being deleted and the file, notified when the blobs change.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The dates when the deletions of the blobs were scheduled, by path, in order of scheduling.
+     */
+    private final Map<String, Long> queue = new LinkedHashMap<String, Long>();
+
+    /**
+     * The paths of the blobs of the batch being deleted.
+     */
+    private final Set<String> deleting = new HashSet<String>();
+
+    /**
+     * The file holding the scheduled blobs.
+     */
+    private File file;
+
+    /**
+     * The stream appending the scheduled blobs to the file, or null if it cannot be written.
+     */
+    private FileOutputStream output;
+
+    /**
+     * The number of lines of the file, including the blobs deleted or cancelled since it was last compacted.
+     */
+    private int lineCount;
+
+    /**
+     * The thread deleting the blobs.
+     */
+    private Thread worker;
+
+    /**
+     * Whether the purger is stopping.
+     */
+    private volatile boolean stopping;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String fileName = this.configurationSource.getProperty(PURGER_FILE_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(fileName)) {
+            this.file = new File(fileName);
+        } else {
+            // The scheduled blobs must survive restarts, so they do not go to the temporary directory.
+            this.file = new File(this.environment.getPermanentDirectory(), "blobstore-purges.queue");
+        }
+
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new InitializationException(String.format("Unable to create the blob purge queue directory [%s]",
+                directory));
+        }
+
+        try {
+            recover();
+            compact();
+        } catch (IOException e) {
+            throw new InitializationException(String.format("Unable to read the blob purge queue [%s]", this.file),
+                e);
+        }
+        if (!this.queue.isEmpty()) {
+            this.logger.info("Resuming the purge of {} blobs", this.queue.size());
+        }
+
+        this.worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                processQueue();
+            }
+        }, "Blob purger");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void dispose()
+    {
+        synchronized (this.lock) {
+            this.stopping = true;
+            this.lock.notifyAll();
+        }
+
+        try {
+            this.worker.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this.lock) {
+            saveQueue();
+            IOUtils.closeQuietly(this.output);
+            this.output = null;
+
+            if (!this.queue.isEmpty()) {
+                this.logger.warn("{} blobs could not be purged before stopping, they will be at the next start",
+                    this.queue.size());
+            }
+        }
+    }
+
+    @Override
+    public void purge(String path)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (this.lock) {
+            // A blob scheduled again goes to the end of the queue, with the new date.
+            this.queue.remove(path);
+            this.queue.put(path, now);
+            append(path, now);
+            this.lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void cancel(String path) throws InterruptedException
+    {
+        synchronized (this.lock) {
+            // The line of the blob stays in the file until it is compacted, and is then ignored by the date check.
+            if (this.queue.remove(path) != null) {
+                this.logger.debug("Cancelled the deletion of blob '{}' written again", path);
+            }
+            while (this.deleting.contains(path)) {
+                this.lock.wait();
+            }
+        }
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        synchronized (this.lock) {
+            return this.queue.size();
+        }
+    }
+
+    /**
+     * Delete the scheduled blobs until the purger is stopped and no blob is waiting anymore.
+     */
+    private void processQueue()
+    {
+        Map<String, Long> batch = new LinkedHashMap<String, Long>();
+        while (true) {
+            synchronized (this.lock) {
+                while (this.queue.isEmpty() && !this.stopping) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (this.queue.isEmpty()) {
+                    return;
+                }
+
+                // The blobs of the batch can no longer be cancelled, only waited for.
+                for (Iterator<Map.Entry<String, Long>> entries = this.queue.entrySet().iterator();
+                    entries.hasNext() && batch.size() < BATCH_SIZE;) {
+                    Map.Entry<String, Long> entry = entries.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+                this.deleting.addAll(batch.keySet());
+            }
+
+            try {
+                deleteBatch(batch);
+            } finally {
+                synchronized (this.lock) {
+                    this.deleting.clear();
+                    // The lines of the batch are only dropped from the file once the batch is done.
+                    if (this.lineCount > 2 * this.queue.size()) {
+                        saveQueue();
+                    }
+                    this.lock.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Delete a batch of blobs, except the ones written again since their deletion was scheduled. A failure does not
+     * prevent the other blobs from being deleted.
+     *
+     * @param batch The dates when the deletions of the blobs were scheduled, by path.
+     */
+    void deleteBatch(Map<String, Long> batch)
+    {
+        BlobStore blobStore = this.blobStoreProvider.get();
+        List<String> paths = new ArrayList<String>(batch.size());
+        Map<String, Exception> failures;
+        try {
+            // The blobs already deleted are not returned.
+            for (BlobMetadata metadata : blobStore.getBlobMetadata(batch.keySet()).values()) {
+                Date lastModified = metadata.getLastModified();
+                if (lastModified == null || lastModified.getTime() < batch.get(metadata.getPath()) - CLOCK_SKEW) {
+                    paths.add(metadata.getPath());
+                } else {
+                    this.logger.debug("Kept blob '{}' written again after its deletion was scheduled",
+                        metadata.getPath());
+                }
+            }
+
+            failures = paths.isEmpty() ? Collections.<String, Exception>emptyMap() : blobStore.deleteBlobs(paths);
+        } catch (RuntimeException e) {
+            this.logger.warn("Failed to purge {} blobs: {}", batch.size(), e.getMessage());
+            return;
+        }
+
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            this.logger.warn("Failed to purge blob '{}': {}", failure.getKey(), failure.getValue().getMessage());
+        }
+
+        this.logger.debug("Purged {} blobs", paths.size() - failures.size());
+    }
+
+    /**
+     * Read the blobs scheduled by the previous run.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void recover() throws IOException
+    {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+                if (fields.length == FIELD_COUNT && fields[FIELD_COUNT - 1].isEmpty()) {
+                    try {
+                        String path = Utils.decodeField(fields[1]);
+                        this.queue.remove(path);
+                        this.queue.put(path, Long.valueOf(fields[0]));
+                    } catch (IllegalArgumentException e) {
+                        this.logger.warn("Ignoring invalid blob purge queue line [{}]", line);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a scheduled blob to the file, without syncing it, so that it survives a crash of the wiki but not
+     * necessarily of the system.
+     *
+     * @param path The path of the blob.
+     * @param date The date when its deletion was scheduled.
+     */
+    private void append(String path, long date)
+    {
+        if (this.output == null) {
+            return;
+        }
+
+        try {
+            this.output.write(toLine(path, date));
+            this.lineCount++;
+        } catch (IOException e) {
+            this.logger.warn("Unable to record the purge of blob '{}' in [{}]: {}", path, this.file, e.getMessage());
+        }
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param date The date when its deletion was scheduled.
+     * @return The line of the file for the blob, ending with a separator so that a partially written line is ignored.
+     */
+    private static byte[] toLine(String path, long date)
+    {
+        String line = String.valueOf(date) + FIELD_SEPARATOR + Utils.encodeField(path) + FIELD_SEPARATOR + '\n';
+
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replace the file with the blobs still scheduled, logging the failures.
+     */
+    private void saveQueue()
+    {
+        try {
+            compact();
+        } catch (IOException e) {
+            this.logger.warn("Unable to save the blob purge queue [{}]: {}", this.file, e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the file with the blobs still scheduled, dropping the lines of the blobs deleted or cancelled, and
+     * reopen it for appending the next ones unless the purger is stopping.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    private void compact() throws IOException
+    {
+        IOUtils.closeQuietly(this.output);
+        this.output = null;
+
+        File newFile = new File(this.file.getPath() + ".new");
+        try (FileOutputStream newOutput = new FileOutputStream(newFile)) {
+            BufferedOutputStream bufferedOutput = new BufferedOutputStream(newOutput);
+            for (Map.Entry<String, Long> entry : this.queue.entrySet()) {
+                bufferedOutput.write(toLine(entry.getKey(), entry.getValue()));
+            }
+            bufferedOutput.flush();
+            newOutput.getFD().sync();
+        }
+        Files.move(newFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        this.lineCount = this.queue.size();
+
+        if (!this.stopping) {
+            this.output = new FileOutputStream(this.file, true);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Journal storing the blobs of each transaction in its own file on the local disk, one line per blob, synced before
+ * the blob is written. The file is deleted once the transaction is completed. Only the files left by a previous run
+ * are recovered, so that the transactions in progress are never mistaken for interrupted ones.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultBlobTransactionJournal implements BlobTransactionJournal, Initializable
+{
+    /**
+     * The directory of the journal.
+     */
+    public static final String JOURNAL_DIRECTORY_PROPERTY = "xwiki.store.attachments.blobstore.journal.directory";
+
+    /**
+     * The extension of the journal files.
+     */
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the default journal directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The directory of the journal.
+     */
+    private File directory;
+
+    /**
+     * The journal files left by a previous run.
+     */
+    private List<File> previousFiles;
+
+    /**
+     * The journal files of the transactions in progress, by transaction id.
+     */
+    private final ConcurrentMap<String, FileOutputStream> outputs = new ConcurrentHashMap<String, FileOutputStream>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String directoryName = this.configurationSource.getProperty(JOURNAL_DIRECTORY_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(directoryName)) {
+            this.directory = new File(directoryName);
+        } else {
+            // The journal must survive restarts, so it does not go to the temporary directory.
+            this.directory = new File(this.environment.getPermanentDirectory(), "blobstore-journal");
+        }
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new InitializationException(String.format("Unable to create the blob transaction journal "
+                + "directory [%s]", this.directory));
+        }
+
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new InitializationException(String.format("Unable to list the blob transaction journal "
+                + "directory [%s]", this.directory));
+        }
+        this.previousFiles = new ArrayList<File>(Arrays.asList(files));
+    }
+
+    @Override
+    public void record(String transactionId, StagedBlob blob) throws IOException
+    {
+        FileOutputStream output = this.outputs.get(transactionId);
+        if (output == null) {
+            output = new FileOutputStream(getFile(transactionId), true);
+            FileOutputStream previous = this.outputs.putIfAbsent(transactionId, output);
+            if (previous != null) {
+                output.close();
+                output = previous;
+            }
+        }
+
+        byte[] line = (blob.toJournalLine() + '\n').getBytes(StandardCharsets.UTF_8);
+        synchronized (output) {
+            output.write(line);
+            output.getFD().sync();
+        }
+    }
+
+    @Override
+    public void complete(String transactionId)
+    {
+        IOUtils.closeQuietly(this.outputs.remove(transactionId));
+
+        try {
+            Files.deleteIfExists(getFile(transactionId).toPath());
+        } catch (IOException e) {
+            this.logger.warn("Unable to delete the journal of blob transaction [{}]: {}", transactionId,
+                e.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, List<StagedBlob>> recover() throws IOException
+    {
+        Map<String, List<StagedBlob>> transactions = new LinkedHashMap<String, List<StagedBlob>>();
+        for (File file : this.previousFiles) {
+            String name = file.getName();
+            if (!name.endsWith(JOURNAL_EXTENSION) || !file.exists()) {
+                continue;
+            }
+
+            List<StagedBlob> blobs = new ArrayList<StagedBlob>();
+            try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // The last line may have been partially written.
+                    StagedBlob blob = StagedBlob.fromJournalLine(line);
+                    if (blob != null) {
+                        blobs.add(blob);
+                    }
+                }
+            }
+            transactions.put(name.substring(0, name.length() - JOURNAL_EXTENSION.length()), blobs);
+        }
+
+        return transactions;
+    }
+
+    /**
+     * @param transactionId The id of a transaction.
+     * @return The journal file of the transaction.
+     */
+    private File getFile(String transactionId)
+    {
+        return new File(this.directory, transactionId + JOURNAL_EXTENSION);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xwiki.blobstore.BlobStore;
+
+/**
+ * A stream opening its blob on the first read. The bytes skipped with {@link #skip(long)} before the first read are not
+ * transferred: the blob is then read from the position reached, with {@link BlobStore#getBlob(String, long, long)}.
+ * Skipping with reads, like {@link org.apache.commons.io.IOUtils#skip(InputStream, long)} does, transfers the bytes
+ * skipped: readers of a range should use {@link BlobStoreAttachmentContent#getContentInputStream(long, long)}.
+ *
+ * @version $Id$
+ */
+public class LazyBlobInputStream extends InputStream
+{
+    /**
+     * The blob store.
+     */
+    private final BlobStore blobStore;
+
+    /**
+     * The path of the blob.
+     */
+    private final String path;
+
+    /**
+     * The length of the blob, or -1 if unknown.
+     */
+    private final long length;
+
+    /**
+     * The number of bytes skipped before opening the blob.
+     */
+    private long offset;
+
+    /**
+     * The content of the blob, null until it is opened.
+     */
+    private InputStream content;
+
+    /**
+     * true once the stream is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param blobStore The blob store.
+     * @param path The path of the blob.
+     * @param length The length of the blob, or -1 if unknown.
+     */
+    public LazyBlobInputStream(BlobStore blobStore, String path, long length)
+    {
+        this.blobStore = blobStore;
+        this.path = path;
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return open().read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        return open().read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        if (this.content != null) {
+            return this.content.skip(count);
+        }
+        if (count <= 0) {
+            return 0;
+        }
+
+        long skipped = this.length >= 0 ? Math.max(0, Math.min(count, this.length - this.offset)) : count;
+        this.offset += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return this.content != null ? this.content.available() : 0;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.closed = true;
+        if (this.content != null) {
+            this.content.close();
+        }
+    }
+
+    /**
+     * @return The content of the blob, opened at the position reached by skipping.
+     * @throws IOException If the stream is closed, or if the blob is missing.
+     */
+    private InputStream open() throws IOException
+    {
+        if (this.content == null) {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+
+            if (this.offset > 0) {
+                this.content = this.blobStore.getBlob(this.path, this.offset, -1);
+            } else {
+                this.content = this.blobStore.getBlob(this.path);
+            }
+            if (this.content == null) {
+                throw new IOException(String.format("Blob %s not found", this.path));
+            }
+        }
+
+        return this.content;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * A blob written to a temporary path by a transaction, to be moved to its actual path once the transaction is
+ * committed. It records the version of the attachment it belongs to, so that after a crash the blob can be moved if
+ * the database holds this version, meaning that the transaction was committed, and deleted otherwise.
+ *
+ * @version $Id$
+ */
+public class StagedBlob
+{
+    /**
+     * The separator of the fields of a journal line.
+     */
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * The number of fields of a journal line, the last one being empty.
+     */
+    private static final int FIELD_COUNT = 8;
+
+    /**
+     * The actual path of the blob.
+     */
+    private final String path;
+
+    /**
+     * The temporary path of the blob.
+     */
+    private final String stagingPath;
+
+    /**
+     * The document of the attachment the blob belongs to.
+     */
+    private final DocumentReference documentReference;
+
+    /**
+     * The name of the attachment the blob belongs to.
+     */
+    private final String filename;
+
+    /**
+     * The version of the attachment being saved.
+     */
+    private final String version;
+
+    /**
+     * Constructor.
+     *
+     * @param path The actual path of the blob.
+     * @param stagingPath The temporary path of the blob.
+     * @param documentReference The document of the attachment the blob belongs to.
+     * @param filename The name of the attachment the blob belongs to.
+     * @param version The version of the attachment being saved.
+     */
+    public StagedBlob(String path, String stagingPath, DocumentReference documentReference, String filename,
+        String version)
+    {
+        this.path = path;
+        this.stagingPath = stagingPath;
+        this.documentReference = documentReference;
+        this.filename = filename;
+        this.version = version;
+    }
+
+    /**
+     * Read a staged blob from a line of the journal of a transaction.
+     *
+     * @param line The journal line, as returned by {@link #toJournalLine()}.
+     * @return The staged blob, or null if the line is not valid, for instance because it was being written.
+     */
+    public static StagedBlob fromJournalLine(String line)
+    {
+        // The line ends with a separator, so that a partially written line is not mistaken for a complete one.
+        String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+        if (fields.length != FIELD_COUNT || !fields[FIELD_COUNT - 1].isEmpty()) {
+            return null;
+        }
+
+        try {
+            int i = 0;
+            String path = Utils.decodeField(fields[i++]);
+            String stagingPath = Utils.decodeField(fields[i++]);
+            String version = Utils.decodeField(fields[i++]);
+            DocumentReference documentReference = new DocumentReference(Utils.decodeField(fields[i++]),
+                Utils.decodeField(fields[i++]), Utils.decodeField(fields[i++]));
+
+            return new StagedBlob(path, stagingPath, documentReference, Utils.decodeField(fields[i]), version);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The line describing this staged blob in the journal of its transaction.
+     */
+    public String toJournalLine()
+    {
+        // The fields are encoded, since the paths and the names may contain the separator or line breaks.
+        StringBuilder line = new StringBuilder();
+        line.append(Utils.encodeField(this.path)).append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.stagingPath)).append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.version)).append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.documentReference.getWikiReference().getName())).append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.documentReference.getLastSpaceReference().getName()))
+            .append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.documentReference.getName())).append(FIELD_SEPARATOR);
+        line.append(Utils.encodeField(this.filename)).append(FIELD_SEPARATOR);
+
+        return line.toString();
+    }
+
+    /**
+     * @return The actual path of the blob.
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * @return The temporary path of the blob.
+     */
+    public String getStagingPath()
+    {
+        return this.stagingPath;
+    }
+
+    /**
+     * @return The document of the attachment the blob belongs to.
+     */
+    public DocumentReference getDocumentReference()
+    {
+        return this.documentReference;
+    }
+
+    /**
+     * @return The name of the attachment the blob belongs to.
+     */
+    public String getFilename()
+    {
+        return this.filename;
+    }
+
+    /**
+     * @return The version of the attachment being saved.
+     */
+    public String getVersion()
+    {
+        return this.version;
+    }
+}
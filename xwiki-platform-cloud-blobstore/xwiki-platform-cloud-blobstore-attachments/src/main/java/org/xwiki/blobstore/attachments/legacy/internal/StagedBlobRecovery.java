@@ -0,0 +1,360 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.transactions.StagedBlobsTransactionRunnable;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationReadyEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Completes at startup the transactions saving attachments that were interrupted by a crash. The blobs staged by such
+ * a transaction are moved to their actual paths if the database holds the version of the attachment they were staged
+ * for, meaning that the transaction was committed, and are deleted otherwise. The staged blobs that no journal
+ * references anymore, for instance because their deletion failed after a rollback, are then deleted once they are
+ * old enough for not belonging to a transaction in progress on another XWiki instance.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(StagedBlobRecovery.NAME)
+@Singleton
+public class StagedBlobRecovery implements EventListener
+{
+    /**
+     * The name of this listener.
+     */
+    public static final String NAME = "stagedBlobRecovery";
+
+    /**
+     * The age in seconds after which the staged blobs no journal references are deleted.
+     */
+    public static final String STAGING_MAX_AGE_PROPERTY = "xwiki.store.attachments.blobstore.staging.maxAge";
+
+    /**
+     * The default age after which the staged blobs no journal references are deleted: one day.
+     */
+    private static final long DEFAULT_MAX_AGE = 86400;
+
+    /**
+     * The maximum number of staged blobs deleted in a batch.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * The query loading the version of an attachment, given its document and file names.
+     */
+    private static final String VERSION_QUERY = "select attachment.version"
+        + " from XWikiDocument as doc, XWikiAttachment as attachment"
+        + " where attachment.docId = doc.id and doc.space = ? and doc.name = ? and attachment.filename = ?";
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The blob store provider.
+     */
+    @Inject
+    @Named("blobstore")
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * The journal recording the blobs staged by the transactions.
+     */
+    @Inject
+    private BlobTransactionJournal journal;
+
+    /**
+     * The purger whose scheduled deletions of the blobs recovered are cancelled.
+     */
+    @Inject
+    private BlobPurger blobPurger;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * For setting up an execution context in the recovery thread.
+     */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /**
+     * For removing the execution context of the recovery thread.
+     */
+    @Inject
+    private Execution execution;
+
+    /**
+     * The XWiki context provider.
+     */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // The recovery does not delay the start, the interrupted transactions being unrelated to the new ones.
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runRecovery();
+            }
+        }, "Staged blob recovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the recovery in an execution context of its own, the recovery thread not being tied to a request.
+     */
+    private void runRecovery()
+    {
+        try {
+            this.executionContextManager.initialize(new ExecutionContext());
+        } catch (ExecutionContextException e) {
+            this.logger.error("Failed to initialize the execution context of the staged blob recovery", e);
+            return;
+        }
+
+        try {
+            recover(this.xcontextProvider.get());
+        } catch (Exception e) {
+            this.logger.error("Staged blob recovery failed, it will be retried at the next start", e);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    /**
+     * Promote or delete the blobs of the interrupted transactions, and then delete the stale staged blobs.
+     *
+     * @param xcontext The XWiki context.
+     * @throws IOException If the journal cannot be read.
+     */
+    void recover(XWikiContext xcontext) throws IOException
+    {
+        BlobStore blobStore = this.blobStoreProvider.get();
+        Map<String, List<StagedBlob>> transactions = this.journal.recover();
+
+        List<String> pendingPrefixes = new ArrayList<String>();
+        String currentWiki = xcontext.getWikiId();
+        try {
+            for (Map.Entry<String, List<StagedBlob>> transaction : transactions.entrySet()) {
+                if (recover(blobStore, transaction.getKey(), transaction.getValue(), xcontext)) {
+                    this.journal.complete(transaction.getKey());
+                } else {
+                    pendingPrefixes.add(StagedBlobsTransactionRunnable.STAGING_PREFIX + transaction.getKey() + '/');
+                }
+            }
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+
+        deleteStaleBlobs(blobStore, pendingPrefixes);
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param transactionId The id of an interrupted transaction.
+     * @param blobs The blobs staged by the transaction.
+     * @param xcontext The XWiki context.
+     * @return true if all the blobs have been promoted or deleted.
+     */
+    private boolean recover(BlobStore blobStore, String transactionId, List<StagedBlob> blobs, XWikiContext xcontext)
+    {
+        List<String> stagingPaths = new ArrayList<String>(blobs.size());
+        for (StagedBlob blob : blobs) {
+            stagingPaths.add(blob.getStagingPath());
+        }
+
+        // The staged blobs are looked up without being read, all at once.
+        Map<String, BlobMetadata> stagedBlobs;
+        try {
+            stagedBlobs = blobStore.getBlobMetadata(stagingPaths);
+        } catch (Exception e) {
+            this.logger.warn("Failed to look up the blobs of transaction [{}], it will be retried at the next start: "
+                + "{}", transactionId, e.getMessage());
+            return false;
+        }
+
+        boolean recovered = true;
+        for (StagedBlob blob : blobs) {
+            try {
+                if (isCommitted(blob, xcontext)) {
+                    // A missing staged blob has already been moved before the crash.
+                    if (stagedBlobs.containsKey(blob.getStagingPath())) {
+                        promote(blobStore, blob);
+                    }
+                } else {
+                    this.logger.debug("Deleting blob [{}] of rolled back transaction [{}]", blob.getStagingPath(),
+                        transactionId);
+                    blobStore.deleteBlob(blob.getStagingPath());
+                }
+            } catch (Exception e) {
+                this.logger.warn("Failed to recover blob [{}] of transaction [{}], it will be retried at the next "
+                    + "start: {}", blob.getStagingPath(), transactionId, e.getMessage());
+                recovered = false;
+            }
+        }
+
+        return recovered;
+    }
+
+    /**
+     * @param blob A staged blob.
+     * @param xcontext The XWiki context.
+     * @return true if the database holds the version of the attachment the blob was staged for.
+     * @throws XWikiException If the attachment cannot be loaded.
+     */
+    private boolean isCommitted(StagedBlob blob, XWikiContext xcontext) throws XWikiException
+    {
+        DocumentReference documentReference = blob.getDocumentReference();
+        xcontext.setWikiId(documentReference.getWikiReference().getName());
+
+        List<String> versions = xcontext.getWiki().getHibernateStore().search(VERSION_QUERY, 0, 0,
+            Arrays.asList(documentReference.getLastSpaceReference().getName(), documentReference.getName(),
+                blob.getFilename()), xcontext);
+
+        return versions.contains(blob.getVersion());
+    }
+
+    /**
+     * Move a staged blob to its actual path.
+     *
+     * @param blobStore The blob store.
+     * @param blob The staged blob.
+     * @throws InterruptedException If interrupted while waiting for the deletion of a previous blob at the same path.
+     */
+    private void promote(BlobStore blobStore, StagedBlob blob) throws InterruptedException
+    {
+        this.logger.info("Moving blob [{}] of committed transaction to [{}]", blob.getStagingPath(), blob.getPath());
+        this.blobPurger.cancel(blob.getPath());
+        blobStore.moveBlob(blob.getStagingPath(), blob.getPath());
+    }
+
+    /**
+     * Delete the staged blobs older than the configured age, except the ones of the transactions still in the journal.
+     *
+     * @param blobStore The blob store.
+     * @param pendingPrefixes The paths under which the blobs of the transactions still in the journal are staged.
+     */
+    private void deleteStaleBlobs(BlobStore blobStore, List<String> pendingPrefixes)
+    {
+        long maxLastModified =
+            System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(
+                this.configurationSource.getProperty(STAGING_MAX_AGE_PROPERTY, DEFAULT_MAX_AGE));
+
+        List<String> batch = new ArrayList<String>();
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs(StagedBlobsTransactionRunnable.STAGING_PREFIX);
+        while (blobs.hasNext()) {
+            BlobMetadata blob = blobs.next();
+            if (blob.getLastModified() != null && blob.getLastModified().getTime() <= maxLastModified
+                && !isPending(blob.getPath(), pendingPrefixes)) {
+                batch.add(blob.getPath());
+                if (batch.size() == BATCH_SIZE) {
+                    deleteBatch(blobStore, batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteBatch(blobStore, batch);
+        }
+    }
+
+    /**
+     * @param path The path of a staged blob.
+     * @param pendingPrefixes The paths under which the blobs of the transactions still in the journal are staged.
+     * @return true if the blob belongs to a transaction still in the journal.
+     */
+    private boolean isPending(String path, List<String> pendingPrefixes)
+    {
+        for (String prefix : pendingPrefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param blobStore The blob store.
+     * @param batch The paths of stale staged blobs.
+     */
+    private void deleteBatch(BlobStore blobStore, List<String> batch)
+    {
+        this.logger.info("Deleting {} stale staged blobs", batch.size());
+
+        Map<String, Exception> failures = blobStore.deleteBlobs(batch);
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            this.logger.warn("Failed to delete stale staged blob [{}]: {}", failure.getKey(),
+                failure.getValue().getMessage());
+        }
+    }
+}
@@ -19,8 +19,10 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal;
 
-import java.util.Formatter;
-import java.util.List;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 
 import org.xwiki.model.reference.EntityReference;
 
@@ -31,6 +33,11 @@
  */
 public final class Utils
 {
+    /**
+     * The separator of the blob path components.
+     */
+    private static final char PATH_SEPARATOR = '/';
+
     /**
      * Constructor. Not instantiable.
      */
@@ -47,21 +54,78 @@ private Utils()
      */
     public static String generatePath(EntityReference entityReference)
     {
-        try (Formatter f = new Formatter()) {
-            List<EntityReference> reversedReferenceChain = entityReference.getReversedReferenceChain();
-
-            int i = 0;
-            for (EntityReference reference : reversedReferenceChain) {
-                if (i < (reversedReferenceChain.size()) - 1) {
-                    f.format("%s/", reference.getName());
-                } else {
-                    f.format("%s", reference.getName());
-                }
+        // Size the path exactly and fill it from the end, so that the reference chain does not need to be reversed.
+        int length = -1;
+        for (EntityReference reference = entityReference; reference != null; reference = reference.getParent()) {
+            length += reference.getName().length() + 1;
+        }
 
-                i++;
+        char[] path = new char[length];
+        int end = length;
+        for (EntityReference reference = entityReference; reference != null; reference = reference.getParent()) {
+            String name = reference.getName();
+            int start = end - name.length();
+            name.getChars(0, name.length(), path, start);
+            if (start > 0) {
+                path[start - 1] = PATH_SEPARATOR;
             }
+            end = start - 1;
+        }
+
+        return new String(path);
+    }
+
+    /**
+     * Append the blob path of an entity reference to a builder, which lets callers reuse the builder and prepend a
+     * prefix to the path without intermediate strings.
+     *
+     * @param entityReference The entity reference.
+     * @param builder The builder where to append the path.
+     * @return The builder.
+     */
+    public static StringBuilder appendPath(EntityReference entityReference, StringBuilder builder)
+    {
+        EntityReference parent = entityReference.getParent();
+        if (parent != null) {
+            appendPath(parent, builder).append(PATH_SEPARATOR);
+        }
+
+        return builder.append(entityReference.getName());
+    }
+
+    /**
+     * Encode a value stored as a field of a line of a file on the local disk, so that whatever characters it holds,
+     * such as the tabs or line breaks of an attachment name, the encoded value contains neither separators nor line
+     * breaks.
+     *
+     * @param value The value.
+     * @return The encoded value.
+     * @see #decodeField(String)
+     */
+    public static String encodeField(String value)
+    {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
 
-            return f.toString();
+    /**
+     * Decode a value encoded by {@link #encodeField(String)}.
+     *
+     * @param field The encoded value.
+     * @return The value.
+     * @throws IllegalArgumentException If the field is not a valid encoded value.
+     */
+    public static String decodeField(String field)
+    {
+        try {
+            return URLDecoder.decode(field, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
         }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal.transactions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobStoreAttachmentVersioningStore;
+import org.xwiki.store.TransactionRunnable;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.store.AttachmentVersioningStore;
+
+/**
+ * A transaction runnable for deleting the history of an attachment with the configured attachment versioning store.
+ * When the history is kept in the blob store, its blobs are only scheduled for deletion once the transaction is
+ * committed, since the deletion cannot be rolled back.
+ *
+ * @version $Id$
+ */
+public class DeleteAttachmentArchiveTransactionRunnable extends TransactionRunnable<XWikiHibernateTransaction>
+{
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeleteAttachmentArchiveTransactionRunnable.class);
+
+    /**
+     * The XWiki attachment.
+     */
+    private XWikiAttachment xwikiAttachment;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext xwikiContext;
+
+    /**
+     * Constructor.
+     *
+     * @param xwikiAttachment The attachment whose archive should be deleted.
+     * @param xwikiContext The XWiki context.
+     */
+    public DeleteAttachmentArchiveTransactionRunnable(XWikiAttachment xwikiAttachment, XWikiContext xwikiContext)
+    {
+        this.xwikiAttachment = xwikiAttachment;
+        this.xwikiContext = xwikiContext;
+    }
+
+    @Override
+    protected void onRun() throws Exception
+    {
+        if (!(getVersioningStore() instanceof BlobStoreAttachmentVersioningStore)) {
+            deleteArchive();
+        }
+    }
+
+    @Override
+    protected void onCommit() throws Exception
+    {
+        if (getVersioningStore() instanceof BlobStoreAttachmentVersioningStore) {
+            deleteArchive();
+        }
+    }
+
+    /**
+     * @return The configured attachment versioning store.
+     */
+    private AttachmentVersioningStore getVersioningStore()
+    {
+        return this.xwikiContext.getWiki().getAttachmentVersioningStore();
+    }
+
+    /**
+     * Delete the history of the attachment with the configured attachment versioning store.
+     *
+     * @throws Exception If the history cannot be deleted.
+     */
+    private void deleteArchive() throws Exception
+    {
+        this.logger.debug("Deleting archive of attachment '{}'", this.xwikiAttachment.getReference());
+
+        getVersioningStore().deleteArchive(this.xwikiAttachment, this.xwikiContext, false);
+    }
+}
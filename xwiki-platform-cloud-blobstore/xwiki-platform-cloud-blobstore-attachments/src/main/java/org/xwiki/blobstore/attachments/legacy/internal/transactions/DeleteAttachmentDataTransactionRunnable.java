@@ -19,17 +19,17 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal.transactions;
 
-import javax.inject.Provider;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobPurger;
 import org.xwiki.blobstore.attachments.legacy.internal.Utils;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.store.TransactionRunnable;
 
 /**
- * The transaction runnable for deleting all attachment data on the blobstore.
+ * The transaction runnable for deleting all attachment data on the blobstore. The blob is only scheduled for deletion
+ * once the transaction is committed, so that the request deleting the attachment does not wait for the blobstore and
+ * the blob is kept when the transaction is rolled back.
  *
  * @version $Id$
  */
@@ -41,9 +41,9 @@ public class DeleteAttachmentDataTransactionRunnable extends TransactionRunnable
     private Logger logger = LoggerFactory.getLogger(DeleteAttachmentDataTransactionRunnable.class);
 
     /**
-     * The blob store provider.
+     * The purger deleting the blob.
      */
-    private Provider<BlobStore> blobStoreProvider;
+    private BlobPurger blobPurger;
 
     /**
      * The entity reference for the attachment data.
@@ -54,38 +54,28 @@ public class DeleteAttachmentDataTransactionRunnable extends TransactionRunnable
      * Constructor.
      *
      * @param attachmentReference The reference for the attachment.
-     * @param blobStoreProvider The blob store provider.
+     * @param blobPurger The purger deleting the blob.
      */
-    public DeleteAttachmentDataTransactionRunnable(EntityReference attachmentReference,
-        Provider<BlobStore> blobStoreProvider)
+    public DeleteAttachmentDataTransactionRunnable(EntityReference attachmentReference, BlobPurger blobPurger)
     {
         this.attachmentReference = attachmentReference;
-        this.blobStoreProvider = blobStoreProvider;
-    }
-
-    @Override
-    protected void onRun() throws Exception
-    {
-        String path = Utils.generatePath(this.attachmentReference);
-
-        this.logger.debug("Deleting blob {}", path);
-
-        BlobStore blobStore = this.blobStoreProvider.get();
-
-        blobStore.deleteBlob(path);
+        this.blobPurger = blobPurger;
     }
 
     @Override
     protected void onRollback() throws Exception
     {
-        this.logger.warn("Rollback occurred while deleting an attachment, "
-            + "the file store may be inconsistent with the database");
+        this.logger.debug("Rollback occurred while deleting an attachment, the blob is kept");
     }
 
     @Override
     protected void onCommit() throws Exception
     {
-        this.logger.info("Commit occurred while deleting an attachment");
+        String path = Utils.generatePath(this.attachmentReference);
+
+        this.logger.debug("Scheduling the deletion of blob {}", path);
+
+        this.blobPurger.purge(path);
     }
 
 }
@@ -19,9 +19,7 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal.transactions;
 
-import javax.inject.Provider;
-
-import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobPurger;
 import org.xwiki.store.TransactionRunnable;
 
 import com.xpn.xwiki.XWikiContext;
@@ -29,7 +27,8 @@
 
 /**
  * The transaction runnable for deleting an attachment. This is basically a transaction that contains the one for
- * removing the metadata and, then, the actual blob on the blobstore.
+ * removing the metadata and, then, the actual blob and the history of the attachment on the blobstore. The blob is
+ * kept when the attachment has been moved to the recycle bin.
  *
  * @version $Id$
  */
@@ -38,21 +37,26 @@ public class DeleteAttachmentTransactionRunnable extends TransactionRunnable<XWi
     /**
      * Constructor.
      *
-     * @param blobStoreProvider The blob store provider.
+     * @param blobPurger The purger deleting the blob.
      * @param xwikiAttachment The XWiki attachment.
      * @param xwikiContext The XWiki context.
      * @param updateDocument true if the document containing the attachment should be saved.
+     * @param deleteData false if the blob should be kept, for instance because it is used by the recycle bin.
      */
-    public DeleteAttachmentTransactionRunnable(Provider<BlobStore> blobStoreProvider, XWikiAttachment xwikiAttachment,
-        XWikiContext xwikiContext, boolean updateDocument)
+    public DeleteAttachmentTransactionRunnable(BlobPurger blobPurger, XWikiAttachment xwikiAttachment,
+        XWikiContext xwikiContext, boolean updateDocument, boolean deleteData)
     {
         /*
          * This is simply a composite transaction that contains first the removal of the attachment metadata and then
-         * the removal of the actual data in the blobstore.
+         * the removal of the actual data and of the history in the blobstore.
          */
         new DeleteAttachmentMetaDataTransactionRunnable(xwikiAttachment, xwikiContext, updateDocument).runIn(this);
 
-        new DeleteAttachmentDataTransactionRunnable(xwikiAttachment.getReference(), blobStoreProvider).runIn(this);
+        if (deleteData) {
+            new DeleteAttachmentDataTransactionRunnable(xwikiAttachment.getReference(), blobPurger).runIn(this);
+        }
+
+        new DeleteAttachmentArchiveTransactionRunnable(xwikiAttachment, xwikiContext).runIn(this);
     }
 
 }
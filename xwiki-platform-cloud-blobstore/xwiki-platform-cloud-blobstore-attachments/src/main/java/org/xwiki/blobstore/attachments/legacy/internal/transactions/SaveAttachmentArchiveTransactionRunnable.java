@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal.transactions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobStoreAttachmentArchive;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * A transaction runnable for saving the history of an attachment kept in the blob store. The blobs of the new versions
+ * and of the index are staged, so that the history is only updated once the transaction is committed.
+ *
+ * @version $Id$
+ */
+public class SaveAttachmentArchiveTransactionRunnable extends TransactionRunnable<XWikiHibernateTransaction>
+{
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(SaveAttachmentArchiveTransactionRunnable.class);
+
+    /**
+     * The attachment archive.
+     */
+    private BlobStoreAttachmentArchive archive;
+
+    /**
+     * The runnable staging the blobs of the transaction.
+     */
+    private StagedBlobsTransactionRunnable stagedBlobs;
+
+    /**
+     * Constructor.
+     *
+     * @param archive The attachment archive to be saved.
+     * @param stagedBlobs The runnable staging the blobs of the transaction.
+     */
+    public SaveAttachmentArchiveTransactionRunnable(BlobStoreAttachmentArchive archive,
+        StagedBlobsTransactionRunnable stagedBlobs)
+    {
+        this.archive = archive;
+        this.stagedBlobs = stagedBlobs;
+    }
+
+    @Override
+    protected void onRun() throws Exception
+    {
+        this.logger.debug("Saving archive of attachment '{}'", this.archive.getAttachment().getReference());
+
+        this.archive.save(this.stagedBlobs);
+    }
+}
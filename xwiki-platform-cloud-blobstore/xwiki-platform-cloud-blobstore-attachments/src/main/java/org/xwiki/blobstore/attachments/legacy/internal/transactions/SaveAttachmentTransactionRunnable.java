@@ -19,26 +19,26 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal.transactions;
 
-import javax.inject.Provider;
-
-import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobStoreAttachmentContent;
 import org.xwiki.blobstore.attachments.legacy.internal.Utils;
 import org.xwiki.store.TransactionRunnable;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
 
 /**
- * The transaction runnable for saving an attachment.
+ * The transaction runnable for saving an attachment. The blob is staged, and only replaces the blob of the attachment
+ * once the transaction is committed.
  *
  * @version $Id$
  */
 public class SaveAttachmentTransactionRunnable extends TransactionRunnable<XWikiHibernateTransaction>
 {
     /**
-     * The blob store provider.
+     * The runnable staging the blobs of the transaction.
      */
-    private Provider<BlobStore> blobStoreProvider;
+    private StagedBlobsTransactionRunnable stagedBlobs;
 
     /**
      * The XWiki attachment.
@@ -53,15 +53,15 @@ public class SaveAttachmentTransactionRunnable extends TransactionRunnable<XWiki
     /**
      * Constructor.
      *
-     * @param blobStoreProvider The blob store provider.
+     * @param stagedBlobs The runnable staging the blobs of the transaction.
      * @param xwikiAttachment The XWiki attachment.
      * @param xwikiContext The XWiki context.
      * @param updateDocument true if the document containing the attachment should be saved.
      */
-    public SaveAttachmentTransactionRunnable(Provider<BlobStore> blobStoreProvider, XWikiAttachment xwikiAttachment,
-        XWikiContext xwikiContext, boolean updateDocument)
+    public SaveAttachmentTransactionRunnable(StagedBlobsTransactionRunnable stagedBlobs,
+        XWikiAttachment xwikiAttachment, XWikiContext xwikiContext, boolean updateDocument)
     {
-        this.blobStoreProvider = blobStoreProvider;
+        this.stagedBlobs = stagedBlobs;
         this.xwikiAttachment = xwikiAttachment;
         this.xwikiContext = xwikiContext;
 
@@ -73,12 +73,17 @@ public SaveAttachmentTransactionRunnable(Provider<BlobStore> blobStoreProvider,
     @Override
     protected void onRun() throws Exception
     {
-        BlobStore blobStore = this.blobStoreProvider.get();
-
         String path = Utils.generatePath(this.xwikiAttachment.getReference());
 
-        blobStore.putBlob(path, this.xwikiAttachment.getContentInputStream(this.xwikiContext),
-            this.xwikiAttachment.getFilesize());
+        XWikiAttachmentContent content = this.xwikiAttachment.getAttachment_content();
+        if (content instanceof BlobStoreAttachmentContent
+            && path.equals(((BlobStoreAttachmentContent) content).getPath())) {
+            // The content has not been modified since it was loaded from this very blob.
+            return;
+        }
+
+        this.stagedBlobs.putBlob(path, this.xwikiAttachment.getContentInputStream(this.xwikiContext),
+            this.xwikiAttachment.getFilesize(), this.xwikiAttachment);
     }
 
 }
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal.transactions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobStoreAttachmentContent;
+import org.xwiki.blobstore.attachments.legacy.internal.Utils;
+import org.xwiki.store.TransactionRunnable;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The transaction runnable for saving several attachments of a document at once. The blobs are uploaded concurrently
+ * and the document is then saved a single time. The blobs are staged, so that the blobs of the attachments are only
+ * replaced once the transaction is committed.
+ *
+ * @version $Id$
+ */
+public class SaveAttachmentsTransactionRunnable extends TransactionRunnable<XWikiHibernateTransaction>
+{
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(SaveAttachmentsTransactionRunnable.class);
+
+    /**
+     * The runnable staging the blobs of the transaction.
+     */
+    private StagedBlobsTransactionRunnable stagedBlobs;
+
+    /**
+     * The XWiki attachments.
+     */
+    private List<XWikiAttachment> xwikiAttachments;
+
+    /**
+     * The document containing the attachments.
+     */
+    private XWikiDocument xwikiDocument;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext xwikiContext;
+
+    /**
+     * The executor uploading the blobs.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param stagedBlobs The runnable staging the blobs of the transaction.
+     * @param xwikiAttachments The XWiki attachments.
+     * @param xwikiDocument The document containing the attachments.
+     * @param xwikiContext The XWiki context.
+     * @param updateDocument true if the document containing the attachments should be saved.
+     * @param executor The executor uploading the blobs, which bounds the number of concurrent uploads.
+     */
+    public SaveAttachmentsTransactionRunnable(StagedBlobsTransactionRunnable stagedBlobs,
+        List<XWikiAttachment> xwikiAttachments, XWikiDocument xwikiDocument, XWikiContext xwikiContext,
+        boolean updateDocument, ExecutorService executor)
+    {
+        this.stagedBlobs = stagedBlobs;
+        this.xwikiAttachments = xwikiAttachments;
+        this.xwikiDocument = xwikiDocument;
+        this.xwikiContext = xwikiContext;
+        this.executor = executor;
+
+        if (updateDocument) {
+            new UpdateDocumentTransactionRunnable(xwikiDocument, xwikiContext).runIn(this);
+        }
+    }
+
+    @Override
+    protected void onRun() throws Exception
+    {
+        List<Future<Void>> uploads = new ArrayList<Future<Void>>(this.xwikiAttachments.size());
+        for (final XWikiAttachment xwikiAttachment : this.xwikiAttachments) {
+            final String path = Utils.generatePath(xwikiAttachment.getReference());
+
+            // The content is loaded here since loading it requires the XWiki context of the current thread.
+            if (xwikiAttachment.getAttachment_content() == null) {
+                xwikiAttachment.loadContent(this.xwikiContext);
+            }
+            final XWikiAttachmentContent content = xwikiAttachment.getAttachment_content();
+            if (content instanceof BlobStoreAttachmentContent
+                && path.equals(((BlobStoreAttachmentContent) content).getPath())) {
+                // The content has not been modified since it was loaded from this very blob.
+                continue;
+            }
+
+            final long length = xwikiAttachment.getFilesize();
+            uploads.add(this.executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    SaveAttachmentsTransactionRunnable.this.stagedBlobs.putBlob(path, content.getContentInputStream(),
+                        length, xwikiAttachment);
+
+                    return null;
+                }
+            }));
+        }
+
+        this.logger.debug("Uploading {} blobs of document '{}'", uploads.size(),
+            this.xwikiDocument.getDocumentReference());
+
+        // Wait for all the uploads, even after a failure, so that the rollback sees every staged blob.
+        Exception failure = null;
+        for (Future<Void> upload : uploads) {
+            try {
+                upload.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
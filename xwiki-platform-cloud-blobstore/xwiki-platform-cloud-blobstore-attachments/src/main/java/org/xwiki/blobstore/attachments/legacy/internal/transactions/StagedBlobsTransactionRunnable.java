@@ -0,0 +1,258 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal.transactions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobPurger;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobTransactionJournal;
+import org.xwiki.blobstore.attachments.legacy.internal.StagedBlob;
+import org.xwiki.store.TransactionRunnable;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+/**
+ * The transaction runnable writing the blobs of the other runnables of a transaction to temporary paths, and moving
+ * them to their actual paths once the transaction is committed, or deleting them if it is rolled back. The blobs of
+ * the attachments are thus never modified by a transaction that fails. The staged blobs are recorded in a journal
+ * before being written, so that the blobs of a transaction interrupted by a crash are promoted or deleted at the next
+ * start. It must run in the Hibernate transaction, which is committed first, so that the blobs are only moved once
+ * the database is committed. When the Hibernate transaction only joined an enclosing one, the blobs are moved or
+ * deleted once the enclosing transaction is committed or rolled back by its owner. The deletion of a blob still
+ * scheduled at the path a blob is moved to, left by a previous deletion of the attachment, is cancelled before the
+ * blob is moved.
+ *
+ * @version $Id$
+ */
+public class StagedBlobsTransactionRunnable extends TransactionRunnable<XWikiHibernateTransaction>
+{
+    /**
+     * The path under which the blobs are staged, followed by the id of the transaction and the actual path.
+     */
+    public static final String STAGING_PREFIX = ".staging/";
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(StagedBlobsTransactionRunnable.class);
+
+    /**
+     * The Hibernate transaction this runnable runs in.
+     */
+    private XWikiHibernateTransaction transaction;
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The journal recording the staged blobs.
+     */
+    private BlobTransactionJournal journal;
+
+    /**
+     * The purger whose scheduled deletions of the blobs written by the transaction are cancelled.
+     */
+    private BlobPurger blobPurger;
+
+    /**
+     * The id of the transaction.
+     */
+    private final String transactionId = UUID.randomUUID().toString();
+
+    /**
+     * The blobs staged by the transaction.
+     */
+    private final List<StagedBlob> stagedBlobs = new ArrayList<StagedBlob>();
+
+    /**
+     * Constructor. The runnable still has to be run in the given transaction.
+     *
+     * @param transaction The Hibernate transaction this runnable runs in.
+     * @param blobStore The blob store.
+     * @param journal The journal recording the staged blobs.
+     * @param blobPurger The purger whose scheduled deletions of the blobs written by the transaction are cancelled.
+     */
+    public StagedBlobsTransactionRunnable(XWikiHibernateTransaction transaction, BlobStore blobStore,
+        BlobTransactionJournal journal, BlobPurger blobPurger)
+    {
+        this.transaction = transaction;
+        this.blobStore = blobStore;
+        this.journal = journal;
+        this.blobPurger = blobPurger;
+    }
+
+    /**
+     * Write a blob to its temporary path. It may be called concurrently.
+     *
+     * @param path The actual path of the blob.
+     * @param content The content of the blob.
+     * @param length The length of the content.
+     * @param attachment The attachment being saved, whose version tells after a crash whether the transaction was
+     *            committed.
+     * @throws IOException If the blob cannot be recorded in the journal.
+     */
+    public void putBlob(String path, InputStream content, long length, XWikiAttachment attachment)
+        throws IOException
+    {
+        this.blobStore.putBlob(stage(path, attachment).getStagingPath(), content, length);
+    }
+
+    /**
+     * Copy a blob to the temporary path of another blob, within the blob store. The copied blob is read before the
+     * transaction is committed, and thus before the blobs it stages replace it. It may be called concurrently.
+     *
+     * @param sourcePath The path of the blob to copy.
+     * @param path The actual path of the copy.
+     * @param attachment The attachment being saved, whose version tells after a crash whether the transaction was
+     *            committed.
+     * @throws IOException If the blob cannot be recorded in the journal.
+     */
+    public void copyBlob(String sourcePath, String path, XWikiAttachment attachment) throws IOException
+    {
+        this.blobStore.copyBlob(sourcePath, stage(path, attachment).getStagingPath());
+    }
+
+    /**
+     * Record a blob staged by the transaction.
+     *
+     * @param path The actual path of the blob.
+     * @param attachment The attachment being saved.
+     * @return The staged blob.
+     * @throws IOException If the blob cannot be recorded in the journal.
+     */
+    private StagedBlob stage(String path, XWikiAttachment attachment) throws IOException
+    {
+        StagedBlob blob = new StagedBlob(path, STAGING_PREFIX + this.transactionId + '/' + path,
+            attachment.getReference().getDocumentReference(), attachment.getFilename(), attachment.getVersion());
+
+        this.journal.record(this.transactionId, blob);
+        synchronized (this.stagedBlobs) {
+            this.stagedBlobs.add(blob);
+        }
+
+        return blob;
+    }
+
+    @Override
+    protected void onCommit() throws Exception
+    {
+        if (this.transaction.isTransactionOwner()) {
+            promote();
+            return;
+        }
+
+        // The database is only committed with the enclosing transaction, which may still be rolled back.
+        this.transaction.registerSynchronization(new Synchronization()
+        {
+            @Override
+            public void beforeCompletion()
+            {
+                // Nothing to do before the enclosing transaction ends.
+            }
+
+            @Override
+            public void afterCompletion(int status)
+            {
+                try {
+                    if (status == Status.STATUS_COMMITTED) {
+                        promote();
+                    } else {
+                        discard();
+                    }
+                } catch (Exception e) {
+                    // The journal is kept so that the blobs are promoted or deleted at the next start.
+                    logger.error("Unable to end the staging of the blobs of transaction {}: {}", transactionId,
+                        e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onRollback() throws Exception
+    {
+        discard();
+    }
+
+    /**
+     * Move the staged blobs to their actual paths, once the database is committed.
+     */
+    private void promote()
+    {
+        boolean promoted = true;
+        for (StagedBlob blob : this.stagedBlobs) {
+            this.logger.debug("Moving blob {} to {}", blob.getStagingPath(), blob.getPath());
+
+            try {
+                this.blobPurger.cancel(blob.getPath());
+                this.blobStore.moveBlob(blob.getStagingPath(), blob.getPath());
+            } catch (Exception e) {
+                // The journal is kept so that the blob is moved at the next start.
+                this.logger.error("Unable to move blob {} to {} after commit: {}", blob.getStagingPath(),
+                    blob.getPath(), e.getMessage());
+                promoted = false;
+            }
+        }
+
+        if (promoted) {
+            this.journal.complete(this.transactionId);
+        }
+    }
+
+    /**
+     * Delete the staged blobs, once the database is rolled back.
+     */
+    private void discard()
+    {
+        if (this.stagedBlobs.isEmpty()) {
+            this.journal.complete(this.transactionId);
+            return;
+        }
+
+        List<String> paths = new ArrayList<String>(this.stagedBlobs.size());
+        for (StagedBlob blob : this.stagedBlobs) {
+            paths.add(blob.getStagingPath());
+        }
+
+        this.logger.debug("Deleting {} staged blobs after rollback", paths.size());
+
+        // The blobs not deleted are swept at the next start: the actual blobs are untouched anyway.
+        Map<String, Exception> failures = this.blobStore.deleteBlobs(paths);
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            this.logger.warn("Unable to delete staged blob {} after rollback: {}", failure.getKey(),
+                failure.getValue().getMessage());
+        }
+
+        this.journal.complete(this.transactionId);
+    }
+}
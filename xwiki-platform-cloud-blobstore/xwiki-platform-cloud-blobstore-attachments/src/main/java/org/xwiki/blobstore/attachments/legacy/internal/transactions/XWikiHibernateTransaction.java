@@ -19,6 +19,8 @@
  */
 package org.xwiki.blobstore.attachments.legacy.internal.transactions;
 
+import javax.transaction.Synchronization;
+
 import org.xwiki.store.RootTransactionRunnable;
 
 import com.xpn.xwiki.XWikiContext;
@@ -85,6 +87,26 @@ public void onRun() throws XWikiException
         this.shouldCloseTransaction = this.store.beginTransaction(this.context);
     }
 
+    /**
+     * @return true if this runnable opened the Hibernate transaction, which is then committed when this runnable is,
+     *         false if it joined a transaction already open, which is committed later by its owner
+     */
+    public boolean isTransactionOwner()
+    {
+        return this.shouldCloseTransaction;
+    }
+
+    /**
+     * Register a callback notified when the Hibernate transaction is committed or rolled back. This is meant for the
+     * runnables of a transaction joining an enclosing one, whose commit does not commit the database.
+     *
+     * @param synchronization The callback.
+     */
+    public void registerSynchronization(Synchronization synchronization)
+    {
+        this.store.getTransaction(this.context).registerSynchronization(synchronization);
+    }
+
     @Override
     public void onCommit()
     {
@@ -0,0 +1,305 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.inject.Provider;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.AbstractBlobStore;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link BlobGarbageCollector}.
+ *
+ * @version $Id$
+ */
+public class BlobGarbageCollectorTest
+{
+    @Rule
+    public MockitoComponentMockingRule<EventListener> mocker = new MockitoComponentMockingRule<EventListener>(
+        BlobGarbageCollector.class);
+
+    /**
+     * The path of the blob of an existing attachment.
+     */
+    private static final String ATTACHMENT_PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The path of a blob no attachment references.
+     */
+    private static final String ORPHAN_PATH = "xwiki/Space/Page/orphan.txt";
+
+    /**
+     * The path of the blob of a deleted attachment still in the recycle bin.
+     */
+    private static final String TRASHED_PATH = "xwiki/Space/Page/trashed.txt";
+
+    /**
+     * The path of a blob of an attachment being saved.
+     */
+    private static final String RECENT_PATH = "xwiki/Space/Page/recent.txt";
+
+    /**
+     * The path of the blob of an existing attachment of a document whose name contains a separator.
+     */
+    private static final String SEPARATOR_PATH = "xwiki/Space/Pa/ge/file.txt";
+
+    /**
+     * The content of the blobs.
+     */
+    private NavigableMap<String, byte[]> blobs = new TreeMap<String, byte[]>();
+
+    /**
+     * The date of the last modification of the blobs.
+     */
+    private Map<String, Date> dates = new TreeMap<String, Date>();
+
+    /**
+     * The configuration.
+     */
+    private ConfigurationSource configuration;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext context;
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        BlobStore blobStore = new AbstractBlobStore()
+        {
+            @Override
+            public void putBlob(String path, InputStream content)
+            {
+                try {
+                    blobs.put(path, IOUtils.toByteArray(content));
+                    dates.put(path, new Date());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void putBlob(String path, InputStream content, long length)
+            {
+                putBlob(path, content);
+            }
+
+            @Override
+            public InputStream getBlob(String path)
+            {
+                byte[] content = blobs.get(path);
+                return content != null ? new ByteArrayInputStream(content) : null;
+            }
+
+            @Override
+            public void deleteBlob(String path)
+            {
+                blobs.remove(path);
+            }
+
+            @Override
+            public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+            {
+                List<BlobMetadata> listing = new ArrayList<BlobMetadata>();
+                for (Map.Entry<String, byte[]> blob : (startAfter != null ? blobs.tailMap(startAfter, false) : blobs)
+                    .entrySet()) {
+                    if (blob.getKey().startsWith(prefix)) {
+                        listing.add(new BlobMetadata(blob.getKey(), blob.getValue().length,
+                            dates.get(blob.getKey()), null));
+                    }
+                }
+                return listing.iterator();
+            }
+        };
+        Provider<BlobStore> blobStoreProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, BlobStore.class), "blobstore");
+        when(blobStoreProvider.get()).thenReturn(blobStore);
+
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(this.configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+
+        // The attachments of the database, returned for the documents whose full name is queried.
+        final List<Object[]> attachments = new ArrayList<Object[]>();
+        attachments.add(new Object[] {"Space", "Page", "file.txt"});
+        attachments.add(new Object[] {"Space", "Pa/ge", "file.txt"});
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(store.search(anyString(), eq(0), eq(0), anyList(), any(XWikiContext.class))).thenAnswer(
+            new Answer<List<Object[]>>()
+            {
+                @Override
+                public List<Object[]> answer(InvocationOnMock invocation)
+                {
+                    List<?> fullNames = (List<?>) invocation.getArguments()[3];
+                    List<Object[]> rows = new ArrayList<Object[]>();
+                    for (Object[] attachment : attachments) {
+                        if (fullNames.contains(attachment[0] + "." + attachment[1])) {
+                            rows.add(attachment);
+                        }
+                    }
+                    return rows;
+                }
+            });
+
+        XWiki xwiki = mock(XWiki.class);
+        when(xwiki.getHibernateStore()).thenReturn(store);
+        this.context = mock(XWikiContext.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+
+        for (String path : new String[] {ATTACHMENT_PATH, ORPHAN_PATH, TRASHED_PATH, SEPARATOR_PATH,
+            ".archive/xwiki/Space/Page/old.txt/1.1"}) {
+            this.blobs.put(path, "content".getBytes());
+            this.dates.put(path, new Date(0));
+        }
+        this.blobs.put(RECENT_PATH, "content".getBytes());
+        this.dates.put(RECENT_PATH, new Date());
+        this.blobs.put(".trash/xwiki/Space/Page/index", "1\t0\t\t0\tSpace.Page\t1.1\t0\t7\t\t\ttrashed.txt\n"
+            .getBytes());
+    }
+
+    /**
+     * Check that orphan blobs are only reported by default.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReportOrphans() throws Exception
+    {
+        BlobGarbageCollector collector = (BlobGarbageCollector) this.mocker.getComponentUnderTest();
+        collector.collect(this.context);
+
+        Assert.assertEquals(5, collector.getScannedCount());
+        Assert.assertEquals(1, collector.getOrphanCount());
+        Assert.assertEquals(0, collector.getDeletedCount());
+        Assert.assertTrue(this.blobs.containsKey(ORPHAN_PATH));
+        Assert.assertNull(collector.getCheckpoint());
+    }
+
+    /**
+     * Check that only the orphan blobs are deleted when deletion is enabled.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteOrphans() throws Exception
+    {
+        when(this.configuration.getProperty(BlobGarbageCollector.GC_DELETE_PROPERTY, false)).thenReturn(true);
+
+        BlobGarbageCollector collector = (BlobGarbageCollector) this.mocker.getComponentUnderTest();
+        collector.collect(this.context);
+
+        Assert.assertEquals(1, collector.getDeletedCount());
+        Assert.assertFalse(this.blobs.containsKey(ORPHAN_PATH));
+        Assert.assertTrue(this.blobs.containsKey(ATTACHMENT_PATH));
+        Assert.assertTrue(this.blobs.containsKey(TRASHED_PATH));
+        Assert.assertTrue(this.blobs.containsKey(RECENT_PATH));
+        Assert.assertTrue(this.blobs.containsKey(SEPARATOR_PATH));
+        Assert.assertFalse(this.blobs.containsKey(BlobGarbageCollector.CHECKPOINT_PATH));
+    }
+
+    /**
+     * Check that the checksums of deleted blobs, stored before the attachment blobs, are collected as well.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteOrphanChecksums() throws Exception
+    {
+        when(this.configuration.getProperty(BlobGarbageCollector.GC_DELETE_PROPERTY, false)).thenReturn(true);
+        for (String path : new String[] {ATTACHMENT_PATH, "xwiki/Space/Page/deleted.txt"}) {
+            this.blobs.put(".checksums/" + path, "CRC32C:7:0".getBytes());
+            this.dates.put(".checksums/" + path, new Date(0));
+        }
+        this.blobs.put(".checksums/xwiki/Space/Page/written.txt", "CRC32C:7:0".getBytes());
+        this.dates.put(".checksums/xwiki/Space/Page/written.txt", new Date());
+
+        BlobGarbageCollector collector = (BlobGarbageCollector) this.mocker.getComponentUnderTest();
+        collector.collect(this.context);
+
+        Assert.assertEquals(8, collector.getScannedCount());
+        Assert.assertEquals(2, collector.getDeletedCount());
+        Assert.assertFalse(this.blobs.containsKey(".checksums/xwiki/Space/Page/deleted.txt"));
+        Assert.assertFalse(this.blobs.containsKey(ORPHAN_PATH));
+        Assert.assertTrue(this.blobs.containsKey(".checksums/" + ATTACHMENT_PATH));
+        Assert.assertTrue(this.blobs.containsKey(".checksums/xwiki/Space/Page/written.txt"));
+    }
+
+    /**
+     * Check that a collection resumes after the checkpoint left by the previous one.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testResumeFromCheckpoint() throws Exception
+    {
+        when(this.configuration.getProperty(BlobGarbageCollector.GC_DELETE_PROPERTY, false)).thenReturn(true);
+        this.blobs.put(BlobGarbageCollector.CHECKPOINT_PATH, ORPHAN_PATH.getBytes());
+
+        BlobGarbageCollector collector = (BlobGarbageCollector) this.mocker.getComponentUnderTest();
+        collector.collect(this.context);
+
+        // Only the recent and trashed blobs come after the checkpoint.
+        Assert.assertEquals(2, collector.getScannedCount());
+        Assert.assertTrue(this.blobs.containsKey(ORPHAN_PATH));
+        Assert.assertFalse(this.blobs.containsKey(BlobGarbageCollector.CHECKPOINT_PATH));
+    }
+}
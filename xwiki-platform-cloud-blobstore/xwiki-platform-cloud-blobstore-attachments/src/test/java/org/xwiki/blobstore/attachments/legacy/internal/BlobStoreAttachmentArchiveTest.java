@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.suigeneris.jrcs.rcs.Version;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link BlobStoreAttachmentArchive}.
+ *
+ * @version $Id$
+ */
+public class BlobStoreAttachmentArchiveTest
+{
+    /**
+     * The path of the archive used by the tests.
+     */
+    private static final String ARCHIVE_PATH = ".archive/xwiki/Space/Page/file.txt/";
+
+    /**
+     * The path of the blob of the attachment used by the tests.
+     */
+    private static final String CONTENT_PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The blob store.
+     */
+    private MemoryBlobStore blobStore = new MemoryBlobStore();
+
+    /**
+     * The purger, deleting the blobs immediately.
+     */
+    private BlobPurger blobPurger;
+
+    /**
+     * The attachment.
+     */
+    private XWikiAttachment attachment;
+
+    /**
+     * The current version of the attachment.
+     */
+    private String version = "1.1";
+
+    /**
+     * Setup the mocks for tests.
+     */
+    @Before
+    public void setUp()
+    {
+        this.blobPurger = new BlobPurger()
+        {
+            @Override
+            public void purge(String path)
+            {
+                blobStore.deleteBlob(path);
+            }
+
+            @Override
+            public void cancel(String path)
+            {
+                // The blobs are deleted right away.
+            }
+
+            @Override
+            public int getPendingCount()
+            {
+                return 0;
+            }
+        };
+
+        this.attachment = mock(XWikiAttachment.class);
+        when(this.attachment.getReference()).thenReturn(
+            new AttachmentReference("file.txt", new DocumentReference("xwiki", "Space", "Page")));
+        when(this.attachment.getFilename()).thenReturn("file.txt");
+        when(this.attachment.getDate()).thenReturn(new Date());
+        when(this.attachment.getAuthor()).thenReturn("XWiki.Admin");
+        when(this.attachment.getVersion()).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                return version;
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                version = new Version(version).next().toString();
+
+                return null;
+            }
+        }).when(this.attachment).incrementVersion();
+    }
+
+    /**
+     * Check that each older version is stored as its own blob, that the latest one is read from the blob of the
+     * attachment, and that the index is read lazily.
+     *
+     * @throws Exception If the archive cannot be saved or read.
+     */
+    @Test
+    public void testSaveAndLoadVersions() throws Exception
+    {
+        saveVersion("first");
+        saveVersion("second");
+
+        Assert.assertEquals("1.2", this.version);
+        Assert.assertArrayEquals("first".getBytes(), this.blobStore.getBlobs().get(ARCHIVE_PATH + "1.1"));
+        Assert.assertNull(this.blobStore.getBlobs().get(ARCHIVE_PATH + "1.2"));
+
+        this.blobStore.resetCounts();
+        BlobStoreAttachmentArchive archive = new BlobStoreAttachmentArchive(this.blobStore, this.attachment);
+        Assert.assertEquals(0, this.blobStore.getReadCount());
+
+        Version[] versions = archive.getVersions();
+        Assert.assertEquals(2, versions.length);
+        Assert.assertEquals("1.1", versions[0].toString());
+        Assert.assertEquals("1.2", versions[1].toString());
+        Assert.assertEquals(1, this.blobStore.getReadCount());
+
+        XWikiAttachment revision = archive.getRevision(this.attachment, "1.1", null);
+        Assert.assertEquals("1.1", revision.getVersion());
+        Assert.assertEquals("first".length(), revision.getFilesize());
+        Assert.assertEquals(1, this.blobStore.getReadCount());
+        Assert.assertArrayEquals("first".getBytes(),
+            IOUtils.toByteArray(revision.getAttachment_content().getContentInputStream()));
+        Assert.assertArrayEquals("second".getBytes(), IOUtils.toByteArray(
+            archive.getRevision(this.attachment, "1.2", null).getAttachment_content().getContentInputStream()));
+
+        Assert.assertNull(archive.getRevision(this.attachment, "1.3", null));
+    }
+
+    /**
+     * Check that the content of a version is only uploaded as the blob of the attachment, and copied to the archive
+     * when a newer version replaces it.
+     *
+     * @throws Exception If the archive cannot be saved.
+     */
+    @Test
+    public void testContentUploadedOnce() throws Exception
+    {
+        saveVersion("first");
+        Assert.assertEquals(Arrays.asList(ARCHIVE_PATH + "index", CONTENT_PATH), this.blobStore.getWrittenPaths());
+
+        this.blobStore.resetCounts();
+        saveVersion("second");
+        Assert.assertEquals(Arrays.asList(ARCHIVE_PATH + "1.1", ARCHIVE_PATH + "index", CONTENT_PATH),
+            this.blobStore.getWrittenPaths());
+    }
+
+    /**
+     * Check that an invalid index is reported as such.
+     *
+     * @throws Exception If the archive cannot be read.
+     */
+    @Test
+    public void testInvalidIndex() throws Exception
+    {
+        this.blobStore.getBlobs().put(ARCHIVE_PATH + "index", "1.1\tyesterday\t5\tXWiki.Admin\n".getBytes());
+
+        BlobStoreAttachmentArchive archive = new BlobStoreAttachmentArchive(this.blobStore, this.attachment);
+        try {
+            archive.addRevision();
+            Assert.fail("The invalid index should not have been read");
+        } catch (IOException e) {
+            // Expected.
+        }
+        Assert.assertEquals(0, archive.getVersions().length);
+    }
+
+    /**
+     * Check that deleting the archive deletes all the versions and the index, but not the blob of the attachment.
+     *
+     * @throws Exception If the archive cannot be saved.
+     */
+    @Test
+    public void testDelete() throws Exception
+    {
+        saveVersion("first");
+        saveVersion("second");
+
+        new BlobStoreAttachmentArchive(this.blobStore, this.attachment).delete(this.blobPurger);
+
+        Assert.assertEquals(Arrays.asList(CONTENT_PATH), Arrays.asList(this.blobStore.getBlobs().keySet().toArray()));
+    }
+
+    /**
+     * Record a new content of the attachment and save the archive, and then store the content as the blob of the
+     * attachment, as the attachment store does once the archive is saved.
+     *
+     * @param content The content.
+     * @throws IOException If the archive cannot be saved.
+     */
+    private void saveVersion(String content) throws IOException
+    {
+        XWikiAttachmentContent attachmentContent = mock(XWikiAttachmentContent.class);
+        when(attachmentContent.getContentInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes()));
+        when(this.attachment.getAttachment_content()).thenReturn(attachmentContent);
+        when(this.attachment.getFilesize()).thenReturn(content.length());
+
+        BlobStoreAttachmentArchive archive = new BlobStoreAttachmentArchive(this.blobStore, this.attachment);
+        archive.addRevision();
+        archive.save(this.blobPurger);
+
+        this.blobStore.putBlob(CONTENT_PATH, new ByteArrayInputStream(content.getBytes()));
+    }
+}
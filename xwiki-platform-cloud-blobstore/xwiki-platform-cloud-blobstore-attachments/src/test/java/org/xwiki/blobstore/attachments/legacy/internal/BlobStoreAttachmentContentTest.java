@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.blobstore.BlobStore;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link BlobStoreAttachmentContent}.
+ *
+ * @version $Id$
+ */
+public class BlobStoreAttachmentContentTest
+{
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The content of the blob used by the tests.
+     */
+    private static final byte[] CONTENT = "content".getBytes();
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The attachment.
+     */
+    private XWikiAttachment attachment;
+
+    /**
+     * Setup the mocks for tests.
+     */
+    @Before
+    public void setUp()
+    {
+        this.blobStore = mock(BlobStore.class);
+        when(this.blobStore.getBlob(PATH)).thenReturn(new ByteArrayInputStream(CONTENT));
+
+        this.attachment = mock(XWikiAttachment.class);
+        when(this.attachment.getFilesize()).thenReturn(CONTENT.length);
+    }
+
+    /**
+     * Check that the blob is not fetched until the content is read.
+     *
+     * @throws Exception If the content cannot be read.
+     */
+    @Test
+    public void testBlobIsFetchedOnlyWhenContentIsRead() throws Exception
+    {
+        BlobStoreAttachmentContent content = new BlobStoreAttachmentContent(this.blobStore, PATH, this.attachment);
+
+        Assert.assertEquals(CONTENT.length, content.getSize());
+        Assert.assertFalse(content.isContentDirty());
+        content.clone();
+        InputStream stream = content.getContentInputStream();
+        verify(this.blobStore, never()).getBlob(PATH);
+
+        Assert.assertArrayEquals(CONTENT, IOUtils.toByteArray(stream));
+        verify(this.blobStore, times(1)).getBlob(PATH);
+    }
+
+    /**
+     * Check that the bytes skipped before reading the content are not fetched.
+     *
+     * @throws Exception If the content cannot be read.
+     */
+    @Test
+    public void testSkippedBytesAreNotFetched() throws Exception
+    {
+        when(this.blobStore.getBlob(PATH, 3, -1)).thenReturn(new ByteArrayInputStream(CONTENT, 3, CONTENT.length));
+        BlobStoreAttachmentContent content = new BlobStoreAttachmentContent(this.blobStore, PATH, this.attachment);
+
+        InputStream stream = content.getContentInputStream();
+        Assert.assertEquals(3, stream.skip(3));
+        Assert.assertArrayEquals("tent".getBytes(), IOUtils.toByteArray(stream));
+        Assert.assertEquals(CONTENT.length, content.getContentInputStream().skip(CONTENT.length + 1));
+
+        verify(this.blobStore, never()).getBlob(PATH);
+    }
+
+    /**
+     * Check that a missing blob is reported when the content is read.
+     */
+    @Test(expected = RuntimeException.class)
+    public void testMissingBlob()
+    {
+        new BlobStoreAttachmentContent(this.blobStore, "missing", this.attachment).getContentAsBytes();
+    }
+}
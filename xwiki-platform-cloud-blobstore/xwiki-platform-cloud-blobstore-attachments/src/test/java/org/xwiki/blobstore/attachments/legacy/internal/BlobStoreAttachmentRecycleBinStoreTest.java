@@ -0,0 +1,234 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.DeletedAttachment;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.AttachmentRecycleBinStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link BlobStoreAttachmentRecycleBinStore}.
+ *
+ * @version $Id$
+ */
+public class BlobStoreAttachmentRecycleBinStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<AttachmentRecycleBinStore> mocker =
+        new MockitoComponentMockingRule<AttachmentRecycleBinStore>(BlobStoreAttachmentRecycleBinStore.class);
+
+    /**
+     * The path of the blob of the attachment used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The document used by the tests.
+     */
+    private static final DocumentReference DOCUMENT_REFERENCE = new DocumentReference("xwiki", "Space", "Page");
+
+    /**
+     * The blob store.
+     */
+    private MemoryBlobStore blobStore = new MemoryBlobStore();
+
+    /**
+     * The purger.
+     */
+    private BlobPurger blobPurger;
+
+    /**
+     * The document of the attachment.
+     */
+    private XWikiDocument document;
+
+    /**
+     * The attachment.
+     */
+    private XWikiAttachment attachment;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext context;
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        Provider<BlobStore> blobStoreProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, BlobStore.class), "blobstore");
+        when(blobStoreProvider.get()).thenReturn(this.blobStore);
+
+        this.blobPurger = this.mocker.getInstance(BlobPurger.class);
+
+        this.document = mock(XWikiDocument.class);
+        when(this.document.getDocumentReference()).thenReturn(DOCUMENT_REFERENCE);
+        when(this.document.getFullName()).thenReturn("Space.Page");
+        when(this.document.getId()).thenReturn(42L);
+
+        this.attachment = mock(XWikiAttachment.class);
+        when(this.attachment.getDoc()).thenReturn(this.document);
+        when(this.attachment.getReference()).thenReturn(new AttachmentReference("file.txt", DOCUMENT_REFERENCE));
+        when(this.attachment.getFilename()).thenReturn("file.txt");
+        when(this.attachment.getVersion()).thenReturn("1.2");
+        when(this.attachment.getDate()).thenReturn(new Date());
+        when(this.attachment.getFilesize()).thenReturn(7);
+        when(this.attachment.getAuthor()).thenReturn("XWiki.Admin");
+
+        XWiki xwiki = mock(XWiki.class);
+        this.context = new XWikiContext();
+        this.context.setWiki(xwiki);
+        when(xwiki.getDocument(DOCUMENT_REFERENCE, this.context)).thenReturn(this.document);
+
+        this.blobStore.getBlobs().put(PATH, "content".getBytes());
+    }
+
+    /**
+     * Check that moving an attachment to the recycle bin keeps its blob, and that restoring it reuses the blob.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testRestoreReusesBlob() throws Exception
+    {
+        AttachmentRecycleBinStore recycleBin = this.mocker.getComponentUnderTest();
+        recycleBin.saveToRecycleBin(this.attachment, "XWiki.Deleter", new Date(), this.context, true);
+
+        Assert.assertTrue(BlobStoreAttachmentRecycleBinStore.consumeTrashed(this.attachment, this.context));
+        Assert.assertFalse(BlobStoreAttachmentRecycleBinStore.consumeTrashed(this.attachment, this.context));
+
+        List<DeletedAttachment> deletedAttachments =
+            recycleBin.getAllDeletedAttachments(this.attachment, this.context, true);
+        Assert.assertEquals(1, deletedAttachments.size());
+        DeletedAttachment deletedAttachment = deletedAttachments.get(0);
+        Assert.assertEquals("file.txt", deletedAttachment.getFilename());
+        Assert.assertEquals("XWiki.Deleter", deletedAttachment.getDeleter());
+        Assert.assertEquals("Space.Page", deletedAttachment.getDocName());
+        Assert.assertEquals(42L, deletedAttachment.getDocId());
+
+        int writesBeforeRestore = this.blobStore.getWrittenPaths().size();
+        XWikiAttachment restored = mock(XWikiAttachment.class);
+        when(restored.getReference()).thenReturn(new AttachmentReference("file.txt", DOCUMENT_REFERENCE));
+        recycleBin.restoreFromRecycleBin(restored, deletedAttachment.getId(), this.context, true);
+
+        verify(restored).setVersion("1.2");
+        verify(restored).setFilesize(7);
+        verify(restored).setAttachment_content(any(BlobStoreAttachmentContent.class));
+        Assert.assertEquals(writesBeforeRestore, this.blobStore.getWrittenPaths().size());
+    }
+
+    /**
+     * Check that the content of a deleted attachment is moved to the recycle bin before a new attachment with the
+     * same name overwrites it.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testEvacuateBeforeOverwrite() throws Exception
+    {
+        AttachmentRecycleBinStore recycleBin = this.mocker.getComponentUnderTest();
+        recycleBin.saveToRecycleBin(this.attachment, "XWiki.Deleter", new Date(), this.context, true);
+
+        ((BlobStoreAttachmentRecycleBinStore) recycleBin).evacuate(this.attachment);
+        Assert.assertFalse(this.blobStore.getBlobs().containsKey(PATH));
+        this.blobStore.getBlobs().put(PATH, "new content".getBytes());
+
+        BlobStoreDeletedAttachment deletedAttachment = (BlobStoreDeletedAttachment) recycleBin
+            .getAllDeletedAttachments(this.document, this.context, true).get(0);
+        Assert.assertEquals(".trash/xwiki/Space/Page/" + deletedAttachment.getId(),
+            deletedAttachment.getContentPath());
+        Assert.assertEquals("content", new String(this.blobStore.getBlobs().get(deletedAttachment.getContentPath())));
+
+        recycleBin.deleteFromRecycleBin(deletedAttachment.getId(), this.context, true);
+
+        verify(this.blobPurger).purge(deletedAttachment.getContentPath());
+        verify(this.blobPurger, never()).purge(PATH);
+    }
+
+    /**
+     * Check that deleting an attachment from the recycle bin purges its blob, unless it has been restored.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteFromRecycleBin() throws Exception
+    {
+        AttachmentRecycleBinStore recycleBin = this.mocker.getComponentUnderTest();
+        recycleBin.saveToRecycleBin(this.attachment, "XWiki.Deleter", new Date(), this.context, true);
+        long id = recycleBin.getAllDeletedAttachments(this.document, this.context, true).get(0).getId();
+
+        recycleBin.deleteFromRecycleBin(id, this.context, true);
+
+        verify(this.blobPurger).purge(PATH);
+        Assert.assertNull(recycleBin.getDeletedAttachment(id, this.context, true));
+        Assert.assertTrue(recycleBin.getAllDeletedAttachments(this.document, this.context, true).isEmpty());
+        Assert.assertFalse(this.blobStore.getBlobs().containsKey(".trash/xwiki/Space/Page/index"));
+    }
+
+    /**
+     * Check that the blob of a restored attachment is kept when the attachment is deleted from the recycle bin.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteRestoredAttachmentFromRecycleBin() throws Exception
+    {
+        AttachmentRecycleBinStore recycleBin = this.mocker.getComponentUnderTest();
+        recycleBin.saveToRecycleBin(this.attachment, "XWiki.Deleter", new Date(), this.context, true);
+        long id = recycleBin.getAllDeletedAttachments(this.document, this.context, true).get(0).getId();
+        when(this.document.getAttachment("file.txt")).thenReturn(this.attachment);
+
+        recycleBin.deleteFromRecycleBin(id, this.context, true);
+
+        verify(this.blobPurger, never()).purge(PATH);
+        verify(this.blobPurger).purge(anyString());
+    }
+}
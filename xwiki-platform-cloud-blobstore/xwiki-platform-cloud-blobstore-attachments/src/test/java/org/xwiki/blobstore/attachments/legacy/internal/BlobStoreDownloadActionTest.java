@@ -0,0 +1,277 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.BlobStore;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.plugin.XWikiPluginManager;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link BlobStoreDownloadAction}.
+ *
+ * @version $Id$
+ */
+public class BlobStoreDownloadActionTest
+{
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The content of the blob used by the tests.
+     */
+    private static final byte[] CONTENT = "0123456789".getBytes();
+
+    /**
+     * The entity tag of the attachment used by the tests, made of its version and date.
+     */
+    private static final String ETAG = "\"1.2-1000\"";
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The context of the requests.
+     */
+    private XWikiContext context;
+
+    /**
+     * The content sent.
+     */
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the output of the response cannot be mocked.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.blobStore = mock(BlobStore.class);
+        when(this.blobStore.getBlob(PATH)).thenAnswer(new Answer<ByteArrayInputStream>()
+        {
+            @Override
+            public ByteArrayInputStream answer(InvocationOnMock invocation)
+            {
+                return new ByteArrayInputStream(CONTENT);
+            }
+        });
+        when(this.blobStore.getBlob(anyString(), anyLong(), anyLong())).thenAnswer(new Answer<ByteArrayInputStream>()
+        {
+            @Override
+            public ByteArrayInputStream answer(InvocationOnMock invocation)
+            {
+                int offset = ((Long) invocation.getArguments()[1]).intValue();
+                int length = ((Long) invocation.getArguments()[2]).intValue();
+
+                return new ByteArrayInputStream(CONTENT, offset, length);
+            }
+        });
+
+        XWikiAttachment attachment = mock(XWikiAttachment.class);
+        when(attachment.getFilename()).thenReturn("file.txt");
+        when(attachment.getFilesize()).thenReturn(CONTENT.length);
+        when(attachment.getVersion()).thenReturn("1.2");
+        when(attachment.getDate()).thenReturn(new Date(1000));
+        when(attachment.getAttachment_content()).thenReturn(
+            new BlobStoreAttachmentContent(this.blobStore, PATH, attachment));
+
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getAttachment("file.txt")).thenReturn(attachment);
+
+        XWikiPluginManager pluginManager = mock(XWikiPluginManager.class);
+        when(pluginManager.downloadAttachment(Matchers.<XWikiAttachment>any(), Matchers.<XWikiContext>any()))
+            .thenAnswer(AdditionalAnswers.returnsFirstArg());
+        XWiki xwiki = mock(XWiki.class);
+        when(xwiki.getEncoding()).thenReturn("UTF-8");
+        when(xwiki.getPluginManager()).thenReturn(pluginManager);
+
+        XWikiRequest request = mock(XWikiRequest.class);
+        when(request.getRequestURI()).thenReturn("/xwiki/bin/download/Space/Page/file.txt");
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+        XWikiResponse response = mock(XWikiResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                output.write(b);
+            }
+        });
+
+        this.context = mock(XWikiContext.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(this.context.getDoc()).thenReturn(document);
+        when(this.context.getRequest()).thenReturn(request);
+        when(this.context.getResponse()).thenReturn(response);
+    }
+
+    /**
+     * Check that the ranges requested are sent, and that only they are fetched from the blob store.
+     *
+     * @throws Exception If the ranges cannot be sent.
+     */
+    @Test
+    public void testRanges() throws Exception
+    {
+        Assert.assertEquals("234", download("bytes=2-4"));
+        verify(this.context.getResponse()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(this.context.getResponse()).setHeader("Content-Range", "bytes 2-4/10");
+        verify(this.blobStore).getBlob(PATH, 2, 3);
+
+        Assert.assertEquals("789", download("bytes=7-"));
+        Assert.assertEquals("789", download("bytes=-3"));
+        Assert.assertEquals("89", download("bytes=8-20"));
+        verify(this.context.getResponse()).setHeader("Content-Range", "bytes 8-9/10");
+        Assert.assertEquals("0123456789", download("bytes=-20"));
+
+        verify(this.blobStore, never()).getBlob(PATH);
+    }
+
+    /**
+     * Check that a range starting after the end of the content is rejected without fetching anything.
+     *
+     * @throws Exception If the response cannot be sent.
+     */
+    @Test
+    public void testUnsatisfiableRange() throws Exception
+    {
+        Assert.assertEquals("", download("bytes=10-"));
+        verify(this.context.getResponse()).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(this.context.getResponse()).setHeader("Content-Range", "bytes */10");
+
+        verify(this.blobStore, never()).getBlob(anyString());
+        verify(this.blobStore, never()).getBlob(anyString(), anyLong(), anyLong());
+    }
+
+    /**
+     * Check that the whole content is sent along with the entity tag and date of the attachment, including when several
+     * ranges are requested.
+     *
+     * @throws Exception If the content cannot be sent.
+     */
+    @Test
+    public void testDownload() throws Exception
+    {
+        Assert.assertEquals("0123456789", download(null));
+        verify(this.context.getResponse()).setContentLength(CONTENT.length);
+        verify(this.context.getResponse(), times(1)).setHeader("ETag", ETAG);
+        verify(this.context.getResponse(), times(1)).setDateHeader("Last-Modified", 1000);
+
+        Assert.assertEquals("0123456789", download("bytes=0-1,4-5"));
+        verify(this.blobStore, never()).getBlob(anyString(), anyLong(), anyLong());
+    }
+
+    /**
+     * Check that a browser revalidating an up to date copy is answered without any request to the blob store.
+     *
+     * @throws Exception If the response cannot be sent.
+     */
+    @Test
+    public void testNotModified() throws Exception
+    {
+        when(this.context.getRequest().getHeader("If-None-Match")).thenReturn("\"1.1-500\", W/" + ETAG);
+
+        Assert.assertEquals("", download(null));
+        verify(this.context.getResponse()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.context.getResponse()).setHeader("ETag", ETAG);
+        verifyZeroInteractions(this.blobStore);
+    }
+
+    /**
+     * Check that a browser revalidating a copy by its date is answered without any request to the blob store.
+     *
+     * @throws Exception If the response cannot be sent.
+     */
+    @Test
+    public void testNotModifiedSince() throws Exception
+    {
+        when(this.context.getRequest().getDateHeader("If-Modified-Since")).thenReturn(1000L);
+
+        Assert.assertEquals("", download(null));
+        verify(this.context.getResponse()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verifyZeroInteractions(this.blobStore);
+    }
+
+    /**
+     * Check that a browser revalidating an older version is sent the content.
+     *
+     * @throws Exception If the content cannot be sent.
+     */
+    @Test
+    public void testModified() throws Exception
+    {
+        when(this.context.getRequest().getHeader("If-None-Match")).thenReturn("\"1.1-500\"");
+        when(this.context.getRequest().getDateHeader("If-Modified-Since")).thenReturn(1000L);
+
+        Assert.assertEquals("0123456789", download(null));
+        verify(this.context.getResponse(), never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    /**
+     * Request the attachment.
+     *
+     * @param range The range requested, or null for requesting the whole content.
+     * @return The content sent.
+     * @throws Exception If the range cannot be sent.
+     */
+    private String download(String range) throws Exception
+    {
+        this.output.reset();
+        when(this.context.getRequest().getHeader("Range")).thenReturn(range);
+
+        Assert.assertNull(new BlobStoreDownloadAction().render(this.context));
+
+        return new String(this.output.toByteArray());
+    }
+}
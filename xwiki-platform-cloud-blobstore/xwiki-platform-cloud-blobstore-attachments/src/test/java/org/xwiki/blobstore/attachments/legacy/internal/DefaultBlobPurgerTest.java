@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultBlobPurger}.
+ *
+ * @version $Id$
+ */
+public class DefaultBlobPurgerTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobPurger> mocker = new MockitoComponentMockingRule<BlobPurger>(
+        DefaultBlobPurger.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The path of the blob of an attachment.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The path of the blob of another attachment.
+     */
+    private static final String OTHER_PATH = "xwiki/Space/Page/other.txt";
+
+    /**
+     * The path of the blob of an attachment whose name holds a tab and a line break.
+     */
+    private static final String SPECIAL_PATH = "xwiki/Space/Page/tab\tline\nbreak.txt";
+
+    /**
+     * Released for letting the blob store delete the blob of the other attachment.
+     */
+    private final CountDownLatch otherDeletion = new CountDownLatch(1);
+
+    /**
+     * Released once the blob store starts deleting the blob of the other attachment.
+     */
+    private final CountDownLatch otherDeleting = new CountDownLatch(1);
+
+    /**
+     * The paths of the blobs written again by another node, which the blob store reports as just modified.
+     */
+    private final Set<String> rewrittenPaths = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * The blob store, which waits before deleting the blob of the other attachment.
+     */
+    private MemoryBlobStore blobStore = new MemoryBlobStore()
+    {
+        @Override
+        public Map<String, Exception> deleteBlobs(Collection<String> paths)
+        {
+            if (paths.contains(OTHER_PATH)) {
+                otherDeleting.countDown();
+                try {
+                    otherDeletion.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return super.deleteBlobs(paths);
+        }
+
+        @Override
+        public BlobMetadata getBlobMetadata(String path)
+        {
+            BlobMetadata metadata = super.getBlobMetadata(path);
+            if (metadata != null && rewrittenPaths.contains(path)) {
+                return new BlobMetadata(path, metadata.getLength(), new Date(), null);
+            }
+
+            return metadata;
+        }
+    };
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        Provider<BlobStore> blobStoreProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, BlobStore.class), "blobstore");
+        when(blobStoreProvider.get()).thenReturn(this.blobStore);
+        when(this.mocker.<Environment>getInstance(Environment.class).getPermanentDirectory())
+            .thenReturn(this.folder.getRoot());
+
+        this.blobStore.putBlob(PATH, new ByteArrayInputStream("content".getBytes()));
+        this.blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream("content".getBytes()));
+    }
+
+    /**
+     * Check that the scheduled blobs are deleted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPurge() throws Exception
+    {
+        DefaultBlobPurger purger = (DefaultBlobPurger) this.mocker.getComponentUnderTest();
+        purger.purge(PATH);
+        purger.purge(OTHER_PATH);
+        this.otherDeletion.countDown();
+        purger.dispose();
+
+        Assert.assertEquals(0, purger.getPendingCount());
+        Assert.assertTrue(this.blobStore.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check that an attachment deleted and then uploaded again before its blob is purged keeps its new blob.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteThenUploadBeforePurge() throws Exception
+    {
+        DefaultBlobPurger purger = (DefaultBlobPurger) this.mocker.getComponentUnderTest();
+
+        // The purger is kept busy deleting another blob while the attachment is deleted and uploaded again.
+        purger.purge(OTHER_PATH);
+        Assert.assertTrue(this.otherDeleting.await(10, TimeUnit.SECONDS));
+        purger.purge(PATH);
+        Assert.assertEquals(1, purger.getPendingCount());
+
+        purger.cancel(PATH);
+        this.blobStore.putBlob(PATH, new ByteArrayInputStream("new content".getBytes()));
+        Assert.assertEquals(0, purger.getPendingCount());
+
+        this.otherDeletion.countDown();
+        purger.dispose();
+
+        Assert.assertEquals("new content", new String(this.blobStore.getBlobs().get(PATH)));
+        Assert.assertFalse(this.blobStore.getBlobs().containsKey(OTHER_PATH));
+    }
+
+    /**
+     * Check that an attachment deleted on this node and uploaded again on another node before its blob is purged keeps
+     * its new blob, although the other node cannot cancel the deletion.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testUploadOnAnotherNodeBeforePurge() throws Exception
+    {
+        DefaultBlobPurger purger = (DefaultBlobPurger) this.mocker.getComponentUnderTest();
+
+        purger.purge(OTHER_PATH);
+        Assert.assertTrue(this.otherDeleting.await(10, TimeUnit.SECONDS));
+        purger.purge(PATH);
+
+        this.blobStore.putBlob(PATH, new ByteArrayInputStream("new content".getBytes()));
+        this.rewrittenPaths.add(PATH);
+
+        this.otherDeletion.countDown();
+        purger.dispose();
+
+        Assert.assertEquals(0, purger.getPendingCount());
+        Assert.assertEquals("new content", new String(this.blobStore.getBlobs().get(PATH)));
+    }
+
+    /**
+     * Check that the blobs scheduled by a previous run which did not stop cleanly are deleted at start, ignoring the
+     * line it was writing when it crashed.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPurgeScheduledBeforeRestart() throws Exception
+    {
+        this.blobStore.putBlob(SPECIAL_PATH, new ByteArrayInputStream("content".getBytes()));
+
+        long date = System.currentTimeMillis();
+        File file = new File(this.folder.getRoot(), "blobstore-purges.queue");
+        String lines = date + "\t" + Utils.encodeField(PATH) + "\t\n" + date + "\t" + Utils.encodeField(SPECIAL_PATH)
+            + "\t\n" + date + "\t" + Utils.encodeField(OTHER_PATH);
+        Files.write(file.toPath(), lines.getBytes(StandardCharsets.UTF_8));
+
+        this.otherDeletion.countDown();
+        DefaultBlobPurger purger = (DefaultBlobPurger) this.mocker.getComponentUnderTest();
+        purger.dispose();
+
+        Assert.assertEquals(Collections.singleton(OTHER_PATH), this.blobStore.getBlobs().keySet());
+        Assert.assertEquals(0, file.length());
+    }
+}
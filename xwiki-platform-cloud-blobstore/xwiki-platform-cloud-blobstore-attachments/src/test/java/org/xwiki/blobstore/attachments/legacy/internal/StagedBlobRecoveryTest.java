@@ -0,0 +1,339 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Provider;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.AbstractBlobStore;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link StagedBlobRecovery}.
+ *
+ * @version $Id$
+ */
+public class StagedBlobRecoveryTest
+{
+    @Rule
+    public MockitoComponentMockingRule<EventListener> mocker = new MockitoComponentMockingRule<EventListener>(
+        StagedBlobRecovery.class);
+
+    /**
+     * The id of the interrupted transaction.
+     */
+    private static final String TRANSACTION_ID = "tx";
+
+    /**
+     * The path of the blob of the attachment whose version is in the database.
+     */
+    private static final String COMMITTED_PATH = "xwiki/Space/Page/committed.txt";
+
+    /**
+     * The path of the blob of the attachment whose version is not in the database.
+     */
+    private static final String ROLLED_BACK_PATH = "xwiki/Space/Page/rolledback.txt";
+
+    /**
+     * The content of the blobs.
+     */
+    private Map<String, byte[]> blobs = new TreeMap<String, byte[]>();
+
+    /**
+     * The date of the last modification of the blobs.
+     */
+    private Map<String, Date> dates = new TreeMap<String, Date>();
+
+    /**
+     * The journal.
+     */
+    private BlobTransactionJournal journal;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext context;
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        BlobStore blobStore = new AbstractBlobStore()
+        {
+            @Override
+            public void putBlob(String path, InputStream content)
+            {
+                try {
+                    blobs.put(path, IOUtils.toByteArray(content));
+                    dates.put(path, new Date());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void putBlob(String path, InputStream content, long length)
+            {
+                putBlob(path, content);
+            }
+
+            @Override
+            public InputStream getBlob(String path)
+            {
+                byte[] content = blobs.get(path);
+                return content != null ? new ByteArrayInputStream(content) : null;
+            }
+
+            @Override
+            public void deleteBlob(String path)
+            {
+                blobs.remove(path);
+            }
+
+            @Override
+            public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+            {
+                List<BlobMetadata> listing = new ArrayList<BlobMetadata>();
+                for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+                    if (blob.getKey().startsWith(prefix)) {
+                        listing.add(new BlobMetadata(blob.getKey(), blob.getValue().length,
+                            dates.get(blob.getKey()), null));
+                    }
+                }
+                return listing.iterator();
+            }
+        };
+        Provider<BlobStore> blobStoreProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, BlobStore.class), "blobstore");
+        when(blobStoreProvider.get()).thenReturn(blobStore);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+
+        this.journal = this.mocker.getInstance(BlobTransactionJournal.class);
+        Map<String, List<StagedBlob>> transactions = new TreeMap<String, List<StagedBlob>>();
+        transactions.put(TRANSACTION_ID, Arrays.asList(stage(COMMITTED_PATH), stage(ROLLED_BACK_PATH)));
+        when(this.journal.recover()).thenReturn(transactions);
+
+        // Only the version of the committed attachment is in the database.
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(store.search(anyString(), eq(0), eq(0), anyList(), any(XWikiContext.class))).thenAnswer(
+            new Answer<List<String>>()
+            {
+                @Override
+                public List<String> answer(InvocationOnMock invocation)
+                {
+                    List<?> parameters = (List<?>) invocation.getArguments()[3];
+                    return ((String) parameters.get(2)).startsWith("committed") ? Arrays.asList("1.2")
+                        : Arrays.asList("1.1");
+                }
+            });
+
+        XWiki xwiki = mock(XWiki.class);
+        when(xwiki.getHibernateStore()).thenReturn(store);
+        this.context = mock(XWikiContext.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+    }
+
+    /**
+     * Check that the blob of a committed attachment is moved to its path and that the blob of a rolled back one is
+     * deleted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testRecoverInterruptedTransaction() throws Exception
+    {
+        this.blobs.put(COMMITTED_PATH, "old".getBytes());
+        this.blobs.put(ROLLED_BACK_PATH, "old".getBytes());
+
+        ((StagedBlobRecovery) this.mocker.getComponentUnderTest()).recover(this.context);
+
+        Assert.assertEquals("new", new String(this.blobs.get(COMMITTED_PATH)));
+        Assert.assertEquals("old", new String(this.blobs.get(ROLLED_BACK_PATH)));
+        Assert.assertEquals(Arrays.asList(COMMITTED_PATH, ROLLED_BACK_PATH), new ArrayList<String>(
+            this.blobs.keySet()));
+        verify(this.journal).complete(TRANSACTION_ID);
+    }
+
+    /**
+     * Check that a blob already moved before the crash is not moved again.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testAlreadyMovedBlobIsSkipped() throws Exception
+    {
+        this.blobs.remove(getStagingPath(COMMITTED_PATH));
+        this.blobs.put(COMMITTED_PATH, "new".getBytes());
+
+        ((StagedBlobRecovery) this.mocker.getComponentUnderTest()).recover(this.context);
+
+        Assert.assertEquals("new", new String(this.blobs.get(COMMITTED_PATH)));
+        verify(this.journal).complete(TRANSACTION_ID);
+    }
+
+    /**
+     * Check that only the old staged blobs no journal references are deleted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testStaleStagedBlobsAreDeleted() throws Exception
+    {
+        when(this.journal.recover()).thenReturn(Collections.<String, List<StagedBlob>>emptyMap());
+        String stalePath = ".staging/stale/xwiki/Space/Page/file.txt";
+        this.blobs.put(stalePath, "content".getBytes());
+        this.dates.put(stalePath, new Date(0));
+        String recentPath = ".staging/recent/xwiki/Space/Page/file.txt";
+        this.blobs.put(recentPath, "content".getBytes());
+        this.dates.put(recentPath, new Date());
+
+        ((StagedBlobRecovery) this.mocker.getComponentUnderTest()).recover(this.context);
+
+        Assert.assertFalse(this.blobs.containsKey(stalePath));
+        Assert.assertTrue(this.blobs.containsKey(recentPath));
+        verify(this.journal, never()).complete(anyString());
+    }
+
+    /**
+     * Check that the blobs of attachments whose names hold tabs and line breaks are recovered from the lines of the
+     * journal to their own paths, and that a partially written line is ignored.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testRecoverSpecialFilenames() throws Exception
+    {
+        String committedPath = "xwiki/Space/Page/committed\tfile\n.txt";
+        String rolledBackPath = "xwiki/Space/Page/rolled\tback\nfile.txt";
+        Map<String, List<StagedBlob>> transactions = new TreeMap<String, List<StagedBlob>>();
+        transactions.put(TRANSACTION_ID, readJournal(stage(committedPath), stage(rolledBackPath)));
+        when(this.journal.recover()).thenReturn(transactions);
+        this.blobs.put(committedPath, "old".getBytes());
+        this.blobs.put(rolledBackPath, "old".getBytes());
+
+        String line = transactions.get(TRANSACTION_ID).get(0).toJournalLine();
+        Assert.assertNull(StagedBlob.fromJournalLine(line.substring(0, line.length() - 1)));
+
+        ((StagedBlobRecovery) this.mocker.getComponentUnderTest()).recover(this.context);
+
+        Assert.assertEquals("new", new String(this.blobs.get(committedPath)));
+        Assert.assertEquals("old", new String(this.blobs.get(rolledBackPath)));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(committedPath, rolledBackPath)), this.blobs.keySet());
+        verify(this.journal).complete(TRANSACTION_ID);
+    }
+
+    /**
+     * Write staged blobs to the lines of a journal and read them back, line by line.
+     *
+     * @param stagedBlobs The staged blobs.
+     * @return The staged blobs read from the journal.
+     * @throws IOException If the journal cannot be read.
+     */
+    private List<StagedBlob> readJournal(StagedBlob... stagedBlobs) throws IOException
+    {
+        StringBuilder journal = new StringBuilder();
+        for (StagedBlob blob : stagedBlobs) {
+            journal.append(blob.toJournalLine()).append('\n');
+        }
+
+        List<StagedBlob> recovered = new ArrayList<StagedBlob>();
+        BufferedReader reader = new BufferedReader(new StringReader(journal.toString()));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            StagedBlob blob = StagedBlob.fromJournalLine(line);
+            Assert.assertNotNull(blob);
+            recovered.add(blob);
+        }
+
+        return recovered;
+    }
+
+    /**
+     * @param path The actual path of a blob.
+     * @return The blob, staged with new content by the interrupted transaction.
+     */
+    private StagedBlob stage(String path)
+    {
+        String stagingPath = getStagingPath(path);
+        this.blobs.put(stagingPath, "new".getBytes());
+        // Old enough for being swept if it was not recovered first.
+        this.dates.put(stagingPath, new Date(0));
+
+        return new StagedBlob(path, stagingPath, new DocumentReference("xwiki", "Space", "Page"),
+            path.substring(path.lastIndexOf('/') + 1), "1.2");
+    }
+
+    /**
+     * @param path The actual path of a blob.
+     * @return The path the blob is staged to by the interrupted transaction.
+     */
+    private String getStagingPath(String path)
+    {
+        return ".staging/" + TRANSACTION_ID + '/' + path;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Unit tests for {@link Utils}.
+ *
+ * @version $Id$
+ */
+public class UtilsTest
+{
+    /**
+     * The attachment used by the tests.
+     */
+    private static final AttachmentReference ATTACHMENT = new AttachmentReference("file name.txt",
+        new DocumentReference("xwiki", "Space", "Page"));
+
+    /**
+     * Check the path generated for an attachment.
+     */
+    @Test
+    public void testGeneratePath()
+    {
+        Assert.assertEquals("xwiki/Space/Page/file name.txt", Utils.generatePath(ATTACHMENT));
+        Assert.assertEquals("xwiki", Utils.generatePath(new WikiReference("xwiki")));
+    }
+
+    /**
+     * Check that the path is appended after the content of the builder.
+     */
+    @Test
+    public void testAppendPath()
+    {
+        StringBuilder builder = new StringBuilder("farm/");
+
+        Assert.assertEquals("farm/xwiki/Space/Page/file name.txt", Utils.appendPath(ATTACHMENT, builder)
+            .toString());
+    }
+
+    /**
+     * Check that the encoded fields hold neither tabs nor line breaks, and are decoded back.
+     */
+    @Test
+    public void testEncodeField()
+    {
+        String value = "xwiki/Space/Page/a\tb\nc\rd+e%f g\u00e9.txt";
+        String field = Utils.encodeField(value);
+
+        Assert.assertFalse(field.contains("\t") || field.contains("\n") || field.contains("\r"));
+        Assert.assertEquals(value, Utils.decodeField(field));
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.attachments.legacy.internal.transactions;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobPurger;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobTransactionJournal;
+import org.xwiki.blobstore.attachments.legacy.internal.StagedBlob;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.store.TransactionException;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link SaveAttachmentsTransactionRunnable}.
+ *
+ * @version $Id$
+ */
+public class SaveAttachmentsTransactionRunnableTest
+{
+    /**
+     * The number of attachments saved by the tests.
+     */
+    private static final int ATTACHMENT_COUNT = 5;
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The journal recording the staged blobs.
+     */
+    private BlobTransactionJournal journal;
+
+    /**
+     * The purger whose scheduled deletions are cancelled.
+     */
+    private BlobPurger blobPurger;
+
+    /**
+     * The Hibernate store.
+     */
+    private XWikiHibernateStore hibernateStore;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext xwikiContext;
+
+    /**
+     * The document containing the attachments.
+     */
+    private XWikiDocument document;
+
+    /**
+     * The attachments.
+     */
+    private List<XWikiAttachment> attachments = new ArrayList<XWikiAttachment>();
+
+    /**
+     * The executor uploading the blobs.
+     */
+    private ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocks cannot be configured.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.blobStore = mock(BlobStore.class);
+        when(this.blobStore.deleteBlobs(anyCollectionOf(String.class))).thenReturn(
+            Collections.<String, Exception>emptyMap());
+        this.journal = mock(BlobTransactionJournal.class);
+        this.blobPurger = mock(BlobPurger.class);
+
+        this.hibernateStore = mock(XWikiHibernateStore.class);
+        when(this.hibernateStore.beginTransaction(any(XWikiContext.class))).thenReturn(true);
+        XWiki xwiki = mock(XWiki.class);
+        when(xwiki.getHibernateStore()).thenReturn(this.hibernateStore);
+        when(xwiki.getStore()).thenReturn(this.hibernateStore);
+        this.xwikiContext = mock(XWikiContext.class);
+        when(this.xwikiContext.getWiki()).thenReturn(xwiki);
+
+        DocumentReference documentReference = new DocumentReference("xwiki", "Space", "Page");
+        this.document = mock(XWikiDocument.class);
+        when(this.document.getDocumentReference()).thenReturn(documentReference);
+
+        for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+            String filename = String.format("file%d.txt", i);
+            XWikiAttachmentContent content = mock(XWikiAttachmentContent.class);
+            when(content.getContentInputStream()).thenReturn(new ByteArrayInputStream(filename.getBytes()));
+
+            XWikiAttachment attachment = mock(XWikiAttachment.class);
+            when(attachment.getFilename()).thenReturn(filename);
+            when(attachment.getReference()).thenReturn(new AttachmentReference(filename, documentReference));
+            when(attachment.getAttachment_content()).thenReturn(content);
+            when(attachment.getFilesize()).thenReturn(filename.length());
+            when(attachment.getVersion()).thenReturn("1.1");
+            this.attachments.add(attachment);
+        }
+    }
+
+    /**
+     * Stop the executor.
+     */
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Check that all the blobs are staged, moved to their paths once the document is saved, and that the journal of
+     * the transaction is then completed.
+     *
+     * @throws Exception If the transaction fails.
+     */
+    @Test
+    public void testSaveAttachments() throws Exception
+    {
+        start();
+
+        List<String> stagingPaths = getStagingPaths();
+        Assert.assertEquals(ATTACHMENT_COUNT, stagingPaths.size());
+        for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+            String stagingPath = getStagingPath(stagingPaths, i);
+            Assert.assertTrue(stagingPath.startsWith(StagedBlobsTransactionRunnable.STAGING_PREFIX));
+            verify(this.blobStore).moveBlob(stagingPath, getPath(i));
+        }
+        verify(this.hibernateStore, times(1)).saveXWikiDoc(this.document, this.xwikiContext);
+        verify(this.hibernateStore).endTransaction(this.xwikiContext, true);
+        verify(this.blobStore, never()).deleteBlobs(anyCollectionOf(String.class));
+
+        // Each blob is recorded in the journal before being written.
+        InOrder inOrder = inOrder(this.journal, this.blobStore);
+        inOrder.verify(this.journal).record(anyString(), any(StagedBlob.class));
+        inOrder.verify(this.blobStore).putBlob(anyString(), any(InputStream.class), eq(9L));
+        inOrder.verify(this.journal).complete(anyString());
+    }
+
+    /**
+     * Check that the deletion of a blob still scheduled when an attachment with the same name is saved, after the
+     * deletion of the previous attachment, is cancelled before the new blob is moved to its path.
+     *
+     * @throws Exception If the transaction fails.
+     */
+    @Test
+    public void testScheduledDeletionIsCancelledBeforeMove() throws Exception
+    {
+        start();
+
+        InOrder inOrder = inOrder(this.blobPurger, this.blobStore);
+        inOrder.verify(this.blobPurger).cancel(getPath(0));
+        inOrder.verify(this.blobStore).moveBlob(anyString(), eq(getPath(0)));
+    }
+
+    /**
+     * Check that the staged blobs are deleted, and the blobs of the attachments untouched, when the document cannot be
+     * saved.
+     *
+     * @throws Exception If the mocks cannot be configured.
+     */
+    @Test
+    public void testStagedBlobsAreDeletedWhenDocumentSaveFails() throws Exception
+    {
+        doThrow(new XWikiException()).when(this.hibernateStore).saveXWikiDoc(this.document, this.xwikiContext);
+
+        try {
+            start();
+            Assert.fail("The transaction should have failed");
+        } catch (TransactionException expected) {
+            // Expected.
+        }
+
+        assertStagedBlobsDeleted();
+        verify(this.blobStore, never()).moveBlob(anyString(), anyString());
+        for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+            verify(this.blobStore, never()).putBlob(eq(getPath(i)), any(InputStream.class), anyLong());
+        }
+        verify(this.hibernateStore).endTransaction(this.xwikiContext, false);
+        verify(this.journal).complete(anyString());
+    }
+
+    /**
+     * Check that the document is not saved when an upload fails, and that the staged blobs are deleted.
+     *
+     * @throws Exception If the mocks cannot be configured.
+     */
+    @Test
+    public void testDocumentIsNotSavedWhenUploadFails() throws Exception
+    {
+        doThrow(new RuntimeException("Upload failed")).when(this.blobStore).putBlob(endsWith('/' + getPath(2)),
+            any(InputStream.class), anyLong());
+
+        try {
+            start();
+            Assert.fail("The transaction should have failed");
+        } catch (TransactionException expected) {
+            // Expected.
+        }
+
+        verify(this.hibernateStore, never()).saveXWikiDoc(this.document, this.xwikiContext);
+        assertStagedBlobsDeleted();
+        verify(this.blobStore, never()).moveBlob(anyString(), anyString());
+        verify(this.hibernateStore).endTransaction(this.xwikiContext, false);
+    }
+
+    /**
+     * Check that the journal of the transaction is kept when a staged blob cannot be moved, so that it is moved at the
+     * next start.
+     *
+     * @throws Exception If the transaction fails.
+     */
+    @Test
+    public void testJournalIsKeptWhenMoveFails() throws Exception
+    {
+        doThrow(new RuntimeException("Move failed")).when(this.blobStore).moveBlob(anyString(), eq(getPath(1)));
+
+        start();
+
+        verify(this.blobStore).moveBlob(anyString(), eq(getPath(0)));
+        verify(this.blobStore).moveBlob(anyString(), eq(getPath(4)));
+        verify(this.journal, never()).complete(anyString());
+    }
+
+    /**
+     * Check that the blobs of a transaction joining an enclosing Hibernate transaction are only moved once the
+     * enclosing transaction is committed.
+     *
+     * @throws Exception If the transaction fails.
+     */
+    @Test
+    public void testNestedTransactionPromotesAfterEnclosingCommit() throws Exception
+    {
+        Synchronization synchronization = startNested();
+
+        verify(this.blobStore, never()).moveBlob(anyString(), anyString());
+        verify(this.journal, never()).complete(anyString());
+        verify(this.hibernateStore, never()).endTransaction(any(XWikiContext.class), eq(true));
+
+        synchronization.afterCompletion(Status.STATUS_COMMITTED);
+
+        List<String> stagingPaths = getStagingPaths();
+        for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+            verify(this.blobStore).moveBlob(getStagingPath(stagingPaths, i), getPath(i));
+        }
+        verify(this.journal).complete(anyString());
+    }
+
+    /**
+     * Check that the staged blobs of a transaction joining an enclosing Hibernate transaction are deleted when the
+     * enclosing transaction is rolled back after the nested one succeeded.
+     *
+     * @throws Exception If the transaction fails.
+     */
+    @Test
+    public void testNestedTransactionDiscardsAfterEnclosingRollback() throws Exception
+    {
+        Synchronization synchronization = startNested();
+        synchronization.afterCompletion(Status.STATUS_ROLLEDBACK);
+
+        assertStagedBlobsDeleted();
+        verify(this.blobStore, never()).moveBlob(anyString(), anyString());
+        verify(this.journal).complete(anyString());
+    }
+
+    /**
+     * Run the runnable under test in a transaction joining an enclosing Hibernate transaction.
+     *
+     * @return The callback registered on the enclosing transaction.
+     * @throws Exception If the mocks cannot be configured or the transaction fails.
+     */
+    private Synchronization startNested() throws Exception
+    {
+        when(this.hibernateStore.beginTransaction(any(XWikiContext.class))).thenReturn(false);
+        Transaction enclosingTransaction = mock(Transaction.class);
+        when(this.hibernateStore.getTransaction(this.xwikiContext)).thenReturn(enclosingTransaction);
+
+        start();
+
+        ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(enclosingTransaction).registerSynchronization(synchronization.capture());
+
+        return synchronization.getValue();
+    }
+
+    /**
+     * Run the runnable under test in a transaction.
+     *
+     * @throws TransactionException If the transaction fails.
+     */
+    private void start() throws TransactionException
+    {
+        XWikiHibernateTransaction transaction = new XWikiHibernateTransaction(this.xwikiContext);
+        StagedBlobsTransactionRunnable stagedBlobs =
+            new StagedBlobsTransactionRunnable(transaction, this.blobStore, this.journal, this.blobPurger);
+        stagedBlobs.runIn(transaction);
+        new SaveAttachmentsTransactionRunnable(stagedBlobs, this.attachments, this.document, this.xwikiContext, true,
+            this.executor).runIn(transaction);
+        transaction.start();
+    }
+
+    /**
+     * @param index The index of an attachment.
+     * @return The path of the blob of the attachment.
+     */
+    private String getPath(int index)
+    {
+        return String.format("xwiki/Space/Page/file%d.txt", index);
+    }
+
+    /**
+     * Check that all the staged blobs have been deleted at once.
+     */
+    @SuppressWarnings("unchecked")
+    private void assertStagedBlobsDeleted()
+    {
+        ArgumentCaptor<Collection> paths = ArgumentCaptor.forClass(Collection.class);
+        verify(this.blobStore).deleteBlobs(paths.capture());
+
+        Assert.assertEquals(new HashSet<String>(getStagingPaths()), new HashSet<String>(paths.getValue()));
+    }
+
+    /**
+     * @return The paths the blobs have been staged to.
+     */
+    private List<String> getStagingPaths()
+    {
+        ArgumentCaptor<String> paths = ArgumentCaptor.forClass(String.class);
+        verify(this.blobStore, times(ATTACHMENT_COUNT)).putBlob(paths.capture(), any(InputStream.class), anyLong());
+
+        return paths.getAllValues();
+    }
+
+    /**
+     * @param stagingPaths The paths the blobs have been staged to.
+     * @param index The index of an attachment.
+     * @return The path the blob of the attachment has been staged to.
+     */
+    private String getStagingPath(Collection<String> stagingPaths, int index)
+    {
+        for (String stagingPath : stagingPaths) {
+            if (stagingPath.endsWith('/' + getPath(index))) {
+                return stagingPath;
+            }
+        }
+
+        throw new AssertionError("No blob staged for attachment " + index);
+    }
+}
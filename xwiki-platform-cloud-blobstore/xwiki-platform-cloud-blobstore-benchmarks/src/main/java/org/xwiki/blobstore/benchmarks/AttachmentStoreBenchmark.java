@@ -0,0 +1,280 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.attachments.legacy.internal.BlobStoreAttachmentStore;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * Full attachment content save and load round trips through {@link BlobStoreAttachmentStore}, including the
+ * transaction runnables, with a stand-in Hibernate store. Run it with {@code -prof gc} for comparing the heap used by
+ * loading attachments.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttachmentStoreBenchmark
+{
+    /**
+     * The blob store used by the attachment store.
+     */
+    @Param({ BenchmarkBlobStores.MEMORY, BenchmarkBlobStores.FILESYSTEM })
+    public String backend;
+
+    /**
+     * The size of the attachments.
+     */
+    @Param({ "1024", "1048576", "16777216" })
+    public int size;
+
+    /**
+     * The attachment store.
+     */
+    private BlobStoreAttachmentStore attachmentStore;
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The directory used by the blob store.
+     */
+    private File directory;
+
+    /**
+     * The XWiki context.
+     */
+    private XWikiContext xwikiContext;
+
+    /**
+     * The attachment being saved.
+     */
+    private XWikiAttachment savedAttachment;
+
+    /**
+     * The attachment being loaded.
+     */
+    private XWikiAttachment loadedAttachment;
+
+    /**
+     * The content set by the attachment store on the loaded attachment.
+     */
+    private XWikiAttachmentContent loadedContent;
+
+    /**
+     * The buffer used for reading attachments.
+     */
+    private byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * Create the attachment store and the attachments.
+     *
+     * @throws Exception If the attachment store cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.directory = Files.createTempDirectory("attachmentstore-benchmark").toFile();
+        this.blobStore = BenchmarkBlobStores.create(this.backend, this.directory);
+
+        this.attachmentStore = new BlobStoreAttachmentStore();
+        ReflectionUtils.setFieldValue(this.attachmentStore, "blobStoreProvider", new Provider<BlobStore>()
+        {
+            @Override
+            public BlobStore get()
+            {
+                return AttachmentStoreBenchmark.this.blobStore;
+            }
+        });
+        ReflectionUtils.setFieldValue(this.attachmentStore, "configurationSource",
+            BenchmarkBlobStores.createConfiguration(new HashMap<String, Object>()));
+        ReflectionUtils.setFieldValue(this.attachmentStore, "logger",
+            LoggerFactory.getLogger(BlobStoreAttachmentStore.class));
+        this.attachmentStore.initialize();
+
+        // Stub-only mocks do not record invocations, which would otherwise fill the heap during the measurements.
+        XWikiHibernateStore hibernateStore = Mockito.mock(XWikiHibernateStore.class, Mockito.withSettings().stubOnly());
+        XWiki xwiki = Mockito.mock(XWiki.class, Mockito.withSettings().stubOnly());
+        when(xwiki.getHibernateStore()).thenReturn(hibernateStore);
+        when(xwiki.getStore()).thenReturn(hibernateStore);
+        this.xwikiContext = new XWikiContext();
+        this.xwikiContext.setWiki(xwiki);
+
+        final byte[] content = new byte[this.size];
+        new Random(42).nextBytes(content);
+        DocumentReference documentReference = new DocumentReference("xwiki", "Benchmark", "Page");
+
+        this.savedAttachment = createAttachment(new AttachmentReference("saved.bin", documentReference));
+        when(this.savedAttachment.getContentInputStream(any(XWikiContext.class))).thenAnswer(
+            new Answer<InputStream>()
+            {
+                @Override
+                public InputStream answer(InvocationOnMock invocation)
+                {
+                    return new ByteArrayInputStream(content);
+                }
+            });
+
+        this.loadedAttachment = createAttachment(new AttachmentReference("loaded.bin", documentReference));
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                AttachmentStoreBenchmark.this.loadedContent = (XWikiAttachmentContent) invocation.getArguments()[0];
+
+                return null;
+            }
+        }).when(this.loadedAttachment).setAttachment_content(any(XWikiAttachmentContent.class));
+        this.blobStore.putBlob("xwiki/Benchmark/Page/loaded.bin", new ByteArrayInputStream(content), this.size);
+    }
+
+    /**
+     * Release the attachment store.
+     *
+     * @throws Exception If the blob store fails to release its resources.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        this.attachmentStore.dispose();
+        BenchmarkBlobStores.dispose(this.blobStore);
+        BenchmarkBlobStores.delete(this.directory);
+    }
+
+    /**
+     * Save the content of an attachment.
+     *
+     * @throws XWikiException If the attachment cannot be saved.
+     */
+    @Benchmark
+    public void save() throws XWikiException
+    {
+        this.attachmentStore.saveAttachmentContent(this.savedAttachment, false, this.xwikiContext, true);
+    }
+
+    /**
+     * Load the content of an attachment and read it entirely.
+     *
+     * @return The number of bytes read.
+     * @throws Exception If the attachment cannot be loaded.
+     */
+    @Benchmark
+    public long load() throws Exception
+    {
+        this.attachmentStore.loadAttachmentContent(this.loadedAttachment, this.xwikiContext, true);
+
+        InputStream stream = this.loadedContent.getContentInputStream();
+        try {
+            long length = 0;
+            int count;
+            while ((count = stream.read(this.buffer)) >= 0) {
+                length += count;
+            }
+
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Load the content of an attachment and read its first byte, which is the latency seen by a client downloading
+     * the attachment.
+     *
+     * @return The first byte.
+     * @throws Exception If the attachment cannot be loaded.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public int timeToFirstByte() throws Exception
+    {
+        this.attachmentStore.loadAttachmentContent(this.loadedAttachment, this.xwikiContext, true);
+
+        InputStream stream = this.loadedContent.getContentInputStream();
+        try {
+            return stream.read();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @param reference The reference of the attachment.
+     * @return A stand-in attachment.
+     */
+    private XWikiAttachment createAttachment(AttachmentReference reference)
+    {
+        XWikiAttachment attachment = Mockito.mock(XWikiAttachment.class, Mockito.withSettings().stubOnly());
+        when(attachment.getReference()).thenReturn(reference);
+        when(attachment.getFilename()).thenReturn(reference.getName());
+        when(attachment.getFilesize()).thenReturn(this.size);
+
+        return attachment;
+    }
+}
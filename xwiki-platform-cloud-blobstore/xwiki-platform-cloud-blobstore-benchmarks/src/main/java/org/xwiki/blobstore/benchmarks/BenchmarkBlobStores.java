@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.filesystem.internal.FileSystemBlobStore;
+import org.xwiki.blobstore.s3.internal.DefaultS3ClientFactory;
+import org.xwiki.blobstore.s3.internal.S3BlobStore;
+import org.xwiki.blobstore.s3.internal.S3ClientFactory;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Creates the blob stores compared by the benchmarks, outside of any component manager.
+ *
+ * @version $Id$
+ */
+public final class BenchmarkBlobStores
+{
+    /**
+     * The in-memory blob store.
+     */
+    public static final String MEMORY = "memory";
+
+    /**
+     * The filesystem blob store.
+     */
+    public static final String FILESYSTEM = "filesystem";
+
+    /**
+     * The S3 blob store, running against an in-process stand-in for S3.
+     */
+    public static final String S3 = "s3";
+
+    /**
+     * Constructor. Not instantiable.
+     */
+    private BenchmarkBlobStores()
+    {
+        // Do nothing
+    }
+
+    /**
+     * Create a blob store.
+     *
+     * @param backend The blob store to create: {@link #MEMORY}, {@link #FILESYSTEM} or {@link #S3}.
+     * @param directory A directory that can be used by the blob store.
+     * @return The blob store.
+     * @throws Exception If the blob store cannot be initialized.
+     */
+    public static BlobStore create(String backend, File directory) throws Exception
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, "benchmark");
+
+        if (MEMORY.equals(backend)) {
+            return new InMemoryBlobStore();
+        } else if (FILESYSTEM.equals(backend)) {
+            properties.put(FileSystemBlobStore.BLOBSTORE_FILESYSTEM_ROOT_PROPERTY, directory.getAbsolutePath());
+
+            FileSystemBlobStore blobStore = new FileSystemBlobStore();
+            ReflectionUtils.setFieldValue(blobStore, "configurationSource", createConfiguration(properties));
+            ReflectionUtils.setFieldValue(blobStore, "environment", Mockito.mock(Environment.class));
+            ReflectionUtils.setFieldValue(blobStore, "logger", LoggerFactory.getLogger(FileSystemBlobStore.class));
+            blobStore.initialize();
+
+            return blobStore;
+        } else if (S3.equals(backend)) {
+            properties.put(BlobStore.BLOBSTORE_BUCKET_PROPERTY, "benchmark");
+
+            final AmazonS3 client = new LocalS3Client();
+
+            return createS3(properties, new S3ClientFactory()
+            {
+                @Override
+                public AmazonS3 createClient(String accessKey, String secretKey)
+                {
+                    return client;
+                }
+            });
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown blob store [%s]", backend));
+    }
+
+    /**
+     * Create an S3 blob store using the actual S3 client, talking to an S3-compatible server.
+     *
+     * @param endpoint The endpoint of the server.
+     * @param properties The configuration properties of the blob store and of its client.
+     * @return The blob store.
+     * @throws Exception If the blob store cannot be initialized.
+     */
+    public static BlobStore createS3(String endpoint, Map<String, Object> properties) throws Exception
+    {
+        Map<String, Object> s3Properties = new HashMap<String, Object>(properties);
+        s3Properties.put(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, "benchmark");
+        // A bucket name that is not a valid host name makes the client use path-style requests, which do not need
+        // any DNS entry for the bucket.
+        s3Properties.put(BlobStore.BLOBSTORE_BUCKET_PROPERTY, "Benchmark_Bucket");
+        s3Properties.put(DefaultS3ClientFactory.BLOBSTORE_ENDPOINT_PROPERTY, endpoint);
+
+        DefaultS3ClientFactory clientFactory = new DefaultS3ClientFactory();
+        ReflectionUtils.setFieldValue(clientFactory, "configurationSource", createConfiguration(s3Properties));
+        ReflectionUtils.setFieldValue(clientFactory, "logger", LoggerFactory.getLogger(DefaultS3ClientFactory.class));
+
+        return createS3(s3Properties, clientFactory);
+    }
+
+    /**
+     * Release the resources of a blob store.
+     *
+     * @param blobStore The blob store.
+     * @throws Exception If the blob store fails to release its resources.
+     */
+    public static void dispose(BlobStore blobStore) throws Exception
+    {
+        if (blobStore instanceof Disposable) {
+            ((Disposable) blobStore).dispose();
+        }
+    }
+
+    /**
+     * Create an S3 blob store.
+     *
+     * @param properties The configuration properties of the blob store.
+     * @param clientFactory The factory creating the S3 client.
+     * @return The blob store.
+     * @throws Exception If the blob store cannot be initialized.
+     */
+    private static BlobStore createS3(Map<String, Object> properties, S3ClientFactory clientFactory)
+        throws Exception
+    {
+        properties.put(BlobStore.BLOBSTORE_IDENTITY_PROPERTY, "benchmark");
+        properties.put(BlobStore.BLOBSTORE_CREDENTIAL_PROPERTY, "benchmark");
+
+        S3BlobStore blobStore = new S3BlobStore();
+        ReflectionUtils.setFieldValue(blobStore, "configurationSource", createConfiguration(properties));
+        ReflectionUtils.setFieldValue(blobStore, "clientFactory", clientFactory);
+        ReflectionUtils.setFieldValue(blobStore, "logger", LoggerFactory.getLogger(S3BlobStore.class));
+        blobStore.initialize();
+
+        return blobStore;
+    }
+
+    /**
+     * Create a configuration source returning the given properties, and the default value of the other ones.
+     *
+     * @param properties The configuration properties.
+     * @return The configuration source.
+     */
+    public static ConfigurationSource createConfiguration(final Map<String, Object> properties)
+    {
+        return Mockito.mock(ConfigurationSource.class, new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                Object[] arguments = invocation.getArguments();
+                Object value = properties.get(arguments[0]);
+                if (value == null && arguments.length > 1 && !(arguments[1] instanceof Class)) {
+                    // getProperty(key, defaultValue)
+                    value = arguments[1];
+                }
+
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Delete a directory and its content.
+     *
+     * @param file The directory to delete.
+     */
+    public static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
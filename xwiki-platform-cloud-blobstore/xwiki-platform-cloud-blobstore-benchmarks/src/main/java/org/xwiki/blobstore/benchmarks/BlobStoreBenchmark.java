@@ -0,0 +1,202 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.blobstore.BlobStore;
+
+/**
+ * Throughput of the blob store operations across blob sizes. Concurrency levels are compared by running the benchmark
+ * with different thread counts, e.g. {@code -t 1} and {@code -t 8}.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobStoreBenchmark
+{
+    /**
+     * The path of the blob read by the benchmarks.
+     */
+    private static final String READ_PATH = "xwiki/Benchmark/Read/blob.bin";
+
+    /**
+     * The blob store being benchmarked.
+     */
+    @Param({ BenchmarkBlobStores.MEMORY, BenchmarkBlobStores.FILESYSTEM, BenchmarkBlobStores.S3 })
+    public String backend;
+
+    /**
+     * The size of the blobs.
+     */
+    @Param({ "1024", "1048576", "16777216" })
+    public int size;
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The directory used by the blob store.
+     */
+    private File directory;
+
+    /**
+     * The content of the blobs.
+     */
+    private byte[] content;
+
+    /**
+     * Per thread state, so that concurrent writers do not write the same blob.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        /**
+         * The path of the blob written by the thread.
+         */
+        public String path;
+
+        /**
+         * The buffer used for reading blobs.
+         */
+        public byte[] buffer = new byte[64 * 1024];
+
+        /**
+         * Setup the thread state.
+         */
+        @Setup
+        public void setUp()
+        {
+            this.path = String.format("xwiki/Benchmark/Write/blob-%d.bin", Thread.currentThread().getId());
+        }
+    }
+
+    /**
+     * Create the blob store and the blob to be read.
+     *
+     * @throws Exception If the blob store cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.directory = Files.createTempDirectory("blobstore-benchmark").toFile();
+        this.blobStore = BenchmarkBlobStores.create(this.backend, this.directory);
+
+        this.content = new byte[this.size];
+        new Random(42).nextBytes(this.content);
+        this.blobStore.putBlob(READ_PATH, new ByteArrayInputStream(this.content), this.size);
+    }
+
+    /**
+     * Release the blob store.
+     *
+     * @throws Exception If the blob store fails to release its resources.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BenchmarkBlobStores.dispose(this.blobStore);
+        BenchmarkBlobStores.delete(this.directory);
+    }
+
+    /**
+     * Store a blob of known length.
+     *
+     * @param state The thread state.
+     */
+    @Benchmark
+    public void put(ThreadState state)
+    {
+        this.blobStore.putBlob(state.path, new ByteArrayInputStream(this.content), this.size);
+    }
+
+    /**
+     * Store a blob of unknown length.
+     *
+     * @param state The thread state.
+     */
+    @Benchmark
+    public void putUnknownLength(ThreadState state)
+    {
+        this.blobStore.putBlob(state.path, new ByteArrayInputStream(this.content));
+    }
+
+    /**
+     * Read a blob entirely.
+     *
+     * @param state The thread state.
+     * @return The number of bytes read.
+     * @throws IOException If the blob cannot be read.
+     */
+    @Benchmark
+    public long get(ThreadState state) throws IOException
+    {
+        InputStream stream = this.blobStore.getBlob(READ_PATH);
+        try {
+            long length = 0;
+            int count;
+            while ((count = stream.read(state.buffer)) >= 0) {
+                length += count;
+            }
+
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Store and then delete a blob.
+     *
+     * @param state The thread state.
+     */
+    @Benchmark
+    public void putAndDelete(ThreadState state)
+    {
+        this.blobStore.putBlob(state.path, new ByteArrayInputStream(this.content), this.size);
+        this.blobStore.deleteBlob(state.path);
+    }
+}
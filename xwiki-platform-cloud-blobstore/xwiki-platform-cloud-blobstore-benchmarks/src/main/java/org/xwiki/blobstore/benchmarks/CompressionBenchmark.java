@@ -0,0 +1,342 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.compression.internal.CompressingBlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Throughput of the compressing blob store on a corpus of typical attachments, for choosing the codec and its level.
+ * Next to the throughput of {@code put}, JMH reports the original and stored bytes per second: their ratio is the
+ * compression ratio of the document, and the gain in storage and in transfer time is weighed against the original
+ * bytes per second.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark
+{
+    /**
+     * The size of the documents of the corpus.
+     */
+    private static final int SIZE = 1048576;
+
+    /**
+     * The words the textual documents are made of, with the frequency of the most common English words.
+     */
+    private static final String[] WORDS = {"the", "of", "and", "to", "a", "in", "is", "it", "that", "for", "was",
+        "on", "with", "as", "page", "attachment", "wiki", "space", "document", "version", "user", "content", "store",
+        "request", "configuration", "performance", "meeting", "project", "release", "report", "budget", "customer",
+        "2016", "42", "XWiki", "Europe", "quarterly", "improvement", "infrastructure", "deployment", "cluster"};
+
+    /**
+     * The path of the document read by the benchmarks.
+     */
+    private static final String READ_PATH = "xwiki/Benchmark/Read/";
+
+    /**
+     * The document of the corpus: {@code text}, {@code xml}, {@code json}, {@code csv}, {@code svg}, or
+     * {@code random} for content that does not compress, such as a file with an unknown extension holding compressed
+     * data.
+     */
+    @Param({ "text", "xml", "json", "csv", "svg", "random" })
+    public String document;
+
+    /**
+     * The codec.
+     */
+    @Param({ "none", "deflate", "lz4" })
+    public String codec;
+
+    /**
+     * The compression level.
+     */
+    @Param({ "1", "6" })
+    public int level;
+
+    /**
+     * The blob store where the compressed blobs are stored.
+     */
+    private BlobStore store;
+
+    /**
+     * The compressing blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * The content of the document.
+     */
+    private byte[] content;
+
+    /**
+     * Per thread state, so that concurrent writers do not write the same blob.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        /**
+         * The path of the blob written by the thread.
+         */
+        public String path;
+
+        /**
+         * The buffer used for reading blobs.
+         */
+        public byte[] buffer = new byte[64 * 1024];
+
+        /**
+         * Setup the thread state.
+         *
+         * @param benchmark The benchmark state.
+         */
+        @Setup
+        public void setUp(CompressionBenchmark benchmark)
+        {
+            this.path = String.format("xwiki/Benchmark/Write/%d/%s", Thread.currentThread().getId(),
+                getName(benchmark.document));
+        }
+    }
+
+    /**
+     * The bytes written by the {@code put} benchmark, reported by JMH as secondary results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class PutCounters
+    {
+        /**
+         * The bytes of original content written.
+         */
+        public long originalBytes;
+
+        /**
+         * The bytes stored once compressed.
+         */
+        public long storedBytes;
+
+        /**
+         * Reset the counters before each iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            this.originalBytes = 0;
+            this.storedBytes = 0;
+        }
+    }
+
+    /**
+     * Create the blob store and the document to be read.
+     *
+     * @throws Exception If the blob store cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.content = generate(this.document, new Random(42));
+
+        this.store = new InMemoryBlobStore();
+        ComponentManager componentManager = Mockito.mock(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(CompressingBlobStore.BLOBSTORE_COMPRESSION_CODEC_PROPERTY, this.codec);
+        properties.put(CompressingBlobStore.BLOBSTORE_COMPRESSION_LEVEL_PROPERTY, this.level);
+
+        CompressingBlobStore compressingStore = new CompressingBlobStore();
+        ReflectionUtils.setFieldValue(compressingStore, "componentManager", componentManager);
+        ReflectionUtils.setFieldValue(compressingStore, "configurationSource",
+            BenchmarkBlobStores.createConfiguration(properties));
+        ReflectionUtils.setFieldValue(compressingStore, "logger", LoggerFactory.getLogger(CompressingBlobStore.class));
+        compressingStore.initialize();
+        this.blobStore = compressingStore;
+
+        this.blobStore.putBlob(READ_PATH + getName(this.document), new ByteArrayInputStream(this.content), SIZE);
+    }
+
+    /**
+     * Compress and store a document.
+     *
+     * @param state The thread state.
+     * @param counters The bytes written by the thread.
+     */
+    @Benchmark
+    public void put(ThreadState state, PutCounters counters)
+    {
+        this.blobStore.putBlob(state.path, new ByteArrayInputStream(this.content), SIZE);
+        counters.originalBytes += SIZE;
+        counters.storedBytes += this.store.getBlobMetadata(state.path).getLength();
+    }
+
+    /**
+     * Read and decompress a document entirely.
+     *
+     * @param state The thread state.
+     * @return The number of bytes read.
+     * @throws IOException If the blob cannot be read.
+     */
+    @Benchmark
+    public long get(ThreadState state) throws IOException
+    {
+        InputStream stream = this.blobStore.getBlob(READ_PATH + getName(this.document));
+        try {
+            long length = 0;
+            int count;
+            while ((count = stream.read(state.buffer)) >= 0) {
+                length += count;
+            }
+
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @param type The type of document.
+     * @return The file name of the document.
+     */
+    private static String getName(String type)
+    {
+        if ("random".equals(type)) {
+            return "data.bin";
+        } else if ("text".equals(type)) {
+            return "document.txt";
+        }
+
+        return "document." + type;
+    }
+
+    /**
+     * @param type The type of document.
+     * @param random The source of the content.
+     * @return A document of the given type, resembling a real one.
+     */
+    private static byte[] generate(String type, Random random)
+    {
+        if ("random".equals(type)) {
+            byte[] bytes = new byte[SIZE];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        StringBuilder builder = new StringBuilder(SIZE + 1024);
+        for (int i = 0; builder.length() < SIZE; i++) {
+            switch (type) {
+                case "xml":
+                    builder.append("  <object>\n    <className>XWiki.Comment</className>\n    <number>").append(i)
+                        .append("</number>\n    <property><author>XWiki.").append(word(random)).append("</author>")
+                        .append("</property>\n    <property><comment>");
+                    sentence(builder, random).append("</comment></property>\n  </object>\n");
+                    break;
+                case "json":
+                    builder.append("{\"id\":").append(i).append(",\"author\":\"").append(word(random))
+                        .append("\",\"score\":").append(random.nextInt(1000) / 10.0).append(",\"tags\":[\"")
+                        .append(word(random)).append("\",\"").append(word(random)).append("\"],\"text\":\"");
+                    sentence(builder, random).append("\"},\n");
+                    break;
+                case "csv":
+                    builder.append(i).append(",2016-").append(1 + random.nextInt(12)).append('-')
+                        .append(1 + random.nextInt(28)).append(',').append(word(random)).append(',')
+                        .append(random.nextInt(100000)).append('.').append(random.nextInt(100)).append(',')
+                        .append(word(random)).append('\n');
+                    break;
+                case "svg":
+                    builder.append("<path fill=\"#").append(Integer.toHexString(0x100000 + random.nextInt(0xefffff)))
+                        .append("\" d=\"M").append(random.nextInt(1000)).append(',').append(random.nextInt(1000));
+                    for (int j = 0; j < 8; j++) {
+                        builder.append(" L").append(random.nextInt(10000) / 10.0).append(',')
+                            .append(random.nextInt(10000) / 10.0);
+                    }
+                    builder.append(" Z\"/>\n");
+                    break;
+                default:
+                    sentence(builder, random).append(i % 5 == 0 ? "\n\n" : " ");
+                    break;
+            }
+        }
+
+        byte[] bytes = new byte[SIZE];
+        byte[] text = builder.toString().getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(text, 0, bytes, 0, SIZE);
+
+        return bytes;
+    }
+
+    /**
+     * @param builder The builder to append a sentence to.
+     * @param random The source of the sentence.
+     * @return The builder.
+     */
+    private static StringBuilder sentence(StringBuilder builder, Random random)
+    {
+        int length = 5 + random.nextInt(15);
+        for (int i = 0; i < length; i++) {
+            builder.append(i > 0 ? " " : "").append(word(random));
+        }
+
+        return builder.append('.');
+    }
+
+    /**
+     * @param random The source of the word.
+     * @return A word, the first words of the list being more frequent.
+     */
+    private static String word(Random random)
+    {
+        double position = random.nextDouble();
+
+        return WORDS[(int) (position * position * WORDS.length)];
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.s3.internal.DefaultS3ClientFactory;
+import org.xwiki.blobstore.s3.internal.S3BlobStore;
+
+/**
+ * Load test of concurrent downloads through the actual S3 client, against a local server answering with a fixed
+ * latency. With more threads than connections, the throughput is bounded by the size of the connection pool, and
+ * scales with it until the threads become the bottleneck.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(200)
+@Fork(1)
+public class ConnectionPoolBenchmark
+{
+    /**
+     * The path of the blob read by the benchmark.
+     */
+    private static final String PATH = "xwiki/Benchmark/Read/blob.bin";
+
+    /**
+     * The maximum number of connections of the S3 client.
+     */
+    @Param({ "10", "50", "200" })
+    public int maxConnections;
+
+    /**
+     * The time taken by the server for answering each request, in milliseconds.
+     */
+    @Param({ "20" })
+    public long latency;
+
+    /**
+     * The size of the blob.
+     */
+    @Param({ "65536" })
+    public int size;
+
+    /**
+     * The local S3 server.
+     */
+    private LocalS3Server server;
+
+    /**
+     * The blob store.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Per thread state.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        /**
+         * The buffer used for reading blobs.
+         */
+        public byte[] buffer = new byte[64 * 1024];
+    }
+
+    /**
+     * Start the server and create the blob store.
+     *
+     * @throws Exception If the server cannot be started or the blob store cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        byte[] content = new byte[this.size];
+        new Random(42).nextBytes(content);
+        this.server = new LocalS3Server(content, this.latency);
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(DefaultS3ClientFactory.BLOBSTORE_MAX_CONNECTIONS_PROPERTY, this.maxConnections);
+        // Download each blob with a single request, so that each read uses a single connection.
+        properties.put(S3BlobStore.BLOBSTORE_DOWNLOAD_CONCURRENCY_PROPERTY, 1);
+        this.blobStore = BenchmarkBlobStores.createS3(this.server.getEndpoint(), properties);
+    }
+
+    /**
+     * Release the blob store and stop the server.
+     *
+     * @throws Exception If the blob store fails to release its resources.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BenchmarkBlobStores.dispose(this.blobStore);
+        this.server.stop();
+    }
+
+    /**
+     * Read a blob entirely.
+     *
+     * @param state The thread state.
+     * @return The number of bytes read.
+     * @throws IOException If the blob cannot be read.
+     */
+    @Benchmark
+    public long get(ThreadState state) throws IOException
+    {
+        InputStream stream = this.blobStore.getBlob(PATH);
+        try {
+            long length = 0;
+            int count;
+            while ((count = stream.read(state.buffer)) >= 0) {
+                length += count;
+            }
+
+            return length;
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.xwiki.blobstore.AbstractBlobStore;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStoreException;
+
+/**
+ * Blob store keeping blobs in memory, used as the baseline of the benchmarks since it costs nothing but copying bytes.
+ *
+ * @version $Id$
+ */
+public class InMemoryBlobStore extends AbstractBlobStore
+{
+    /**
+     * The blobs, by path.
+     */
+    private final ConcurrentNavigableMap<String, byte[]> blobs = new ConcurrentSkipListMap<String, byte[]>();
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        putBlob(path, content, -1);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+        byte[] buffer = new byte[8192];
+        try {
+            int count;
+            while ((count = content.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to store blob [%s]", path), e);
+        }
+
+        this.blobs.put(path, output.toByteArray());
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        byte[] content = this.blobs.get(path);
+
+        return content != null ? new ByteArrayInputStream(content) : null;
+    }
+
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        byte[] content = this.blobs.get(path);
+
+        return content != null ? new BlobMetadata(path, content.length, null, null) : null;
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        this.blobs.remove(path);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        Map<String, byte[]> candidates =
+            startAfter != null ? this.blobs.tailMap(startAfter, false) : this.blobs.tailMap(prefix, true);
+        List<BlobMetadata> metadata = new ArrayList<BlobMetadata>();
+        for (Map.Entry<String, byte[]> blob : candidates.entrySet()) {
+            if (blob.getKey().startsWith(prefix)) {
+                metadata.add(new BlobMetadata(blob.getKey(), blob.getValue().length, null, null));
+            } else if (blob.getKey().compareTo(prefix) > 0) {
+                break;
+            }
+        }
+
+        return metadata.iterator();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * In-process stand-in for S3, overriding the client operations used by the S3 blob store so that its upload and
+ * download code paths can be benchmarked without any network round trip.
+ *
+ * @version $Id$
+ */
+public class LocalS3Client extends AmazonS3Client
+{
+    /**
+     * The HTTP status returned when a range starts after the end of an object.
+     */
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The HTTP status returned when an object does not exist.
+     */
+    private static final int NOT_FOUND = 404;
+
+    /**
+     * The objects, by key.
+     */
+    private final ConcurrentMap<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * The ETags of the objects, by key.
+     */
+    private final ConcurrentMap<String, String> eTags = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The parts of the pending multipart uploads, by upload id and part number.
+     */
+    private final ConcurrentMap<String, SortedMap<Integer, byte[]>> uploads =
+        new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+
+    /**
+     * Used for generating upload ids and ETags.
+     */
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public LocalS3Client()
+    {
+        super(new BasicAWSCredentials("benchmark", "benchmark"));
+    }
+
+    @Override
+    public boolean doesBucketExist(String bucketName)
+    {
+        return true;
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata)
+    {
+        store(key, read(input));
+
+        return new PutObjectResult();
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key)
+    {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request)
+    {
+        byte[] content = this.objects.get(request.getKey());
+        String eTag = this.eTags.get(request.getKey());
+        if (content == null) {
+            AmazonS3Exception exception = new AmazonS3Exception("The specified key does not exist.");
+            exception.setStatusCode(NOT_FOUND);
+            exception.setErrorCode("NoSuchKey");
+            throw exception;
+        }
+
+        List<String> matchingETags = request.getMatchingETagConstraints();
+        if (matchingETags != null && !matchingETags.isEmpty() && !matchingETags.contains(eTag)) {
+            return null;
+        }
+
+        int start = 0;
+        int end = content.length;
+        long[] range = request.getRange();
+        if (range != null) {
+            if (range[0] >= content.length) {
+                AmazonS3Exception exception = new AmazonS3Exception("The requested range is not satisfiable");
+                exception.setStatusCode(RANGE_NOT_SATISFIABLE);
+                exception.setErrorCode("InvalidRange");
+                throw exception;
+            }
+            start = (int) range[0];
+            end = (int) Math.min(content.length, range[1] + 1);
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(end - start);
+        metadata.setHeader("ETag", eTag);
+
+        S3Object object = new S3Object();
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteArrayInputStream(content, start, end - start));
+
+        return object;
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key)
+    {
+        this.objects.remove(key);
+        this.eTags.remove(key);
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+    {
+        String uploadId = String.valueOf(this.counter.incrementAndGet());
+        this.uploads.put(uploadId, new ConcurrentSkipListMap<Integer, byte[]>());
+
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request)
+    {
+        SortedMap<Integer, byte[]> parts = this.uploads.get(request.getUploadId());
+        if (parts == null) {
+            throw new AmazonClientException(String.format("Unknown upload [%s]", request.getUploadId()));
+        }
+        parts.put(request.getPartNumber(), read(request.getInputStream()));
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(String.valueOf(request.getPartNumber()));
+
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request)
+    {
+        SortedMap<Integer, byte[]> parts = this.uploads.remove(request.getUploadId());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+            byte[] part = parts.get(partETag.getPartNumber());
+            content.write(part, 0, part.length);
+        }
+        store(request.getKey(), content.toByteArray());
+
+        return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request)
+    {
+        this.uploads.remove(request.getUploadId());
+    }
+
+    /**
+     * @param key The key of an object.
+     * @param content The new content of the object.
+     */
+    private void store(String key, byte[] content)
+    {
+        this.objects.put(key, content);
+        this.eTags.put(key, String.valueOf(this.counter.incrementAndGet()));
+    }
+
+    /**
+     * @param input The stream to read.
+     * @return The content of the stream.
+     */
+    private byte[] read(InputStream input)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to read the request content", e);
+        }
+
+        return output.toByteArray();
+    }
+}
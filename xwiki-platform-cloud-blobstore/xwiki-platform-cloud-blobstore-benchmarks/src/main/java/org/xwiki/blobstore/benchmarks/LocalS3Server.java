@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server answering the S3 requests used for reading blobs, with a fixed latency, so that the actual
+ * S3 client and its connection pool can be benchmarked without reaching S3. Every object of the bucket has the same
+ * content.
+ *
+ * @version $Id$
+ */
+public class LocalS3Server
+{
+    /**
+     * The HTTP status of successful responses.
+     */
+    private static final int STATUS_OK = 200;
+
+    /**
+     * The response to the requests on the bucket itself, which are only used for checking that it exists. Both the
+     * listing and the ACL of the bucket are answered, since the S3 client relies on either depending on its version.
+     */
+    private static final String BUCKET_LISTING = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>%s</Name><Prefix></Prefix>"
+        + "<Marker></Marker><MaxKeys>0</MaxKeys><IsTruncated>false</IsTruncated></ListBucketResult>";
+
+    /**
+     * The ACL of the bucket.
+     */
+    private static final String BUCKET_ACL = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<AccessControlPolicy xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Owner><ID>benchmark</ID>"
+        + "<DisplayName>benchmark</DisplayName></Owner><AccessControlList></AccessControlList></AccessControlPolicy>";
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * The threads handling the requests, as many as there are concurrent requests.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * The content of the objects.
+     */
+    private final byte[] content;
+
+    /**
+     * The ETag of the objects, which is the MD5 of their content as for S3.
+     */
+    private final String eTag;
+
+    /**
+     * The time taken for answering each request, in milliseconds.
+     */
+    private final long latency;
+
+    /**
+     * Constructor.
+     *
+     * @param content The content of the objects.
+     * @param latency The time taken for answering each request, in milliseconds.
+     * @throws IOException If the server cannot be started.
+     * @throws NoSuchAlgorithmException If MD5 is not supported.
+     */
+    public LocalS3Server(byte[] content, long latency) throws IOException, NoSuchAlgorithmException
+    {
+        this.content = content;
+        this.eTag = String.format("\"%032x\"", new BigInteger(1, MessageDigest.getInstance("MD5").digest(content)));
+        this.latency = latency;
+
+        // Keep a large backlog so that the connections beyond the pool size of the server are not refused.
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * @return The endpoint to configure in the S3 client.
+     */
+    public String getEndpoint()
+    {
+        return String.format("http://%s:%d", this.server.getAddress().getHostString(),
+            this.server.getAddress().getPort());
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Answer a request.
+     *
+     * @param exchange The request.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void respond(HttpExchange exchange) throws IOException
+    {
+        try {
+            TimeUnit.MILLISECONDS.sleep(this.latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The requests are path-style: /bucket for the bucket and /bucket/key for its objects.
+        String path = exchange.getRequestURI().getPath();
+        boolean bucketRequest = path.indexOf('/', 1) < 0;
+        if (bucketRequest) {
+            String query = exchange.getRequestURI().getQuery();
+            String body = query != null && query.contains("acl") ? BUCKET_ACL
+                : String.format(BUCKET_LISTING, path.substring(1));
+            send(exchange, "application/xml", body.getBytes(StandardCharsets.UTF_8));
+        } else {
+            send(exchange, "application/octet-stream", this.content);
+        }
+    }
+
+    /**
+     * Send a successful response.
+     *
+     * @param exchange The request.
+     * @param contentType The type of the response body.
+     * @param body The response body.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void send(HttpExchange exchange, String contentType, byte[] body) throws IOException
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Last-Modified", dateFormat.format(new Date()));
+        exchange.getResponseHeaders().set("ETag", this.eTag);
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(STATUS_OK, -1);
+        } else {
+            exchange.sendResponseHeaders(STATUS_OK, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+}
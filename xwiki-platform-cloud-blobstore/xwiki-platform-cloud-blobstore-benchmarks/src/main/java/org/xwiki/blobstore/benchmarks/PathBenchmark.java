@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.benchmarks;
+
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.blobstore.attachments.legacy.internal.Utils;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Cost of computing the blob path of an attachment, which is done on every load, save and delete. Run it with
+ * {@code -prof gc} for measuring the allocations, which are compared with the previous {@link Formatter} based
+ * implementation.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark
+{
+    /**
+     * The attachment whose path is computed.
+     */
+    private AttachmentReference reference = new AttachmentReference("attachment.pdf", new DocumentReference("xwiki",
+        "Space", "Page"));
+
+    /**
+     * The namespace prepended to the path.
+     */
+    private String namespace = "farm";
+
+    /**
+     * The builder reused across invocations.
+     */
+    private StringBuilder builder = new StringBuilder(128);
+
+    /**
+     * Compute the path of an attachment.
+     *
+     * @return The path.
+     */
+    @Benchmark
+    public String generatePath()
+    {
+        return Utils.generatePath(this.reference);
+    }
+
+    /**
+     * Compute the namespaced key of an attachment in a reused builder.
+     *
+     * @return The builder containing the key.
+     */
+    @Benchmark
+    public StringBuilder appendNamespacedPath()
+    {
+        this.builder.setLength(0);
+
+        return Utils.appendPath(this.reference, this.builder.append(this.namespace).append('/'));
+    }
+
+    /**
+     * Compute the namespaced key of an attachment the way it was done before, for reference.
+     *
+     * @return The key.
+     */
+    @Benchmark
+    public String formatterNamespacedPath()
+    {
+        return String.format("%s/%s", this.namespace, formatterPath(this.reference));
+    }
+
+    /**
+     * The previous implementation of {@link Utils#generatePath(EntityReference)}.
+     *
+     * @param entityReference The entity reference.
+     * @return The corresponding path.
+     */
+    private static String formatterPath(EntityReference entityReference)
+    {
+        try (Formatter f = new Formatter()) {
+            List<EntityReference> reversedReferenceChain = entityReference.getReversedReferenceChain();
+
+            int i = 0;
+            for (EntityReference reference : reversedReferenceChain) {
+                if (i < (reversedReferenceChain.size()) - 1) {
+                    f.format("%s/", reference.getName());
+                } else {
+                    f.format("%s", reference.getName());
+                }
+
+                i++;
+            }
+
+            return f.toString();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.cache.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.BlobMetadata;
+
+/**
+ * A stream reading a blob from the cached blob store while copying it to a temporary file, which is added to the
+ * {@link DiskCache} once the blob has been entirely read. Caching is abandoned, without affecting the reader, when the
+ * stream is closed before the end of the blob, when bytes are skipped, when the blob is too large or when the
+ * temporary file cannot be written.
+ *
+ * @version $Id$
+ */
+public class CachingInputStream extends FilterInputStream
+{
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(CachingInputStream.class);
+
+    /**
+     * The cache.
+     */
+    private final DiskCache cache;
+
+    /**
+     * The key of the blob.
+     */
+    private final String key;
+
+    /**
+     * The metadata of the blob as read from the cached blob store, or null if unknown.
+     */
+    private final BlobMetadata metadata;
+
+    /**
+     * The generation of the blob when it started being read.
+     */
+    private final long generation;
+
+    /**
+     * The maximum size of a cached blob.
+     */
+    private final long maxBlobSize;
+
+    /**
+     * The temporary file, or null if caching has been abandoned.
+     */
+    private File temporaryFile;
+
+    /**
+     * The stream writing the temporary file.
+     */
+    private OutputStream output;
+
+    /**
+     * The number of bytes read so far.
+     */
+    private long length;
+
+    /**
+     * Constructor.
+     *
+     * @param content The blob content read from the cached blob store.
+     * @param cache The cache.
+     * @param key The key of the blob.
+     * @param metadata The metadata of the blob as read from the cached blob store, or null if unknown.
+     * @param generation The generation of the blob, read before opening the content.
+     * @param maxBlobSize The maximum size of a cached blob.
+     */
+    public CachingInputStream(InputStream content, DiskCache cache, String key, BlobMetadata metadata,
+        long generation, long maxBlobSize)
+    {
+        super(content);
+
+        this.cache = cache;
+        this.key = key;
+        this.metadata = metadata;
+        this.generation = generation;
+        this.maxBlobSize = maxBlobSize;
+
+        try {
+            this.temporaryFile = cache.createTemporaryFile();
+            this.output = new FileOutputStream(this.temporaryFile);
+        } catch (IOException e) {
+            this.logger.warn("Unable to cache blob [{}]: {}", key, e.getMessage());
+            abandon();
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int result = super.read();
+        if (result < 0) {
+            commit();
+        } else if (this.output != null) {
+            try {
+                this.output.write(result);
+                written(1);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        int result = super.read(buffer, offset, count);
+        if (result < 0) {
+            commit();
+        } else if (this.output != null && result > 0) {
+            try {
+                this.output.write(buffer, offset, result);
+                written(result);
+            } catch (IOException e) {
+                writeFailed(e);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        // Skipped bytes are not copied, so the blob cannot be cached anymore.
+        abandon();
+
+        return super.skip(count);
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            super.close();
+        } finally {
+            abandon();
+        }
+    }
+
+    /**
+     * @param count The number of bytes just written to the temporary file.
+     */
+    private void written(int count)
+    {
+        this.length += count;
+        if (this.length > this.maxBlobSize) {
+            abandon();
+        }
+    }
+
+    /**
+     * @param e The error that occurred while writing the temporary file.
+     */
+    private void writeFailed(IOException e)
+    {
+        this.logger.warn("Unable to cache blob [{}]: {}", this.key, e.getMessage());
+        abandon();
+    }
+
+    /**
+     * Add the temporary file to the cache, now that the blob has been entirely read.
+     */
+    private void commit()
+    {
+        if (this.output == null) {
+            return;
+        }
+
+        try {
+            this.output.close();
+            this.output = null;
+            this.cache.commit(this.key, this.temporaryFile, this.length, this.metadata, this.generation);
+            this.temporaryFile = null;
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    /**
+     * Stop copying the blob and delete the temporary file.
+     */
+    private void abandon()
+    {
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                // Nothing useful to do, the file is deleted anyway.
+            }
+            this.output = null;
+        }
+        if (this.temporaryFile != null) {
+            if (!this.temporaryFile.delete() && this.temporaryFile.exists()) {
+                this.logger.warn("Unable to delete temporary cache file [{}]", this.temporaryFile);
+            }
+            this.temporaryFile = null;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.cache.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+
+/**
+ * A size-bounded cache of blobs stored as files in a local directory. The index of the cached blobs is kept in
+ * memory, and blobs are evicted according to a least recently used or least frequently used policy when the cache
+ * gets full.
+ * <p>
+ * Blobs enter the cache through {@link #commit(String, File, long, BlobMetadata, long)} once they have been entirely
+ * read from the cached blob store, along with their metadata for answering conditional reads. Since a read may be
+ * racing with an update of the same blob, each key belongs to a stripe whose generation is incremented on every
+ * invalidation: a blob read before an invalidation is never committed after it.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class DiskCache implements DiskCacheMBean
+{
+    /**
+     * The eviction policies.
+     */
+    public enum EvictionPolicy
+    {
+        /**
+         * Evict the least recently used blobs first.
+         */
+        LRU,
+
+        /**
+         * Evict the least frequently used blobs first, and the least recently used ones among them.
+         */
+        LFU
+    }
+
+    /**
+     * The number of invalidation stripes.
+     */
+    private static final int STRIPES = 256;
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DiskCache.class);
+
+    /**
+     * The directory where blobs are stored.
+     */
+    private final File directory;
+
+    /**
+     * The maximum total size of the cached blobs.
+     */
+    private final long maxSize;
+
+    /**
+     * The eviction policy.
+     */
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * The cached blobs, by key.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * The cached blobs, in eviction order.
+     */
+    private final TreeSet<Entry> evictionOrder;
+
+    /**
+     * The generation of each invalidation stripe.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    /**
+     * The number of hits.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of misses.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of evictions.
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * The total size of the cached blobs.
+     */
+    private long size;
+
+    /**
+     * The sequence used for ordering accesses.
+     */
+    private long accessSequence;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory where blobs are stored. It is emptied, since the index does not survive restarts.
+     * @param maxSize The maximum total size of the cached blobs.
+     * @param evictionPolicy The eviction policy.
+     * @throws IOException If the directory cannot be created or emptied.
+     */
+    public DiskCache(File directory, long maxSize, EvictionPolicy evictionPolicy) throws IOException
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.evictionPolicy = evictionPolicy;
+
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            this.evictionOrder = new TreeSet<Entry>(new Comparator<Entry>()
+            {
+                @Override
+                public int compare(Entry entry1, Entry entry2)
+                {
+                    int result = Long.compare(entry1.accessCount, entry2.accessCount);
+
+                    return result != 0 ? result : Long.compare(entry1.lastAccess, entry2.lastAccess);
+                }
+            });
+        } else {
+            this.evictionOrder = new TreeSet<Entry>(new Comparator<Entry>()
+            {
+                @Override
+                public int compare(Entry entry1, Entry entry2)
+                {
+                    return Long.compare(entry1.lastAccess, entry2.lastAccess);
+                }
+            });
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create the cache directory [%s]", directory));
+        }
+        deleteFiles();
+    }
+
+    /**
+     * Open a cached blob.
+     *
+     * @param key The key of the blob.
+     * @return The metadata of the cached blob, with a stream reading its content through a file channel, or null if
+     *         the blob is not cached.
+     */
+    public Blob open(String key)
+    {
+        return open(key, 0);
+    }
+
+    /**
+     * Open a cached blob at a given position.
+     *
+     * @param key The key of the blob.
+     * @param offset The position of the first byte to read.
+     * @return The metadata of the cached blob, with a stream reading its content from the given position through a
+     *         file channel, or null if the blob is not cached.
+     */
+    public Blob open(String key, long offset)
+    {
+        File file;
+        BlobMetadata metadata;
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry == null) {
+                this.missCount.incrementAndGet();
+
+                return null;
+            }
+
+            this.evictionOrder.remove(entry);
+            entry.accessCount++;
+            entry.lastAccess = ++this.accessSequence;
+            this.evictionOrder.add(entry);
+
+            file = entry.file;
+            metadata = entry.metadata;
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                channel.position(offset);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            this.hitCount.incrementAndGet();
+
+            return new Blob(metadata, Channels.newInputStream(channel));
+        } catch (NoSuchFileException e) {
+            // The blob has just been evicted or invalidated.
+        } catch (IOException e) {
+            this.logger.warn("Unable to read cached blob [{}]: {}", key, e.getMessage());
+        }
+        this.missCount.incrementAndGet();
+
+        return null;
+    }
+
+    /**
+     * Get the metadata of a cached blob, without opening it. This is neither counted as a hit nor as a miss, and does
+     * not change the eviction order.
+     *
+     * @param key The key of the blob.
+     * @return The metadata of the cached blob, or null if the blob is not cached.
+     */
+    public synchronized BlobMetadata getMetadata(String key)
+    {
+        Entry entry = this.entries.get(key);
+
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * @param key The key of a blob.
+     * @return The current generation of the blob, to be passed to
+     *         {@link #commit(String, File, long, BlobMetadata, long)}.
+     */
+    public long getGeneration(String key)
+    {
+        return this.generations.get(getStripe(key));
+    }
+
+    /**
+     * @return A new temporary file in the cache directory, to be filled and then passed to
+     *         {@link #commit(String, File, long, BlobMetadata, long)}.
+     * @throws IOException If the file cannot be created.
+     */
+    public File createTemporaryFile() throws IOException
+    {
+        return File.createTempFile("blob", ".tmp", this.directory);
+    }
+
+    /**
+     * Add a blob to the cache, evicting other blobs if needed. The blob is not added if it has been invalidated since
+     * the given generation was read, or if it is larger than the cache.
+     *
+     * @param key The key of the blob.
+     * @param temporaryFile The temporary file containing the blob. It is moved into the cache or deleted.
+     * @param length The length of the blob.
+     * @param metadata The metadata of the blob as read from the cached blob store, used for answering conditional
+     *            reads, or null if unknown.
+     * @param generation The generation of the blob when its content started being read.
+     */
+    public synchronized void commit(String key, File temporaryFile, long length, BlobMetadata metadata,
+        long generation)
+    {
+        if (generation != getGeneration(key) || length > this.maxSize) {
+            delete(temporaryFile);
+
+            return;
+        }
+
+        File file = new File(this.directory, getFileName(key));
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.logger.warn("Unable to add blob [{}] to the cache: {}", key, e.getMessage());
+            delete(temporaryFile);
+
+            return;
+        }
+
+        removeEntry(key, false);
+
+        Entry entry;
+        if (metadata != null) {
+            entry = new Entry(key, file, new BlobMetadata(key, length, metadata.getLastModified(),
+                metadata.getEtag(), metadata.getContentType()));
+        } else {
+            entry = new Entry(key, file, new BlobMetadata(key, length, null, null));
+        }
+        entry.lastAccess = ++this.accessSequence;
+        this.entries.put(key, entry);
+        this.evictionOrder.add(entry);
+        this.size += length;
+
+        while (this.size > this.maxSize) {
+            Entry evicted = this.evictionOrder.first();
+            removeEntry(evicted.key, true);
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove a blob from the cache and prevent reads started before this call from adding it back.
+     *
+     * @param key The key of the blob.
+     */
+    public void invalidate(String key)
+    {
+        this.generations.incrementAndGet(getStripe(key));
+
+        synchronized (this) {
+            removeEntry(key, true);
+        }
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            this.generations.incrementAndGet(i);
+        }
+
+        for (Entry entry : this.evictionOrder) {
+            delete(entry.file);
+        }
+        this.entries.clear();
+        this.evictionOrder.clear();
+        this.size = 0;
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return this.evictionCount.get();
+    }
+
+    @Override
+    public synchronized int getEntryCount()
+    {
+        return this.entries.size();
+    }
+
+    @Override
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+
+    @Override
+    public long getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    @Override
+    public String getEvictionPolicy()
+    {
+        return this.evictionPolicy.name();
+    }
+
+    /**
+     * Remove an entry from the index. Must be called while holding the lock.
+     *
+     * @param key The key of the blob.
+     * @param deleteFile true if the file of the blob should be deleted.
+     */
+    private void removeEntry(String key, boolean deleteFile)
+    {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.evictionOrder.remove(entry);
+            this.size -= entry.length;
+            if (deleteFile) {
+                // Readers that already opened the file keep reading it, since only its directory entry is removed.
+                delete(entry.file);
+            }
+        }
+    }
+
+    /**
+     * Delete all the files of the cache directory.
+     */
+    private void deleteFiles()
+    {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * @param file The file to delete.
+     */
+    private void delete(File file)
+    {
+        if (!file.delete() && file.exists()) {
+            this.logger.warn("Unable to delete cache file [{}]", file);
+        }
+    }
+
+    /**
+     * @param key The key of a blob.
+     * @return The invalidation stripe of the blob.
+     */
+    private int getStripe(String key)
+    {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    /**
+     * @param key The key of a blob.
+     * @return The name of the file storing the blob, which is safe whatever the characters used in the key.
+     */
+    private String getFileName(String key)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+
+            return String.format("%040x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported by the JVM", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported by the JVM", e);
+        }
+    }
+
+    /**
+     * A cached blob.
+     */
+    private static final class Entry
+    {
+        /**
+         * The key of the blob.
+         */
+        private final String key;
+
+        /**
+         * The file storing the blob.
+         */
+        private final File file;
+
+        /**
+         * The length of the blob.
+         */
+        private final long length;
+
+        /**
+         * The metadata of the blob.
+         */
+        private final BlobMetadata metadata;
+
+        /**
+         * The number of times the blob has been read from the cache.
+         */
+        private long accessCount;
+
+        /**
+         * The sequence number of the last access to the blob.
+         */
+        private long lastAccess;
+
+        /**
+         * Constructor.
+         *
+         * @param key The key of the blob.
+         * @param file The file storing the blob.
+         * @param metadata The metadata of the blob, with its actual length.
+         */
+        Entry(String key, File file, BlobMetadata metadata)
+        {
+            this.key = key;
+            this.file = file;
+            this.length = metadata.getLength();
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.cache.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.RangeInputStream;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Blob store keeping a copy of the most used blobs of another blob store on the local disk, so that reading them does
+ * not require a round trip to the remote storage. Blobs are added to the cache while they are read, and removed from
+ * it when they are written or deleted through this blob store.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(DiskCacheBlobStore.HINT)
+@Singleton
+public class DiskCacheBlobStore implements BlobStore, Initializable, Disposable
+{
+    /**
+     * The hint of this blob store.
+     */
+    public static final String HINT = "cache";
+
+    /**
+     * The hint of the cached blob store.
+     */
+    public static final String BLOBSTORE_CACHE_STORE_PROPERTY = "xwiki.store.attachments.blobstore.cache.store";
+
+    /**
+     * The directory where cached blobs are stored.
+     */
+    public static final String BLOBSTORE_CACHE_DIRECTORY_PROPERTY =
+        "xwiki.store.attachments.blobstore.cache.directory";
+
+    /**
+     * The maximum total size in bytes of the cached blobs.
+     */
+    public static final String BLOBSTORE_CACHE_MAX_SIZE_PROPERTY = "xwiki.store.attachments.blobstore.cache.maxSize";
+
+    /**
+     * The maximum size in bytes of a cached blob. Larger blobs are always read from the cached blob store.
+     */
+    public static final String BLOBSTORE_CACHE_MAX_BLOB_SIZE_PROPERTY =
+        "xwiki.store.attachments.blobstore.cache.maxBlobSize";
+
+    /**
+     * The eviction policy, {@code LRU} or {@code LFU}.
+     */
+    public static final String BLOBSTORE_CACHE_POLICY_PROPERTY = "xwiki.store.attachments.blobstore.cache.policy";
+
+    /**
+     * The name of the cache MBean.
+     */
+    public static final String MBEAN_NAME = "org.xwiki.blobstore:type=DiskCache";
+
+    /**
+     * The default cached blob store.
+     */
+    private static final String DEFAULT_STORE = "s3";
+
+    /**
+     * The default maximum size of the cache, 1 GB.
+     */
+    private static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * The default maximum size of a cached blob, 100 MB.
+     */
+    private static final long DEFAULT_MAX_BLOB_SIZE = 100L * 1024 * 1024;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The component manager for looking up the cached blob store.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the default cache directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The cached blob store.
+     */
+    private BlobStore store;
+
+    /**
+     * The cache.
+     */
+    private DiskCache cache;
+
+    /**
+     * The maximum size of a cached blob.
+     */
+    private long maxBlobSize;
+
+    /**
+     * The name under which the cache is registered in JMX, null if the registration failed.
+     */
+    private ObjectName mbeanName;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.configurationSource.getProperty(BLOBSTORE_CACHE_STORE_PROPERTY, DEFAULT_STORE);
+        if (HINT.equals(storeHint)) {
+            throw new InitializationException(String.format("%s cannot be '%s'", BLOBSTORE_CACHE_STORE_PROPERTY,
+                HINT));
+        }
+
+        try {
+            this.store = this.componentManager.getInstance(BlobStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Unable to lookup the cached blob store '%s'",
+                storeHint), e);
+        }
+
+        String directoryName = this.configurationSource.getProperty(BLOBSTORE_CACHE_DIRECTORY_PROPERTY, String.class);
+        File directory;
+        if (StringUtils.isNotBlank(directoryName)) {
+            directory = new File(directoryName);
+        } else {
+            directory = new File(this.environment.getTemporaryDirectory(), "blobstore-cache");
+        }
+
+        long maxSize = this.configurationSource.getProperty(BLOBSTORE_CACHE_MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+        this.maxBlobSize =
+            Math.min(maxSize, this.configurationSource.getProperty(BLOBSTORE_CACHE_MAX_BLOB_SIZE_PROPERTY,
+                DEFAULT_MAX_BLOB_SIZE));
+
+        String policyName =
+            this.configurationSource.getProperty(BLOBSTORE_CACHE_POLICY_PROPERTY, DiskCache.EvictionPolicy.LRU.name());
+        DiskCache.EvictionPolicy policy;
+        try {
+            policy = DiskCache.EvictionPolicy.valueOf(policyName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InitializationException(String.format("Unknown eviction policy '%s' for %s", policyName,
+                BLOBSTORE_CACHE_POLICY_PROPERTY), e);
+        }
+
+        try {
+            this.cache = new DiskCache(directory, maxSize, policy);
+        } catch (IOException e) {
+            throw new InitializationException("Unable to initialize the blob store disk cache", e);
+        }
+
+        registerMBean();
+
+        this.logger.debug("Disk cache of blob store '{}' initialized in '{}' with a maximum size of {} bytes",
+            storeHint, directory, maxSize);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the blob store disk cache MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        this.cache.invalidate(path);
+        try {
+            this.store.putBlob(path, content);
+        } finally {
+            // Also invalidate after writing, for the reads that started while the blob was being written.
+            this.cache.invalidate(path);
+        }
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        this.cache.invalidate(path);
+        try {
+            this.store.putBlob(path, content, length);
+        } finally {
+            this.cache.invalidate(path);
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        Blob cached = this.cache.open(path);
+        if (cached != null) {
+            this.logger.debug("Getting blob '{}' from the disk cache", path);
+
+            return cached.getContent();
+        }
+
+        // The generation is read before the blob so that an update happening in between prevents caching it.
+        long generation = this.cache.getGeneration(path);
+        InputStream content = this.store.getBlob(path);
+        if (content == null) {
+            return null;
+        }
+
+        return new CachingInputStream(content, this.cache, path, null, generation, this.maxBlobSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The range is read from the cached copy of the blob when there is one. Otherwise it is read from the cached blob
+     * store, without being cached since the blob is not read entirely.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlob(java.lang.String, long, long)
+     */
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        Blob cached = this.cache.open(path, offset);
+        if (cached != null) {
+            this.logger.debug("Getting {} bytes at {} of blob '{}' from the disk cache", length, offset, path);
+
+            return new RangeInputStream(cached.getContent(), 0, length);
+        }
+
+        return this.store.getBlob(path, offset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The conditions of a read are evaluated against the metadata of the cached copy of the blob when there is one,
+     * without contacting the cached blob store. A copy cached by {@link #getBlob(String)} has no metadata and is thus
+     * always returned.
+     *
+     * @see org.xwiki.blobstore.BlobStore#readBlob(java.lang.String, java.lang.String, java.util.Date)
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        Blob cached = this.cache.open(path);
+        if (cached != null) {
+            this.logger.debug("Getting blob '{}' from the disk cache", path);
+
+            if (!cached.getMetadata().isModified(ifNoneMatch, ifModifiedSince)) {
+                try {
+                    cached.close();
+                } catch (IOException e) {
+                    // Nothing was read from the cached copy.
+                }
+
+                return Blob.notModified(cached.getMetadata());
+            }
+
+            return cached;
+        }
+
+        long generation = this.cache.getGeneration(path);
+        Blob blob = this.store.readBlob(path, ifNoneMatch, ifModifiedSince);
+        if (blob == null || !blob.isModified()) {
+            return blob;
+        }
+
+        return new Blob(blob.getMetadata(), new CachingInputStream(blob.getContent(), this.cache, path,
+            blob.getMetadata(), generation, this.maxBlobSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata of the cached copy of the blob is returned when it has an entity tag, that is when the copy was
+     * cached by {@link #readBlob(String, String, Date)}. Otherwise the metadata is fetched from the cached blob store.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.lang.String)
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        BlobMetadata cached = this.cache.getMetadata(path);
+        if (cached != null && cached.getEtag() != null) {
+            return cached;
+        }
+
+        return this.store.getBlobMetadata(path);
+    }
+
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        Map<String, BlobMetadata> metadata = new LinkedHashMap<String, BlobMetadata>();
+        List<String> uncachedPaths = new ArrayList<String>();
+        for (String path : paths) {
+            BlobMetadata cached = this.cache.getMetadata(path);
+            if (cached != null && cached.getEtag() != null) {
+                metadata.put(path, cached);
+            } else {
+                uncachedPaths.add(path);
+            }
+        }
+
+        if (!uncachedPaths.isEmpty()) {
+            metadata.putAll(this.store.getBlobMetadata(uncachedPaths));
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        this.cache.invalidate(path);
+        try {
+            this.store.deleteBlob(path);
+        } finally {
+            this.cache.invalidate(path);
+        }
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        for (String path : paths) {
+            this.cache.invalidate(path);
+        }
+        try {
+            return this.store.deleteBlobs(paths);
+        } finally {
+            for (String path : paths) {
+                this.cache.invalidate(path);
+            }
+        }
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        this.cache.invalidate(sourcePath);
+        this.cache.invalidate(targetPath);
+        try {
+            this.store.moveBlob(sourcePath, targetPath);
+        } finally {
+            this.cache.invalidate(sourcePath);
+            this.cache.invalidate(targetPath);
+        }
+    }
+
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        this.cache.invalidate(targetPath);
+        try {
+            this.store.copyBlob(sourcePath, targetPath);
+        } finally {
+            this.cache.invalidate(targetPath);
+        }
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return this.store.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        return this.store.listBlobs(prefix, startAfter);
+    }
+
+    /**
+     * @return The cache.
+     */
+    DiskCache getCache()
+    {
+        return this.cache;
+    }
+
+    /**
+     * Register the cache statistics in JMX. Failing to do so does not prevent the cache from working.
+     */
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this.cache, name);
+            this.mbeanName = name;
+        } catch (JMException e) {
+            this.logger.warn("Unable to register the blob store disk cache MBean: {}", e.getMessage());
+        }
+    }
+}
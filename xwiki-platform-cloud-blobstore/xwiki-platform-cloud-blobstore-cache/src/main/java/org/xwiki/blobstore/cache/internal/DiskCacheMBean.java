@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.cache.internal;
+
+/**
+ * The JMX view of the blob store disk cache, exposing the statistics needed for sizing it.
+ *
+ * @version $Id$
+ */
+public interface DiskCacheMBean
+{
+    /**
+     * @return The number of reads served from the cache.
+     */
+    long getHitCount();
+
+    /**
+     * @return The number of reads that had to go to the cached blob store.
+     */
+    long getMissCount();
+
+    /**
+     * @return The number of blobs removed from the cache for making room for other ones.
+     */
+    long getEvictionCount();
+
+    /**
+     * @return The number of blobs currently in the cache.
+     */
+    int getEntryCount();
+
+    /**
+     * @return The total size in bytes of the blobs currently in the cache.
+     */
+    long getSize();
+
+    /**
+     * @return The maximum total size in bytes of the blobs in the cache.
+     */
+    long getMaxSize();
+
+    /**
+     * @return The eviction policy, {@code LRU} or {@code LFU}.
+     */
+    String getEvictionPolicy();
+
+    /**
+     * Remove all the blobs from the cache.
+     */
+    void clear();
+}
@@ -0,0 +1,287 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.cache.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiskCacheBlobStore}.
+ *
+ * @version $Id$
+ */
+public class DiskCacheBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        DiskCacheBlobStore.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The maximum size of the cache used by the tests.
+     */
+    private static final long MAX_SIZE = 3000;
+
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.bin";
+
+    /**
+     * The cached blob store.
+     */
+    private BlobStore store;
+
+    /**
+     * Setup the cache for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = mock(BlobStore.class);
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+        when(configuration.getProperty(DiskCacheBlobStore.BLOBSTORE_CACHE_DIRECTORY_PROPERTY, String.class))
+            .thenReturn(this.folder.getRoot().getAbsolutePath());
+        when(configuration.getProperty(eq(DiskCacheBlobStore.BLOBSTORE_CACHE_MAX_SIZE_PROPERTY),
+            Matchers.<Object>any())).thenReturn(MAX_SIZE);
+    }
+
+    /**
+     * Check that a blob read entirely is then served from the cache.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobIsServedFromCacheOnceRead() throws Exception
+    {
+        byte[] content = store(PATH, 1000);
+
+        Assert.assertArrayEquals(content, read(this.mocker.getComponentUnderTest().getBlob(PATH)));
+        Assert.assertArrayEquals(content, read(this.mocker.getComponentUnderTest().getBlob(PATH)));
+
+        verify(this.store, times(1)).getBlob(PATH);
+        DiskCache cache = ((DiskCacheBlobStore) this.mocker.getComponentUnderTest()).getCache();
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1000, cache.getSize());
+    }
+
+    /**
+     * Check that a blob that was not read entirely is not cached.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPartiallyReadBlobIsNotCached() throws Exception
+    {
+        store(PATH, 1000);
+
+        InputStream stream = this.mocker.getComponentUnderTest().getBlob(PATH);
+        stream.read(new byte[100]);
+        stream.close();
+        read(this.mocker.getComponentUnderTest().getBlob(PATH));
+
+        verify(this.store, times(2)).getBlob(PATH);
+    }
+
+    /**
+     * Check that writing a blob removes it from the cache.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobInvalidatesCache() throws Exception
+    {
+        store(PATH, 1000);
+        read(this.mocker.getComponentUnderTest().getBlob(PATH));
+
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(new byte[10]), 10);
+        byte[] content = store(PATH, 500);
+
+        Assert.assertArrayEquals(content, read(this.mocker.getComponentUnderTest().getBlob(PATH)));
+        verify(this.store, times(2)).getBlob(PATH);
+    }
+
+    /**
+     * Check that a blob being read while it is deleted is not added back to the cache.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testBlobDeletedWhileReadIsNotCached() throws Exception
+    {
+        store(PATH, 1000);
+
+        InputStream stream = this.mocker.getComponentUnderTest().getBlob(PATH);
+        this.mocker.getComponentUnderTest().deleteBlob(PATH);
+        read(stream);
+
+        DiskCache cache = ((DiskCacheBlobStore) this.mocker.getComponentUnderTest()).getCache();
+        Assert.assertEquals(0, cache.getEntryCount());
+    }
+
+    /**
+     * Check that the least recently used blobs are evicted when the cache is full.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testLeastRecentlyUsedBlobIsEvicted() throws Exception
+    {
+        BlobStore cacheStore = this.mocker.getComponentUnderTest();
+        for (int i = 0; i < 3; i++) {
+            store("blob" + i, 1000);
+            read(cacheStore.getBlob("blob" + i));
+        }
+        // Use the first blob so that the second one becomes the least recently used.
+        read(cacheStore.getBlob("blob0"));
+
+        store("blob3", 1000);
+        read(cacheStore.getBlob("blob3"));
+        read(cacheStore.getBlob("blob0"));
+        read(cacheStore.getBlob("blob1"));
+
+        verify(this.store, times(1)).getBlob("blob0");
+        verify(this.store, times(2)).getBlob("blob1");
+        DiskCache cache = ((DiskCacheBlobStore) cacheStore).getCache();
+        Assert.assertTrue(cache.getSize() <= MAX_SIZE);
+        Assert.assertEquals(2, cache.getEvictionCount());
+    }
+
+    /**
+     * Check that a cached blob is revalidated, and its metadata returned, from the metadata of its cached copy,
+     * without contacting the cached blob store.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadCachedBlobNotModified() throws Exception
+    {
+        final byte[] content = new byte[1000];
+        new Random().nextBytes(content);
+        final BlobMetadata metadata = new BlobMetadata(PATH, content.length, new Date(), "etag");
+        when(this.store.readBlob(PATH, null, null)).thenAnswer(new Answer<Blob>()
+        {
+            @Override
+            public Blob answer(InvocationOnMock invocation)
+            {
+                return new Blob(metadata, new ByteArrayInputStream(content));
+            }
+        });
+        BlobStore cacheStore = this.mocker.getComponentUnderTest();
+
+        Assert.assertArrayEquals(content, read(cacheStore.readBlob(PATH, null, null).getContent()));
+
+        Blob blob = cacheStore.readBlob(PATH, "etag", null);
+        Assert.assertFalse(blob.isModified());
+        Assert.assertEquals("etag", blob.getMetadata().getEtag());
+        Assert.assertFalse(cacheStore.readBlob(PATH, null, metadata.getLastModified()).isModified());
+
+        blob = cacheStore.readBlob(PATH, "other", null);
+        Assert.assertEquals(content.length, blob.getMetadata().getLength());
+        Assert.assertArrayEquals(content, read(blob.getContent()));
+
+        verify(this.store, times(1)).readBlob(eq(PATH), anyString(), Matchers.any(Date.class));
+
+        Assert.assertEquals("etag", cacheStore.getBlobMetadata(PATH).getEtag());
+        verify(this.store, never()).getBlobMetadata(PATH);
+    }
+
+    /**
+     * Make the cached blob store return random content for the given path.
+     *
+     * @param path The path of the blob.
+     * @param length The length of the blob.
+     * @return The content of the blob.
+     */
+    private byte[] store(String path, int length)
+    {
+        final byte[] content = new byte[length];
+        new Random().nextBytes(content);
+        when(this.store.getBlob(path)).thenAnswer(new Answer<InputStream>()
+        {
+            @Override
+            public InputStream answer(InvocationOnMock invocation)
+            {
+                return new ByteArrayInputStream(content);
+            }
+        });
+
+        return content;
+    }
+
+    /**
+     * @param stream The stream to read.
+     * @return The content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        try {
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return output.toByteArray();
+    }
+}
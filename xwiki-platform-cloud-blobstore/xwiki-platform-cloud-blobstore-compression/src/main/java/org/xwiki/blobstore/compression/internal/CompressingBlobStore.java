@@ -0,0 +1,912 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.compression.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.RangeInputStream;
+import org.xwiki.blobstore.internal.DaemonThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Blob store compressing the blobs stored in another blob store, so that text, XML, JSON, CSV or SVG attachments take
+ * less storage and less bandwidth. Blobs are compressed while they are uploaded and decompressed while they are read,
+ * without being buffered.
+ * <p>
+ * The underlying blob store has no place for recording how a blob was compressed, so a compressed blob starts with a
+ * short header identifying the codec. Blobs smaller than a threshold, blobs whose content type is already
+ * compressed, such as images, archives or office documents, and blobs whose first bytes do not compress are stored as
+ * they are, without header, like the blobs written before enabling this blob store. In the unlikely case an
+ * uncompressed blob starts with the header, it is stored with a header too, so that it is not mistaken for a compressed
+ * blob.
+ * <p>
+ * The header also records the length of the content before compression, which is the length reported by the metadata
+ * of the blob. When the length is not known before the blob is compressed, it is counted while compressing and
+ * recorded in a trailer after the compressed content instead, so that it never requires decompressing the blob.
+ * Listings report the stored length instead, which is what the blob costs in storage.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(CompressingBlobStore.HINT)
+@Singleton
+public class CompressingBlobStore implements BlobStore, Initializable, Disposable
+{
+    /**
+     * The hint of this blob store.
+     */
+    public static final String HINT = "compression";
+
+    /**
+     * The hint of the blob store where the blobs are stored.
+     */
+    public static final String BLOBSTORE_COMPRESSION_STORE_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.store";
+
+    /**
+     * The codec compressing the blobs written, {@code deflate}, {@code lz4} or {@code none}.
+     */
+    public static final String BLOBSTORE_COMPRESSION_CODEC_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.codec";
+
+    /**
+     * The compression level, from 1 for the fastest to 9 for the smallest.
+     */
+    public static final String BLOBSTORE_COMPRESSION_LEVEL_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.level";
+
+    /**
+     * The size in bytes under which the blobs are not compressed.
+     */
+    public static final String BLOBSTORE_COMPRESSION_THRESHOLD_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.threshold";
+
+    /**
+     * The comma separated content types of the blobs which are not compressed. A type ending with {@code *} matches
+     * all the types starting with it.
+     */
+    public static final String BLOBSTORE_COMPRESSION_SKIPPED_TYPES_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.skippedTypes";
+
+    /**
+     * The maximum number of blob headers read concurrently when getting the metadata of many blobs.
+     */
+    public static final String BLOBSTORE_COMPRESSION_METADATA_CONCURRENCY_PROPERTY =
+        "xwiki.store.attachments.blobstore.compression.metadata.concurrency";
+
+    /**
+     * The default content types of the blobs which are not compressed, already being compressed.
+     */
+    public static final String DEFAULT_SKIPPED_TYPES = "image/png,image/jpeg,image/gif,image/webp,video/*,audio/*,"
+        + "application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,"
+        + "application/x-7z-compressed,application/x-rar-compressed,application/zstd,application/pdf,"
+        + "application/java-archive,application/vnd.openxmlformats-officedocument.*,"
+        + "application/vnd.oasis.opendocument.*";
+
+    /**
+     * The first bytes of the header of the blobs stored with a header, followed by the identifier of the codec.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'X', 'W', 'Z', '\r', '\n', 0x1a};
+
+    /**
+     * The length of the header of the blobs stored with a header: the magic bytes, the identifier of the codec and the
+     * length of the uncompressed content.
+     */
+    static final int HEADER_LENGTH = MAGIC.length + 1 + Long.SIZE / Byte.SIZE;
+
+    /**
+     * The length of the trailer of the compressed blobs whose header does not record the length of the uncompressed
+     * content: the length of the uncompressed content.
+     */
+    static final int TRAILER_LENGTH = Long.SIZE / Byte.SIZE;
+
+    /**
+     * The default blob store where the blobs are stored.
+     */
+    private static final String DEFAULT_STORE = "s3";
+
+    /**
+     * The default size under which the blobs are not compressed.
+     */
+    private static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * The default number of blob headers read concurrently.
+     */
+    private static final int DEFAULT_METADATA_CONCURRENCY = 8;
+
+    /**
+     * The number of first bytes of a blob compressed for checking whether the blob is worth compressing.
+     */
+    private static final int SAMPLE_LENGTH = 4096;
+
+    /**
+     * The maximum size of the compressed sample, relatively to the sample, for the blob to be compressed.
+     */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    /**
+     * The wildcard ending the content types matching all the types starting with them.
+     */
+    private static final String WILDCARD = "*";
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The component manager for looking up the blob store where the blobs are stored.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The blob store where the blobs are stored.
+     */
+    private BlobStore store;
+
+    /**
+     * The codec compressing the blobs written.
+     */
+    private CompressionCodec codec;
+
+    /**
+     * The compression level.
+     */
+    private int level;
+
+    /**
+     * The size under which the blobs are not compressed.
+     */
+    private int threshold;
+
+    /**
+     * The content types of the blobs which are not compressed.
+     */
+    private List<String> skippedTypes;
+
+    /**
+     * The threads reading the headers of the blobs whose metadata is requested together.
+     */
+    private ExecutorService metadataExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.configurationSource.getProperty(BLOBSTORE_COMPRESSION_STORE_PROPERTY, DEFAULT_STORE);
+        if (HINT.equals(storeHint)) {
+            throw new InitializationException(String.format("%s cannot be '%s'",
+                BLOBSTORE_COMPRESSION_STORE_PROPERTY, HINT));
+        }
+
+        try {
+            this.store = this.componentManager.getInstance(BlobStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Unable to lookup the blob store '%s'", storeHint), e);
+        }
+
+        String codecName = this.configurationSource.getProperty(BLOBSTORE_COMPRESSION_CODEC_PROPERTY,
+            CompressionCodec.DEFLATE.getName());
+        this.codec = CompressionCodec.forName(codecName);
+        if (this.codec == null) {
+            throw new InitializationException(String.format("Unknown compression codec '%s' in %s", codecName,
+                BLOBSTORE_COMPRESSION_CODEC_PROPERTY));
+        }
+
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION,
+            this.configurationSource.getProperty(BLOBSTORE_COMPRESSION_LEVEL_PROPERTY, Deflater.BEST_SPEED)));
+        this.threshold = Math.max(0, this.configurationSource.getProperty(BLOBSTORE_COMPRESSION_THRESHOLD_PROPERTY,
+            DEFAULT_THRESHOLD));
+
+        this.skippedTypes = new ArrayList<String>();
+        for (String type : this.configurationSource.getProperty(BLOBSTORE_COMPRESSION_SKIPPED_TYPES_PROPERTY,
+            DEFAULT_SKIPPED_TYPES).split(",")) {
+            if (!type.trim().isEmpty()) {
+                this.skippedTypes.add(type.trim());
+            }
+        }
+
+        int metadataConcurrency = Math.max(1, this.configurationSource.getProperty(
+            BLOBSTORE_COMPRESSION_METADATA_CONCURRENCY_PROPERTY, DEFAULT_METADATA_CONCURRENCY));
+        this.metadataExecutor = Executors.newFixedThreadPool(metadataConcurrency,
+            new DaemonThreadFactory("Compressing blob store metadata"));
+
+        this.logger.debug("Compressing blob store initialized on blob store '{}' with codec {}", storeHint,
+            this.codec.getName());
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.metadataExecutor.shutdown();
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        putBlob(path, content, -1);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        // When the length is unknown, the content is read up to the threshold for knowing whether it reaches it.
+        byte[] head = new byte[length >= 0 ? SAMPLE_LENGTH : Math.max(this.threshold, SAMPLE_LENGTH)];
+        int headLength;
+        try {
+            headLength = readFully(content, head);
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to store blob [%s]", path), e);
+        }
+        long contentLength = length < 0 && headLength < head.length ? headLength : length;
+
+        InputStream fullContent = new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), content);
+        if (isCompressed(path, head, headLength, contentLength)) {
+            CountingInputStream countedContent = new CountingInputStream(fullContent);
+            try (InputStream compressedContent = this.codec.compress(countedContent, this.level)) {
+                InputStream storedContent = new SequenceInputStream(
+                    new ByteArrayInputStream(getHeader(this.codec, contentLength)), compressedContent);
+                if (contentLength < 0) {
+                    storedContent = new SequenceInputStream(storedContent, new TrailerInputStream(countedContent));
+                }
+                this.store.putBlob(path, storedContent);
+            } catch (IOException e) {
+                this.logger.debug("Unable to release the compression codec: {}", e.getMessage());
+            }
+        } else if (hasHeader(head, headLength)) {
+            storeBlob(path, new SequenceInputStream(
+                new ByteArrayInputStream(getHeader(CompressionCodec.NONE, contentLength)), fullContent),
+                contentLength >= 0 ? contentLength + HEADER_LENGTH : -1);
+        } else {
+            storeBlob(path, fullContent, contentLength);
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        InputStream content = this.store.getBlob(path);
+        if (content == null) {
+            return null;
+        }
+
+        byte[] head = new byte[HEADER_LENGTH];
+
+        return decode(path, content, head, readHead(path, content, head));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The header of the blob is read first, so that a range of an uncompressed blob is read directly from the
+     * underlying blob store. A compressed blob is decompressed from its start up to the range.
+     */
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        InputStream headContent = this.store.getBlob(path, 0, HEADER_LENGTH);
+        if (headContent == null) {
+            return null;
+        }
+
+        byte[] head = new byte[HEADER_LENGTH];
+        try (InputStream input = headContent) {
+            if (!hasHeader(head, readFully(input, head))) {
+                return this.store.getBlob(path, offset, length);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+
+        InputStream content = getBlob(path);
+
+        return content != null ? new RangeInputStream(content, offset, length) : null;
+    }
+
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        Blob blob = this.store.readBlob(path, ifNoneMatch, ifModifiedSince);
+        if (blob == null || !blob.isModified()) {
+            return blob;
+        }
+
+        byte[] head = new byte[HEADER_LENGTH];
+        int headLength = readHead(path, blob.getContent(), head);
+        BlobMetadata metadata = blob.getMetadata();
+        if (hasHeader(head, headLength)) {
+            metadata = getMetadata(metadata, getLength(path, head, metadata.getLength()));
+        }
+
+        return new Blob(metadata, decode(path, blob.getContent(), head, headLength));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The header of the blob is read for getting the length of its uncompressed content, and its trailer when the
+     * length was not known when the blob was written.
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        BlobMetadata metadata = this.store.getBlobMetadata(path);
+
+        return metadata != null ? getUncompressedMetadata(metadata) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata of the stored blobs is requested together, and their headers are then read in parallel.
+     */
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        Map<String, Future<BlobMetadata>> futures = new LinkedHashMap<String, Future<BlobMetadata>>();
+        for (final BlobMetadata blobMetadata : this.store.getBlobMetadata(paths).values()) {
+            futures.put(blobMetadata.getPath(), this.metadataExecutor.submit(new Callable<BlobMetadata>()
+            {
+                @Override
+                public BlobMetadata call()
+                {
+                    return getUncompressedMetadata(blobMetadata);
+                }
+            }));
+        }
+
+        Map<String, BlobMetadata> metadata = new LinkedHashMap<String, BlobMetadata>();
+        boolean done = false;
+        try {
+            for (Map.Entry<String, Future<BlobMetadata>> future : futures.entrySet()) {
+                BlobMetadata uncompressedMetadata = getMetadata(future.getKey(), future.getValue());
+                if (uncompressedMetadata != null) {
+                    metadata.put(future.getKey(), uncompressedMetadata);
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (Future<BlobMetadata> future : futures.values()) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        this.store.deleteBlob(path);
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        return this.store.deleteBlobs(paths);
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        this.store.moveBlob(sourcePath, targetPath);
+    }
+
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        this.store.copyBlob(sourcePath, targetPath);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return this.store.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        return this.store.listBlobs(prefix, startAfter);
+    }
+
+    /**
+     * @param metadata The metadata of a stored blob.
+     * @return The metadata of the blob with the length of its uncompressed content, or null if the blob has been
+     *         deleted in between.
+     */
+    private BlobMetadata getUncompressedMetadata(BlobMetadata metadata)
+    {
+        if (metadata.getLength() >= 0 && metadata.getLength() < HEADER_LENGTH) {
+            return metadata;
+        }
+
+        String path = metadata.getPath();
+        InputStream headContent = this.store.getBlob(path, 0, HEADER_LENGTH);
+        if (headContent == null) {
+            return null;
+        }
+
+        byte[] head = new byte[HEADER_LENGTH];
+        try (InputStream input = headContent) {
+            if (!hasHeader(head, readFully(input, head))) {
+                return metadata;
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+
+        return getMetadata(metadata, getLength(path, head, metadata.getLength()));
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param future The lookup of the metadata of the blob.
+     * @return The metadata of the blob, or null if the blob has been deleted in between.
+     */
+    private BlobMetadata getMetadata(String path, Future<BlobMetadata> future)
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BlobStoreException) {
+                throw (BlobStoreException) e.getCause();
+            }
+            throw new BlobStoreException(String.format("Unable to get the metadata of blob [%s]", path),
+                e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlobStoreException(String.format("Interrupted while getting the metadata of blob [%s]", path),
+                e);
+        }
+    }
+
+    /**
+     * @param path The path of a blob starting with a header.
+     * @param head The header of the blob.
+     * @param storedLength The length of the blob as stored, or -1 if unknown.
+     * @return The length of the uncompressed content of the blob, or -1 if unknown.
+     */
+    private long getLength(String path, byte[] head, long storedLength)
+    {
+        long length = getLength(head);
+        if (length >= 0 || storedLength < 0) {
+            return length;
+        }
+
+        if ((head[MAGIC.length] & 0xff) == CompressionCodec.NONE.getId()) {
+            // The content is stored as it is after the header.
+            return storedLength - HEADER_LENGTH;
+        }
+
+        // The length was counted while compressing and written after the compressed content.
+        InputStream trailerContent = this.store.getBlob(path, storedLength - TRAILER_LENGTH, TRAILER_LENGTH);
+        if (trailerContent == null) {
+            return -1;
+        }
+
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        try (InputStream input = trailerContent) {
+            if (readFully(input, trailer) < TRAILER_LENGTH) {
+                throw new BlobStoreException(String.format("Blob [%s] is truncated", path));
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+
+        return ByteBuffer.wrap(trailer).getLong();
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param head The first bytes of the content of the blob.
+     * @param headLength The number of first bytes read.
+     * @param length The length of the content, or -1 if unknown but at least the threshold.
+     * @return true if the blob should be compressed.
+     */
+    private boolean isCompressed(String path, byte[] head, int headLength, long length)
+    {
+        if (this.codec == CompressionCodec.NONE || (length >= 0 && length < this.threshold)) {
+            return false;
+        }
+
+        String type = ContentTypes.fromContent(head, headLength);
+        if (type == null) {
+            type = ContentTypes.fromName(path);
+        }
+
+        return (type == null || !isSkipped(type)) && isCompressible(head, Math.min(headLength, SAMPLE_LENGTH));
+    }
+
+    /**
+     * Compress the first bytes of a blob, for not compressing blobs whose type is unknown but whose content is
+     * already compressed or encrypted, which would cost as much as compressing text for no gain.
+     *
+     * @param sample The first bytes of the blob.
+     * @param length The number of first bytes.
+     * @return true if the first bytes compress well enough.
+     */
+    private boolean isCompressible(byte[] sample, int length)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[length];
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < length) {
+                compressedLength += deflater.deflate(output, compressedLength, length - compressedLength);
+            }
+
+            return deflater.finished() && compressedLength < length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param type A content type.
+     * @return true if the blobs of this type are not compressed.
+     */
+    private boolean isSkipped(String type)
+    {
+        for (String skippedType : this.skippedTypes) {
+            if (skippedType.endsWith(WILDCARD) ? type.startsWith(skippedType.substring(0, skippedType.length() - 1))
+                : type.equals(skippedType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Store a blob in the underlying blob store, as it is.
+     *
+     * @param path The path of the blob.
+     * @param content The content to store.
+     * @param length The length of the content, or -1 if unknown.
+     */
+    private void storeBlob(String path, InputStream content, long length)
+    {
+        if (length >= 0) {
+            this.store.putBlob(path, content, length);
+        } else {
+            this.store.putBlob(path, content);
+        }
+    }
+
+    /**
+     * Read the first bytes of a blob, where its header is if it has one.
+     *
+     * @param path The path of the blob.
+     * @param content The content of the blob as stored, closed if it cannot be read.
+     * @param head The buffer where to read the first bytes, of the length of the header.
+     * @return The number of first bytes read.
+     */
+    private int readHead(String path, InputStream content, byte[] head)
+    {
+        try {
+            return readFully(content, head);
+        } catch (IOException e) {
+            closeQuietly(content);
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param content The content of the blob as stored, after its first bytes.
+     * @param head The first bytes of the blob, read with {@link #readHead(String, InputStream, byte[])}.
+     * @param headLength The number of first bytes read.
+     * @return The stream for reading the decompressed content of the blob.
+     */
+    private InputStream decode(String path, InputStream content, byte[] head, int headLength)
+    {
+        if (!hasHeader(head, headLength)) {
+            return new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), content);
+        }
+
+        CompressionCodec blobCodec = CompressionCodec.forId(head[MAGIC.length] & 0xff);
+        if (blobCodec == null) {
+            closeQuietly(content);
+            throw new BlobStoreException(String.format("Blob [%s] is compressed with the unknown codec %d", path,
+                head[MAGIC.length] & 0xff));
+        }
+
+        return new DrainingInputStream(blobCodec.decompress(content), content);
+    }
+
+    /**
+     * @param head The first bytes of a blob.
+     * @param length The number of first bytes read.
+     * @return true if the blob starts with a header.
+     */
+    private static boolean hasHeader(byte[] head, int length)
+    {
+        return length >= HEADER_LENGTH && Arrays.equals(MAGIC, Arrays.copyOf(head, MAGIC.length));
+    }
+
+    /**
+     * @param blobCodec The codec of a blob.
+     * @param length The length of the uncompressed content of the blob, or -1 if only known once compressed.
+     * @return The header of the blob.
+     */
+    private static byte[] getHeader(CompressionCodec blobCodec, long length)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).put((byte) blobCodec.getId()).putLong(length);
+
+        return header.array();
+    }
+
+    /**
+     * @param head The header of a blob.
+     * @return The length of the uncompressed content of the blob, or -1 if not recorded in the header.
+     */
+    private static long getLength(byte[] head)
+    {
+        return ByteBuffer.wrap(head, MAGIC.length + 1, HEADER_LENGTH - MAGIC.length - 1).getLong();
+    }
+
+    /**
+     * @param metadata The metadata of a stored blob.
+     * @param length The length of the uncompressed content of the blob.
+     * @return The metadata of the blob with the given length.
+     */
+    private static BlobMetadata getMetadata(BlobMetadata metadata, long length)
+    {
+        return new BlobMetadata(metadata.getPath(), length, metadata.getLastModified(), metadata.getEtag(),
+            metadata.getContentType());
+    }
+
+    /**
+     * @param content The stream to read.
+     * @param buffer The buffer to fill.
+     * @return The number of bytes read, less than the length of the buffer only if the stream ended.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static int readFully(InputStream content, byte[] buffer) throws IOException
+    {
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = content.read(buffer, length, buffer.length - length)) >= 0) {
+            length += count;
+        }
+
+        return length;
+    }
+
+    /**
+     * @param content A stream to close, ignoring failures.
+     */
+    private void closeQuietly(InputStream content)
+    {
+        try {
+            content.close();
+        } catch (IOException e) {
+            this.logger.debug("Unable to close blob stream: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the bytes read from the content being compressed.
+     */
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        /**
+         * The number of bytes read so far.
+         */
+        private long count;
+
+        /**
+         * @param content The content being compressed.
+         */
+        CountingInputStream(InputStream content)
+        {
+            super(content);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int value = super.read();
+            if (value >= 0) {
+                this.count++;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long length) throws IOException
+        {
+            long skipped = super.skip(length);
+            this.count += skipped;
+
+            return skipped;
+        }
+    }
+
+    /**
+     * The trailer of a compressed blob, holding the length of its uncompressed content, which is only known once the
+     * compressed content has been read entirely.
+     */
+    private static final class TrailerInputStream extends InputStream
+    {
+        /**
+         * The content being compressed.
+         */
+        private final CountingInputStream countedContent;
+
+        /**
+         * The trailer, created by the first read.
+         */
+        private InputStream trailer;
+
+        /**
+         * @param countedContent The content being compressed.
+         */
+        TrailerInputStream(CountingInputStream countedContent)
+        {
+            this.countedContent = countedContent;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return getTrailer().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            return getTrailer().read(buffer, offset, length);
+        }
+
+        /**
+         * @return The trailer.
+         */
+        private InputStream getTrailer()
+        {
+            if (this.trailer == null) {
+                this.trailer = new ByteArrayInputStream(
+                    ByteBuffer.allocate(TRAILER_LENGTH).putLong(this.countedContent.count).array());
+            }
+
+            return this.trailer;
+        }
+    }
+
+    /**
+     * Reads the stored blob to its end once its content is decompressed, so that the trailer is skipped and that the
+     * underlying blob store sees the end of the blob, which the blob stores verifying the content rely on.
+     */
+    private static final class DrainingInputStream extends FilterInputStream
+    {
+        /**
+         * The content of the blob as stored.
+         */
+        private final InputStream storedContent;
+
+        /**
+         * @param decompressedContent The decompressed content.
+         * @param storedContent The content of the blob as stored.
+         */
+        DrainingInputStream(InputStream decompressedContent, InputStream storedContent)
+        {
+            super(decompressedContent);
+            this.storedContent = storedContent;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int value = super.read();
+            if (value < 0) {
+                drain();
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int read = super.read(buffer, offset, length);
+            if (read < 0) {
+                drain();
+            }
+
+            return read;
+        }
+
+        /**
+         * Read the rest of the stored blob.
+         *
+         * @throws IOException If the stored blob cannot be read.
+         */
+        private void drain() throws IOException
+        {
+            // Only the trailer is expected after the compressed content.
+            byte[] buffer = new byte[TRAILER_LENGTH];
+            int count;
+            do {
+                count = this.storedContent.read(buffer);
+            } while (count >= 0);
+        }
+    }
+}
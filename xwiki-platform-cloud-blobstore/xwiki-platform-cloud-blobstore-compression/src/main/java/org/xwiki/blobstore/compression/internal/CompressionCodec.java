@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.compression.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+
+/**
+ * The codecs compressing the blobs. Each codec is identified in the stored blobs by a number, which must not change.
+ *
+ * @version $Id$
+ */
+public enum CompressionCodec
+{
+    /**
+     * No compression.
+     */
+    NONE(0, "none")
+    {
+        @Override
+        public InputStream compress(InputStream content, int level)
+        {
+            return content;
+        }
+
+        @Override
+        public InputStream decompress(InputStream content)
+        {
+            return content;
+        }
+    },
+
+    /**
+     * Deflate in the zlib format, checked with an Adler-32 checksum. Level 1 compresses text several times faster than
+     * the default level 6, for a slightly larger result.
+     */
+    DEFLATE(1, "deflate")
+    {
+        @Override
+        public InputStream compress(InputStream content, int level)
+        {
+            final Deflater deflater = new Deflater(level);
+
+            return new DeflaterInputStream(content, deflater, BUFFER_SIZE)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream content)
+        {
+            final Inflater inflater = new Inflater();
+
+            return new InflaterInputStream(content, inflater, BUFFER_SIZE)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    },
+
+    /**
+     * LZ4, checked with an xxHash checksum per block of 64 KB. It compresses text 3 to 5 times faster than Deflate at
+     * level 1 and decompresses it 3 to 4 times faster, for a result about 1.5 times larger. The level is ignored.
+     */
+    LZ4(2, "lz4")
+    {
+        @Override
+        public InputStream compress(InputStream content, int level)
+        {
+            return new Lz4CompressingInputStream(content);
+        }
+
+        @Override
+        public InputStream decompress(InputStream content)
+        {
+            return new LZ4BlockInputStream(content);
+        }
+    };
+
+    /**
+     * The size of the buffers of the compressing and decompressing streams.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The number identifying the codec in the stored blobs.
+     */
+    private final int id;
+
+    /**
+     * The name of the codec in the configuration.
+     */
+    private final String name;
+
+    /**
+     * @param id The number identifying the codec in the stored blobs.
+     * @param name The name of the codec in the configuration.
+     */
+    CompressionCodec(int id, String name)
+    {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * @return The number identifying the codec in the stored blobs.
+     */
+    public int getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return The name of the codec in the configuration.
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Compress a content while it is read, without buffering it.
+     *
+     * @param content The content to compress.
+     * @param level The compression level, from 1 for the fastest to 9 for the smallest.
+     * @return The stream for reading the compressed content, which must be closed for releasing the codec.
+     */
+    public abstract InputStream compress(InputStream content, int level);
+
+    /**
+     * Decompress a content while it is read, without buffering it.
+     *
+     * @param content The content to decompress.
+     * @return The stream for reading the decompressed content, which must be closed for releasing the codec.
+     */
+    public abstract InputStream decompress(InputStream content);
+
+    /**
+     * @param id The number identifying a codec in the stored blobs.
+     * @return The codec, or null if unknown.
+     */
+    public static CompressionCodec forId(int id)
+    {
+        for (CompressionCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param name The name of a codec, case insensitive.
+     * @return The codec, or null if unknown.
+     */
+    public static CompressionCodec forName(String name)
+    {
+        for (CompressionCodec codec : values()) {
+            if (codec.name.equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+
+        return null;
+    }
+}
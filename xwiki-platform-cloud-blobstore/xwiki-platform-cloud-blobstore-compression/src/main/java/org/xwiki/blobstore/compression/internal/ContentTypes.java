@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.compression.internal;
+
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Guesses the content type of blobs from their name or from their first bytes, for leaving the contents which are
+ * already compressed uncompressed. Office documents, archives and most media formats are recognized from their first
+ * bytes whatever their name.
+ *
+ * @version $Id$
+ */
+final class ContentTypes
+{
+    /**
+     * The content types recognized from the first bytes of the contents, along with the offset of their signature.
+     */
+    private static final Object[][] SIGNATURES = {
+        {"application/gzip", 0, new byte[] {0x1f, (byte) 0x8b}},
+        // Also the container of Office Open XML and OpenDocument files, Java archives and EPUB books.
+        {"application/zip", 0, new byte[] {'P', 'K', 3, 4}},
+        {"application/pdf", 0, ascii("%PDF")},
+        {"application/x-bzip2", 0, ascii("BZh")},
+        {"application/x-xz", 0, new byte[] {(byte) 0xfd, '7', 'z', 'X', 'Z', 0}},
+        {"application/x-7z-compressed", 0, new byte[] {'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c}},
+        {"application/x-rar-compressed", 0, ascii("Rar!")},
+        {"application/zstd", 0, new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}},
+        {"image/png", 0, new byte[] {(byte) 0x89, 'P', 'N', 'G'}},
+        {"image/jpeg", 0, new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff}},
+        {"image/gif", 0, ascii("GIF8")},
+        {"image/webp", 8, ascii("WEBP")},
+        {"video/mp4", 4, ascii("ftyp")},
+        {"audio/mpeg", 0, ascii("ID3")},
+        {"audio/ogg", 0, ascii("OggS")}
+    };
+
+    /**
+     * Utility class.
+     */
+    private ContentTypes()
+    {
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The content type guessed from the extension of the blob, or null if unknown.
+     */
+    static String fromName(String path)
+    {
+        FileNameMap fileNameMap = URLConnection.getFileNameMap();
+
+        return fileNameMap.getContentTypeFor(path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * @param head The first bytes of a content.
+     * @param length The number of first bytes available.
+     * @return The content type recognized from the first bytes, or null if unknown.
+     */
+    static String fromContent(byte[] head, int length)
+    {
+        for (Object[] signature : SIGNATURES) {
+            if (matches(head, length, (Integer) signature[1], (byte[]) signature[2])) {
+                return (String) signature[0];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param head The first bytes of a content.
+     * @param length The number of first bytes available.
+     * @param offset The offset of the signature.
+     * @param signature The signature.
+     * @return true if the first bytes contain the signature at the given offset.
+     */
+    private static boolean matches(byte[] head, int length, int offset, byte[] signature)
+    {
+        if (length < offset + signature.length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if (head[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param signature A signature made of ASCII characters.
+     * @return The bytes of the signature.
+     */
+    private static byte[] ascii(String signature)
+    {
+        return signature.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.compression.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * Compresses a content with LZ4 while it is read, in the format read by {@link LZ4BlockInputStream}. The content is
+ * read and compressed one block at a time, so that only a block and its compressed form are held in memory.
+ *
+ * @version $Id$
+ */
+class Lz4CompressingInputStream extends InputStream
+{
+    /**
+     * The size of the blocks compressed independently.
+     */
+    static final int BLOCK_SIZE = 65536;
+
+    /**
+     * The content to compress.
+     */
+    private final InputStream content;
+
+    /**
+     * The block read from the content.
+     */
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    /**
+     * The compressed blocks not read yet.
+     */
+    private final CompressedBuffer compressed = new CompressedBuffer();
+
+    /**
+     * The compressor, writing the compressed blocks to {@link #compressed}.
+     */
+    private final LZ4BlockOutputStream compressor;
+
+    /**
+     * The position of the next byte to read in {@link #compressed}.
+     */
+    private int position;
+
+    /**
+     * Whether the whole content has been compressed.
+     */
+    private boolean finished;
+
+    /**
+     * @param content The content to compress.
+     */
+    Lz4CompressingInputStream(InputStream content)
+    {
+        this.content = content;
+        this.compressor =
+            new LZ4BlockOutputStream(this.compressed, BLOCK_SIZE, LZ4Factory.fastestInstance().fastCompressor());
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (this.position == this.compressed.size()) {
+            if (this.finished) {
+                return -1;
+            }
+            compressNextBlock();
+        }
+
+        int read = Math.min(length, this.compressed.size() - this.position);
+        System.arraycopy(this.compressed.getBuffer(), this.position, buffer, offset, read);
+        this.position += read;
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.content.close();
+    }
+
+    /**
+     * Read and compress the next block of the content.
+     *
+     * @throws IOException If the content cannot be read.
+     */
+    private void compressNextBlock() throws IOException
+    {
+        this.compressed.reset();
+        this.position = 0;
+
+        int length = 0;
+        int count;
+        while (length < BLOCK_SIZE && (count = this.content.read(this.block, length, BLOCK_SIZE - length)) >= 0) {
+            length += count;
+        }
+
+        // The compressor only writes a full block once the next byte is written, or the end of the content reached.
+        this.compressor.write(this.block, 0, length);
+        if (length < BLOCK_SIZE) {
+            this.compressor.finish();
+            this.finished = true;
+        }
+    }
+
+    /**
+     * A buffer giving access to the compressed bytes without copying them.
+     */
+    private static final class CompressedBuffer extends ByteArrayOutputStream
+    {
+        /**
+         * @return The buffer holding the compressed bytes, up to {@link #size()}.
+         */
+        byte[] getBuffer()
+        {
+            return this.buf;
+        }
+    }
+}
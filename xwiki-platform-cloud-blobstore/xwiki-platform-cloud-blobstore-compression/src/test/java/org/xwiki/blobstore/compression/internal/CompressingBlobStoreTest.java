@@ -0,0 +1,297 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.compression.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CompressingBlobStore}.
+ *
+ * @version $Id$
+ */
+public class CompressingBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        CompressingBlobStore.class);
+
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/data.xml";
+
+    /**
+     * A compressible content larger than the threshold.
+     */
+    private static final byte[] TEXT;
+
+    static {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("<row id=\"").append(i).append("\">value ").append(i % 10).append("</row>\n");
+        }
+        TEXT = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The blob store where the blobs are stored.
+     */
+    private MemoryBlobStore store;
+
+    /**
+     * Setup the blob store for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = new MemoryBlobStore();
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+    }
+
+    /**
+     * Check that a compressible blob is stored compressed, and read back decompressed, whether its length is known
+     * or not.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testCompressibleBlobIsCompressed() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(TEXT), TEXT.length);
+
+        byte[] stored = this.store.getBlobs().get(PATH);
+        Assert.assertTrue(stored.length < TEXT.length / 4);
+        Assert.assertEquals(CompressionCodec.DEFLATE.getId(), stored[CompressingBlobStore.MAGIC.length]);
+        Assert.assertArrayEquals(TEXT, read(blobStore.getBlob(PATH)));
+        Assert.assertArrayEquals(TEXT, read(blobStore.readBlob(PATH, null, null).getContent()));
+
+        blobStore.putBlob(PATH, new ByteArrayInputStream(TEXT));
+        Assert.assertTrue(this.store.getBlobs().get(PATH).length < TEXT.length / 4);
+        Assert.assertArrayEquals(TEXT, read(blobStore.getBlob(PATH)));
+    }
+
+    /**
+     * Check that blobs can be compressed with LZ4, and that the blobs compressed with another codec are still read.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testLz4Codec() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(CompressingBlobStore.BLOBSTORE_COMPRESSION_CODEC_PROPERTY, "deflate"))
+            .thenReturn("lz4");
+        byte[] large = new byte[3 * TEXT.length];
+        for (int i = 0; i < large.length; i += TEXT.length) {
+            System.arraycopy(TEXT, 0, large, i, TEXT.length);
+        }
+
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(large), large.length);
+        blobStore.putBlob("xwiki/Space/Page/unknown.xml", new ByteArrayInputStream(large));
+
+        byte[] stored = this.store.getBlobs().get(PATH);
+        Assert.assertTrue(stored.length < large.length / 2);
+        Assert.assertEquals(CompressionCodec.LZ4.getId(), stored[CompressingBlobStore.MAGIC.length]);
+        Assert.assertArrayEquals(large, read(blobStore.getBlob(PATH)));
+        Assert.assertArrayEquals(large, read(blobStore.getBlob("xwiki/Space/Page/unknown.xml")));
+        Assert.assertEquals(large.length, blobStore.getBlobMetadata("xwiki/Space/Page/unknown.xml").getLength());
+        Assert.assertArrayEquals(Arrays.copyOfRange(large, 70000, 70100), read(blobStore.getBlob(PATH, 70000, 100)));
+
+        // A blob compressed with Deflate before choosing LZ4.
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        deflated.write(CompressingBlobStore.MAGIC);
+        deflated.write(CompressionCodec.DEFLATE.getId());
+        deflated.write(ByteBuffer.allocate(8).putLong(TEXT.length).array());
+        deflated.write(read(CompressionCodec.DEFLATE.compress(new ByteArrayInputStream(TEXT), 1)));
+        this.store.getBlobs().put("xwiki/Space/Page/old.xml", deflated.toByteArray());
+        Assert.assertArrayEquals(TEXT, read(blobStore.getBlob("xwiki/Space/Page/old.xml")));
+    }
+
+    /**
+     * Check that the metadata of a compressed blob reports the length of its uncompressed content, whether its length
+     * was known when it was written or not.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMetadataReportsUncompressedLength() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(TEXT), TEXT.length);
+        blobStore.putBlob("xwiki/Space/Page/image.png", new ByteArrayInputStream(TEXT), TEXT.length);
+        blobStore.putBlob("xwiki/Space/Page/unknown.xml", new ByteArrayInputStream(TEXT));
+
+        Assert.assertEquals(TEXT.length, blobStore.getBlobMetadata(PATH).getLength());
+        Assert.assertEquals(TEXT.length, blobStore.readBlob(PATH, null, null).getMetadata().getLength());
+        Assert.assertEquals(TEXT.length, blobStore.getBlobMetadata("xwiki/Space/Page/image.png").getLength());
+        Assert.assertEquals(TEXT.length, blobStore.getBlobMetadata("xwiki/Space/Page/unknown.xml").getLength());
+        Assert.assertNull(blobStore.getBlobMetadata("missing"));
+
+        Map<String, BlobMetadata> metadata = blobStore.getBlobMetadata(Arrays.asList(PATH, "missing"));
+        Assert.assertEquals(1, metadata.size());
+        Assert.assertEquals(TEXT.length, metadata.get(PATH).getLength());
+    }
+
+    /**
+     * Check that the length of a blob compressed without knowing its length in advance is recorded after the
+     * compressed content, and read from there without decompressing the blob.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testUnknownLengthIsRecordedInTrailer() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(TEXT));
+
+        byte[] stored = this.store.getBlobs().get(PATH);
+        Assert.assertEquals(-1, ByteBuffer.wrap(stored, CompressingBlobStore.MAGIC.length + 1, 8).getLong());
+        Assert.assertEquals(TEXT.length,
+            ByteBuffer.wrap(stored, stored.length - CompressingBlobStore.TRAILER_LENGTH, 8).getLong());
+        Assert.assertArrayEquals(TEXT, read(blobStore.getBlob(PATH)));
+
+        // Corrupting the compressed content shows that it is not decompressed for getting the length.
+        Arrays.fill(stored, CompressingBlobStore.HEADER_LENGTH, stored.length - CompressingBlobStore.TRAILER_LENGTH,
+            (byte) 0xff);
+        Assert.assertEquals(TEXT.length, blobStore.getBlobMetadata(PATH).getLength());
+        Assert.assertEquals(TEXT.length, blobStore.getBlobMetadata(Arrays.asList(PATH)).get(PATH).getLength());
+    }
+
+    /**
+     * Check that small blobs and blobs already compressed are stored as they are.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testBlobsStoredAsTheyAre() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+        blobStore.putBlob(PATH, new ByteArrayInputStream(small));
+        Assert.assertArrayEquals(small, this.store.getBlobs().get(PATH));
+
+        // Recognized from its name.
+        blobStore.putBlob("xwiki/Space/Page/image.png", new ByteArrayInputStream(TEXT), TEXT.length);
+        Assert.assertArrayEquals(TEXT, this.store.getBlobs().get("xwiki/Space/Page/image.png"));
+
+        // Recognized from its first bytes, whatever its name.
+        byte[] archive = Arrays.copyOf(new byte[] {'P', 'K', 3, 4}, 4096);
+        blobStore.putBlob(PATH, new ByteArrayInputStream(archive));
+        Assert.assertArrayEquals(archive, this.store.getBlobs().get(PATH));
+        Assert.assertArrayEquals(archive, read(blobStore.getBlob(PATH)));
+
+        // Recognized as not compressible from its first bytes.
+        byte[] random = new byte[8192];
+        new Random(42).nextBytes(random);
+        blobStore.putBlob("xwiki/Space/Page/data.bin", new ByteArrayInputStream(random), random.length);
+        Assert.assertArrayEquals(random, this.store.getBlobs().get("xwiki/Space/Page/data.bin"));
+    }
+
+    /**
+     * Check that an uncompressed blob starting like a compressed one is not mistaken for one.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testBlobStartingWithHeaderIsEscaped() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        byte[] content = Arrays.copyOf(CompressingBlobStore.MAGIC, 100);
+        content[CompressingBlobStore.MAGIC.length] = (byte) CompressionCodec.DEFLATE.getId();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Assert.assertEquals(content.length + CompressingBlobStore.HEADER_LENGTH,
+            this.store.getBlobs().get(PATH).length);
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+        Assert.assertEquals(content.length, blobStore.getBlobMetadata(PATH).getLength());
+    }
+
+    /**
+     * Check that ranges of compressed and uncompressed blobs can be read.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobRange() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(TEXT), TEXT.length);
+        blobStore.putBlob("xwiki/Space/Page/image.png", new ByteArrayInputStream(TEXT), TEXT.length);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(TEXT, 1000, 1100), read(blobStore.getBlob(PATH, 1000, 100)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(TEXT, 1000, 1100),
+            read(blobStore.getBlob("xwiki/Space/Page/image.png", 1000, 100)));
+        Assert.assertNull(blobStore.getBlob("missing", 0, 10));
+    }
+
+    /**
+     * @param stream The stream to read.
+     * @return The content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        try {
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return output.toByteArray();
+    }
+}
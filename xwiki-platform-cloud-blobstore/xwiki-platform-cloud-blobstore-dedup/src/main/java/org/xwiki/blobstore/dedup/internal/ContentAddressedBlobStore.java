@@ -0,0 +1,792 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.dedup.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.AbstractBlobStore;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Blob store storing the content of blobs in another blob store under the SHA-256 hash of the content, so that
+ * identical blobs are stored once. The path of a blob only holds a small pointer to its content, and the number of
+ * paths referencing a content is recorded next to it: the content is uploaded only when no path references it yet,
+ * and deleted when the last path referencing it is deleted.
+ * <p>
+ * The pointers and the reference counts are updated under locks local to this instance, so concurrent writes from
+ * several wiki instances sharing the same storage may miscount references.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(ContentAddressedBlobStore.HINT)
+@Singleton
+public class ContentAddressedBlobStore extends AbstractBlobStore implements Initializable
+{
+    /**
+     * The hint of this blob store.
+     */
+    public static final String HINT = "dedup";
+
+    /**
+     * The hint of the blob store where the content is stored.
+     */
+    public static final String BLOBSTORE_DEDUP_STORE_PROPERTY = "xwiki.store.attachments.blobstore.dedup.store";
+
+    /**
+     * The path under which the content of the blobs is stored.
+     */
+    public static final String CONTENT_PREFIX = ".content/";
+
+    /**
+     * The beginning of the pointers stored at the path of the blobs, followed by the hash of their content.
+     */
+    public static final String POINTER_PREFIX = "xwiki-blobstore-dedup:sha256:";
+
+    /**
+     * The suffix of the blobs holding the number of paths referencing a content.
+     */
+    public static final String REFERENCES_SUFFIX = ".refs";
+
+    /**
+     * The default blob store where the content is stored.
+     */
+    private static final String DEFAULT_STORE = "s3";
+
+    /**
+     * The algorithm used for hashing the content.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * The length of a hexadecimal SHA-256 hash.
+     */
+    private static final int HASH_LENGTH = 64;
+
+    /**
+     * The length of a pointer.
+     */
+    private static final int POINTER_LENGTH = POINTER_PREFIX.length() + HASH_LENGTH;
+
+    /**
+     * The number of locks the contents, and the paths, are spread over.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The size of the buffer used for copying the content.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The component manager for looking up the blob store where the content is stored.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the temporary directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The blob store where the content is stored.
+     */
+    private BlobStore store;
+
+    /**
+     * The directory where the content is spooled while it is hashed.
+     */
+    private File temporaryDirectory;
+
+    /**
+     * The locks protecting the reference counts of the contents.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * The locks protecting the pointers stored at the paths of the blobs.
+     */
+    private final Object[] pathLocks = new Object[LOCK_STRIPES];
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.configurationSource.getProperty(BLOBSTORE_DEDUP_STORE_PROPERTY, DEFAULT_STORE);
+        if (HINT.equals(storeHint)) {
+            throw new InitializationException(String.format("%s cannot be '%s'", BLOBSTORE_DEDUP_STORE_PROPERTY,
+                HINT));
+        }
+
+        try {
+            this.store = this.componentManager.getInstance(BlobStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Unable to lookup the blob store '%s'", storeHint), e);
+        }
+
+        this.temporaryDirectory = new File(this.environment.getTemporaryDirectory(), "blobstore-dedup");
+        if (!this.temporaryDirectory.isDirectory() && !this.temporaryDirectory.mkdirs()) {
+            throw new InitializationException(String.format("Unable to create the directory '%s'",
+                this.temporaryDirectory));
+        }
+
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+            this.pathLocks[i] = new Object();
+        }
+
+        this.logger.debug("Deduplicating blob store initialized on blob store '{}'", storeHint);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        putBlob(path, content, -1);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        File file;
+        String hash;
+        try {
+            // The content has to be read entirely for knowing where to store it.
+            file = File.createTempFile("blob", ".tmp", this.temporaryDirectory);
+            try {
+                hash = spool(content, file);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read the content of blob '%s'", path), e);
+        }
+
+        try {
+            synchronized (getPathLock(path)) {
+                String previousHash = readPointer(path);
+                if (hash.equals(previousHash)) {
+                    this.logger.debug("Blob '{}' is unchanged", path);
+
+                    return;
+                }
+
+                addReference(hash, path, file);
+                writeReferencePointer(path, hash);
+                if (previousHash != null) {
+                    removeReference(previousHash);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        Blob blob = readBlob(path, null, null);
+
+        return blob != null ? blob.getContent() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the small pointer blob is read entirely, the range being read from the content it points to.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlob(java.lang.String, long, long)
+     */
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        InputStream content = this.store.getBlob(path);
+        if (content == null) {
+            return null;
+        }
+
+        String hash;
+        try {
+            byte[] head = new byte[POINTER_LENGTH + 1];
+            hash = parsePointer(head, readFully(content, head));
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob '%s'", path), e);
+        } finally {
+            closeQuietly(content);
+        }
+
+        // Blobs stored before deduplication was enabled are read directly.
+        InputStream range = this.store.getBlob(hash != null ? getContentPath(hash) : path, offset, length);
+        if (range == null && hash != null) {
+            throw new BlobStoreException(String.format("The content [%s] of blob '%s' is missing", hash, path));
+        }
+
+        return range;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entity tag of a deduplicated blob is the hash of its content, so that its content is not read when the
+     * caller already holds it. Its date is unknown, since the same content may have been stored earlier under another
+     * path. Blobs stored before deduplication was enabled are always returned.
+     *
+     * @see org.xwiki.blobstore.BlobStore#readBlob(java.lang.String, java.lang.String, java.util.Date)
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        InputStream content = this.store.getBlob(path);
+        if (content == null) {
+            return null;
+        }
+
+        byte[] head = new byte[POINTER_LENGTH + 1];
+        int headLength;
+        try {
+            headLength = readFully(content, head);
+        } catch (IOException e) {
+            closeQuietly(content);
+            throw new BlobStoreException(String.format("Unable to read blob '%s'", path), e);
+        }
+
+        String hash = parsePointer(head, headLength);
+        if (hash == null) {
+            // Blob stored before deduplication was enabled.
+            return new Blob(new BlobMetadata(path, -1, null, null),
+                new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), content));
+        }
+
+        closeQuietly(content);
+        if (hash.equals(ifNoneMatch)) {
+            return Blob.notModified(new BlobMetadata(path, -1, null, hash));
+        }
+
+        Blob hashedBlob = this.store.readBlob(getContentPath(hash), null, null);
+        if (hashedBlob == null) {
+            throw new BlobStoreException(String.format("The content [%s] of blob '%s' is missing", hash, path));
+        }
+
+        BlobMetadata hashedMetadata = hashedBlob.getMetadata();
+        return new Blob(new BlobMetadata(path, hashedMetadata.getLength(), null, hash,
+            hashedMetadata.getContentType()), hashedBlob.getContent());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the small pointer blob is read, the length being the one of the content it points to and the entity tag
+     * the hash of that content, like for {@link #readBlob(String, String, Date)}. The metadata of blobs stored before
+     * deduplication was enabled is returned as is.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.lang.String)
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        BlobMetadata metadata = this.store.getBlobMetadata(path);
+        String hash = readPointer(path, metadata);
+        if (hash == null) {
+            // Blob stored before deduplication was enabled, or deleted in the meantime.
+            return metadata;
+        }
+
+        BlobMetadata hashedMetadata = this.store.getBlobMetadata(getContentPath(hash));
+        if (hashedMetadata == null) {
+            throw new BlobStoreException(String.format("The content [%s] of blob '%s' is missing", hash, path));
+        }
+
+        return new BlobMetadata(path, hashedMetadata.getLength(), null, hash, hashedMetadata.getContentType());
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        synchronized (getPathLock(path)) {
+            String hash = readPointer(path);
+
+            this.store.deleteBlob(path);
+
+            if (hash != null) {
+                removeReference(hash);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the pointer is moved: the content stays where it is, referenced by the new path instead of the old one, so
+     * that its reference count is unchanged.
+     *
+     * @see org.xwiki.blobstore.BlobStore#moveBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        // The locks are always taken in the same order, so that opposite moves cannot wait for each other.
+        int sourceStripe = getStripe(sourcePath);
+        int targetStripe = getStripe(targetPath);
+        synchronized (this.pathLocks[Math.min(sourceStripe, targetStripe)]) {
+            synchronized (this.pathLocks[Math.max(sourceStripe, targetStripe)]) {
+                String hash = readPointer(sourcePath);
+                if (hash == null) {
+                    // Blob stored before deduplication was enabled.
+                    super.moveBlob(sourcePath, targetPath);
+                    return;
+                }
+
+                String previousHash = readPointer(targetPath);
+                writePointer(targetPath, hash);
+                this.store.deleteBlob(sourcePath);
+                if (previousHash != null) {
+                    // The target referenced a content which loses that reference, even when it is the same content.
+                    removeReference(previousHash);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the pointer is copied: the content is referenced by one more path, without being copied.
+     *
+     * @see org.xwiki.blobstore.BlobStore#copyBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        int sourceStripe = getStripe(sourcePath);
+        int targetStripe = getStripe(targetPath);
+        synchronized (this.pathLocks[Math.min(sourceStripe, targetStripe)]) {
+            synchronized (this.pathLocks[Math.max(sourceStripe, targetStripe)]) {
+                String hash = readPointer(sourcePath);
+                if (hash == null) {
+                    // Blob stored before deduplication was enabled.
+                    super.copyBlob(sourcePath, targetPath);
+                    return;
+                }
+
+                String previousHash = readPointer(targetPath);
+                if (hash.equals(previousHash)) {
+                    return;
+                }
+
+                synchronized (getLock(hash)) {
+                    writeReferenceCount(hash, readReferenceCount(hash) + 1);
+                }
+                writeReferencePointer(targetPath, hash);
+                if (previousHash != null) {
+                    removeReference(previousHash);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content stored under {@link #CONTENT_PREFIX} is only listed when the prefix points inside it, and the
+     * length of the other blobs is the length of their pointer, not of their content.
+     */
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        final Iterator<BlobMetadata> blobs = this.store.listBlobs(prefix, startAfter);
+        if (prefix.startsWith(CONTENT_PREFIX)) {
+            return blobs;
+        }
+
+        return new Iterator<BlobMetadata>()
+        {
+            private BlobMetadata next = advance();
+
+            private BlobMetadata advance()
+            {
+                while (blobs.hasNext()) {
+                    BlobMetadata blob = blobs.next();
+                    if (!blob.getPath().startsWith(CONTENT_PREFIX)) {
+                        return blob;
+                    }
+                }
+
+                return null;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.next != null;
+            }
+
+            @Override
+            public BlobMetadata next()
+            {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                BlobMetadata blob = this.next;
+                this.next = advance();
+
+                return blob;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Record that a path references a content, uploading the content if no other path references it.
+     *
+     * @param hash The hash of the content.
+     * @param path The path referencing the content.
+     * @param file The file holding the content.
+     */
+    private void addReference(String hash, String path, File file)
+    {
+        synchronized (getLock(hash)) {
+            long count = readReferenceCount(hash);
+            if (count == 0) {
+                try (InputStream content = new FileInputStream(file)) {
+                    this.store.putBlob(getContentPath(hash), content, file.length());
+                } catch (IOException e) {
+                    throw new BlobStoreException(String.format("Unable to read the content of blob '%s'", path), e);
+                }
+            } else {
+                this.logger.debug("Content of blob '{}' is already stored as [{}]", path, hash);
+            }
+
+            writeReferenceCount(hash, count + 1);
+        }
+    }
+
+    /**
+     * Record that a path does not reference a content anymore, deleting the content if no other path references it.
+     *
+     * @param hash The hash of the content.
+     */
+    private void removeReference(String hash)
+    {
+        synchronized (getLock(hash)) {
+            long count = readReferenceCount(hash);
+            if (count <= 1) {
+                // The count is deleted first so that a failure never leaves references to a missing content.
+                this.store.deleteBlob(getContentPath(hash) + REFERENCES_SUFFIX);
+                this.store.deleteBlob(getContentPath(hash));
+
+                this.logger.debug("Deleted content [{}] which is not referenced anymore", hash);
+            } else {
+                writeReferenceCount(hash, count - 1);
+            }
+        }
+    }
+
+    /**
+     * @param hash The hash of a content.
+     * @return The number of paths referencing the content, 0 if it is not stored.
+     */
+    private long readReferenceCount(String hash)
+    {
+        InputStream content = this.store.getBlob(getContentPath(hash) + REFERENCES_SUFFIX);
+        if (content == null) {
+            return 0;
+        }
+
+        String references;
+        try {
+            references = IOUtils.toString(content, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read the references of content [%s]", hash), e);
+        } finally {
+            closeQuietly(content);
+        }
+
+        if (StringUtils.isNumeric(references)) {
+            return Long.parseLong(references);
+        }
+
+        // Written by an earlier version, listing the paths referencing the content.
+        long count = 0;
+        for (String line : StringUtils.split(references, '\n')) {
+            if (StringUtils.isNotBlank(line)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param hash The hash of a content.
+     * @param count The number of paths referencing the content.
+     */
+    private void writeReferenceCount(String hash, long count)
+    {
+        byte[] content = String.valueOf(count).getBytes(StandardCharsets.US_ASCII);
+
+        this.store.putBlob(getContentPath(hash) + REFERENCES_SUFFIX, new ByteArrayInputStream(content),
+            content.length);
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The hash of the content the blob points to, or null if the blob does not exist or is not a pointer.
+     */
+    private String readPointer(String path)
+    {
+        return readPointer(path, this.store.getBlobMetadata(path));
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param metadata The metadata of the blob, null if it does not exist.
+     * @return The hash of the content the blob points to, or null if the blob does not exist or is not a pointer.
+     */
+    private String readPointer(String path, BlobMetadata metadata)
+    {
+        // Blobs which cannot be pointers are not read, since they may be large.
+        if (metadata == null || (metadata.getLength() >= 0 && metadata.getLength() != POINTER_LENGTH)) {
+            return null;
+        }
+
+        InputStream content = this.store.getBlob(path);
+        if (content == null) {
+            return null;
+        }
+
+        try {
+            byte[] head = new byte[POINTER_LENGTH + 1];
+
+            return parsePointer(head, readFully(content, head));
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob '%s'", path), e);
+        } finally {
+            closeQuietly(content);
+        }
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param hash The hash of the content of the blob.
+     */
+    private void writePointer(String path, String hash)
+    {
+        byte[] pointer = (POINTER_PREFIX + hash).getBytes(StandardCharsets.US_ASCII);
+
+        this.store.putBlob(path, new ByteArrayInputStream(pointer), pointer.length);
+    }
+
+    /**
+     * Write the pointer of a path to a content whose reference count already includes the path, releasing that
+     * reference if the pointer cannot be written, so that the content is not kept forever by a path not pointing to
+     * it. A write reported as failed may still have succeeded, so the reference is only released if the path does not
+     * point to the content.
+     *
+     * @param path The path of a blob.
+     * @param hash The hash of the content of the blob.
+     */
+    private void writeReferencePointer(String path, String hash)
+    {
+        try {
+            writePointer(path, hash);
+        } catch (RuntimeException e) {
+            try {
+                if (!hash.equals(readPointer(path))) {
+                    removeReference(hash);
+                }
+            } catch (RuntimeException removeException) {
+                e.addSuppressed(removeException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param head The beginning of a blob.
+     * @param length The number of bytes in the beginning of the blob, which is longer than a pointer if the blob is.
+     * @return The hash of the content if the blob is a pointer, null otherwise.
+     */
+    private String parsePointer(byte[] head, int length)
+    {
+        if (length != POINTER_LENGTH) {
+            return null;
+        }
+
+        String pointer = new String(head, 0, length, StandardCharsets.US_ASCII);
+        if (!pointer.startsWith(POINTER_PREFIX)) {
+            return null;
+        }
+
+        String hash = pointer.substring(POINTER_PREFIX.length());
+
+        return StringUtils.containsOnly(hash, "0123456789abcdef") ? hash : null;
+    }
+
+    /**
+     * Copy a content to a file, computing its hash.
+     *
+     * @param content The content.
+     * @param file The file.
+     * @return The hexadecimal SHA-256 hash of the content.
+     * @throws IOException If the content cannot be read or the file cannot be written.
+     */
+    private String spool(InputStream content, File file) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Cannot happen since every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        try (OutputStream output = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+            }
+        }
+
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * @param hash The hash of a content.
+     * @return The path where the content is stored.
+     */
+    private String getContentPath(String hash)
+    {
+        return new StringBuilder(CONTENT_PREFIX.length() + 3 + HASH_LENGTH).append(CONTENT_PREFIX)
+            .append(hash, 0, 2).append('/').append(hash).toString();
+    }
+
+    /**
+     * @param hash The hash of a content.
+     * @return The lock protecting the reference count of the content.
+     */
+    private Object getLock(String hash)
+    {
+        return this.locks[getStripe(hash)];
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The lock protecting the pointer stored at the path.
+     */
+    private Object getPathLock(String path)
+    {
+        return this.pathLocks[getStripe(path)];
+    }
+
+    /**
+     * @param key A hash or a path.
+     * @return The index of the lock protecting it.
+     */
+    private static int getStripe(String key)
+    {
+        return (key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+
+    /**
+     * Read a stream until the buffer is full or the stream ends.
+     *
+     * @param content The stream.
+     * @param buffer The buffer.
+     * @return The number of bytes read.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static int readFully(InputStream content, byte[] buffer) throws IOException
+    {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = content.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+
+        return length;
+    }
+
+    /**
+     * @param content A stream to close, ignoring failures.
+     */
+    private void closeQuietly(InputStream content)
+    {
+        try {
+            content.close();
+        } catch (IOException e) {
+            this.logger.debug("Unable to close blob stream: {}", e.getMessage());
+        }
+    }
+}
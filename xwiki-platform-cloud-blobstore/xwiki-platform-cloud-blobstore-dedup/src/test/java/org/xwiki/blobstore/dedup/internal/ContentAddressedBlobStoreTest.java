@@ -0,0 +1,501 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.dedup.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link ContentAddressedBlobStore}.
+ *
+ * @version $Id$
+ */
+public class ContentAddressedBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        ContentAddressedBlobStore.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A path used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/template.odt";
+
+    /**
+     * Another path used by the tests.
+     */
+    private static final String OTHER_PATH = "xwiki/Space/OtherPage/template.odt";
+
+    /**
+     * The content used by the tests.
+     */
+    private static final byte[] CONTENT = "The same template attached to many pages".getBytes();
+
+    /**
+     * The blob store where the content is stored.
+     */
+    private MemoryBlobStore store;
+
+    /**
+     * The path whose writes fail, or null.
+     */
+    private String failingPath;
+
+    /**
+     * Whether the failing writes store the blob before failing, like a write whose response is lost.
+     */
+    private boolean failAfterWrite;
+
+    /**
+     * Setup the blob store for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = new MemoryBlobStore()
+        {
+            @Override
+            public void putBlob(String path, InputStream content)
+            {
+                if (path.equals(failingPath)) {
+                    if (failAfterWrite) {
+                        super.putBlob(path, content);
+                    }
+                    throw new BlobStoreException("Unable to store blob");
+                }
+
+                super.putBlob(path, content);
+            }
+        };
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getTemporaryDirectory()).thenReturn(this.folder.getRoot());
+    }
+
+    /**
+     * Check that identical blobs are stored and uploaded once.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testIdenticalBlobsAreStoredOnce() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT));
+
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(OTHER_PATH)));
+        Assert.assertEquals(1, countContents());
+        Assert.assertEquals(1, countContentUploads());
+    }
+
+    /**
+     * Check that a content is deleted with the last blob referencing it.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testContentIsDeletedWithLastReference() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        blobStore.deleteBlob(PATH);
+        Assert.assertNull(blobStore.getBlob(PATH));
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(OTHER_PATH)));
+
+        blobStore.deleteBlob(OTHER_PATH);
+        Assert.assertNull(blobStore.getBlob(OTHER_PATH));
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check that overwriting a blob releases its previous content, and that writing the same content again does not
+     * upload anything.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testOverwriteBlob() throws Exception
+    {
+        byte[] newContent = "A new version".getBytes();
+
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(PATH, new ByteArrayInputStream(newContent), newContent.length);
+        int writes = this.store.getWrittenPaths().size();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(newContent), newContent.length);
+
+        Assert.assertArrayEquals(newContent, read(blobStore.getBlob(PATH)));
+        Assert.assertEquals(1, countContents());
+        Assert.assertEquals(writes, this.store.getWrittenPaths().size());
+    }
+
+    /**
+     * Check that the number of paths referencing a content is recorded, that moving a blob keeps it, including when
+     * the target already references the same content, and that copying a blob increments it.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReferenceCounts() throws Exception
+    {
+        String thirdPath = "xwiki/Space/ThirdPage/template.odt";
+
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        Assert.assertEquals("2", readReferences());
+
+        blobStore.moveBlob(PATH, thirdPath);
+        Assert.assertEquals("2", readReferences());
+        Assert.assertNull(blobStore.getBlob(PATH));
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(thirdPath)));
+
+        blobStore.moveBlob(thirdPath, OTHER_PATH);
+        Assert.assertEquals("1", readReferences());
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(OTHER_PATH)));
+
+        blobStore.copyBlob(OTHER_PATH, PATH);
+        Assert.assertEquals("2", readReferences());
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertEquals(1, countContentUploads());
+
+        blobStore.deleteBlob(OTHER_PATH);
+        blobStore.deleteBlob(PATH);
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check that the paths referencing a content listed by an earlier version are counted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReferencesListedByEarlierVersion() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        this.store.getBlobs().put(getReferencesPath(), (PATH + '\n' + OTHER_PATH).getBytes(StandardCharsets.UTF_8));
+
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        Assert.assertEquals("3", readReferences());
+        Assert.assertEquals(1, countContentUploads());
+    }
+
+    /**
+     * Check that concurrent writes and deletes of the same paths keep the reference counts right.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testConcurrentWritesOfSamePath() throws Exception
+    {
+        final BlobStore blobStore = this.mocker.getComponentUnderTest();
+        final byte[] newContent = "A new version".getBytes();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> writes = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 64; i++) {
+                final byte[] content = i % 2 == 0 ? CONTENT : newContent;
+                final String path = i % 3 == 0 ? PATH : OTHER_PATH;
+                writes.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        blobStore.putBlob(path, new ByteArrayInputStream(content), content.length);
+
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        blobStore.deleteBlob(PATH);
+        blobStore.deleteBlob(OTHER_PATH);
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check that a range of a blob is read from its content, including for blobs stored before enabling the
+     * deduplication.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobRange() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        this.store.getBlobs().put(OTHER_PATH, CONTENT);
+
+        byte[] range = Arrays.copyOfRange(CONTENT, 2, 6);
+        Assert.assertArrayEquals(range, read(blobStore.getBlob(PATH, 2, 4)));
+        Assert.assertArrayEquals(range, read(blobStore.getBlob(OTHER_PATH, 2, 4)));
+        Assert.assertNull(blobStore.getBlob("missing", 2, 4));
+    }
+
+    /**
+     * Check that the entity tag of a deduplicated blob is the hash of its content, shared by identical blobs.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadBlobNotModifiedSinceContentHash() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        Blob blob = blobStore.readBlob(PATH, null, null);
+        Assert.assertArrayEquals(CONTENT, read(blob.getContent()));
+        String etag = blob.getMetadata().getEtag();
+
+        Assert.assertFalse(blobStore.readBlob(PATH, etag, null).isModified());
+        Assert.assertFalse(blobStore.readBlob(OTHER_PATH, etag, null).isModified());
+        Assert.assertEquals(etag, blobStore.getBlobMetadata(OTHER_PATH).getEtag());
+        Assert.assertEquals(CONTENT.length, blobStore.getBlobMetadata(OTHER_PATH).getLength());
+
+        byte[] newContent = "A new version".getBytes();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(newContent), newContent.length);
+
+        blob = blobStore.readBlob(PATH, etag, null);
+        Assert.assertArrayEquals(newContent, read(blob.getContent()));
+        Assert.assertFalse(etag.equals(blob.getMetadata().getEtag()));
+    }
+
+    /**
+     * Check that blobs stored before enabling the deduplication can still be read and deleted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testBlobStoredWithoutDeduplication() throws Exception
+    {
+        this.store.getBlobs().put(PATH, CONTENT);
+        this.store.getBlobs().put(OTHER_PATH, new byte[0]);
+
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertArrayEquals(new byte[0], read(blobStore.getBlob(OTHER_PATH)));
+
+        // Blobs which cannot be pointers are not read when they are overwritten or deleted.
+        this.store.resetCounts();
+        blobStore.deleteBlob(PATH);
+        Assert.assertEquals(0, this.store.getReadCount());
+        Assert.assertNull(blobStore.getBlob(PATH));
+    }
+
+    /**
+     * Check that a path whose pointer cannot be written does not keep referencing its content, whether the content was
+     * uploaded for it or was already referenced by another path.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testFailedPointerWriteReleasesReference() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        this.failingPath = PATH;
+
+        try {
+            blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+            Assert.fail("The pointer should not have been written");
+        } catch (BlobStoreException expected) {
+            // Expected.
+        }
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        try {
+            blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+            Assert.fail("The pointer should not have been written");
+        } catch (BlobStoreException expected) {
+            // Expected.
+        }
+        Assert.assertEquals("1", readReferences());
+
+        try {
+            blobStore.copyBlob(OTHER_PATH, PATH);
+            Assert.fail("The pointer should not have been copied");
+        } catch (BlobStoreException expected) {
+            // Expected.
+        }
+        Assert.assertEquals("1", readReferences());
+
+        blobStore.deleteBlob(OTHER_PATH);
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check that a pointer written although its write failed keeps referencing its content.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testLostPointerWriteResponseKeepsReference() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        this.failingPath = PATH;
+        this.failAfterWrite = true;
+
+        try {
+            blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+            Assert.fail("The write should have been reported as failed");
+        } catch (BlobStoreException expected) {
+            // Expected.
+        }
+
+        Assert.assertEquals("1", readReferences());
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+    }
+
+    /**
+     * @param stream A stream.
+     * @return The whole content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[16];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return content.toByteArray();
+    }
+
+    /**
+     * @return The path of the references of {@link #CONTENT}.
+     */
+    private String getReferencesPath()
+    {
+        for (String path : this.store.getBlobs().keySet()) {
+            if (isContent(path)) {
+                return path + ContentAddressedBlobStore.REFERENCES_SUFFIX;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The references of the single content stored.
+     */
+    private String readReferences()
+    {
+        return new String(this.store.getBlobs().get(getReferencesPath()), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The number of contents stored.
+     */
+    private int countContents()
+    {
+        int count = 0;
+        for (String path : this.store.getBlobs().keySet()) {
+            if (isContent(path)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The number of contents uploaded.
+     */
+    private int countContentUploads()
+    {
+        int count = 0;
+        for (String path : this.store.getWrittenPaths()) {
+            if (isContent(path)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return true if the blob is a content.
+     */
+    private static boolean isContent(String path)
+    {
+        return path.startsWith(ContentAddressedBlobStore.CONTENT_PREFIX)
+            && !path.endsWith(ContentAddressedBlobStore.REFERENCES_SUFFIX);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.filesystem.internal;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStoreException;
+
+/**
+ * Lists the blobs of a {@link FileSystemBlobStore} having a given prefix, walking the directories lazily. Only the
+ * entries of the directories between the root and the current blob are held in memory.
+ *
+ * @version $Id$
+ */
+public class FileSystemBlobListing implements Iterator<BlobMetadata>
+{
+    /**
+     * The prefix of the temporary files blobs are written to before being renamed.
+     */
+    static final String TEMPORARY_FILE_PREFIX = ".blob";
+
+    /**
+     * The suffix of the temporary files blobs are written to before being renamed.
+     */
+    static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    /**
+     * The separator of the blob paths.
+     */
+    private static final String SEPARATOR = "/";
+
+    /**
+     * The root directory of the blob store.
+     */
+    private final Path root;
+
+    /**
+     * The prefix of the listed paths.
+     */
+    private final String prefix;
+
+    /**
+     * The path after which the listing starts, or null for starting at the first blob.
+     */
+    private final String startAfter;
+
+    /**
+     * The entries not visited yet of each directory being walked, the deepest last.
+     */
+    private final Deque<Iterator<Entry>> directories = new ArrayDeque<Iterator<Entry>>();
+
+    /**
+     * The next blob, or null when the listing is over.
+     */
+    private BlobMetadata next;
+
+    /**
+     * An entry of a directory.
+     */
+    private static final class Entry implements Comparable<Entry>
+    {
+        /**
+         * The path of the entry relative to the root, ending with a separator for directories so that sorting the
+         * entries sorts the blob paths.
+         */
+        private final String path;
+
+        /**
+         * The file.
+         */
+        private final Path file;
+
+        /**
+         * The attributes of the file.
+         */
+        private final BasicFileAttributes attributes;
+
+        /**
+         * Constructor.
+         *
+         * @param path The path of the entry relative to the root.
+         * @param file The file.
+         * @param attributes The attributes of the file.
+         */
+        Entry(String path, Path file, BasicFileAttributes attributes)
+        {
+            this.path = path;
+            this.file = file;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            return this.path.compareTo(other.path);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            return object instanceof Entry && this.path.equals(((Entry) object).path);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.path.hashCode();
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param root The root directory of the blob store.
+     * @param prefix The prefix of the listed paths.
+     * @param startAfter The path after which the listing starts, excluded, or null for starting at the first blob.
+     */
+    public FileSystemBlobListing(Path root, String prefix, String startAfter)
+    {
+        this.root = root;
+        this.prefix = prefix;
+        this.startAfter = startAfter;
+
+        // Only the directory holding the prefix can contain matching blobs.
+        int index = prefix.lastIndexOf(SEPARATOR);
+        String directory = index < 0 ? "" : prefix.substring(0, index + 1);
+        Path file = directory.isEmpty() ? root : root.resolve(directory).normalize();
+        if (file.startsWith(root) && Files.isDirectory(file)) {
+            this.directories.add(list(directory, file));
+        }
+        this.next = advance();
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return this.next != null;
+    }
+
+    @Override
+    public BlobMetadata next()
+    {
+        if (this.next == null) {
+            throw new NoSuchElementException();
+        }
+        BlobMetadata blob = this.next;
+        this.next = advance();
+
+        return blob;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return The next blob, or null when the listing is over.
+     */
+    private BlobMetadata advance()
+    {
+        while (!this.directories.isEmpty()) {
+            Iterator<Entry> entries = this.directories.getLast();
+            if (!entries.hasNext()) {
+                this.directories.removeLast();
+                continue;
+            }
+
+            Entry entry = entries.next();
+            if (entry.attributes.isDirectory()) {
+                if ((entry.path.startsWith(this.prefix) || this.prefix.startsWith(entry.path))
+                    && !isBeforeStart(entry.path, true)) {
+                    this.directories.add(list(entry.path, entry.file));
+                }
+            } else if (entry.path.startsWith(this.prefix) && !isBeforeStart(entry.path, false)
+                && !isTemporaryFile(entry.file)) {
+                return new BlobMetadata(entry.path, entry.attributes.size(),
+                    new Date(entry.attributes.lastModifiedTime().toMillis()), null);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param path The path of the directory relative to the root, ending with a separator unless empty.
+     * @param directory The directory.
+     * @return The entries of the directory, sorted by path.
+     */
+    private Iterator<Entry> list(String path, Path directory)
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // Deleted while listing.
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                entries.add(new Entry(attributes.isDirectory() ? path + name + SEPARATOR : path + name, file,
+                    attributes));
+            }
+        } catch (NoSuchFileException e) {
+            // Deleted while listing.
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to list the blobs in [%s]",
+                this.root.relativize(directory)), e);
+        }
+        Collections.sort(entries);
+
+        return entries.iterator();
+    }
+
+    /**
+     * @param path The path of an entry.
+     * @param directory Whether the entry is a directory, in which case the paths of its blobs start with its path.
+     * @return true if the entry, or all the blobs below it for a directory, come before the start of the listing.
+     */
+    private boolean isBeforeStart(String path, boolean directory)
+    {
+        if (this.startAfter == null) {
+            return false;
+        }
+        if (directory) {
+            return path.compareTo(this.startAfter) < 0 && !this.startAfter.startsWith(path);
+        }
+
+        return path.compareTo(this.startAfter) <= 0;
+    }
+
+    /**
+     * @param file A file.
+     * @return true if the file is a blob being written.
+     */
+    private static boolean isTemporaryFile(Path file)
+    {
+        String name = file.getFileName().toString();
+
+        return name.startsWith(TEMPORARY_FILE_PREFIX) && name.endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+}
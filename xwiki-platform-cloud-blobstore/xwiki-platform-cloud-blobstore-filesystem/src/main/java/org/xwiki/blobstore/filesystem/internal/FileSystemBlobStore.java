@@ -0,0 +1,437 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.filesystem.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.AbstractBlobStore;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.ChannelBlobStore;
+import org.xwiki.blobstore.RangeInputStream;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Blob store keeping blobs as files in a local directory, using the blob paths as the directory hierarchy. Blobs are
+ * written to a temporary file which is then renamed, so that readers never see a partially written blob.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("filesystem")
+@Singleton
+public class FileSystemBlobStore extends AbstractBlobStore implements ChannelBlobStore, Initializable
+{
+    /**
+     * The directory where blobs are stored.
+     */
+    public static final String BLOBSTORE_FILESYSTEM_ROOT_PROPERTY = "xwiki.store.attachments.blobstore.filesystem.root";
+
+    /**
+     * How many times a blob file is created again when its directory is removed concurrently.
+     */
+    private static final int MAX_DIRECTORY_ATTEMPTS = 10;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the default root directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The directory where blobs are stored, including the namespace if any.
+     */
+    private Path root;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String rootName = this.configurationSource.getProperty(BLOBSTORE_FILESYSTEM_ROOT_PROPERTY, String.class);
+        File rootDirectory;
+        if (StringUtils.isNotBlank(rootName)) {
+            rootDirectory = new File(rootName);
+        } else {
+            rootDirectory = new File(this.environment.getPermanentDirectory(), "blobstore");
+        }
+
+        String namespace = this.configurationSource.getProperty(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(namespace)) {
+            rootDirectory = new File(rootDirectory, namespace);
+        }
+
+        try {
+            this.root = Files.createDirectories(rootDirectory.toPath().toAbsolutePath().normalize());
+        } catch (IOException e) {
+            throw new InitializationException(String.format("Unable to create the blob store directory [%s]",
+                rootDirectory), e);
+        }
+
+        this.logger.debug("Filesystem blob store initialized in '{}'", this.root);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        putBlob(path, content, -1);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        Path file = resolve(path);
+
+        this.logger.debug("Putting blob to '{}'", file);
+
+        Path temporaryFile = null;
+        try {
+            temporaryFile = createTemporaryFile(file.getParent());
+            Files.copy(content, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+
+            throw new BlobStoreException(String.format("Unable to store blob [%s]", path), e);
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        Path file = resolve(path);
+
+        this.logger.debug("Getting blob from '{}'", file);
+
+        try {
+            return Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        Path file = resolve(path);
+
+        this.logger.debug("Getting {} bytes at {} of blob from '{}'", length, offset, file);
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+
+        return new RangeInputStream(Channels.newInputStream(channel), 0, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entity tag of a blob is derived from the date and the size of its file.
+     *
+     * @see org.xwiki.blobstore.BlobStore#readBlob(java.lang.String, java.lang.String, java.util.Date)
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        Path file = resolve(path);
+
+        this.logger.debug("Reading blob from '{}'", file);
+
+        try {
+            // The attributes are read first, so that a blob replaced in between is labeled as older than it is and
+            // thus read again next time, rather than the opposite.
+            BlobMetadata metadata = readMetadata(path, file);
+            if (!metadata.isModified(ifNoneMatch, ifModifiedSince)) {
+                return Blob.notModified(metadata);
+            }
+
+            return new Blob(metadata, Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob [%s]", path), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata is read from the attributes of the file, which is not opened.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.lang.String)
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        try {
+            return readMetadata(path, resolve(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read the attributes of blob [%s]", path), e);
+        }
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param file The file storing the blob.
+     * @return The metadata of the blob, its entity tag being derived from the date and the size of the file.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    private BlobMetadata readMetadata(String path, Path file) throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        return new BlobMetadata(path, attributes.size(), new Date(lastModified),
+            String.format("%x-%x", lastModified, attributes.size()));
+    }
+
+    @Override
+    public long transferBlob(String path, WritableByteChannel target) throws IOException
+    {
+        Path file = resolve(path);
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+
+        try {
+            // transferTo may transfer less than requested, for instance to a non-blocking socket.
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+
+            return position;
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        Path file = resolve(path);
+
+        this.logger.debug("Deleting blob '{}'", file);
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to delete blob [%s]", path), e);
+        }
+
+        deleteEmptyDirectories(file);
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        Path source = resolve(sourcePath);
+        Path target = resolve(targetPath);
+
+        this.logger.debug("Moving blob '{}' to '{}'", source, target);
+
+        try {
+            for (int attempt = 1;; attempt++) {
+                Files.createDirectories(target.getParent());
+                try {
+                    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    break;
+                } catch (NoSuchFileException e) {
+                    // The target directory may have been removed by the deletion of its last blob in between.
+                    if (attempt == MAX_DIRECTORY_ATTEMPTS || Files.notExists(source)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to move blob [%s] to [%s]", sourcePath, targetPath),
+                e);
+        }
+
+        deleteEmptyDirectories(source);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The file is copied to a temporary file next to the target, which then replaces the target atomically.
+     *
+     * @see org.xwiki.blobstore.BlobStore#copyBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        Path source = resolve(sourcePath);
+        Path target = resolve(targetPath);
+
+        this.logger.debug("Copying blob '{}' to '{}'", source, target);
+
+        Path temporaryFile = null;
+        try {
+            temporaryFile = createTemporaryFile(target.getParent());
+            Files.copy(source, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            deleteQuietly(temporaryFile);
+
+            throw new BlobStoreException(String.format("Unable to copy missing blob [%s]", sourcePath), e);
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+
+            throw new BlobStoreException(String.format("Unable to copy blob [%s] to [%s]", sourcePath, targetPath),
+                e);
+        }
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        return new FileSystemBlobListing(this.root, StringUtils.stripStart(prefix, "/"),
+            startAfter != null ? StringUtils.stripStart(startAfter, "/") : null);
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The file storing the blob.
+     */
+    private Path resolve(String path)
+    {
+        Path file = this.root.resolve(StringUtils.stripStart(path, "/")).normalize();
+        if (!file.startsWith(this.root) || file.equals(this.root)) {
+            throw new BlobStoreException(String.format("Invalid blob path [%s]", path));
+        }
+
+        return file;
+    }
+
+    /**
+     * Create a temporary file in a directory, creating the directory if needed. The directory is created again when it
+     * is removed in between by the deletion of its last blob.
+     *
+     * @param directory The directory.
+     * @return The temporary file.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    private Path createTemporaryFile(Path directory) throws IOException
+    {
+        for (int attempt = 1;; attempt++) {
+            Files.createDirectories(directory);
+            try {
+                return Files.createTempFile(directory, FileSystemBlobListing.TEMPORARY_FILE_PREFIX,
+                    FileSystemBlobListing.TEMPORARY_FILE_SUFFIX);
+            } catch (NoSuchFileException e) {
+                if (attempt == MAX_DIRECTORY_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the directories left empty by the deletion of a file, which would otherwise pile up as attachments are
+     * deleted.
+     *
+     * @param file The deleted file.
+     */
+    private void deleteEmptyDirectories(Path file)
+    {
+        for (Path directory = file.getParent(); !directory.equals(this.root); directory = directory.getParent()) {
+            if (!directory.toFile().delete()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param file The file to delete, or null.
+     */
+    private void deleteQuietly(Path file)
+    {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                this.logger.warn("Unable to delete temporary file [{}]: {}", file, e.getMessage());
+            }
+        }
+    }
+}
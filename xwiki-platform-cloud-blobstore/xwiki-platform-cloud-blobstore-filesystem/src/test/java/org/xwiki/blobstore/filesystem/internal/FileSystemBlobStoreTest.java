@@ -0,0 +1,356 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.filesystem.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.ChannelBlobStore;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link FileSystemBlobStore}.
+ *
+ * @version $Id$
+ */
+public class FileSystemBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        FileSystemBlobStore.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The content of the blob used by the tests.
+     */
+    private static final byte[] CONTENT = "content".getBytes();
+
+    /**
+     * Setup the blob store for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(FileSystemBlobStore.BLOBSTORE_FILESYSTEM_ROOT_PROPERTY, String.class))
+            .thenReturn(this.folder.getRoot().getAbsolutePath());
+        when(configuration.getProperty(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, String.class)).thenReturn("farm");
+    }
+
+    /**
+     * Check that a stored blob can be read back, and that it is laid out following its path.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutAndGetBlob() throws Exception
+    {
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        Assert.assertTrue(new File(this.folder.getRoot(), "farm/" + PATH).isFile());
+        Assert.assertArrayEquals(CONTENT, read(this.mocker.getComponentUnderTest().getBlob(PATH)));
+    }
+
+    /**
+     * Check that writing a blob replaces its previous content without leaving temporary files behind.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobReplacesContent() throws Exception
+    {
+        byte[] newContent = "new content".getBytes();
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(CONTENT));
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(newContent));
+
+        Assert.assertArrayEquals(newContent, read(this.mocker.getComponentUnderTest().getBlob(PATH)));
+        Assert.assertEquals(1, new File(this.folder.getRoot(), "farm/xwiki/Space/Page").list().length);
+    }
+
+    /**
+     * Check that a range of a blob can be read.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobRange() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(CONTENT, 1, 4), read(blobStore.getBlob(PATH, 1, 3)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(CONTENT, 4, CONTENT.length), read(blobStore.getBlob(PATH, 4, -1)));
+        Assert.assertEquals(0, read(blobStore.getBlob(PATH, CONTENT.length + 1, 3)).length);
+        Assert.assertNull(blobStore.getBlob("missing", 0, 3));
+    }
+
+    /**
+     * Check that reading a blob returns its metadata, and that its content is not read when it was not modified.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadBlobNotModified() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        Blob blob = blobStore.readBlob(PATH, null, null);
+        Assert.assertArrayEquals(CONTENT, read(blob.getContent()));
+        Assert.assertEquals(CONTENT.length, blob.getMetadata().getLength());
+
+        Assert.assertFalse(blobStore.readBlob(PATH, blob.getMetadata().getEtag(), null).isModified());
+        Assert.assertFalse(blobStore.readBlob(PATH, null, blob.getMetadata().getLastModified()).isModified());
+        blob = blobStore.readBlob(PATH, "other", null);
+        Assert.assertTrue(blob.isModified());
+        blob.close();
+        Assert.assertNull(blobStore.readBlob("missing", null, null));
+    }
+
+    /**
+     * Check that the metadata of a blob matches the one returned along with its content.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobMetadata() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        BlobMetadata metadata = blobStore.getBlobMetadata(PATH);
+        Blob blob = blobStore.readBlob(PATH, null, null);
+        blob.close();
+
+        Assert.assertEquals(CONTENT.length, metadata.getLength());
+        Assert.assertEquals(blob.getMetadata().getEtag(), metadata.getEtag());
+        Assert.assertEquals(blob.getMetadata().getLastModified(), metadata.getLastModified());
+        Assert.assertNull(blobStore.getBlobMetadata("missing"));
+    }
+
+    /**
+     * Check that a blob can be written directly to a channel.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testTransferBlob() throws Exception
+    {
+        ChannelBlobStore blobStore = (ChannelBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals(CONTENT.length, blobStore.transferBlob(PATH, Channels.newChannel(output)));
+        Assert.assertArrayEquals(CONTENT, output.toByteArray());
+        Assert.assertEquals(-1, blobStore.transferBlob("missing", Channels.newChannel(output)));
+    }
+
+    /**
+     * Check that deleting a blob also removes the directories left empty.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteBlob() throws Exception
+    {
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        this.mocker.getComponentUnderTest().putBlob("xwiki/Other/Page/file.txt", new ByteArrayInputStream(CONTENT),
+            CONTENT.length);
+
+        this.mocker.getComponentUnderTest().deleteBlob(PATH);
+
+        Assert.assertNull(this.mocker.getComponentUnderTest().getBlob(PATH));
+        Assert.assertFalse(new File(this.folder.getRoot(), "farm/xwiki/Space").exists());
+        Assert.assertTrue(new File(this.folder.getRoot(), "farm/xwiki/Other/Page/file.txt").exists());
+    }
+
+    /**
+     * Check that moving a blob replaces the target blob and removes the directories left empty.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMoveBlob() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(".staging/tx/" + PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(PATH, new ByteArrayInputStream("previous".getBytes()), 8);
+
+        blobStore.moveBlob(".staging/tx/" + PATH, PATH);
+
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertNull(blobStore.getBlob(".staging/tx/" + PATH));
+        Assert.assertFalse(new File(this.folder.getRoot(), "farm/.staging").exists());
+    }
+
+    /**
+     * Check that a blob is copied to another path, replacing the blob stored there, and that the source blob is kept.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testCopyBlob() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(".archive/" + PATH, new ByteArrayInputStream("previous".getBytes()), 8);
+
+        blobStore.copyBlob(PATH, ".archive/" + PATH);
+
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(".archive/" + PATH)));
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+
+        try {
+            blobStore.copyBlob("missing", ".archive/missing");
+            Assert.fail("Copying a missing blob should fail");
+        } catch (BlobStoreException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Check that writing a blob does not fail when the deletion of a sibling blob removes their directory concurrently.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobWhileDeletingSibling() throws Exception
+    {
+        final BlobStore blobStore = this.mocker.getComponentUnderTest();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String path : Arrays.asList(PATH, "xwiki/Space/Page/other.txt")) {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            blobStore.putBlob(path, new ByteArrayInputStream(CONTENT), CONTENT.length);
+                            blobStore.moveBlob(path, path + ".moved");
+                            blobStore.deleteBlob(path + ".moved");
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(new ArrayList<Throwable>(), failures);
+    }
+
+    /**
+     * Check that blobs are listed in order of path, only under the given prefix, and without the blobs being written.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testListBlobs() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        for (String path : Arrays.asList("xwiki/Space0/Page/file.txt", "xwiki/Space/Page/file.txt",
+            "xwiki/Space/Page.txt", "xwiki/Space/Page/a.txt", "xwiki/Spaces/Page/file.txt", "other/Space/file.txt")) {
+            blobStore.putBlob(path, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        }
+        new File(this.folder.getRoot(), "farm/xwiki/Space/Page/.blob123.tmp").createNewFile();
+
+        List<String> paths = new ArrayList<String>();
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs("xwiki/Space");
+        while (blobs.hasNext()) {
+            BlobMetadata blob = blobs.next();
+            Assert.assertEquals(CONTENT.length, blob.getLength());
+            paths.add(blob.getPath());
+        }
+
+        Assert.assertEquals(Arrays.asList("xwiki/Space/Page.txt", "xwiki/Space/Page/a.txt",
+            "xwiki/Space/Page/file.txt", "xwiki/Space0/Page/file.txt", "xwiki/Spaces/Page/file.txt"), paths);
+        Assert.assertFalse(blobStore.listBlobs("missing/").hasNext());
+    }
+
+    /**
+     * Check that paths cannot escape the root directory.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test(expected = BlobStoreException.class)
+    public void testPathOutsideRootIsRejected() throws Exception
+    {
+        this.mocker.getComponentUnderTest().getBlob("xwiki/../../outside.txt");
+    }
+
+    /**
+     * @param stream The stream to read.
+     * @return The content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        try {
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return output.toByteArray();
+    }
+}
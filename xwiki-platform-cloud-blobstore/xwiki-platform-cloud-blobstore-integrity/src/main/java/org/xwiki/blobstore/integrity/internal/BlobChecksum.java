@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The checksum of the content of a blob, along with the length of the content.
+ *
+ * @version $Id$
+ */
+public class BlobChecksum
+{
+    /**
+     * The separator of the fields of a serialized checksum.
+     */
+    private static final char SEPARATOR = ':';
+
+    /**
+     * The pattern of a serialized checksum.
+     */
+    private static final Pattern PATTERN = Pattern.compile("([A-Za-z0-9-]+):([0-9a-f]+):([0-9]{1,18})");
+
+    /**
+     * The algorithm of the checksum.
+     */
+    private final ChecksumAlgorithm algorithm;
+
+    /**
+     * The hexadecimal value of the checksum.
+     */
+    private final String value;
+
+    /**
+     * The length of the content.
+     */
+    private final long length;
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm The algorithm of the checksum.
+     * @param value The hexadecimal value of the checksum.
+     * @param length The length of the content.
+     */
+    public BlobChecksum(ChecksumAlgorithm algorithm, String value, long length)
+    {
+        this.algorithm = algorithm;
+        this.value = value;
+        this.length = length;
+    }
+
+    /**
+     * @param serialized A checksum serialized by {@link #toString()}.
+     * @return The checksum, or null if the string is not a valid checksum.
+     */
+    public static BlobChecksum parse(String serialized)
+    {
+        Matcher matcher = PATTERN.matcher(serialized.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        ChecksumAlgorithm algorithm = ChecksumAlgorithm.forName(matcher.group(1));
+
+        return algorithm != null ? new BlobChecksum(algorithm, matcher.group(2), Long.parseLong(matcher.group(3)))
+            : null;
+    }
+
+    /**
+     * @return The algorithm of the checksum.
+     */
+    public ChecksumAlgorithm getAlgorithm()
+    {
+        return this.algorithm;
+    }
+
+    /**
+     * @return The hexadecimal value of the checksum.
+     */
+    public String getValue()
+    {
+        return this.value;
+    }
+
+    /**
+     * @return The length of the content.
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (!(object instanceof BlobChecksum)) {
+            return false;
+        }
+
+        BlobChecksum other = (BlobChecksum) object;
+
+        return this.algorithm == other.algorithm && this.value.equals(other.value) && this.length == other.length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.value.hashCode();
+    }
+
+    /**
+     * @return The checksum serialized as {@code ALGORITHM:VALUE:LENGTH}, for instance {@code CRC32C:e3069283:9}.
+     */
+    @Override
+    public String toString()
+    {
+        return this.algorithm.getName() + SEPARATOR + this.value + SEPARATOR + this.length;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationReadyEvent;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Reads all the blobs of the {@link IntegrityBlobStore integrity checking blob store} in the background and verifies
+ * them against their checksum, so that blobs corrupted by the storage are found before they are needed, while their
+ * backups may still be intact.
+ * <p>
+ * The blobs are read at a limited bandwidth, so that scrubbing does not compete with the reads of the users. The path
+ * of the last verified blob is stored as a checkpoint regularly, so a stopped or crashed scrub resumes where it
+ * stopped.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(BlobScrubber.NAME)
+@Singleton
+public class BlobScrubber implements EventListener, BlobScrubberMBean, Disposable
+{
+    /**
+     * The name of this listener.
+     */
+    public static final String NAME = "blobScrubber";
+
+    /**
+     * The name of the MBean of the scrubber.
+     */
+    public static final String MBEAN_NAME = "org.xwiki.blobstore:type=BlobScrubber";
+
+    /**
+     * The number of hours between two scrubs, 0 for running them only on demand.
+     */
+    public static final String SCRUB_INTERVAL_PROPERTY = "xwiki.store.attachments.blobstore.integrity.scrub.interval";
+
+    /**
+     * The maximum number of bytes read per second, 0 for not limiting it.
+     */
+    public static final String SCRUB_BANDWIDTH_PROPERTY =
+        "xwiki.store.attachments.blobstore.integrity.scrub.bandwidth";
+
+    /**
+     * The path of the blob storing the path of the last verified blob.
+     */
+    public static final String CHECKPOINT_PATH = ".scrub/checkpoint";
+
+    /**
+     * The number of blobs verified between two checkpoints.
+     */
+    static final int CHECKPOINT_INTERVAL = 1000;
+
+    /**
+     * The default maximum number of bytes read per second: 10 MiB.
+     */
+    private static final long DEFAULT_BANDWIDTH = 10485760L;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The integrity checking blob store.
+     */
+    @Inject
+    @Named(IntegrityBlobStore.HINT)
+    private Provider<BlobStore> blobStoreProvider;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The thread running the scrubs.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * The name of the registered MBean, null if it could not be registered.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * Whether a scrub is running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Whether the running scrub should stop.
+     */
+    private volatile boolean stopping;
+
+    /**
+     * The path of the last verified blob.
+     */
+    private volatile String checkpoint;
+
+    /**
+     * The number of blobs listed by the last scrub.
+     */
+    private volatile long scannedCount;
+
+    /**
+     * The number of valid blobs found by the last scrub.
+     */
+    private volatile long validCount;
+
+    /**
+     * The number of corrupted blobs found by the last scrub.
+     */
+    private volatile long corruptedCount;
+
+    /**
+     * The number of blobs without checksum found by the last scrub.
+     */
+    private volatile long uncheckedCount;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Blob scrubber");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long interval = this.configurationSource.getProperty(SCRUB_INTERVAL_PROPERTY, 0L);
+        if (interval > 0) {
+            this.executor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runScrub();
+                }
+            }, interval, interval, TimeUnit.HOURS);
+        }
+
+        registerMBean();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.stopping = true;
+
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+
+        if (this.mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the blob scrubber MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        if (!isRunning()) {
+            this.executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runScrub();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        this.stopping = true;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return this.running.get();
+    }
+
+    @Override
+    public String getCheckpoint()
+    {
+        return this.checkpoint;
+    }
+
+    @Override
+    public long getScannedCount()
+    {
+        return this.scannedCount;
+    }
+
+    @Override
+    public long getValidCount()
+    {
+        return this.validCount;
+    }
+
+    @Override
+    public long getCorruptedCount()
+    {
+        return this.corruptedCount;
+    }
+
+    @Override
+    public long getUncheckedCount()
+    {
+        return this.uncheckedCount;
+    }
+
+    /**
+     * Run a scrub, logging its failure.
+     */
+    private void runScrub()
+    {
+        try {
+            scrub();
+        } catch (RuntimeException e) {
+            this.logger.error("Blob scrub failed, it will resume from its last checkpoint", e);
+        }
+    }
+
+    /**
+     * Verify all the blobs, resuming from the checkpoint if any, unless a scrub is already running.
+     */
+    void scrub()
+    {
+        if (!this.running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.stopping = false;
+            this.scannedCount = 0;
+            this.validCount = 0;
+            this.corruptedCount = 0;
+            this.uncheckedCount = 0;
+
+            IntegrityBlobStore blobStore = (IntegrityBlobStore) this.blobStoreProvider.get();
+            this.checkpoint = readCheckpoint(blobStore.getStore());
+            this.logger.info("Starting blob scrub after [{}]", this.checkpoint);
+
+            if (scrub(blobStore)) {
+                blobStore.getStore().deleteBlob(CHECKPOINT_PATH);
+                this.checkpoint = null;
+                this.logger.info("Blob scrub done: {} blobs checked, {} valid, {} corrupted, {} without checksum",
+                    this.scannedCount, this.validCount, this.corruptedCount, this.uncheckedCount);
+            } else {
+                this.logger.info("Blob scrub stopped after [{}]", this.checkpoint);
+            }
+        } finally {
+            this.running.set(false);
+        }
+    }
+
+    /**
+     * @param blobStore The integrity checking blob store.
+     * @return true if all the blobs have been verified, false if the scrub was stopped.
+     */
+    private boolean scrub(IntegrityBlobStore blobStore)
+    {
+        long bandwidth = this.configurationSource.getProperty(SCRUB_BANDWIDTH_PROPERTY, DEFAULT_BANDWIDTH);
+        long startTime = System.currentTimeMillis();
+        long readLength = 0;
+
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs("", this.checkpoint);
+        String lastPath = null;
+        while (blobs.hasNext()) {
+            if (this.stopping) {
+                break;
+            }
+
+            BlobMetadata blob = blobs.next();
+            String path = blob.getPath();
+            this.scannedCount++;
+            if (!path.equals(CHECKPOINT_PATH)) {
+                verify(blobStore, path);
+                readLength += Math.max(0, blob.getLength());
+            }
+            lastPath = path;
+
+            if (this.scannedCount % CHECKPOINT_INTERVAL == 0) {
+                writeCheckpoint(blobStore.getStore(), lastPath);
+            }
+
+            if (bandwidth > 0 && !throttle(startTime + TimeUnit.SECONDS.toMillis(readLength) / bandwidth)) {
+                break;
+            }
+        }
+
+        if (this.stopping && lastPath != null) {
+            writeCheckpoint(blobStore.getStore(), lastPath);
+        }
+
+        return !this.stopping;
+    }
+
+    /**
+     * @param blobStore The integrity checking blob store.
+     * @param path The path of the blob to verify.
+     */
+    private void verify(IntegrityBlobStore blobStore, String path)
+    {
+        switch (blobStore.verifyBlob(path)) {
+            case VALID:
+                this.validCount++;
+                break;
+            case CORRUPTED:
+                this.corruptedCount++;
+                this.logger.error("Corrupted blob [{}]", path);
+                break;
+            case UNCHECKED:
+                this.uncheckedCount++;
+                break;
+            default:
+                // The blob was deleted since it was listed.
+                break;
+        }
+    }
+
+    /**
+     * Wait until the given time, for limiting the bandwidth used.
+     *
+     * @param time The time before which no more blob should be read.
+     * @return false if the scrub was interrupted while waiting.
+     */
+    private boolean throttle(long time)
+    {
+        long delay = time - System.currentTimeMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.stopping = true;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param blobStore The blob store where the blobs are stored.
+     * @return The path of the last blob verified by the previous scrub, or null if it completed.
+     */
+    private String readCheckpoint(BlobStore blobStore)
+    {
+        InputStream content = blobStore.getBlob(CHECKPOINT_PATH);
+        if (content == null) {
+            return null;
+        }
+
+        try (InputStream input = content) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            this.logger.warn("Failed to read the blob scrub checkpoint, starting from the beginning: {}",
+                e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param blobStore The blob store where the blobs are stored.
+     * @param path The path of the last verified blob.
+     */
+    private void writeCheckpoint(BlobStore blobStore, String path)
+    {
+        byte[] content = path.getBytes(StandardCharsets.UTF_8);
+        blobStore.putBlob(CHECKPOINT_PATH, new ByteArrayInputStream(content), content.length);
+        this.checkpoint = path;
+    }
+
+    /**
+     * Register the scrubber in JMX. Failing to do so only prevents running scrubs on demand.
+     */
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.mbeanName = name;
+        } catch (JMException e) {
+            this.logger.warn("Unable to register the blob scrubber MBean: {}", e.getMessage());
+        }
+    }
+}
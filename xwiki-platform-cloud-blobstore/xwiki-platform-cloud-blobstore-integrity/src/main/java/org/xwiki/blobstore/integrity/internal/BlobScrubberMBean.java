@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+/**
+ * The JMX view of the blob scrubber, for running it on demand and following its progress.
+ *
+ * @version $Id$
+ */
+public interface BlobScrubberMBean
+{
+    /**
+     * Start a scrub in the background, resuming from the checkpoint of the previous scrub if it was stopped. Does
+     * nothing if a scrub is already running.
+     */
+    void start();
+
+    /**
+     * Stop the running scrub after the current blob. The checkpoint is kept, so that the next scrub resumes where this
+     * one stopped.
+     */
+    void stop();
+
+    /**
+     * @return true if a scrub is running.
+     */
+    boolean isRunning();
+
+    /**
+     * @return The path of the last blob verified by the running or stopped scrub, null if none.
+     */
+    String getCheckpoint();
+
+    /**
+     * @return The number of blobs listed by the last scrub.
+     */
+    long getScannedCount();
+
+    /**
+     * @return The number of blobs found matching their checksum by the last scrub.
+     */
+    long getValidCount();
+
+    /**
+     * @return The number of blobs found not matching their checksum by the last scrub.
+     */
+    long getCorruptedCount();
+
+    /**
+     * @return The number of blobs without checksum found by the last scrub.
+     */
+    long getUncheckedCount();
+}
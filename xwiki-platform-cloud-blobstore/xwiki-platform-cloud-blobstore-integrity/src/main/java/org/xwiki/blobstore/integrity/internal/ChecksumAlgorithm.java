@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The algorithms available for computing the checksums of the blobs.
+ *
+ * @version $Id$
+ */
+public enum ChecksumAlgorithm
+{
+    /**
+     * CRC32C, the cheapest one, which detects accidental corruption but not deliberate tampering.
+     */
+    CRC32C(Crc32cMessageDigest.ALGORITHM),
+
+    /**
+     * MD5.
+     */
+    MD5("MD5"),
+
+    /**
+     * SHA-256, the most expensive one, which also detects deliberate tampering with the stored blobs.
+     */
+    SHA256("SHA-256");
+
+    /**
+     * The name of the algorithm.
+     */
+    private final String name;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the algorithm.
+     */
+    ChecksumAlgorithm(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the algorithm, as used in the configuration and in the stored checksums.
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return A new digest computing a checksum with this algorithm.
+     */
+    public MessageDigest newDigest()
+    {
+        if (this == CRC32C) {
+            return new Crc32cMessageDigest();
+        }
+
+        try {
+            return MessageDigest.getInstance(this.name);
+        } catch (NoSuchAlgorithmException e) {
+            // Cannot happen since every Java platform supports MD5 and SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param name The name of an algorithm, whatever its case.
+     * @return The algorithm, or null if there is no algorithm with this name.
+     */
+    public static ChecksumAlgorithm forName(String name)
+    {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+
+        return null;
+    }
+}
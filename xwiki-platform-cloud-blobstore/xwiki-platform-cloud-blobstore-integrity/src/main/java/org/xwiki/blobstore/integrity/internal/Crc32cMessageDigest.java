@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.security.MessageDigest;
+
+/**
+ * The CRC32C (Castagnoli) checksum, which detects accidental corruption as well as MD5 at a fraction of its cost, as a
+ * {@link MessageDigest} so that it can be used interchangeably with the cryptographic digests. The bytes are processed
+ * eight at a time with the slicing-by-8 tables.
+ *
+ * @version $Id$
+ */
+public class Crc32cMessageDigest extends MessageDigest
+{
+    /**
+     * The name of the algorithm.
+     */
+    public static final String ALGORITHM = "CRC32C";
+
+    /**
+     * The reversed Castagnoli polynomial.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    /**
+     * The number of bytes processed at once.
+     */
+    private static final int SLICES = 8;
+
+    /**
+     * The length of the checksum, in bytes.
+     */
+    private static final int LENGTH = 4;
+
+    /**
+     * Mask of a byte.
+     */
+    private static final int BYTE_MASK = 0xff;
+
+    /**
+     * The lookup tables, the table {@code k} giving the checksum of a byte followed by {@code k} zero bytes.
+     */
+    private static final int[][] TABLES = new int[SLICES][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < SLICES; k++) {
+                TABLES[k][n] = (TABLES[k - 1][n] >>> Byte.SIZE) ^ TABLES[0][TABLES[k - 1][n] & BYTE_MASK];
+            }
+        }
+    }
+
+    /**
+     * The checksum of the bytes processed so far, not inverted yet.
+     */
+    private int crc = ~0;
+
+    /**
+     * Constructor.
+     */
+    public Crc32cMessageDigest()
+    {
+        super(ALGORITHM);
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return LENGTH;
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        this.crc = (this.crc >>> Byte.SIZE) ^ TABLES[0][(this.crc ^ input) & BYTE_MASK];
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int[] t4 = TABLES[4];
+        int[] t5 = TABLES[5];
+        int[] t6 = TABLES[6];
+        int[] t7 = TABLES[7];
+
+        int value = this.crc;
+        int position = offset;
+        int end = offset + length;
+        for (; end - position >= SLICES; position += SLICES) {
+            int low = value ^ (input[position] & BYTE_MASK | (input[position + 1] & BYTE_MASK) << 8
+                | (input[position + 2] & BYTE_MASK) << 16 | (input[position + 3] & BYTE_MASK) << 24);
+            int high = input[position + 4] & BYTE_MASK | (input[position + 5] & BYTE_MASK) << 8
+                | (input[position + 6] & BYTE_MASK) << 16 | (input[position + 7] & BYTE_MASK) << 24;
+            value = t7[low & BYTE_MASK] ^ t6[(low >>> 8) & BYTE_MASK] ^ t5[(low >>> 16) & BYTE_MASK] ^ t4[low >>> 24]
+                ^ t3[high & BYTE_MASK] ^ t2[(high >>> 8) & BYTE_MASK] ^ t1[(high >>> 16) & BYTE_MASK]
+                ^ t0[high >>> 24];
+        }
+        for (; position < end; position++) {
+            value = (value >>> Byte.SIZE) ^ t0[(value ^ input[position]) & BYTE_MASK];
+        }
+        this.crc = value;
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        int value = ~this.crc;
+        engineReset();
+
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        this.crc = ~0;
+    }
+}
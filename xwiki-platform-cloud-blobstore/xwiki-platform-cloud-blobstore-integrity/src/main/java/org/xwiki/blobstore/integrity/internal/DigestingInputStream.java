@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+/**
+ * Input stream computing the checksum of the bytes read through it, as they are read, so that the content does not
+ * have to be read a second time. Skipped bytes are read too, so that they are part of the checksum.
+ *
+ * @version $Id$
+ */
+public class DigestingInputStream extends FilterInputStream
+{
+    /**
+     * The size of the buffer used for skipping bytes.
+     */
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    /**
+     * The algorithm of the checksum.
+     */
+    private final ChecksumAlgorithm algorithm;
+
+    /**
+     * The digest of the bytes read so far.
+     */
+    private final MessageDigest digest;
+
+    /**
+     * The number of bytes read so far.
+     */
+    private long length;
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream whose checksum is computed.
+     * @param algorithm The algorithm of the checksum.
+     */
+    public DigestingInputStream(InputStream in, ChecksumAlgorithm algorithm)
+    {
+        super(in);
+
+        this.algorithm = algorithm;
+        this.digest = algorithm.newDigest();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b >= 0) {
+            this.digest.update((byte) b);
+            this.length++;
+        } else {
+            onEnd();
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            this.digest.update(buffer, offset, read);
+            this.length += read;
+        } else if (read < 0) {
+            onEnd();
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(count, SKIP_BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit)
+    {
+        // Not supported, since the bytes read again would be added to the checksum twice.
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Compute the checksum of the bytes read so far. It should only be called once the stream has been read entirely,
+     * and only once.
+     *
+     * @return The checksum of the bytes read.
+     */
+    public BlobChecksum getChecksum()
+    {
+        byte[] value = this.digest.digest();
+
+        return new BlobChecksum(this.algorithm, String.format("%0" + value.length * 2 + "x", new BigInteger(1, value)),
+            this.length);
+    }
+
+    /**
+     * Called each time the end of the stream is reached.
+     *
+     * @throws IOException If the stream should fail instead of ending.
+     */
+    protected void onEnd() throws IOException
+    {
+        // Nothing to do by default.
+    }
+}
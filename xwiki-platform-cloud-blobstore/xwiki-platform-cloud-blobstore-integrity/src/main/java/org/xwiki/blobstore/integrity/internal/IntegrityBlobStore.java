@@ -0,0 +1,569 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Blob store recording a checksum of each blob written to another blob store, and verifying it when the blob is read,
+ * so that a blob corrupted by the storage is not silently served. The checksum is computed while the content is
+ * uploaded and verified while it is read, without any additional pass over the content, and stored in a small blob
+ * next to the blob.
+ * <p>
+ * The checksum is written after the blob, and read once the content of the blob has been read entirely, so that reads
+ * which do not return any content, or whose stream is closed early, cost no additional request. A checksum older than
+ * its blob belongs to a previous version of the blob, whose new checksum is being written, and is ignored.
+ * <p>
+ * Blobs written before enabling this blob store have no checksum and are read without verification. Ranges of blobs
+ * cannot be verified either.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(IntegrityBlobStore.HINT)
+@Singleton
+public class IntegrityBlobStore implements BlobStore, Initializable
+{
+    /**
+     * The hint of this blob store.
+     */
+    public static final String HINT = "integrity";
+
+    /**
+     * The hint of the blob store where the blobs are stored.
+     */
+    public static final String BLOBSTORE_INTEGRITY_STORE_PROPERTY = "xwiki.store.attachments.blobstore.integrity.store";
+
+    /**
+     * The algorithm of the checksums of the blobs written: {@code CRC32C}, {@code MD5} or {@code SHA-256}.
+     */
+    public static final String BLOBSTORE_INTEGRITY_ALGORITHM_PROPERTY =
+        "xwiki.store.attachments.blobstore.integrity.algorithm";
+
+    /**
+     * Whether the checksum of the blobs is verified when they are read.
+     */
+    public static final String BLOBSTORE_INTEGRITY_VERIFY_PROPERTY =
+        "xwiki.store.attachments.blobstore.integrity.verify";
+
+    /**
+     * The path under which the checksums of the blobs are stored.
+     */
+    public static final String CHECKSUM_PREFIX = ".checksums/";
+
+    /**
+     * The default blob store where the blobs are stored.
+     */
+    private static final String DEFAULT_STORE = "s3";
+
+    /**
+     * The maximum length of a stored checksum, far above the length of a SHA-256 checksum.
+     */
+    private static final int MAX_CHECKSUM_LENGTH = 256;
+
+    /**
+     * The size of the buffer used for reading blobs entirely.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The result of the verification of a blob.
+     */
+    public enum Verification
+    {
+        /**
+         * The content of the blob matches its checksum.
+         */
+        VALID,
+
+        /**
+         * The content of the blob does not match its checksum.
+         */
+        CORRUPTED,
+
+        /**
+         * The blob has no checksum, having been written before enabling this blob store.
+         */
+        UNCHECKED,
+
+        /**
+         * The blob does not exist.
+         */
+        MISSING
+    }
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The component manager for looking up the blob store where the blobs are stored.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The blob store where the blobs are stored.
+     */
+    private BlobStore store;
+
+    /**
+     * The algorithm of the checksums of the blobs written.
+     */
+    private ChecksumAlgorithm algorithm;
+
+    /**
+     * Whether the checksum of the blobs is verified when they are read.
+     */
+    private boolean verify;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.configurationSource.getProperty(BLOBSTORE_INTEGRITY_STORE_PROPERTY, DEFAULT_STORE);
+        if (HINT.equals(storeHint)) {
+            throw new InitializationException(String.format("%s cannot be '%s'", BLOBSTORE_INTEGRITY_STORE_PROPERTY,
+                HINT));
+        }
+
+        try {
+            this.store = this.componentManager.getInstance(BlobStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Unable to lookup the blob store '%s'", storeHint), e);
+        }
+
+        String algorithmName = this.configurationSource.getProperty(BLOBSTORE_INTEGRITY_ALGORITHM_PROPERTY,
+            ChecksumAlgorithm.CRC32C.getName());
+        this.algorithm = ChecksumAlgorithm.forName(algorithmName);
+        if (this.algorithm == null) {
+            throw new InitializationException(String.format("Unknown checksum algorithm '%s' in %s", algorithmName,
+                BLOBSTORE_INTEGRITY_ALGORITHM_PROPERTY));
+        }
+
+        this.verify = this.configurationSource.getProperty(BLOBSTORE_INTEGRITY_VERIFY_PROPERTY, true);
+
+        this.logger.debug("Integrity checking blob store initialized on blob store '{}' with {} checksums", storeHint,
+            this.algorithm.getName());
+    }
+
+    /**
+     * @return The blob store where the blobs are stored.
+     */
+    public BlobStore getStore()
+    {
+        return this.store;
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        putBlob(path, content, -1);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        DigestingInputStream digestingContent = new DigestingInputStream(content, this.algorithm);
+        if (length >= 0) {
+            this.store.putBlob(path, digestingContent, length);
+        } else {
+            this.store.putBlob(path, digestingContent);
+        }
+
+        try {
+            writeChecksum(path, digestingContent.getChecksum());
+        } catch (RuntimeException e) {
+            // The previous checksum is older than the new blob and thus ignored, but it is not worth keeping.
+            deleteChecksum(path);
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        if (!this.verify) {
+            return this.store.getBlob(path);
+        }
+
+        // The metadata of the blob tells a corrupted content from a content written again while it was read.
+        Blob blob = this.store.readBlob(path, null, null);
+
+        return blob != null ? new VerifyingInputStream(blob.getContent(), this, path, blob.getMetadata(),
+            this.algorithm) : null;
+    }
+
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        // A range cannot be verified against the checksum of the whole blob.
+        return this.store.getBlob(path, offset, length);
+    }
+
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        Blob blob = this.store.readBlob(path, ifNoneMatch, ifModifiedSince);
+        if (!this.verify || blob == null || !blob.isModified()) {
+            return blob;
+        }
+
+        return new Blob(blob.getMetadata(),
+            new VerifyingInputStream(blob.getContent(), this, path, blob.getMetadata(), this.algorithm));
+    }
+
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        return this.store.getBlobMetadata(path);
+    }
+
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        return this.store.getBlobMetadata(paths);
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        this.store.deleteBlob(path);
+        this.store.deleteBlob(getChecksumPath(path));
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        Map<String, Exception> failures = this.store.deleteBlobs(paths);
+
+        List<String> checksumPaths = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            if (!failures.containsKey(path)) {
+                checksumPaths.add(getChecksumPath(path));
+            }
+        }
+        for (Map.Entry<String, Exception> failure : this.store.deleteBlobs(checksumPaths).entrySet()) {
+            // The checksum is deleted again the next time a blob is written at the same path.
+            this.logger.warn("Unable to delete the checksum [{}]: {}", failure.getKey(),
+                failure.getValue().getMessage());
+        }
+
+        return failures;
+    }
+
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        StoredChecksum checksum = readChecksum(sourcePath);
+
+        this.store.moveBlob(sourcePath, targetPath);
+
+        if (checksum != null) {
+            writeChecksum(targetPath, checksum.getChecksum());
+            this.store.deleteBlob(getChecksumPath(sourcePath));
+        } else {
+            this.store.deleteBlob(getChecksumPath(targetPath));
+        }
+    }
+
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        StoredChecksum checksum = readChecksum(sourcePath);
+
+        this.store.copyBlob(sourcePath, targetPath);
+
+        if (checksum != null) {
+            writeChecksum(targetPath, checksum.getChecksum());
+        } else {
+            this.store.deleteBlob(getChecksumPath(targetPath));
+        }
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return listBlobs(prefix, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The checksums stored under {@link #CHECKSUM_PREFIX} are only listed when the prefix points inside it.
+     */
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        final Iterator<BlobMetadata> blobs = this.store.listBlobs(prefix, startAfter);
+        if (prefix.startsWith(CHECKSUM_PREFIX)) {
+            return blobs;
+        }
+
+        return new Iterator<BlobMetadata>()
+        {
+            private BlobMetadata next = advance();
+
+            private BlobMetadata advance()
+            {
+                while (blobs.hasNext()) {
+                    BlobMetadata blob = blobs.next();
+                    if (!blob.getPath().startsWith(CHECKSUM_PREFIX)) {
+                        return blob;
+                    }
+                }
+
+                return null;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.next != null;
+            }
+
+            @Override
+            public BlobMetadata next()
+            {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                BlobMetadata blob = this.next;
+                this.next = advance();
+
+                return blob;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Read a blob entirely and verify it against its checksum, whether or not the blobs are verified when read.
+     *
+     * @param path The path of the blob.
+     * @return The result of the verification.
+     */
+    public Verification verifyBlob(String path)
+    {
+        // The checksum tells the algorithm with which the content has to be read.
+        StoredChecksum checksum = readChecksum(path);
+        Blob blob = this.store.readBlob(path, null, null);
+        if (blob == null) {
+            return Verification.MISSING;
+        } else if (checksum == null) {
+            closeQuietly(blob.getContent());
+            return Verification.UNCHECKED;
+        }
+
+        VerifyingInputStream verifyingContent =
+            new VerifyingInputStream(blob.getContent(), this, path, blob.getMetadata(), checksum);
+        try (InputStream content = verifyingContent) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (content.read(buffer) >= 0) {
+                // The content is verified when its end is reached.
+            }
+        } catch (ChecksumMismatchException e) {
+            this.logger.error(e.getMessage());
+            return Verification.CORRUPTED;
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read blob '%s'", path), e);
+        }
+
+        return verifyingContent.isVerified() ? Verification.VALID : Verification.UNCHECKED;
+    }
+
+    /**
+     * Verify the content read from a blob against its stored checksum.
+     *
+     * @param path The path of the blob.
+     * @param metadata The metadata of the blob read.
+     * @param expected The checksum stored for the blob, or null if it has none.
+     * @param actual The checksum of the content read.
+     * @return true if the content matches its checksum, false if it cannot be verified.
+     * @throws ChecksumMismatchException If the content does not match its checksum.
+     */
+    boolean verify(String path, BlobMetadata metadata, StoredChecksum expected, BlobChecksum actual)
+        throws ChecksumMismatchException
+    {
+        if (expected == null) {
+            return false;
+        } else if (expected.getChecksum().getAlgorithm() != actual.getAlgorithm()) {
+            this.logger.debug("The checksum of blob '{}' was computed with another algorithm than {}", path,
+                actual.getAlgorithm().getName());
+            return false;
+        } else if (expected.getChecksum().equals(actual)) {
+            return true;
+        } else if (isChecksumOutdated(path, metadata, expected)) {
+            return false;
+        }
+
+        throw new ChecksumMismatchException(String.format(
+            "The content of blob [%s] does not match its checksum: expected [%s], read [%s]", path,
+            expected.getChecksum(), actual));
+    }
+
+    /**
+     * Check whether a checksum which does not match the content of a blob belongs to another version of the blob, in
+     * which case the content cannot be verified.
+     *
+     * @param path The path of the blob.
+     * @param metadata The metadata of the blob read.
+     * @param checksum The checksum stored for the blob.
+     * @return true if the checksum is older than the blob, or if the blob was written again while it was read.
+     */
+    private boolean isChecksumOutdated(String path, BlobMetadata metadata, StoredChecksum checksum)
+    {
+        Date lastModified = metadata.getLastModified();
+        if (lastModified != null && checksum.getLastModified() != null
+            && checksum.getLastModified().before(lastModified)) {
+            this.logger.debug("The checksum of blob '{}' is older than the blob, it is being written", path);
+            return true;
+        }
+
+        BlobMetadata currentMetadata = this.store.getBlobMetadata(path);
+        if (currentMetadata == null || !Objects.equals(currentMetadata.getEtag(), metadata.getEtag())
+            || !Objects.equals(currentMetadata.getLastModified(), lastModified)) {
+            this.logger.debug("Blob '{}' was written while it was read, its content cannot be verified", path);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The checksum of the blob, or null if it has none or it is invalid.
+     */
+    StoredChecksum readChecksum(String path)
+    {
+        Blob blob = this.store.readBlob(getChecksumPath(path), null, null);
+        if (blob == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[MAX_CHECKSUM_LENGTH];
+            int read;
+            while ((read = blob.getContent().read(buffer)) >= 0 && serialized.size() <= MAX_CHECKSUM_LENGTH) {
+                serialized.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to read the checksum of blob '%s'", path), e);
+        } finally {
+            closeQuietly(blob.getContent());
+        }
+
+        BlobChecksum checksum = BlobChecksum.parse(new String(serialized.toByteArray(), StandardCharsets.US_ASCII));
+        if (checksum == null) {
+            this.logger.warn("Ignoring the invalid checksum of blob '{}'", path);
+            return null;
+        }
+
+        return new StoredChecksum(checksum, blob.getMetadata().getLastModified());
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param checksum The checksum of the blob.
+     */
+    private void writeChecksum(String path, BlobChecksum checksum)
+    {
+        byte[] serialized = checksum.toString().getBytes(StandardCharsets.US_ASCII);
+
+        this.store.putBlob(getChecksumPath(path), new ByteArrayInputStream(serialized), serialized.length);
+    }
+
+    /**
+     * Delete the checksum of a blob, ignoring failures.
+     *
+     * @param path The path of the blob.
+     */
+    private void deleteChecksum(String path)
+    {
+        try {
+            this.store.deleteBlob(getChecksumPath(path));
+        } catch (RuntimeException e) {
+            this.logger.warn("Unable to delete the checksum of blob '{}': {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The path where the checksum of the blob is stored.
+     */
+    private String getChecksumPath(String path)
+    {
+        return CHECKSUM_PREFIX.concat(path);
+    }
+
+    /**
+     * @param content A stream to close, ignoring failures.
+     */
+    private void closeQuietly(InputStream content)
+    {
+        try {
+            content.close();
+        } catch (IOException e) {
+            this.logger.debug("Unable to close blob stream: {}", e.getMessage());
+        }
+    }
+}
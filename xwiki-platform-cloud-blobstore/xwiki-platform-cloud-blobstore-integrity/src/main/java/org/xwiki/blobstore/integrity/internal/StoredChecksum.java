@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.util.Date;
+
+/**
+ * A checksum as stored next to its blob, along with the date it was written, for telling whether it was written for
+ * the current version of the blob.
+ *
+ * @version $Id$
+ */
+public class StoredChecksum
+{
+    /**
+     * The checksum.
+     */
+    private final BlobChecksum checksum;
+
+    /**
+     * The date the checksum was written.
+     */
+    private final Date lastModified;
+
+    /**
+     * Constructor.
+     *
+     * @param checksum The checksum.
+     * @param lastModified The date the checksum was written, or null if unknown.
+     */
+    public StoredChecksum(BlobChecksum checksum, Date lastModified)
+    {
+        this.checksum = checksum;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The checksum.
+     */
+    public BlobChecksum getChecksum()
+    {
+        return this.checksum;
+    }
+
+    /**
+     * @return The date the checksum was written, or null if unknown.
+     */
+    public Date getLastModified()
+    {
+        return this.lastModified;
+    }
+}
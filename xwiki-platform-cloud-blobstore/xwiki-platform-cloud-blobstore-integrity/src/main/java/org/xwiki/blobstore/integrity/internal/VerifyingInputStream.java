@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xwiki.blobstore.BlobMetadata;
+
+/**
+ * Input stream verifying, when its end is reached, that the bytes read through it match the checksum computed when
+ * the blob was written. The checksum is computed while the content is read, so verifying it adds no pass over the
+ * content. Unless it is given, the stored checksum is only read once the end is reached. A stream closed before its
+ * end is not verified.
+ *
+ * @version $Id$
+ */
+public class VerifyingInputStream extends DigestingInputStream
+{
+    /**
+     * The blob store, for reading the stored checksum and checking whether the blob was written again while it was
+     * read.
+     */
+    private final IntegrityBlobStore store;
+
+    /**
+     * The path of the blob.
+     */
+    private final String path;
+
+    /**
+     * The metadata of the blob read.
+     */
+    private final BlobMetadata metadata;
+
+    /**
+     * The checksum stored for the blob, or null for reading it when the end is reached.
+     */
+    private final StoredChecksum expected;
+
+    /**
+     * Whether the end of the content has been reached.
+     */
+    private boolean ended;
+
+    /**
+     * Whether the content has been verified against its checksum.
+     */
+    private boolean verified;
+
+    /**
+     * Constructor for a content whose checksum is read when its end is reached.
+     *
+     * @param in The content of the blob.
+     * @param store The blob store, for reading the stored checksum.
+     * @param path The path of the blob.
+     * @param metadata The metadata of the blob read.
+     * @param algorithm The algorithm of the checksums of the blobs written.
+     */
+    public VerifyingInputStream(InputStream in, IntegrityBlobStore store, String path, BlobMetadata metadata,
+        ChecksumAlgorithm algorithm)
+    {
+        super(in, algorithm);
+
+        this.store = store;
+        this.path = path;
+        this.metadata = metadata;
+        this.expected = null;
+    }
+
+    /**
+     * Constructor for a content whose checksum has already been read.
+     *
+     * @param in The content of the blob.
+     * @param store The blob store, for checking whether the blob was written again while it was read.
+     * @param path The path of the blob.
+     * @param metadata The metadata of the blob read.
+     * @param expected The checksum stored for the blob.
+     */
+    public VerifyingInputStream(InputStream in, IntegrityBlobStore store, String path, BlobMetadata metadata,
+        StoredChecksum expected)
+    {
+        super(in, expected.getChecksum().getAlgorithm());
+
+        this.store = store;
+        this.path = path;
+        this.metadata = metadata;
+        this.expected = expected;
+    }
+
+    /**
+     * @return true if the content has been read entirely and matched its checksum, false if it has not been read
+     *         entirely or could not be verified, for instance because it has no checksum
+     */
+    public boolean isVerified()
+    {
+        return this.verified;
+    }
+
+    @Override
+    protected void onEnd() throws IOException
+    {
+        if (this.ended) {
+            return;
+        }
+        this.ended = true;
+
+        StoredChecksum checksum = this.expected != null ? this.expected : this.store.readChecksum(this.path);
+        this.verified = this.store.verify(this.path, this.metadata, checksum, getChecksum());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.integrity.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.MemoryBlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link IntegrityBlobStore}.
+ *
+ * @version $Id$
+ */
+public class IntegrityBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        IntegrityBlobStore.class);
+
+    /**
+     * A path used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * Another path used by the tests.
+     */
+    private static final String OTHER_PATH = "xwiki/Space/OtherPage/file.txt";
+
+    /**
+     * The content used by the tests.
+     */
+    private static final byte[] CONTENT = "The content of an attachment".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The blob store where the blobs are stored.
+     */
+    private MemoryBlobStore store;
+
+    /**
+     * Setup the blob store for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = new MemoryBlobStore();
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+    }
+
+    /**
+     * Check that the checksum of a blob is stored along with it and verified when it is read.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutAndGetBlob() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        blobStore.putBlob(OTHER_PATH, new ByteArrayInputStream(CONTENT));
+
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertArrayEquals(CONTENT, read(blobStore.readBlob(OTHER_PATH, null, null).getContent()));
+        Assert.assertEquals(IntegrityBlobStore.Verification.VALID, blobStore.verifyBlob(PATH));
+
+        BlobChecksum checksum = BlobChecksum.parse(new String(
+            this.store.getBlobs().get(IntegrityBlobStore.CHECKSUM_PREFIX + PATH), StandardCharsets.US_ASCII));
+        Assert.assertEquals(ChecksumAlgorithm.CRC32C, checksum.getAlgorithm());
+        Assert.assertEquals(CONTENT.length, checksum.getLength());
+        Assert.assertEquals(checksum.toString(), BlobChecksum.parse(checksum.toString()).toString());
+    }
+
+    /**
+     * Check that reading a blob corrupted by the underlying blob store fails once its content has been read.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testCorruptedBlobIsDetected() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        this.store.getBlobs().get(PATH)[3] ^= 1;
+
+        try {
+            read(blobStore.getBlob(PATH));
+            Assert.fail("The corrupted blob should not have been read");
+        } catch (ChecksumMismatchException e) {
+            // Expected.
+        }
+        Assert.assertEquals(IntegrityBlobStore.Verification.CORRUPTED, blobStore.verifyBlob(PATH));
+
+        // Ranges cannot be verified.
+        Assert.assertEquals(4, read(blobStore.getBlob(PATH, 0, 4)).length);
+    }
+
+    /**
+     * Check that writing a blob costs one write for the blob and one for its checksum, and that the checksum is only
+     * read once the content has been read entirely.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testChecksumReadOnlyWithContent() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        Assert.assertEquals(Arrays.asList(PATH, IntegrityBlobStore.CHECKSUM_PREFIX + PATH),
+            this.store.getWrittenPaths());
+
+        this.store.resetCounts();
+        Assert.assertNull(blobStore.getBlob(OTHER_PATH));
+        Assert.assertNull(blobStore.readBlob(OTHER_PATH, null, null));
+        Assert.assertEquals(2, this.store.getReadCount());
+
+        this.store.resetCounts();
+        blobStore.getBlob(PATH).close();
+        Assert.assertEquals(1, this.store.getReadCount());
+
+        this.store.resetCounts();
+        Assert.assertArrayEquals(CONTENT, read(blobStore.readBlob(PATH, null, null).getContent()));
+        Assert.assertEquals(2, this.store.getReadCount());
+    }
+
+    /**
+     * Check that a blob written again without its checksum, as when the checksum of its new version fails to be
+     * written, is not reported as corrupted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testOutdatedChecksumIsIgnored() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+        byte[] newContent = "A new version".getBytes(StandardCharsets.UTF_8);
+        this.store.putBlob(PATH, new ByteArrayInputStream(newContent));
+
+        Assert.assertArrayEquals(newContent, read(blobStore.getBlob(PATH)));
+        Assert.assertEquals(IntegrityBlobStore.Verification.UNCHECKED, blobStore.verifyBlob(PATH));
+
+        blobStore.putBlob(PATH, new ByteArrayInputStream(newContent));
+        Assert.assertEquals(IntegrityBlobStore.Verification.VALID, blobStore.verifyBlob(PATH));
+    }
+
+    /**
+     * Check that blobs written before enabling the checksums are still readable.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testBlobWithoutChecksum() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        this.store.putBlob(PATH, new ByteArrayInputStream(CONTENT));
+
+        Assert.assertArrayEquals(CONTENT, read(blobStore.getBlob(PATH)));
+        Assert.assertEquals(IntegrityBlobStore.Verification.UNCHECKED, blobStore.verifyBlob(PATH));
+        Assert.assertEquals(IntegrityBlobStore.Verification.MISSING, blobStore.verifyBlob(OTHER_PATH));
+    }
+
+    /**
+     * Check that the checksum follows the blob when it is moved or deleted, and that it is not listed.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMoveDeleteAndListBlobs() throws Exception
+    {
+        IntegrityBlobStore blobStore = (IntegrityBlobStore) this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        blobStore.moveBlob(PATH, OTHER_PATH);
+        Assert.assertNull(blobStore.getBlob(PATH));
+        Assert.assertEquals(IntegrityBlobStore.Verification.VALID, blobStore.verifyBlob(OTHER_PATH));
+        Assert.assertFalse(this.store.getBlobs().containsKey(IntegrityBlobStore.CHECKSUM_PREFIX + PATH));
+
+        List<String> paths = new ArrayList<String>();
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs("");
+        while (blobs.hasNext()) {
+            paths.add(blobs.next().getPath());
+        }
+        Assert.assertEquals(Arrays.asList(OTHER_PATH), paths);
+
+        Assert.assertTrue(blobStore.deleteBlobs(Arrays.asList(OTHER_PATH)).isEmpty());
+        Assert.assertTrue(this.store.getBlobs().isEmpty());
+    }
+
+    /**
+     * Check the CRC32C implementation against the check value of the algorithm.
+     */
+    @Test
+    public void testCrc32c()
+    {
+        MessageDigest digest = ChecksumAlgorithm.CRC32C.newDigest();
+        digest.update("123456789".getBytes(StandardCharsets.US_ASCII));
+
+        Assert.assertArrayEquals(new byte[] {(byte) 0xe3, 0x06, (byte) 0x92, (byte) 0x83}, digest.digest());
+    }
+
+    /**
+     * @param stream The stream to read.
+     * @return The content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8];
+        try {
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return output.toByteArray();
+    }
+}
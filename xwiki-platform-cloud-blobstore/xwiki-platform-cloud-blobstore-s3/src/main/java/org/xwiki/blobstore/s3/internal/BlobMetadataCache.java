@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.blobstore.BlobMetadata;
+
+/**
+ * Keeps the metadata of the most recently looked up blobs in memory for a limited time, so that checking again
+ * whether a blob exists or how large it is does not need a request to S3. The blobs found missing are remembered too.
+ * The entries are dropped when the blob store writes or deletes the blob, but the changes made by other wiki
+ * instances are only seen once the entries expire.
+ *
+ * @version $Id$
+ */
+public class BlobMetadataCache
+{
+    /**
+     * A cached lookup.
+     */
+    public static final class Entry
+    {
+        /**
+         * The metadata of the blob, null if the blob was missing.
+         */
+        private final BlobMetadata metadata;
+
+        /**
+         * The time after which the entry is not used anymore, in nanoseconds.
+         */
+        private final long expirationTime;
+
+        /**
+         * Constructor.
+         *
+         * @param metadata The metadata of the blob, null if the blob was missing.
+         * @param expirationTime The time after which the entry is not used anymore, in nanoseconds.
+         */
+        private Entry(BlobMetadata metadata, long expirationTime)
+        {
+            this.metadata = metadata;
+            this.expirationTime = expirationTime;
+        }
+
+        /**
+         * @return The metadata of the blob, null if the blob was missing.
+         */
+        public BlobMetadata getMetadata()
+        {
+            return this.metadata;
+        }
+    }
+
+    /**
+     * The time during which the entries are used, in nanoseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * The entries, by path, the least recently used first.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Incremented each time an entry is dropped, so that a lookup started before a blob was written does not cache
+     * the former metadata of the blob.
+     */
+    private long generation;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize The maximum number of entries, the least recently used ones being dropped first.
+     * @param timeToLive The time during which the entries are used, in milliseconds.
+     */
+    public BlobMetadataCache(final int maxSize, long timeToLive)
+    {
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BlobMetadataCache.Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return The generation to pass to {@link #put(String, BlobMetadata, long)} once the lookup started now is done.
+     */
+    public synchronized long getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The cached lookup of the blob, or null if the blob was not looked up recently.
+     */
+    public synchronized Entry get(String path)
+    {
+        Entry entry = this.entries.get(path);
+        if (entry != null && entry.expirationTime - System.nanoTime() < 0) {
+            this.entries.remove(path);
+            entry = null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Cache the result of a lookup, unless an entry was dropped since the lookup started.
+     *
+     * @param path The path of the blob.
+     * @param metadata The metadata of the blob, null if the blob is missing.
+     * @param lookupGeneration The generation returned by {@link #getGeneration()} before the lookup started.
+     */
+    public synchronized void put(String path, BlobMetadata metadata, long lookupGeneration)
+    {
+        if (lookupGeneration == this.generation) {
+            this.entries.put(path, new Entry(metadata, System.nanoTime() + this.timeToLive));
+        }
+    }
+
+    /**
+     * Drop the entry of a blob which was written or deleted.
+     *
+     * @param path The path of the blob.
+     */
+    public synchronized void invalidate(String path)
+    {
+        this.generation++;
+        this.entries.remove(path);
+    }
+}
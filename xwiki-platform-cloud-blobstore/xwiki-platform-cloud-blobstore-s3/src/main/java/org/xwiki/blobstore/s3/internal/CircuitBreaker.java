@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to S3 for a while after too many consecutive failures, so that the threads using the blob
+ * store fail fast instead of piling up while S3 is unavailable or throttling. Once the open duration has elapsed, a
+ * single trial request is let through: the breaker closes again if it succeeds, and opens again otherwise.
+ *
+ * @version $Id$
+ */
+public class CircuitBreaker
+{
+    /**
+     * The states of the breaker.
+     */
+    public enum State
+    {
+        /**
+         * The requests are sent.
+         */
+        CLOSED,
+
+        /**
+         * The requests are rejected.
+         */
+        OPEN,
+
+        /**
+         * A trial request is sent, the others are rejected.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of consecutive failures opening the breaker, 0 for never opening it.
+     */
+    private final int failureThreshold;
+
+    /**
+     * How long the breaker stays open before letting a trial request through, in nanoseconds.
+     */
+    private final long openDuration;
+
+    /**
+     * The state of the breaker.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failures.
+     */
+    private int failureCount;
+
+    /**
+     * The time when the breaker was opened, in nanoseconds.
+     */
+    private long openTime;
+
+    /**
+     * Whether the trial request of the half-open state has been let through.
+     */
+    private boolean trialSent;
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold The number of consecutive failures opening the breaker, 0 for never opening it.
+     * @param openDuration How long the breaker stays open before letting a trial request through, in milliseconds.
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+    }
+
+    /**
+     * @return true if a request can be sent, false if it must be rejected.
+     */
+    public synchronized boolean allowRequest()
+    {
+        if (this.state == State.OPEN && System.nanoTime() - this.openTime >= this.openDuration) {
+            this.state = State.HALF_OPEN;
+            this.trialSent = false;
+        }
+
+        switch (this.state) {
+            case OPEN:
+                return false;
+            case HALF_OPEN:
+                if (this.trialSent) {
+                    return false;
+                }
+                this.trialSent = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record a request that did not fail because of S3, even if S3 answered with a client error.
+     */
+    public synchronized void onSuccess()
+    {
+        this.state = State.CLOSED;
+        this.failureCount = 0;
+    }
+
+    /**
+     * Record a request that failed because S3 was unavailable, unreachable or throttling.
+     *
+     * @return true if this failure opened the breaker.
+     */
+    public synchronized boolean onFailure()
+    {
+        if (this.failureThreshold <= 0) {
+            return false;
+        }
+
+        this.failureCount++;
+        boolean thresholdReached = this.state == State.CLOSED && this.failureCount >= this.failureThreshold;
+        if (this.state == State.HALF_OPEN || thresholdReached) {
+            this.state = State.OPEN;
+            this.openTime = System.nanoTime();
+            this.failureCount = 0;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The state of the breaker.
+     */
+    public synchronized State getState()
+    {
+        return this.state;
+    }
+}
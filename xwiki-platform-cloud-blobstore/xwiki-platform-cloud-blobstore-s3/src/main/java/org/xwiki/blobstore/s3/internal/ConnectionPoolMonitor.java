@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Wraps an S3 client for following how many of its pooled connections are in use. A connection is held by a request
+ * until it completes, and by a download until its content is closed, so a number of leased connections that never
+ * goes down also reveals downloads that are not closed.
+ *
+ * @version $Id$
+ */
+public class ConnectionPoolMonitor implements InvocationHandler, ConnectionPoolMonitorMBean
+{
+    /**
+     * The wrapped client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The maximum number of connections of the pool of the client.
+     */
+    private final int maxConnections;
+
+    /**
+     * The number of connections in use.
+     */
+    private final AtomicInteger leasedConnections = new AtomicInteger();
+
+    /**
+     * The highest number of connections in use at the same time.
+     */
+    private final AtomicInteger peakLeasedConnections = new AtomicInteger();
+
+    /**
+     * The number of requests sent.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * The number of requests that found all the connections in use.
+     */
+    private final AtomicLong saturatedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param client The client to wrap.
+     * @param maxConnections The maximum number of connections of the pool of the client.
+     */
+    public ConnectionPoolMonitor(AmazonS3 client, int maxConnections)
+    {
+        this.client = client;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return A client whose connections are followed by this monitor.
+     */
+    public AmazonS3 getClient()
+    {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] {AmazonS3.class},
+            this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if (ResilientS3Client.isLocal(method)) {
+            return invokeClient(method, args);
+        }
+
+        lease();
+        boolean released = true;
+        try {
+            Object result = invokeClient(method, args);
+            if (result instanceof S3Object && ((S3Object) result).getObjectContent() != null) {
+                // The connection is held until the content has been read and closed.
+                S3Object object = (S3Object) result;
+                object.setObjectContent(new LeasedContent(object.getObjectContent()));
+                released = false;
+            }
+
+            return result;
+        } finally {
+            if (released) {
+                this.leasedConnections.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxConnections()
+    {
+        return this.maxConnections;
+    }
+
+    @Override
+    public int getLeasedConnections()
+    {
+        return this.leasedConnections.get();
+    }
+
+    @Override
+    public int getPeakLeasedConnections()
+    {
+        return this.peakLeasedConnections.get();
+    }
+
+    @Override
+    public long getRequestCount()
+    {
+        return this.requestCount.get();
+    }
+
+    @Override
+    public long getSaturatedCount()
+    {
+        return this.saturatedCount.get();
+    }
+
+    /**
+     * Account for a connection taken by a request.
+     */
+    private void lease()
+    {
+        this.requestCount.incrementAndGet();
+
+        int leased = this.leasedConnections.incrementAndGet();
+        if (leased > this.maxConnections) {
+            this.saturatedCount.incrementAndGet();
+        }
+
+        int peak = this.peakLeasedConnections.get();
+        while (leased > peak && !this.peakLeasedConnections.compareAndSet(peak, leased)) {
+            peak = this.peakLeasedConnections.get();
+        }
+    }
+
+    /**
+     * @param method A method of the client.
+     * @param args The arguments of the method.
+     * @return The value returned by the method.
+     * @throws Throwable The exception thrown by the method.
+     */
+    private Object invokeClient(Method method, Object[] args) throws Throwable
+    {
+        try {
+            return method.invoke(this.client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The content of a downloaded object, releasing its connection when closed.
+     */
+    private class LeasedContent extends FilterInputStream
+    {
+        /**
+         * Whether the connection was released.
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         *
+         * @param content The content of the object.
+         */
+        LeasedContent(InputStream content)
+        {
+            super(content);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                super.close();
+            } finally {
+                if (this.released.compareAndSet(false, true)) {
+                    leasedConnections.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+/**
+ * The JMX view of the usage of the connections of the S3 client, for sizing its connection pool.
+ *
+ * @version $Id$
+ */
+public interface ConnectionPoolMonitorMBean
+{
+    /**
+     * @return The maximum number of connections of the pool.
+     */
+    int getMaxConnections();
+
+    /**
+     * @return The number of connections in use, by requests in progress or by downloads not closed yet.
+     */
+    int getLeasedConnections();
+
+    /**
+     * @return The highest number of connections in use at the same time.
+     */
+    int getPeakLeasedConnections();
+
+    /**
+     * @return The number of requests sent.
+     */
+    long getRequestCount();
+
+    /**
+     * @return The number of requests that had to wait for a connection because they were all in use.
+     */
+    long getSaturatedCount();
+}
@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Default S3 client factory, creating clients that talk to Amazon S3, or to any S3-compatible store when an endpoint
+ * is configured. The HTTP client of the S3 client is configured from the {@code cloud} configuration source, so that
+ * its settings can also be passed through remapped environment variables.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultS3ClientFactory implements S3ClientFactory
+{
+    /**
+     * The endpoint of the S3 service, for instance {@code https://s3.eu-west-1.amazonaws.com} or the URL of an
+     * S3-compatible store. Amazon S3 in the US standard region is used when not set.
+     */
+    public static final String BLOBSTORE_ENDPOINT_PROPERTY = "xwiki.store.attachments.blobstore.endpoint";
+
+    /**
+     * The protocol used for talking to S3, {@code https} or {@code http}.
+     */
+    public static final String BLOBSTORE_PROTOCOL_PROPERTY = "xwiki.store.attachments.blobstore.protocol";
+
+    /**
+     * The maximum number of connections to S3 kept open by the client, which bounds the number of concurrent
+     * requests, downloads included.
+     */
+    public static final String BLOBSTORE_MAX_CONNECTIONS_PROPERTY =
+        "xwiki.store.attachments.blobstore.connection.max";
+
+    /**
+     * The time allowed for establishing a connection to S3, in milliseconds.
+     */
+    public static final String BLOBSTORE_CONNECTION_TIMEOUT_PROPERTY =
+        "xwiki.store.attachments.blobstore.timeout.connection";
+
+    /**
+     * The time allowed for S3 to send data on an established connection, in milliseconds.
+     */
+    public static final String BLOBSTORE_SOCKET_TIMEOUT_PROPERTY = "xwiki.store.attachments.blobstore.timeout.socket";
+
+    /**
+     * The size hint of the TCP send buffer of the connections, in bytes, 0 for the system default.
+     */
+    public static final String BLOBSTORE_SOCKET_SEND_BUFFER_PROPERTY =
+        "xwiki.store.attachments.blobstore.socket.sendBufferSize";
+
+    /**
+     * The size hint of the TCP receive buffer of the connections, in bytes, 0 for the system default.
+     */
+    public static final String BLOBSTORE_SOCKET_RECEIVE_BUFFER_PROPERTY =
+        "xwiki.store.attachments.blobstore.socket.receiveBufferSize";
+
+    /**
+     * The host of the HTTP proxy used for reaching S3, none when not set.
+     */
+    public static final String BLOBSTORE_PROXY_HOST_PROPERTY = "xwiki.store.attachments.blobstore.proxy.host";
+
+    /**
+     * The port of the HTTP proxy.
+     */
+    public static final String BLOBSTORE_PROXY_PORT_PROPERTY = "xwiki.store.attachments.blobstore.proxy.port";
+
+    /**
+     * The user name used for authenticating to the HTTP proxy.
+     */
+    public static final String BLOBSTORE_PROXY_USERNAME_PROPERTY = "xwiki.store.attachments.blobstore.proxy.username";
+
+    /**
+     * The password used for authenticating to the HTTP proxy.
+     */
+    public static final String BLOBSTORE_PROXY_PASSWORD_PROPERTY = "xwiki.store.attachments.blobstore.proxy.password";
+
+    /**
+     * The default maximum number of connections, which is the one of the S3 client.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    /**
+     * The default connection timeout, in milliseconds.
+     */
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+
+    /**
+     * The default socket timeout, in milliseconds.
+     */
+    private static final int DEFAULT_SOCKET_TIMEOUT = 50000;
+
+    /**
+     * The default proxy port.
+     */
+    private static final int DEFAULT_PROXY_PORT = 8080;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public AmazonS3 createClient(String accessKey, String secretKey)
+    {
+        BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
+
+        AmazonS3 client = new AmazonS3Client(credentials, createClientConfiguration());
+
+        String endpoint = this.configurationSource.getProperty(BLOBSTORE_ENDPOINT_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(endpoint)) {
+            this.logger.debug("Using S3 endpoint '{}'", endpoint);
+            client.setEndpoint(endpoint);
+        }
+
+        return client;
+    }
+
+    /**
+     * @return The configuration of the HTTP client of the S3 client.
+     */
+    private ClientConfiguration createClientConfiguration()
+    {
+        ClientConfiguration clientConfiguration = new ClientConfiguration();
+
+        String protocol = this.configurationSource.getProperty(BLOBSTORE_PROTOCOL_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(protocol)) {
+            clientConfiguration.setProtocol(Protocol.valueOf(protocol.trim().toUpperCase()));
+        }
+
+        clientConfiguration.setMaxConnections(Math.max(1, this.configurationSource.getProperty(
+            BLOBSTORE_MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS)));
+        clientConfiguration.setConnectionTimeout(this.configurationSource.getProperty(
+            BLOBSTORE_CONNECTION_TIMEOUT_PROPERTY, DEFAULT_CONNECTION_TIMEOUT));
+        clientConfiguration.setSocketTimeout(this.configurationSource.getProperty(
+            BLOBSTORE_SOCKET_TIMEOUT_PROPERTY, DEFAULT_SOCKET_TIMEOUT));
+        clientConfiguration.setSocketBufferSizeHints(
+            this.configurationSource.getProperty(BLOBSTORE_SOCKET_SEND_BUFFER_PROPERTY, 0),
+            this.configurationSource.getProperty(BLOBSTORE_SOCKET_RECEIVE_BUFFER_PROPERTY, 0));
+        // The failed requests are retried by the blob store, with its own backoff, rate limit and circuit breaker.
+        clientConfiguration.setMaxErrorRetry(0);
+
+        String proxyHost = this.configurationSource.getProperty(BLOBSTORE_PROXY_HOST_PROPERTY, String.class);
+        if (StringUtils.isNotBlank(proxyHost)) {
+            clientConfiguration.setProxyHost(proxyHost);
+            clientConfiguration.setProxyPort(this.configurationSource.getProperty(BLOBSTORE_PROXY_PORT_PROPERTY,
+                DEFAULT_PROXY_PORT));
+            clientConfiguration.setProxyUsername(this.configurationSource.getProperty(
+                BLOBSTORE_PROXY_USERNAME_PROPERTY, String.class));
+            clientConfiguration.setProxyPassword(this.configurationSource.getProperty(
+                BLOBSTORE_PROXY_PASSWORD_PROPERTY, String.class));
+        }
+
+        return clientConfiguration;
+    }
+}
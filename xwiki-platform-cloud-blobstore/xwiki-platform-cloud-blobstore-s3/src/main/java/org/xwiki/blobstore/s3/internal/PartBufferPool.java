@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of buffers shared by all the multipart uploads of a blob store, or by all its parallel downloads.
+ * Since a part is only read from the source stream, or a chunk fetched, once a buffer has been acquired, the memory
+ * used never exceeds the number of buffers times the part size, whatever the size and the number of the blobs being
+ * transferred.
+ *
+ * @version $Id$
+ */
+public class PartBufferPool
+{
+    /**
+     * The size of each buffer.
+     */
+    private final int partSize;
+
+    /**
+     * The permits for acquiring a buffer, one per buffer.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The buffers that have already been allocated and are not currently used.
+     */
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param partSize The size of each buffer.
+     * @param partCount The maximum number of buffers that can be in use at the same time.
+     */
+    public PartBufferPool(int partSize, int partCount)
+    {
+        this.partSize = partSize;
+        this.permits = new Semaphore(partCount, true);
+    }
+
+    /**
+     * @return The size of each buffer.
+     */
+    public int getPartSize()
+    {
+        return this.partSize;
+    }
+
+    /**
+     * Acquire a buffer, waiting for one to be released if they are all in use. Buffers are allocated lazily and then
+     * reused.
+     *
+     * @return A buffer of {@link #getPartSize()} bytes.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public byte[] acquire() throws InterruptedException
+    {
+        this.permits.acquire();
+
+        return take();
+    }
+
+    /**
+     * Acquire a buffer only if one is available right away, for callers able to proceed without it.
+     *
+     * @return A buffer of {@link #getPartSize()} bytes, or null if they are all in use.
+     */
+    public byte[] tryAcquire()
+    {
+        return this.permits.tryAcquire() ? take() : null;
+    }
+
+    /**
+     * @return A free buffer, allocated if none has been released yet.
+     */
+    private byte[] take()
+    {
+        byte[] buffer = this.freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[this.partSize];
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer previously obtained with {@link #acquire()}.
+     *
+     * @param buffer The buffer to release.
+     */
+    public void release(byte[] buffer)
+    {
+        this.freeBuffers.offer(buffer);
+        this.permits.release();
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Wraps an S3 client so that the requests it sends go through a rate limiter and a circuit breaker, and are retried
+ * with a jittered exponential backoff when S3 is unavailable, unreachable or throttling. Client errors, such as a
+ * missing object, are neither retried nor counted as failures. A request whose content is a stream is only retried
+ * when the stream can be reset, which is the case of the parts of multipart uploads since they are held in memory.
+ *
+ * @version $Id$
+ */
+public class ResilientS3Client implements InvocationHandler, ResilientS3ClientMBean
+{
+    /**
+     * The HTTP status returned by S3 when throttling.
+     */
+    private static final int STATUS_SLOW_DOWN = 503;
+
+    /**
+     * The HTTP status returned by services rejecting too many requests.
+     */
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The HTTP statuses from which 5xx server errors start.
+     */
+    private static final int STATUS_SERVER_ERROR = 500;
+
+    /**
+     * The S3 error codes reporting a transient failure, whatever their HTTP status.
+     */
+    private static final Set<String> TRANSIENT_ERROR_CODES = new HashSet<String>(Arrays.asList("SlowDown",
+        "Throttling", "RequestTimeout", "RequestTimeTooSkewed"));
+
+    /**
+     * The methods of the client that do not send requests.
+     */
+    private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("setEndpoint", "setRegion",
+        "setS3ClientOptions", "generatePresignedUrl", "getCachedResponseMetadata", "shutdown"));
+
+    /**
+     * The maximum number of doublings of the retry delay, beyond which it is capped anyway.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 30;
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(ResilientS3Client.class);
+
+    /**
+     * The wrapped client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The number of times a failed request is retried.
+     */
+    private final int maxRetries;
+
+    /**
+     * The delay before the first retry, doubled at each retry, in milliseconds.
+     */
+    private final long baseDelay;
+
+    /**
+     * The maximum delay between two retries, in milliseconds.
+     */
+    private final long maxDelay;
+
+    /**
+     * The time after which a failed request is not retried anymore, counted from the first attempt, in
+     * milliseconds, 0 for no limit. It does not interrupt a request in progress: the connection and socket timeouts of
+     * the client do.
+     */
+    private final long retryDeadline;
+
+    /**
+     * The rate limiter, null for not limiting the rate of the requests.
+     */
+    private final TokenBucketRateLimiter rateLimiter;
+
+    /**
+     * The circuit breaker.
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * The number of retried requests.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * The number of throttled requests.
+     */
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * The number of requests that failed after all their retries.
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * The number of requests rejected by the circuit breaker.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * The total time waited for the rate limiter, in milliseconds.
+     */
+    private final AtomicLong rateLimitDelay = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param client The client to wrap.
+     * @param maxRetries The number of times a failed request is retried.
+     * @param baseDelay The delay before the first retry, doubled at each retry, in milliseconds.
+     * @param maxDelay The maximum delay between two retries, in milliseconds.
+     * @param retryDeadline The time after which a failed request is not retried anymore, counted from the first
+     *            attempt, in milliseconds, 0 for no limit.
+     * @param rateLimiter The rate limiter, null for not limiting the rate of the requests.
+     * @param circuitBreaker The circuit breaker.
+     */
+    public ResilientS3Client(AmazonS3 client, int maxRetries, long baseDelay, long maxDelay, long retryDeadline,
+        TokenBucketRateLimiter rateLimiter, CircuitBreaker circuitBreaker)
+    {
+        this.client = client;
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryDeadline = retryDeadline;
+        this.rateLimiter = rateLimiter;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return A client sending its requests through this policy.
+     */
+    public AmazonS3 getClient()
+    {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] {AmazonS3.class},
+            this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if (isLocal(method)) {
+            return invokeClient(method, args);
+        }
+
+        long deadline = this.retryDeadline > 0 ? System.currentTimeMillis() + this.retryDeadline : Long.MAX_VALUE;
+        InputStream content = getContent(args);
+        if (content != null && content.markSupported()) {
+            // No extra buffering is asked for: only the streams able to reset anyway are retried.
+            content.mark(0);
+        }
+
+        for (int attempt = 0;; attempt++) {
+            // The token is taken first: once the circuit breaker lets a request through, nothing may prevent the
+            // outcome of the request from being recorded, otherwise a half-open breaker would wait forever for the
+            // outcome of its trial request.
+            acquireToken(method);
+            if (!this.circuitBreaker.allowRequest()) {
+                this.rejectedCount.incrementAndGet();
+                throw new AmazonClientException(String.format(
+                    "Request [%s] not sent to S3 since the circuit breaker is open", method.getName()));
+            }
+
+            try {
+                Object result = invokeClient(method, args);
+                this.circuitBreaker.onSuccess();
+                return result;
+            } catch (Throwable e) {
+                if (!isTransient(e)) {
+                    this.circuitBreaker.onSuccess();
+                    throw e;
+                }
+
+                if (this.circuitBreaker.onFailure()) {
+                    this.logger.warn("Too many failed requests to S3, the circuit breaker is open: {}",
+                        e.getMessage());
+                }
+
+                long delay = getRetryDelay(attempt);
+                if (attempt >= this.maxRetries || System.currentTimeMillis() + delay > deadline
+                    || !reset(content)) {
+                    this.failedCount.incrementAndGet();
+                    throw e;
+                }
+
+                this.retryCount.incrementAndGet();
+                this.logger.debug("Retrying request [{}] to S3 in {} ms after failure: {}", method.getName(), delay,
+                    e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the rate limiter to let a request through, if the rate of the requests is limited.
+     *
+     * @param method The method of the client about to be called.
+     */
+    private void acquireToken(Method method)
+    {
+        if (this.rateLimiter != null) {
+            try {
+                this.rateLimitDelay.addAndGet(this.rateLimiter.acquire());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException(String.format(
+                    "Interrupted while waiting for the rate limiter to send request [%s] to S3", method.getName()), e);
+            }
+        }
+    }
+
+    /**
+     * @param method A method of the client.
+     * @return true if the method does not send any request to S3.
+     */
+    static boolean isLocal(Method method)
+    {
+        return method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName());
+    }
+
+    @Override
+    public String getCircuitBreakerState()
+    {
+        return this.circuitBreaker.getState().name();
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        return this.retryCount.get();
+    }
+
+    @Override
+    public long getThrottledCount()
+    {
+        return this.throttledCount.get();
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return this.failedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+
+    @Override
+    public long getRateLimitDelay()
+    {
+        return this.rateLimitDelay.get();
+    }
+
+    /**
+     * @param method A method of the client.
+     * @param args The arguments of the method.
+     * @return The value returned by the method.
+     * @throws Throwable The exception thrown by the method.
+     */
+    private Object invokeClient(Method method, Object[] args) throws Throwable
+    {
+        try {
+            return method.invoke(this.client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param e The failure of a request.
+     * @return true if the request may succeed when retried: S3 failed, is throttling or could not be reached.
+     */
+    private boolean isTransient(Throwable e)
+    {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            int status = serviceException.getStatusCode();
+            boolean throttled = status == STATUS_SLOW_DOWN || status == STATUS_TOO_MANY_REQUESTS
+                || "SlowDown".equals(serviceException.getErrorCode());
+            if (throttled) {
+                this.throttledCount.incrementAndGet();
+            }
+
+            return throttled || status >= STATUS_SERVER_ERROR
+                || TRANSIENT_ERROR_CODES.contains(serviceException.getErrorCode());
+        }
+
+        // The client failed to reach S3 or to read its response.
+        return e instanceof AmazonClientException;
+    }
+
+    /**
+     * @param attempt The number of the attempt that failed, starting from 0.
+     * @return The delay before the next attempt, in milliseconds, picked at random below the exponential backoff so
+     *         that the clients throttled together do not retry together.
+     */
+    private long getRetryDelay(int attempt)
+    {
+        long backoff = Math.min(this.maxDelay, this.baseDelay << Math.min(attempt, MAX_BACKOFF_SHIFT));
+
+        return backoff > 0 ? ThreadLocalRandom.current().nextLong(backoff + 1) : 0;
+    }
+
+    /**
+     * @param args The arguments of a request.
+     * @return The stream holding the content sent by the request, null if it has none.
+     */
+    private InputStream getContent(Object[] args)
+    {
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof InputStream) {
+                    return (InputStream) arg;
+                } else if (arg instanceof UploadPartRequest) {
+                    return ((UploadPartRequest) arg).getInputStream();
+                } else if (arg instanceof PutObjectRequest) {
+                    return ((PutObjectRequest) arg).getInputStream();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Rewind the content of a request before retrying it.
+     *
+     * @param content The stream holding the content sent by the request, null if it has none.
+     * @return true if the request can be retried.
+     */
+    private boolean reset(InputStream content)
+    {
+        if (content == null) {
+            return true;
+        }
+        if (!content.markSupported()) {
+            return false;
+        }
+
+        try {
+            content.reset();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
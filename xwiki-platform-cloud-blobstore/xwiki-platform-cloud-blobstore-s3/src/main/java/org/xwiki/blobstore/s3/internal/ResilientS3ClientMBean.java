@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+/**
+ * The JMX view of the policy applied to the requests sent to S3, for following retries, throttling and the state of
+ * the circuit breaker.
+ *
+ * @version $Id$
+ */
+public interface ResilientS3ClientMBean
+{
+    /**
+     * @return The state of the circuit breaker: {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}.
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * @return The number of requests retried after a failure.
+     */
+    long getRetryCount();
+
+    /**
+     * @return The number of requests that S3 rejected because of throttling.
+     */
+    long getThrottledCount();
+
+    /**
+     * @return The number of requests that failed after all their retries.
+     */
+    long getFailedCount();
+
+    /**
+     * @return The number of requests rejected without being sent because the circuit breaker was open.
+     */
+    long getRejectedCount();
+
+    /**
+     * @return The total time the requests waited for the rate limiter, in milliseconds.
+     */
+    long getRateLimitDelay();
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStoreException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Lists the objects of a bucket having a given prefix, page by page. While a page is consumed, the next one is
+ * fetched in the background, so that the reader rarely waits for S3, and at most two pages are held in memory
+ * whatever the number of listed objects.
+ *
+ * @version $Id$
+ */
+public class S3BlobListing implements Iterator<BlobMetadata>
+{
+    /**
+     * The S3 client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The bucket.
+     */
+    private final String bucket;
+
+    /**
+     * The prefix of the keys of the blob store, stripped from the listed keys.
+     */
+    private final String keyPrefix;
+
+    /**
+     * The prefix of the listed keys, including the prefix of the keys of the blob store.
+     */
+    private final String prefix;
+
+    /**
+     * The executor fetching the next page.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The objects of the current page not consumed yet.
+     */
+    private Iterator<S3ObjectSummary> current;
+
+    /**
+     * The next page being fetched, or null if the current page is the last one.
+     */
+    private Future<ObjectListing> next;
+
+    /**
+     * Constructor.
+     *
+     * @param client The S3 client.
+     * @param bucket The bucket.
+     * @param keyPrefix The prefix of the keys of the blob store, stripped from the listed keys.
+     * @param prefix The prefix of the listed paths, relative to the blob store.
+     * @param executor The executor fetching the next page.
+     */
+    public S3BlobListing(AmazonS3 client, String bucket, String keyPrefix, String prefix, ExecutorService executor)
+    {
+        this.client = client;
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix;
+        this.prefix = keyPrefix + prefix;
+        this.executor = executor;
+    }
+
+    /**
+     * Fetch the first page, from the calling thread.
+     *
+     * @param startAfter The path after which the listing starts, relative to the blob store, or null for starting at
+     *            the first blob.
+     * @return This listing.
+     */
+    public S3BlobListing start(String startAfter)
+    {
+        accept(fetch(startAfter != null ? this.keyPrefix + startAfter : null));
+
+        return this;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (!this.current.hasNext() && this.next != null) {
+            accept(await(this.next));
+        }
+
+        return this.current.hasNext();
+    }
+
+    @Override
+    public BlobMetadata next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        S3ObjectSummary summary = this.current.next();
+
+        return new BlobMetadata(summary.getKey().substring(this.keyPrefix.length()), summary.getSize(),
+            summary.getLastModified(), summary.getETag());
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Make a page the current one, and start fetching the following one if any.
+     *
+     * @param listing The page.
+     */
+    private void accept(ObjectListing listing)
+    {
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+        this.current = summaries.iterator();
+
+        if (listing.isTruncated() && !summaries.isEmpty()) {
+            // S3 only returns the next marker when listing with a delimiter, otherwise the last key is the marker.
+            final String marker = listing.getNextMarker() != null ? listing.getNextMarker()
+                : summaries.get(summaries.size() - 1).getKey();
+            this.next = this.executor.submit(new Callable<ObjectListing>()
+            {
+                @Override
+                public ObjectListing call()
+                {
+                    return fetch(marker);
+                }
+            });
+        } else {
+            this.next = null;
+        }
+    }
+
+    /**
+     * @param marker The key after which the page starts, or null for the first page.
+     * @return The page.
+     */
+    private ObjectListing fetch(String marker)
+    {
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(this.bucket).withPrefix(this.prefix);
+        if (marker != null) {
+            request = request.withMarker(marker);
+        }
+
+        return this.client.listObjects(request);
+    }
+
+    /**
+     * @param page A page being fetched.
+     * @return The page.
+     */
+    private ObjectListing await(Future<ObjectListing> page)
+    {
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new BlobStoreException(String.format("Failed to list the blobs with prefix [%s]", this.prefix),
+                e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new BlobStoreException(String.format("Interrupted while listing the blobs with prefix [%s]",
+                this.prefix), e);
+        }
+    }
+}
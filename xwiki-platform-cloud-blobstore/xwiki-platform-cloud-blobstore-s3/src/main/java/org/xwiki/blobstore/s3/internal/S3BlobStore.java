@@ -19,22 +19,53 @@
  */
 package org.xwiki.blobstore.s3.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
 import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.RangeInputStream;
+import org.xwiki.blobstore.internal.DaemonThreadFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
 
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 
@@ -47,8 +78,261 @@
 @Component
 @Named("s3")
 @Singleton
-public class S3BlobStore implements BlobStore, Initializable
+public class S3BlobStore implements BlobStore, Initializable, Disposable
 {
+    /**
+     * The size of the parts used when uploading blobs of unknown length.
+     */
+    public static final String BLOBSTORE_UPLOAD_PART_SIZE_PROPERTY =
+        "xwiki.store.attachments.blobstore.upload.partSize";
+
+    /**
+     * The maximum number of parts uploaded concurrently, across all the uploads of blobs of unknown length.
+     */
+    public static final String BLOBSTORE_UPLOAD_CONCURRENCY_PROPERTY =
+        "xwiki.store.attachments.blobstore.upload.concurrency";
+
+    /**
+     * The size above which blobs are moved with a multipart copy instead of a single copy request. It cannot exceed
+     * 5 GB, the largest object S3 copies with a single request.
+     */
+    public static final String BLOBSTORE_COPY_THRESHOLD_PROPERTY = "xwiki.store.attachments.blobstore.copy.threshold";
+
+    /**
+     * The size of the parts of the multipart copies.
+     */
+    public static final String BLOBSTORE_COPY_PART_SIZE_PROPERTY = "xwiki.store.attachments.blobstore.copy.partSize";
+
+    /**
+     * The size of the chunks used when downloading large blobs with parallel range requests. Blobs that are not
+     * larger than a chunk are downloaded with a single request.
+     */
+    public static final String BLOBSTORE_DOWNLOAD_CHUNK_SIZE_PROPERTY =
+        "xwiki.store.attachments.blobstore.download.chunkSize";
+
+    /**
+     * The maximum number of chunks of a blob fetched concurrently, ahead of the reader. Set it to 1 for disabling
+     * parallel downloads.
+     */
+    public static final String BLOBSTORE_DOWNLOAD_CONCURRENCY_PROPERTY =
+        "xwiki.store.attachments.blobstore.download.concurrency";
+
+    /**
+     * The maximum number of chunks fetched concurrently, across all the downloads.
+     */
+    public static final String BLOBSTORE_DOWNLOAD_THREADS_PROPERTY =
+        "xwiki.store.attachments.blobstore.download.threads";
+
+    /**
+     * The maximum number of chunk buffers, across all the downloads, which bounds the memory used by the downloads to
+     * this number times the chunk size.
+     */
+    public static final String BLOBSTORE_DOWNLOAD_BUFFERS_PROPERTY =
+        "xwiki.store.attachments.blobstore.download.buffers";
+
+    /**
+     * The number of times a chunk that failed to download is retried.
+     */
+    public static final String BLOBSTORE_DOWNLOAD_RETRIES_PROPERTY =
+        "xwiki.store.attachments.blobstore.download.retries";
+
+    /**
+     * The maximum number of multi-object delete requests sent concurrently when deleting many blobs.
+     */
+    public static final String BLOBSTORE_DELETE_CONCURRENCY_PROPERTY =
+        "xwiki.store.attachments.blobstore.delete.concurrency";
+
+    /**
+     * The maximum number of blobs whose metadata is kept in memory. Set it to 0 for disabling the metadata cache.
+     */
+    public static final String BLOBSTORE_METADATA_CACHE_SIZE_PROPERTY =
+        "xwiki.store.attachments.blobstore.metadata.cacheSize";
+
+    /**
+     * The time during which the metadata of a blob is kept in memory, in seconds. Set it to 0 for disabling the
+     * metadata cache.
+     */
+    public static final String BLOBSTORE_METADATA_CACHE_TTL_PROPERTY =
+        "xwiki.store.attachments.blobstore.metadata.cacheTtl";
+
+    /**
+     * The maximum number of metadata requests sent concurrently when looking up many blobs.
+     */
+    public static final String BLOBSTORE_METADATA_CONCURRENCY_PROPERTY =
+        "xwiki.store.attachments.blobstore.metadata.concurrency";
+
+    /**
+     * The number of times a request that failed because S3 was unavailable, unreachable or throttling is retried.
+     */
+    public static final String BLOBSTORE_RETRY_MAX_PROPERTY = "xwiki.store.attachments.blobstore.retry.max";
+
+    /**
+     * The delay before the first retry of a request, in milliseconds. It is doubled at each retry, and the actual
+     * delay is picked at random below it.
+     */
+    public static final String BLOBSTORE_RETRY_BASE_DELAY_PROPERTY =
+        "xwiki.store.attachments.blobstore.retry.baseDelay";
+
+    /**
+     * The maximum delay between two retries of a request, in milliseconds.
+     */
+    public static final String BLOBSTORE_RETRY_MAX_DELAY_PROPERTY =
+        "xwiki.store.attachments.blobstore.retry.maxDelay";
+
+    /**
+     * The time after which a failed request is not retried anymore, counted from its first attempt, in milliseconds.
+     * Set it to 0 for no limit. A request in progress is only bounded by the connection and socket timeouts.
+     */
+    public static final String BLOBSTORE_RETRY_DEADLINE_PROPERTY = "xwiki.store.attachments.blobstore.retry.deadline";
+
+    /**
+     * The maximum number of requests sent to S3 per second. Set it to 0 for not limiting the rate of the requests.
+     */
+    public static final String BLOBSTORE_RATE_LIMIT_PROPERTY = "xwiki.store.attachments.blobstore.rateLimit";
+
+    /**
+     * The number of consecutive failed requests after which the circuit breaker opens and the requests fail without
+     * being sent. Set it to 0 for disabling the circuit breaker.
+     */
+    public static final String BLOBSTORE_CIRCUIT_BREAKER_THRESHOLD_PROPERTY =
+        "xwiki.store.attachments.blobstore.circuitBreaker.threshold";
+
+    /**
+     * The time during which the circuit breaker stays open before letting a request through, in seconds.
+     */
+    public static final String BLOBSTORE_CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY =
+        "xwiki.store.attachments.blobstore.circuitBreaker.openDuration";
+
+    /**
+     * The name of the MBean exposing the retries, the throttling and the state of the circuit breaker.
+     */
+    public static final String MBEAN_NAME = "org.xwiki.blobstore:type=S3Resilience";
+
+    /**
+     * The name of the MBean exposing the usage of the connections to S3.
+     */
+    public static final String CONNECTION_POOL_MBEAN_NAME = "org.xwiki.blobstore:type=S3ConnectionPool";
+
+    /**
+     * One megabyte.
+     */
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * The HTTP status returned by S3 for a missing blob.
+     */
+    private static final int STATUS_NOT_FOUND = 404;
+
+    /**
+     * The HTTP status returned by S3 when a range starts after the end of the blob.
+     */
+    private static final int STATUS_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The smallest part size accepted by S3 (except for the last part).
+     */
+    private static final int MIN_PART_SIZE = 5 * MB;
+
+    /**
+     * The default part size.
+     */
+    private static final int DEFAULT_PART_SIZE = 8 * MB;
+
+    /**
+     * The default number of parts uploaded concurrently.
+     */
+    private static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
+
+    /**
+     * The largest object S3 copies with a single request, which is also the largest part of a multipart upload.
+     */
+    private static final long MAX_COPY_SIZE = 5L * 1024 * MB;
+
+    /**
+     * The default size of the parts of the multipart copies.
+     */
+    private static final long DEFAULT_COPY_PART_SIZE = 512L * MB;
+
+    /**
+     * The default download chunk size.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 8 * MB;
+
+    /**
+     * The default number of chunks of a blob fetched concurrently.
+     */
+    private static final int DEFAULT_DOWNLOAD_CONCURRENCY = 4;
+
+    /**
+     * The default number of chunks fetched concurrently across all the downloads.
+     */
+    private static final int DEFAULT_DOWNLOAD_THREADS = 16;
+
+    /**
+     * The default number of chunk buffers across all the downloads.
+     */
+    private static final int DEFAULT_DOWNLOAD_BUFFERS = 16;
+
+    /**
+     * The default number of retries for a chunk.
+     */
+    private static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+
+    /**
+     * The default number of multi-object delete requests sent concurrently.
+     */
+    private static final int DEFAULT_DELETE_CONCURRENCY = 4;
+
+    /**
+     * The default maximum number of blobs whose metadata is kept in memory.
+     */
+    private static final int DEFAULT_METADATA_CACHE_SIZE = 10000;
+
+    /**
+     * The default time during which the metadata of a blob is kept in memory, in seconds.
+     */
+    private static final long DEFAULT_METADATA_CACHE_TTL = 60;
+
+    /**
+     * The default number of metadata requests sent concurrently.
+     */
+    private static final int DEFAULT_METADATA_CONCURRENCY = 8;
+
+    /**
+     * The maximum number of keys of a multi-object delete request accepted by S3.
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
+
+    /**
+     * The default number of retries of a request.
+     */
+    private static final int DEFAULT_RETRY_MAX = 3;
+
+    /**
+     * The default delay before the first retry of a request, in milliseconds.
+     */
+    private static final long DEFAULT_RETRY_BASE_DELAY = 100;
+
+    /**
+     * The default maximum delay between two retries, in milliseconds.
+     */
+    private static final long DEFAULT_RETRY_MAX_DELAY = 20000;
+
+    /**
+     * The default time after which a failed request is not retried anymore, in milliseconds.
+     */
+    private static final long DEFAULT_RETRY_DEADLINE = 120000;
+
+    /**
+     * The default number of consecutive failed requests opening the circuit breaker.
+     */
+    private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 20;
+
+    /**
+     * The default time during which the circuit breaker stays open, in seconds.
+     */
+    private static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+
     /**
      * The bucket to be used for storing data.
      */
@@ -58,7 +342,28 @@ public class S3BlobStore implements BlobStore, Initializable
      * The S3 client. No particular mechanisms are used in the code to deal with multiple thread interactions because
      * the Amazon S3 client is thread safe: https://forums.aws.amazon.com/thread.jspa?threadID=50723
      */
-    private AmazonS3Client client;
+    private AmazonS3 client;
+
+    /**
+     * The policy applied to the requests sent to S3.
+     */
+    private ResilientS3Client resilientClient;
+
+    /**
+     * The usage of the connections to S3.
+     */
+    private ConnectionPoolMonitor connectionPoolMonitor;
+
+    /**
+     * The names under which the MBeans are registered in JMX.
+     */
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
+    /**
+     * The factory creating the S3 client.
+     */
+    @Inject
+    private S3ClientFactory clientFactory;
 
     /**
      * Configuration.
@@ -78,6 +383,76 @@ public class S3BlobStore implements BlobStore, Initializable
      */
     private String namespace;
 
+    /**
+     * The prefix of the keys of all the blobs, computed once from the namespace.
+     */
+    private String keyPrefix;
+
+    /**
+     * The executor uploading the parts of blobs of unknown length, and copying the parts of large blobs.
+     */
+    private ExecutorService uploadExecutor;
+
+    /**
+     * The buffers used for uploading the parts of blobs of unknown length.
+     */
+    private PartBufferPool partBufferPool;
+
+    /**
+     * The size above which blobs are moved with a multipart copy.
+     */
+    private long copyThreshold;
+
+    /**
+     * The size of the parts of the multipart copies.
+     */
+    private long copyPartSize;
+
+    /**
+     * The executor fetching the chunks of large blobs, null if parallel downloads are disabled.
+     */
+    private ExecutorService downloadExecutor;
+
+    /**
+     * The size of the chunks of large blobs.
+     */
+    private int downloadChunkSize;
+
+    /**
+     * The buffers receiving the chunks of large blobs, null if parallel downloads are disabled.
+     */
+    private PartBufferPool downloadBufferPool;
+
+    /**
+     * The maximum number of chunks of a blob fetched concurrently.
+     */
+    private int downloadConcurrency;
+
+    /**
+     * The number of times a chunk is retried.
+     */
+    private int downloadRetries;
+
+    /**
+     * The executor sending the multi-object delete requests when deleting many blobs.
+     */
+    private ExecutorService deleteExecutor;
+
+    /**
+     * The executor fetching the next pages of the blob listings.
+     */
+    private ExecutorService listExecutor;
+
+    /**
+     * The executor sending the metadata requests when looking up many blobs.
+     */
+    private ExecutorService metadataExecutor;
+
+    /**
+     * The metadata of the recently looked up blobs, null if the metadata cache is disabled.
+     */
+    private BlobMetadataCache metadataCache;
+
     @Override
     public void initialize() throws InitializationException
     {
@@ -100,15 +475,87 @@ public void initialize() throws InitializationException
             throw new InitializationException(String.format(formatString, BlobStore.BLOBSTORE_CREDENTIAL_PROPERTY));
         }
 
-        BasicAWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
+        int maxConnections = this.configurationSource.getProperty(
+            DefaultS3ClientFactory.BLOBSTORE_MAX_CONNECTIONS_PROPERTY, DefaultS3ClientFactory.DEFAULT_MAX_CONNECTIONS);
+        this.connectionPoolMonitor =
+            new ConnectionPoolMonitor(this.clientFactory.createClient(accessKey, secretKey), maxConnections);
+        this.resilientClient = createResilientClient(this.connectionPoolMonitor.getClient());
+        this.client = this.resilientClient.getClient();
+        registerMBean(this.resilientClient, MBEAN_NAME);
+        registerMBean(this.connectionPoolMonitor, CONNECTION_POOL_MBEAN_NAME);
 
-        this.client = new AmazonS3Client(credentials);
         boolean bucketExists = this.client.doesBucketExist(this.bucket);
         if (!bucketExists) {
             this.client.createBucket(this.bucket);
         }
 
         this.namespace = this.configurationSource.getProperty(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, String.class);
+        this.keyPrefix = StringUtils.isNotBlank(this.namespace) ? this.namespace + '/' : "";
+
+        int partSize = this.configurationSource.getProperty(BLOBSTORE_UPLOAD_PART_SIZE_PROPERTY, DEFAULT_PART_SIZE);
+        if (partSize < MIN_PART_SIZE) {
+            this.logger.warn("{} is lower than the minimum part size allowed by S3, using {} bytes instead",
+                BLOBSTORE_UPLOAD_PART_SIZE_PROPERTY, MIN_PART_SIZE);
+            partSize = MIN_PART_SIZE;
+        }
+        int uploadConcurrency =
+            Math.max(1, this.configurationSource.getProperty(BLOBSTORE_UPLOAD_CONCURRENCY_PROPERTY,
+                DEFAULT_UPLOAD_CONCURRENCY));
+
+        this.partBufferPool = new PartBufferPool(partSize, uploadConcurrency);
+        this.uploadExecutor =
+            Executors.newFixedThreadPool(uploadConcurrency, new DaemonThreadFactory("S3 blob store upload"));
+
+        this.copyThreshold =
+            Math.min(MAX_COPY_SIZE, this.configurationSource.getProperty(BLOBSTORE_COPY_THRESHOLD_PROPERTY,
+                MAX_COPY_SIZE));
+        this.copyPartSize =
+            Math.min(MAX_COPY_SIZE, Math.max(MIN_PART_SIZE, this.configurationSource.getProperty(
+                BLOBSTORE_COPY_PART_SIZE_PROPERTY, DEFAULT_COPY_PART_SIZE)));
+
+        this.downloadChunkSize =
+            Math.max(1, this.configurationSource.getProperty(BLOBSTORE_DOWNLOAD_CHUNK_SIZE_PROPERTY,
+                DEFAULT_CHUNK_SIZE));
+        this.downloadConcurrency =
+            this.configurationSource.getProperty(BLOBSTORE_DOWNLOAD_CONCURRENCY_PROPERTY,
+                DEFAULT_DOWNLOAD_CONCURRENCY);
+        this.downloadRetries =
+            Math.max(0, this.configurationSource.getProperty(BLOBSTORE_DOWNLOAD_RETRIES_PROPERTY,
+                DEFAULT_DOWNLOAD_RETRIES));
+        if (this.downloadConcurrency > 1) {
+            int downloadThreads =
+                Math.max(1, this.configurationSource.getProperty(BLOBSTORE_DOWNLOAD_THREADS_PROPERTY,
+                    DEFAULT_DOWNLOAD_THREADS));
+            this.downloadExecutor =
+                Executors.newFixedThreadPool(downloadThreads, new DaemonThreadFactory("S3 blob store download"));
+            int downloadBuffers =
+                Math.max(1, this.configurationSource.getProperty(BLOBSTORE_DOWNLOAD_BUFFERS_PROPERTY,
+                    DEFAULT_DOWNLOAD_BUFFERS));
+            this.downloadBufferPool = new PartBufferPool(this.downloadChunkSize, downloadBuffers);
+        }
+
+        int deleteConcurrency =
+            Math.max(1, this.configurationSource.getProperty(BLOBSTORE_DELETE_CONCURRENCY_PROPERTY,
+                DEFAULT_DELETE_CONCURRENCY));
+        this.deleteExecutor =
+            Executors.newFixedThreadPool(deleteConcurrency, new DaemonThreadFactory("S3 blob store delete"));
+
+        this.listExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("S3 blob store list"));
+
+        int metadataConcurrency =
+            Math.max(1, this.configurationSource.getProperty(BLOBSTORE_METADATA_CONCURRENCY_PROPERTY,
+                DEFAULT_METADATA_CONCURRENCY));
+        this.metadataExecutor =
+            Executors.newFixedThreadPool(metadataConcurrency, new DaemonThreadFactory("S3 blob store metadata"));
+
+        int metadataCacheSize =
+            this.configurationSource.getProperty(BLOBSTORE_METADATA_CACHE_SIZE_PROPERTY, DEFAULT_METADATA_CACHE_SIZE);
+        long metadataCacheTtl =
+            this.configurationSource.getProperty(BLOBSTORE_METADATA_CACHE_TTL_PROPERTY, DEFAULT_METADATA_CACHE_TTL);
+        if (metadataCacheSize > 0 && metadataCacheTtl > 0) {
+            this.metadataCache =
+                new BlobMetadataCache(metadataCacheSize, TimeUnit.SECONDS.toMillis(metadataCacheTtl));
+        }
 
         this.logger.debug("S3 blob store initialized using namespace '{}' and bucket '{}'",
             this.namespace != null ? this.namespace
@@ -116,6 +563,75 @@ public void initialize() throws InitializationException
             this.bucket);
     }
 
+    @Override
+    public void dispose()
+    {
+        this.uploadExecutor.shutdown();
+        this.deleteExecutor.shutdown();
+        this.listExecutor.shutdown();
+        this.metadataExecutor.shutdown();
+        if (this.downloadExecutor != null) {
+            this.downloadExecutor.shutdownNow();
+        }
+
+        for (ObjectName mbeanName : this.mbeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the S3 blob store MBean [{}]: {}", mbeanName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param s3Client The client created by the factory.
+     * @return The policy retrying, throttling and failing fast the requests of the client, as configured.
+     */
+    private ResilientS3Client createResilientClient(AmazonS3 s3Client)
+    {
+        int maxRetries =
+            Math.max(0, this.configurationSource.getProperty(BLOBSTORE_RETRY_MAX_PROPERTY, DEFAULT_RETRY_MAX));
+        long baseDelay = Math.max(0L,
+            this.configurationSource.getProperty(BLOBSTORE_RETRY_BASE_DELAY_PROPERTY, DEFAULT_RETRY_BASE_DELAY));
+        long maxDelay = Math.max(baseDelay,
+            this.configurationSource.getProperty(BLOBSTORE_RETRY_MAX_DELAY_PROPERTY, DEFAULT_RETRY_MAX_DELAY));
+        long retryDeadline = Math.max(0L,
+            this.configurationSource.getProperty(BLOBSTORE_RETRY_DEADLINE_PROPERTY, DEFAULT_RETRY_DEADLINE));
+
+        double rateLimit = this.configurationSource.getProperty(BLOBSTORE_RATE_LIMIT_PROPERTY, 0d);
+        TokenBucketRateLimiter rateLimiter = rateLimit > 0 ? new TokenBucketRateLimiter(rateLimit) : null;
+
+        int threshold = this.configurationSource.getProperty(BLOBSTORE_CIRCUIT_BREAKER_THRESHOLD_PROPERTY,
+            DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        long openDuration = this.configurationSource.getProperty(BLOBSTORE_CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY,
+            DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(threshold, TimeUnit.SECONDS.toMillis(openDuration));
+
+        return new ResilientS3Client(s3Client, maxRetries, baseDelay, maxDelay, retryDeadline, rateLimiter,
+            circuitBreaker);
+    }
+
+    /**
+     * Register statistics in JMX. Failing to do so does not prevent the blob store from working.
+     *
+     * @param mbean The MBean holding the statistics.
+     * @param mbeanName The name of the MBean.
+     */
+    private void registerMBean(Object mbean, String mbeanName)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(mbeanName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            this.mbeanNames.add(name);
+        } catch (JMException e) {
+            this.logger.warn("Unable to register the S3 blob store MBean [{}]: {}", mbeanName, e.getMessage());
+        }
+    }
+
     @Override
     public void deleteBlob(String path)
     {
@@ -123,43 +639,519 @@ public void deleteBlob(String path)
 
         this.logger.debug("Deleting blob '{}' from bucket '{}'", normalizedPath, this.bucket);
 
-        this.client.deleteObject(this.bucket, normalizedPath);
+        try {
+            this.client.deleteObject(this.bucket, normalizedPath);
+        } finally {
+            invalidateMetadata(path);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blob is copied inside the bucket, like with {@link #copyBlob(String, String)}, and then deleted.
+     *
+     * @see org.xwiki.blobstore.BlobStore#moveBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        String normalizedSourcePath = normalizePath(sourcePath);
+        String normalizedTargetPath = normalizePath(targetPath);
+
+        this.logger.debug("Moving blob '{}' to '{}' in bucket '{}'", normalizedSourcePath, normalizedTargetPath,
+            this.bucket);
+
+        try {
+            copyObject(sourcePath, normalizedSourcePath, normalizedTargetPath);
+            this.client.deleteObject(this.bucket, normalizedSourcePath);
+        } finally {
+            invalidateMetadata(sourcePath);
+            invalidateMetadata(targetPath);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blob is copied inside the bucket, without being downloaded. Since S3 does not copy objects larger than 5 GB
+     * with a single request, large blobs are copied with a multipart copy, whose parts are copied concurrently.
+     *
+     * @see org.xwiki.blobstore.BlobStore#copyBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        String normalizedSourcePath = normalizePath(sourcePath);
+        String normalizedTargetPath = normalizePath(targetPath);
+
+        this.logger.debug("Copying blob '{}' to '{}' in bucket '{}'", normalizedSourcePath, normalizedTargetPath,
+            this.bucket);
+
+        try {
+            copyObject(sourcePath, normalizedSourcePath, normalizedTargetPath);
+        } finally {
+            invalidateMetadata(targetPath);
+        }
+    }
+
+    /**
+     * Copy an object inside the bucket, with a multipart copy when it is larger than the copy threshold.
+     *
+     * @param sourcePath The path of the blob to copy.
+     * @param normalizedSourcePath The key of the object to copy.
+     * @param normalizedTargetPath The key of the copy.
+     */
+    private void copyObject(String sourcePath, String normalizedSourcePath, String normalizedTargetPath)
+    {
+        BlobMetadata metadata = getBlobMetadata(sourcePath);
+        if (metadata != null && metadata.getLength() > this.copyThreshold) {
+            new S3MultipartCopy(this.client, this.bucket, normalizedSourcePath, normalizedTargetPath,
+                this.uploadExecutor).copy(metadata.getLength(), this.copyPartSize);
+        } else {
+            this.client.copyObject(this.bucket, normalizedSourcePath, this.bucket, normalizedTargetPath);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blobs are deleted with multi-object delete requests of up to 1000 keys, sent concurrently when there are
+     * more blobs.
+     *
+     * @see org.xwiki.blobstore.BlobStore#deleteBlobs(java.util.Collection)
+     */
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        try {
+            return deleteBlobChunks(paths);
+        } finally {
+            for (String path : paths) {
+                invalidateMetadata(path);
+            }
+        }
+    }
+
+    /**
+     * Delete blobs with multi-object delete requests, sent concurrently when there are more than 1000 blobs.
+     *
+     * @param paths The paths of the blobs.
+     * @return The paths of the blobs which could not be deleted, with the reason of the failure.
+     */
+    private Map<String, Exception> deleteBlobChunks(Collection<String> paths)
+    {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = null;
+        for (String path : paths) {
+            if (chunk == null || chunk.size() == MAX_DELETE_KEYS) {
+                chunk = new ArrayList<String>(Math.min(MAX_DELETE_KEYS, paths.size()));
+                chunks.add(chunk);
+            }
+            chunk.add(path);
+        }
+
+        this.logger.debug("Deleting {} blobs from bucket '{}' with {} requests", paths.size(), this.bucket,
+            chunks.size());
+
+        if (chunks.size() <= 1) {
+            return chunks.isEmpty() ? new LinkedHashMap<String, Exception>() : deleteChunk(chunks.get(0));
+        }
+
+        List<Future<Map<String, Exception>>> futures = new ArrayList<Future<Map<String, Exception>>>(chunks.size());
+        for (final List<String> chunkPaths : chunks) {
+            futures.add(this.deleteExecutor.submit(new Callable<Map<String, Exception>>()
+            {
+                @Override
+                public Map<String, Exception> call()
+                {
+                    return deleteChunk(chunkPaths);
+                }
+            }));
+        }
+
+        Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                failures.putAll(futures.get(i).get());
+            } catch (ExecutionException e) {
+                for (String path : chunks.get(i)) {
+                    failures.put(path, new BlobStoreException("Failed to delete the blob", e.getCause()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (String path : chunks.get(i)) {
+                    failures.put(path, e);
+                }
+            }
+        }
+
+        return failures;
     }
 
     @Override
     public InputStream getBlob(String path)
+    {
+        Blob blob = readBlob(path, null, null);
+
+        return blob != null ? blob.getContent() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the range is transferred, with a single range request, or with several concurrent ones when it is larger
+     * than a download chunk.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlob(java.lang.String, long, long)
+     */
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        String normalizedPath = normalizePath(path);
+
+        this.logger.debug("Getting {} bytes at {} of blob '{}' from bucket '{}'", length, offset, normalizedPath,
+            this.bucket);
+
+        try {
+            if (this.downloadExecutor != null && (length < 0 || length > this.downloadChunkSize)) {
+                return new S3ParallelDownload(this.client, this.bucket, normalizedPath, offset, length,
+                    this.downloadExecutor, this.downloadBufferPool, this.downloadConcurrency, this.downloadRetries)
+                    .start();
+            }
+
+            GetObjectRequest request = new GetObjectRequest(this.bucket, normalizedPath);
+            // S3 ends the ranges extending after the end of the blob with the blob, and ignores empty ranges.
+            request.setRange(offset, length >= 0 ? offset + Math.max(length, 1) - 1 : Long.MAX_VALUE);
+            S3Object object = this.client.getObject(request);
+            if (object != null) {
+                InputStream content = object.getObjectContent();
+
+                return length != 0 ? content : new RangeInputStream(content, 0, 0);
+            }
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                // The range starts after the end of the blob.
+                return new ByteArrayInputStream(new byte[0]);
+            } else if (e.getStatusCode() != STATUS_NOT_FOUND) {
+                throw e;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The conditions are evaluated by S3, which answers with no content when the blob was not modified. The content
+     * is streamed from S3 as it is read, the chunks following the first one being fetched ahead with concurrent range
+     * requests when the blob is larger than a download chunk.
+     *
+     * @see org.xwiki.blobstore.BlobStore#readBlob(java.lang.String, java.lang.String, java.util.Date)
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
     {
         String normalizedPath = normalizePath(path);
 
         this.logger.debug("Getting blob '{}' from bucket '{}'", normalizedPath, this.bucket);
 
-        S3Object object = this.client.getObject(this.bucket, normalizedPath);
-        if (object != null) {
-            return object.getObjectContent();
+        try {
+            if (this.downloadExecutor != null) {
+                S3ParallelDownload download = new S3ParallelDownload(this.client, this.bucket, normalizedPath,
+                    this.downloadExecutor, this.downloadBufferPool, this.downloadConcurrency, this.downloadRetries);
+                InputStream content = download.start(ifNoneMatch, ifModifiedSince);
+                BlobMetadata metadata = toBlobMetadata(path, download.getLength(), download.getObjectMetadata());
+
+                return content != null ? new Blob(metadata, content) : notModified(path, ifNoneMatch);
+            }
+
+            GetObjectRequest request = new GetObjectRequest(this.bucket, normalizedPath);
+            setConditions(request, ifNoneMatch, ifModifiedSince);
+            S3Object object = this.client.getObject(request);
+            if (object == null) {
+                return notModified(path, ifNoneMatch);
+            }
+
+            ObjectMetadata objectMetadata = object.getObjectMetadata();
+            return new Blob(toBlobMetadata(path, objectMetadata.getContentLength(), objectMetadata),
+                object.getObjectContent());
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != STATUS_NOT_FOUND) {
+                throw e;
+            }
         }
 
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata is fetched with a HEAD request, which transfers no content, and kept in memory for a while.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.lang.String)
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        if (this.metadataCache != null) {
+            BlobMetadataCache.Entry entry = this.metadataCache.get(path);
+            if (entry != null) {
+                return entry.getMetadata();
+            }
+        }
+
+        return headBlob(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blobs whose metadata is not kept in memory are looked up with concurrent HEAD requests.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.util.Collection)
+     */
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        Map<String, BlobMetadata> metadata = new LinkedHashMap<String, BlobMetadata>();
+        Map<String, Future<BlobMetadata>> futures = new LinkedHashMap<String, Future<BlobMetadata>>();
+        for (final String path : paths) {
+            BlobMetadataCache.Entry entry = this.metadataCache != null ? this.metadataCache.get(path) : null;
+            if (entry != null) {
+                if (entry.getMetadata() != null) {
+                    metadata.put(path, entry.getMetadata());
+                }
+            } else if (!futures.containsKey(path)) {
+                futures.put(path, this.metadataExecutor.submit(new Callable<BlobMetadata>()
+                {
+                    @Override
+                    public BlobMetadata call()
+                    {
+                        return headBlob(path);
+                    }
+                }));
+            }
+        }
+
+        this.logger.debug("Getting the metadata of {} blobs from bucket '{}' with {} requests", paths.size(),
+            this.bucket, futures.size());
+
+        boolean done = false;
+        try {
+            for (Map.Entry<String, Future<BlobMetadata>> future : futures.entrySet()) {
+                BlobMetadata blobMetadata = getMetadata(future.getKey(), future.getValue());
+                if (blobMetadata != null) {
+                    metadata.put(future.getKey(), blobMetadata);
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (Future<BlobMetadata> future : futures.values()) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param future The lookup of the metadata of the blob.
+     * @return The metadata of the blob, or null if the blob does not exist.
+     */
+    private BlobMetadata getMetadata(String path, Future<BlobMetadata> future)
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new BlobStoreException(String.format("Unable to get the metadata of blob [%s]", path),
+                e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlobStoreException(String.format("Interrupted while getting the metadata of blob [%s]", path),
+                e);
+        }
+    }
+
+    /**
+     * Get the metadata of a blob from S3, without its content, and cache it.
+     *
+     * @param path The path of the blob.
+     * @return The metadata of the blob, or null if the blob does not exist.
+     */
+    private BlobMetadata headBlob(String path)
+    {
+        String normalizedPath = normalizePath(path);
+
+        this.logger.debug("Getting the metadata of blob '{}' from bucket '{}'", normalizedPath, this.bucket);
+
+        long generation = this.metadataCache != null ? this.metadataCache.getGeneration() : 0;
+        BlobMetadata metadata = null;
+        try {
+            ObjectMetadata objectMetadata = this.client.getObjectMetadata(this.bucket, normalizedPath);
+            metadata = toBlobMetadata(path, objectMetadata.getContentLength(), objectMetadata);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != STATUS_NOT_FOUND) {
+                throw e;
+            }
+        }
+
+        if (this.metadataCache != null) {
+            this.metadataCache.put(path, metadata, generation);
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Drop the cached metadata of a blob which was written or deleted.
+     *
+     * @param path The path of the blob.
+     */
+    private void invalidateMetadata(String path)
+    {
+        if (this.metadataCache != null) {
+            this.metadataCache.invalidate(path);
+        }
+    }
+
+    /**
+     * Add the conditions of a read to a request, the entity tag taking precedence over the date.
+     *
+     * @param request The request.
+     * @param ifNoneMatch The entity tag of the copy of the blob held by the caller, or null.
+     * @param ifModifiedSince The date of the copy of the blob held by the caller, or null.
+     */
+    static void setConditions(GetObjectRequest request, String ifNoneMatch, Date ifModifiedSince)
+    {
+        if (ifNoneMatch != null) {
+            request.setNonmatchingETagConstraints(Collections.singletonList(ifNoneMatch));
+        } else if (ifModifiedSince != null) {
+            request.setModifiedSinceConstraint(ifModifiedSince);
+        }
+    }
+
+    /**
+     * @param path The path of the blob.
+     * @param length The length of the blob, or -1 if unknown.
+     * @param objectMetadata The metadata returned by S3, or null.
+     * @return The metadata of the blob.
+     */
+    private BlobMetadata toBlobMetadata(String path, long length, ObjectMetadata objectMetadata)
+    {
+        if (objectMetadata == null) {
+            return new BlobMetadata(path, length, null, null);
+        }
+
+        return new BlobMetadata(path, length, objectMetadata.getLastModified(), objectMetadata.getETag(),
+            objectMetadata.getContentType());
+    }
+
+    /**
+     * @param path The path of the blob.
+     * @param eTag The entity tag of the blob, when known.
+     * @return A blob that was not modified, S3 sending no metadata along with its answer.
+     */
+    private Blob notModified(String path, String eTag)
+    {
+        return Blob.notModified(new BlobMetadata(path, -1, null, eTag));
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return listBlobs(prefix, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The blobs are listed in pages of up to 1000 keys, the next page being fetched while the current one is
+     * consumed.
+     *
+     * @see org.xwiki.blobstore.BlobStore#listBlobs(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        this.logger.debug("Listing blobs with prefix '{}' after '{}' from bucket '{}'", prefix, startAfter,
+            this.bucket);
+
+        return new S3BlobListing(this.client, this.bucket, this.keyPrefix, prefix, this.listExecutor)
+            .start(startAfter);
+    }
+
     @Override
     public void putBlob(String path, InputStream content)
     {
-        putBlob(normalizePath(path), content, 0);
+        String normalizedPath = normalizePath(path);
+
+        this.logger.debug("Streaming blob of unknown length to '{}'", normalizedPath);
+
+        try {
+            new S3MultipartUpload(this.client, this.bucket, normalizedPath, new ObjectMetadata(),
+                this.uploadExecutor, this.partBufferPool).upload(content);
+        } finally {
+            invalidateMetadata(path);
+        }
     }
 
     @Override
     public void putBlob(String path, InputStream content, long length)
     {
+        if (length <= 0) {
+            putBlob(path, content);
+            return;
+        }
+
         String normalizedPath = normalizePath(path);
 
         this.logger.debug("Putting blob to '{}'", normalizedPath);
 
         ObjectMetadata objectMetadata = new ObjectMetadata();
-        if (length > 0) {
-            objectMetadata.setContentLength(length);
+        objectMetadata.setContentLength(length);
+
+        try {
+            this.client.putObject(this.bucket, normalizedPath, content, objectMetadata);
+        } finally {
+            invalidateMetadata(path);
+        }
+    }
+
+    /**
+     * Delete blobs with a single multi-object delete request.
+     *
+     * @param paths The paths of the blobs, at most {@link #MAX_DELETE_KEYS}.
+     * @return The paths of the blobs which could not be deleted, with the reason of the failure.
+     */
+    private Map<String, Exception> deleteChunk(List<String> paths)
+    {
+        List<KeyVersion> keys = new ArrayList<KeyVersion>(paths.size());
+        for (String path : paths) {
+            keys.add(new KeyVersion(normalizePath(path)));
+        }
+
+        Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        try {
+            // In quiet mode S3 only reports the keys it failed to delete.
+            this.client.deleteObjects(new DeleteObjectsRequest(this.bucket).withKeys(keys).withQuiet(true));
+        } catch (MultiObjectDeleteException e) {
+            for (DeleteError error : e.getErrors()) {
+                failures.put(error.getKey().substring(this.keyPrefix.length()), new BlobStoreException(
+                    String.format("Failed to delete the blob: %s (%s)", error.getMessage(), error.getCode())));
+            }
+        } catch (AmazonClientException e) {
+            for (String path : paths) {
+                failures.put(path, e);
+            }
         }
 
-        this.client.putObject(this.bucket, normalizedPath, content, objectMetadata);
+        return failures;
     }
 
     /**
@@ -170,10 +1162,6 @@ public void putBlob(String path, InputStream content, long length)
      */
     private String normalizePath(String path)
     {
-        if (StringUtils.isNotBlank(this.namespace)) {
-            return String.format("%s/%s", this.namespace, path);
-        }
-
-        return path;
+        return this.keyPrefix.isEmpty() ? path : this.keyPrefix.concat(path);
     }
 }
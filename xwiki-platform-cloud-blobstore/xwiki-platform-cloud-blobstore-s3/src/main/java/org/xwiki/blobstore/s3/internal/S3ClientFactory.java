@@ -0,0 +1,43 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import org.xwiki.component.annotation.Role;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Creates the Amazon S3 client used by {@link S3BlobStore}. This is a separate component so that the client can be
+ * replaced, for example by a local stand-in when testing.
+ *
+ * @version $Id$
+ */
+@Role
+public interface S3ClientFactory
+{
+    /**
+     * Create a new S3 client.
+     *
+     * @param accessKey The Amazon Access Key ID.
+     * @param secretKey The Amazon Secret Access Key.
+     * @return A new S3 client.
+     */
+    AmazonS3 createClient(String accessKey, String secretKey);
+}
@@ -0,0 +1,308 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Copies an object inside a bucket with an S3 multipart upload whose parts are copied from ranges of the source
+ * object, without being downloaded. This is needed for objects larger than 5 GB, which S3 refuses to copy with a
+ * single request. The parts are copied concurrently.
+ *
+ * @version $Id$
+ */
+public class S3MultipartCopy
+{
+    /**
+     * The maximum number of parts of a multipart upload.
+     */
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(S3MultipartCopy.class);
+
+    /**
+     * The S3 client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The bucket where the objects are stored.
+     */
+    private final String bucket;
+
+    /**
+     * The key of the source object.
+     */
+    private final String sourceKey;
+
+    /**
+     * The key of the copy.
+     */
+    private final String targetKey;
+
+    /**
+     * The executor copying the parts.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Set when a part failed to be copied, so that the parts still waiting in the executor are skipped.
+     */
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param client The S3 client.
+     * @param bucket The bucket where the objects are stored.
+     * @param sourceKey The key of the source object.
+     * @param targetKey The key of the copy.
+     * @param executor The executor copying the parts.
+     */
+    public S3MultipartCopy(AmazonS3 client, String bucket, String sourceKey, String targetKey,
+        ExecutorService executor)
+    {
+        this.client = client;
+        this.bucket = bucket;
+        this.sourceKey = sourceKey;
+        this.targetKey = targetKey;
+        this.executor = executor;
+    }
+
+    /**
+     * Copy the object. If anything goes wrong, the multipart upload is aborted so that no part is left behind.
+     *
+     * @param length The length of the source object.
+     * @param partSize The size of the parts, increased if needed for staying below the maximum number of parts.
+     * @throws AmazonClientException If the object cannot be copied.
+     */
+    public void copy(long length, long partSize)
+    {
+        long actualPartSize = Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        String uploadId = null;
+
+        try {
+            uploadId = initiate();
+
+            int partNumber = 1;
+            for (long firstByte = 0; firstByte < length && !this.failed.get(); firstByte += actualPartSize) {
+                long lastByte = Math.min(firstByte + actualPartSize, length) - 1;
+                parts.add(this.executor.submit(new PartCopier(uploadId, partNumber++, firstByte, lastByte)));
+            }
+
+            complete(uploadId, waitForParts(parts));
+        } catch (Exception e) {
+            this.failed.set(true);
+            waitForPartsQuietly(parts);
+            if (uploadId != null) {
+                abort(uploadId);
+            }
+
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (e instanceof AmazonClientException) {
+                throw (AmazonClientException) e;
+            }
+
+            throw new AmazonClientException(String.format("Unable to copy blob '%s' to '%s'", this.sourceKey,
+                this.targetKey), e);
+        }
+    }
+
+    /**
+     * Start the multipart upload.
+     *
+     * @return The upload identifier.
+     */
+    private String initiate()
+    {
+        String uploadId =
+            this.client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(this.bucket, this.targetKey, new ObjectMetadata())).getUploadId();
+
+        this.logger.debug("Started multipart copy '{}' of blob '{}' to '{}'", uploadId, this.sourceKey,
+            this.targetKey);
+
+        return uploadId;
+    }
+
+    /**
+     * Wait for all the parts to be copied.
+     *
+     * @param parts The parts being copied, in order.
+     * @return The ETags of the copied parts, in order.
+     * @throws Exception If a part could not be copied.
+     */
+    private List<PartETag> waitForParts(List<Future<PartETag>> parts) throws Exception
+    {
+        List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+        for (Future<PartETag> part : parts) {
+            try {
+                partETags.add(part.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        return partETags;
+    }
+
+    /**
+     * Wait for all the submitted parts to be done, ignoring failures, so that the upload can be safely aborted.
+     *
+     * @param parts The parts being copied.
+     */
+    private void waitForPartsQuietly(List<Future<PartETag>> parts)
+    {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Already reported through the first failure.
+            }
+        }
+    }
+
+    /**
+     * Complete the multipart upload.
+     *
+     * @param uploadId The upload identifier.
+     * @param partETags The ETags of the copied parts, in order.
+     */
+    private void complete(String uploadId, List<PartETag> partETags)
+    {
+        this.client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.targetKey,
+            uploadId, partETags));
+
+        this.logger.debug("Completed multipart copy '{}' of blob '{}' to '{}' ({} parts)", uploadId,
+            this.sourceKey, this.targetKey, partETags.size());
+    }
+
+    /**
+     * Abort the multipart upload, releasing the storage used by the parts already copied.
+     *
+     * @param uploadId The upload identifier.
+     */
+    private void abort(String uploadId)
+    {
+        try {
+            this.client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.targetKey,
+                uploadId));
+
+            this.logger.debug("Aborted multipart copy '{}' of blob '{}'", uploadId, this.sourceKey);
+        } catch (Exception e) {
+            this.logger.warn("Unable to abort multipart copy '{}' of blob '{}'", uploadId, this.sourceKey, e);
+        }
+    }
+
+    /**
+     * Copies a single part from a range of the source object.
+     */
+    private class PartCopier implements Callable<PartETag>
+    {
+        /**
+         * The upload identifier.
+         */
+        private final String uploadId;
+
+        /**
+         * The part number, starting from 1.
+         */
+        private final int partNumber;
+
+        /**
+         * The position of the first byte of the part in the source object.
+         */
+        private final long firstByte;
+
+        /**
+         * The position of the last byte of the part in the source object, inclusive.
+         */
+        private final long lastByte;
+
+        /**
+         * Constructor.
+         *
+         * @param uploadId The upload identifier.
+         * @param partNumber The part number, starting from 1.
+         * @param firstByte The position of the first byte of the part in the source object.
+         * @param lastByte The position of the last byte of the part in the source object, inclusive.
+         */
+        PartCopier(String uploadId, int partNumber, long firstByte, long lastByte)
+        {
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.firstByte = firstByte;
+            this.lastByte = lastByte;
+        }
+
+        @Override
+        public PartETag call()
+        {
+            try {
+                if (failed.get()) {
+                    throw new AmazonClientException(String.format("Skipping part %d of the copy of blob '%s'",
+                        this.partNumber, sourceKey));
+                }
+
+                CopyPartRequest request =
+                    new CopyPartRequest().withSourceBucketName(bucket).withSourceKey(sourceKey)
+                        .withDestinationBucketName(bucket).withDestinationKey(targetKey)
+                        .withUploadId(this.uploadId).withPartNumber(this.partNumber)
+                        .withFirstByte(this.firstByte).withLastByte(this.lastByte);
+
+                return client.copyPart(request).getPartETag();
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            }
+        }
+    }
+}
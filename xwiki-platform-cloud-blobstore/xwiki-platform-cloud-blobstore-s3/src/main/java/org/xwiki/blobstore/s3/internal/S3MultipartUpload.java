@@ -0,0 +1,368 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads a stream of unknown length to S3 without buffering it entirely in memory. The stream is chopped into parts
+ * of a fixed size which are uploaded concurrently as an S3 multipart upload. Streams that fit in a single part are
+ * stored with a plain PUT instead. The memory used is bounded by the {@link PartBufferPool} shared by all the uploads.
+ *
+ * @version $Id$
+ */
+public class S3MultipartUpload
+{
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(S3MultipartUpload.class);
+
+    /**
+     * The S3 client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The bucket where the blob is stored.
+     */
+    private final String bucket;
+
+    /**
+     * The key of the blob.
+     */
+    private final String key;
+
+    /**
+     * The metadata of the blob.
+     */
+    private final ObjectMetadata objectMetadata;
+
+    /**
+     * The executor uploading the parts.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The pool providing the part buffers.
+     */
+    private final PartBufferPool bufferPool;
+
+    /**
+     * Set when a part failed to upload, so that the parts still waiting in the executor are skipped.
+     */
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param client The S3 client.
+     * @param bucket The bucket where the blob is stored.
+     * @param key The key of the blob.
+     * @param objectMetadata The metadata of the blob. The content length is set by this class.
+     * @param executor The executor uploading the parts.
+     * @param bufferPool The pool providing the part buffers.
+     */
+    public S3MultipartUpload(AmazonS3 client, String bucket, String key, ObjectMetadata objectMetadata,
+        ExecutorService executor, PartBufferPool bufferPool)
+    {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.objectMetadata = objectMetadata;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Upload the content. If anything goes wrong, the multipart upload is aborted so that no part is left behind.
+     *
+     * @param content The content to upload.
+     * @throws AmazonClientException If the content cannot be read or uploaded.
+     */
+    public void upload(InputStream content)
+    {
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        String uploadId = null;
+
+        try {
+            int partNumber = 1;
+            int length;
+            do {
+                byte[] buffer = this.bufferPool.acquire();
+                try {
+                    length = readPart(content, buffer);
+
+                    if (uploadId == null && length < buffer.length) {
+                        // The whole content fits in a single part: no need for a multipart upload.
+                        putSinglePart(buffer, length);
+                        return;
+                    }
+
+                    // When the content length is a multiple of the part size, all the parts have been submitted.
+                    if (length > 0) {
+                        if (uploadId == null) {
+                            uploadId = initiate();
+                        }
+                        parts.add(this.executor.submit(new PartUploader(uploadId, partNumber++, buffer, length)));
+                        // The part uploader releases the buffer from now on.
+                        buffer = null;
+                    }
+                } finally {
+                    if (buffer != null) {
+                        this.bufferPool.release(buffer);
+                    }
+                }
+            } while (length == this.bufferPool.getPartSize() && !this.failed.get());
+
+            complete(uploadId, waitForParts(parts));
+        } catch (Exception e) {
+            this.failed.set(true);
+            waitForPartsQuietly(parts);
+            if (uploadId != null) {
+                abort(uploadId);
+            }
+
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (e instanceof AmazonClientException) {
+                throw (AmazonClientException) e;
+            }
+
+            throw new AmazonClientException(String.format("Unable to upload blob '%s'", this.key), e);
+        }
+    }
+
+    /**
+     * Fill a buffer from the content.
+     *
+     * @param content The content to read from.
+     * @param buffer The buffer to fill.
+     * @return The number of bytes read. This is less than the buffer size only if the end of the content is reached.
+     * @throws IOException If the content cannot be read.
+     */
+    private int readPart(InputStream content, byte[] buffer) throws IOException
+    {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = content.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+
+        return length;
+    }
+
+    /**
+     * Store the content with a plain PUT, now that its length is known.
+     *
+     * @param buffer The buffer containing the whole content.
+     * @param length The length of the content.
+     */
+    private void putSinglePart(byte[] buffer, int length)
+    {
+        this.logger.debug("Putting blob '{}' in a single request ({} bytes)", this.key, length);
+
+        this.objectMetadata.setContentLength(length);
+        this.client.putObject(this.bucket, this.key, new ByteArrayInputStream(buffer, 0, length),
+            this.objectMetadata);
+    }
+
+    /**
+     * Start the multipart upload.
+     *
+     * @return The upload identifier.
+     */
+    private String initiate()
+    {
+        String uploadId =
+            this.client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(this.bucket, this.key, this.objectMetadata)).getUploadId();
+
+        this.logger.debug("Started multipart upload '{}' for blob '{}'", uploadId, this.key);
+
+        return uploadId;
+    }
+
+    /**
+     * Wait for all the parts to be uploaded.
+     *
+     * @param parts The parts being uploaded, in order.
+     * @return The ETags of the uploaded parts, in order.
+     * @throws Exception If a part could not be uploaded.
+     */
+    private List<PartETag> waitForParts(List<Future<PartETag>> parts) throws Exception
+    {
+        List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+        for (Future<PartETag> part : parts) {
+            try {
+                partETags.add(part.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        return partETags;
+    }
+
+    /**
+     * Wait for all the submitted parts to be done, ignoring failures, so that their buffers are released and the
+     * upload can be safely aborted.
+     *
+     * @param parts The parts being uploaded.
+     */
+    private void waitForPartsQuietly(List<Future<PartETag>> parts)
+    {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Already reported through the first failure.
+            }
+        }
+    }
+
+    /**
+     * Complete the multipart upload.
+     *
+     * @param uploadId The upload identifier.
+     * @param partETags The ETags of the uploaded parts, in order.
+     */
+    private void complete(String uploadId, List<PartETag> partETags)
+    {
+        this.client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, uploadId,
+            partETags));
+
+        this.logger.debug("Completed multipart upload '{}' for blob '{}' ({} parts)", uploadId, this.key,
+            partETags.size());
+    }
+
+    /**
+     * Abort the multipart upload, releasing the storage used by the parts already uploaded.
+     *
+     * @param uploadId The upload identifier.
+     */
+    private void abort(String uploadId)
+    {
+        try {
+            this.client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, uploadId));
+
+            this.logger.debug("Aborted multipart upload '{}' for blob '{}'", uploadId, this.key);
+        } catch (Exception e) {
+            this.logger.warn("Unable to abort multipart upload '{}' for blob '{}'", uploadId, this.key, e);
+        }
+    }
+
+    /**
+     * Uploads a single part and releases its buffer.
+     */
+    private class PartUploader implements Callable<PartETag>
+    {
+        /**
+         * The upload identifier.
+         */
+        private final String uploadId;
+
+        /**
+         * The part number, starting from 1.
+         */
+        private final int partNumber;
+
+        /**
+         * The buffer containing the part.
+         */
+        private final byte[] buffer;
+
+        /**
+         * The length of the part.
+         */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param uploadId The upload identifier.
+         * @param partNumber The part number, starting from 1.
+         * @param buffer The buffer containing the part.
+         * @param length The length of the part.
+         */
+        PartUploader(String uploadId, int partNumber, byte[] buffer, int length)
+        {
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override
+        public PartETag call()
+        {
+            try {
+                if (failed.get()) {
+                    throw new AmazonClientException(String.format("Skipping part %d of blob '%s'",
+                        this.partNumber, key));
+                }
+
+                UploadPartRequest request =
+                    new UploadPartRequest().withBucketName(bucket).withKey(key).withUploadId(this.uploadId)
+                        .withPartNumber(this.partNumber).withPartSize(this.length)
+                        .withInputStream(new ByteArrayInputStream(this.buffer, 0, this.length));
+
+                return client.uploadPart(request).getPartETag();
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                bufferPool.release(this.buffer);
+            }
+        }
+    }
+}
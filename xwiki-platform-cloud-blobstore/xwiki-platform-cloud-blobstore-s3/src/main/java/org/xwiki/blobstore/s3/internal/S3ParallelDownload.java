@@ -0,0 +1,879 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Downloads a blob, or a range of it, from S3 using several concurrent range requests. The blob is split into chunks
+ * of a fixed size. The first chunk is requested by the calling thread and streamed directly to the reader, so that
+ * blobs fitting in a single chunk cost a single request and are never buffered. When the blob is larger, the following
+ * chunks are fetched in the background, a bounded number of chunks ahead of the reader, into buffers taken from a
+ * {@link PartBufferPool} shared by all the downloads, and handed back in order through the returned stream. When no
+ * buffer is available, the next chunk is streamed directly instead, so that the memory used by the downloads is
+ * bounded by the pool, whatever their number, without any download waiting for the others. A chunk that fails to
+ * download is retried on its own, without restarting the whole download.
+ *
+ * @version $Id$
+ */
+public class S3ParallelDownload
+{
+    /**
+     * The HTTP status returned by S3 when a range starts after the end of the object.
+     */
+    private static final int STATUS_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The HTTP statuses from which 4xx client errors start.
+     */
+    private static final int STATUS_CLIENT_ERROR = 400;
+
+    /**
+     * The HTTP statuses from which 5xx server errors start.
+     */
+    private static final int STATUS_SERVER_ERROR = 500;
+
+    /**
+     * The delay before retrying a chunk, multiplied by the attempt number.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * The header holding the range of a chunk and the total length of the blob.
+     */
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    /**
+     * The separator between the range and the total length of the blob in the {@value #CONTENT_RANGE} header.
+     */
+    private static final char LENGTH_SEPARATOR = '/';
+
+    /**
+     * The logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(S3ParallelDownload.class);
+
+    /**
+     * The S3 client.
+     */
+    private final AmazonS3 client;
+
+    /**
+     * The bucket where the blob is stored.
+     */
+    private final String bucket;
+
+    /**
+     * The key of the blob.
+     */
+    private final String key;
+
+    /**
+     * The offset of the first byte to download.
+     */
+    private final long offset;
+
+    /**
+     * The offset of the last byte to download, or -1 for downloading up to the end of the blob.
+     */
+    private final long end;
+
+    /**
+     * The executor fetching the chunks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The pool providing the chunk buffers, whose size is the size of the chunks.
+     */
+    private final PartBufferPool bufferPool;
+
+    /**
+     * The size of each chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * The maximum number of chunks fetched ahead of the reader.
+     */
+    private final int readAhead;
+
+    /**
+     * The number of times a chunk is retried before giving up.
+     */
+    private final int retries;
+
+    /**
+     * The ETag of the blob, used for making sure all the chunks belong to the same version of the blob.
+     */
+    private volatile String eTag;
+
+    /**
+     * The entity tag of the copy of the blob held by the caller, checked when fetching the first chunk.
+     */
+    private String ifNoneMatch;
+
+    /**
+     * The date of the copy of the blob held by the caller, checked when fetching the first chunk.
+     */
+    private Date ifModifiedSince;
+
+    /**
+     * The metadata of the first chunk.
+     */
+    private ObjectMetadata firstChunkMetadata;
+
+    /**
+     * The length of the blob, or -1 if unknown.
+     */
+    private long length = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param client The S3 client.
+     * @param bucket The bucket where the blob is stored.
+     * @param key The key of the blob.
+     * @param executor The executor fetching the chunks.
+     * @param bufferPool The pool providing the chunk buffers, whose size is the size of the chunks.
+     * @param readAhead The maximum number of chunks fetched ahead of the reader.
+     * @param retries The number of times a chunk is retried before giving up.
+     */
+    public S3ParallelDownload(AmazonS3 client, String bucket, String key, ExecutorService executor,
+        PartBufferPool bufferPool, int readAhead, int retries)
+    {
+        this(client, bucket, key, 0, -1, executor, bufferPool, readAhead, retries);
+    }
+
+    /**
+     * Constructor for downloading a range of the blob.
+     *
+     * @param client The S3 client.
+     * @param bucket The bucket where the blob is stored.
+     * @param key The key of the blob.
+     * @param offset The offset of the first byte of the range.
+     * @param length The length of the range, or -1 for downloading up to the end of the blob.
+     * @param executor The executor fetching the chunks.
+     * @param bufferPool The pool providing the chunk buffers, whose size is the size of the chunks.
+     * @param readAhead The maximum number of chunks fetched ahead of the reader.
+     * @param retries The number of times a chunk is retried before giving up.
+     */
+    public S3ParallelDownload(AmazonS3 client, String bucket, String key, long offset, long length,
+        ExecutorService executor, PartBufferPool bufferPool, int readAhead, int retries)
+    {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.offset = offset;
+        this.end = length >= 0 ? offset + length - 1 : -1;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.chunkSize = bufferPool.getPartSize();
+        this.readAhead = Math.max(1, readAhead);
+        this.retries = retries;
+    }
+
+    /**
+     * Start the download. The first chunk is requested synchronously, so that errors such as a missing blob are
+     * reported immediately, but its content is streamed as it is read.
+     *
+     * @return The stream for reading the blob.
+     * @throws AmazonClientException If the first chunk cannot be requested.
+     */
+    public InputStream start()
+    {
+        return start(null, null);
+    }
+
+    /**
+     * Start the download unless the blob was not modified since the caller read it. The conditions are checked by S3
+     * when requesting the first chunk, the following ones being bound to its version.
+     *
+     * @param ifNoneMatch The entity tag of the copy of the blob held by the caller, or null.
+     * @param ifModifiedSince The date of the copy of the blob held by the caller, or null.
+     * @return The stream for reading the blob, or null if it was not modified.
+     * @throws AmazonClientException If the first chunk cannot be requested.
+     */
+    public InputStream start(String ifNoneMatch, Date ifModifiedSince)
+    {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+
+        final long firstChunkEnd = getChunkEnd(this.offset);
+        S3Object firstChunk;
+        try {
+            firstChunk = withRetries(0, new Callable<S3Object>()
+            {
+                @Override
+                public S3Object call()
+                {
+                    return client.getObject(newRequest(offset, firstChunkEnd));
+                }
+            });
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                // The blob is empty, or the range starts after its end.
+                this.length = this.offset == 0 && this.end < 0 ? 0 : -1;
+
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw e;
+        } catch (AmazonClientException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AmazonClientException(String.format("Unable to get blob '%s'", this.key), e);
+        }
+
+        if (firstChunk == null) {
+            return null;
+        }
+
+        this.firstChunkMetadata = firstChunk.getObjectMetadata();
+        this.eTag = this.firstChunkMetadata.getETag();
+        this.length = parseLength(this.firstChunkMetadata);
+
+        long rangeEnd = this.length >= 0 ? (this.end >= 0 ? Math.min(this.end, this.length - 1) : this.length - 1)
+            : this.end;
+        long firstChunkLength = this.firstChunkMetadata.getContentLength();
+        if (rangeEnd >= 0 ? firstChunkEnd >= rangeEnd : firstChunkLength < this.chunkSize) {
+            // The whole blob, or range, fits in a single chunk.
+            return firstChunk.getObjectContent();
+        }
+
+        this.logger.debug("Getting blob '{}' with parallel range requests", this.key);
+
+        return new ChunkInputStream(firstChunk.getObjectContent(), firstChunkLength, firstChunkEnd + 1, rangeEnd);
+    }
+
+    /**
+     * @return The metadata returned by S3 with the first chunk once the download is started, holding among others the
+     *         entity tag, the date and the content type of the blob, or null if the blob was not modified.
+     */
+    public ObjectMetadata getObjectMetadata()
+    {
+        return this.firstChunkMetadata;
+    }
+
+    /**
+     * @return The length of the blob once the download is started, or -1 if unknown.
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @param chunkStart The offset of the first byte of a chunk.
+     * @return The offset of the last byte of the chunk.
+     */
+    private long getChunkEnd(long chunkStart)
+    {
+        long chunkEnd = chunkStart + this.chunkSize - 1;
+
+        return this.end >= 0 ? Math.min(chunkEnd, this.end) : chunkEnd;
+    }
+
+    /**
+     * @param chunkStart The offset of the first byte of a chunk.
+     * @param chunkEnd The offset of the last byte of the chunk.
+     * @return The request for the chunk, bound to the version of the blob of the first chunk.
+     */
+    private GetObjectRequest newRequest(long chunkStart, long chunkEnd)
+    {
+        GetObjectRequest request = new GetObjectRequest(this.bucket, this.key);
+        request.setRange(chunkStart, chunkEnd);
+        if (this.eTag != null) {
+            request.setMatchingETagConstraints(Collections.singletonList(this.eTag));
+        } else {
+            S3BlobStore.setConditions(request, this.ifNoneMatch, this.ifModifiedSince);
+        }
+
+        return request;
+    }
+
+    /**
+     * Send a request, retrying it when it fails.
+     *
+     * @param <T> The type of the result of the request.
+     * @param chunkStart The offset of the first byte of the chunk being requested, for logging.
+     * @param request The request.
+     * @return The result of the request.
+     * @throws Exception If the request failed after the retries, or if it cannot succeed.
+     */
+    private <T> T withRetries(long chunkStart, Callable<T> request) throws Exception
+    {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request.call();
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE || attempt >= this.retries
+                    || !isRetryable(e)) {
+                    throw e;
+                }
+                retryLater(chunkStart, attempt, e);
+            } catch (AmazonClientException e) {
+                if (attempt >= this.retries) {
+                    throw e;
+                }
+                retryLater(chunkStart, attempt, e);
+            } catch (IOException e) {
+                if (attempt >= this.retries) {
+                    throw e;
+                }
+                retryLater(chunkStart, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Wait before retrying a chunk.
+     *
+     * @param chunkStart The offset of the first byte of the chunk.
+     * @param attempt The number of the attempt that failed, starting from 0.
+     * @param cause The failure.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    private void retryLater(long chunkStart, int attempt, Exception cause) throws InterruptedException
+    {
+        this.logger.debug("Retrying chunk at {} of blob '{}' after failure: {}", chunkStart, this.key,
+            cause.getMessage());
+
+        Thread.sleep(RETRY_DELAY * (attempt + 1));
+    }
+
+    /**
+     * @param e A failure reported by S3.
+     * @return true if the request may succeed when retried.
+     */
+    private boolean isRetryable(AmazonServiceException e)
+    {
+        return e.getStatusCode() < STATUS_CLIENT_ERROR || e.getStatusCode() >= STATUS_SERVER_ERROR;
+    }
+
+    /**
+     * @param metadata The metadata of a chunk, or null.
+     * @return The total length of the blob, read from the range of the chunk, or -1 if unknown.
+     */
+    private long parseLength(ObjectMetadata metadata)
+    {
+        Object contentRange = metadata != null ? metadata.getRawMetadata().get(CONTENT_RANGE) : null;
+        if (contentRange != null) {
+            String value = contentRange.toString();
+            try {
+                return Long.parseLong(value.substring(value.lastIndexOf(LENGTH_SEPARATOR) + 1).trim());
+            } catch (NumberFormatException e) {
+                this.logger.debug("Unexpected range [{}] for blob '{}'", value, this.key);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * A chunk following the first one, fetched in the background into a buffer of the pool. The buffer is given back
+     * once the chunk is both fetched and no longer needed by the reader, whichever comes last, so that a buffer is
+     * never reused while a request is still writing into it.
+     */
+    private class Chunk implements Callable<Chunk>
+    {
+        /**
+         * The offset of the first byte of the chunk.
+         */
+        private final long start;
+
+        /**
+         * The number of bytes expected, which is less than the chunk size for the last chunk of a range.
+         */
+        private final int expectedLength;
+
+        /**
+         * The buffer receiving the chunk.
+         */
+        private final byte[] buffer;
+
+        /**
+         * The number of bytes fetched.
+         */
+        private int length;
+
+        /**
+         * Whether the fetch of the chunk is over, successfully or not.
+         */
+        private boolean fetched;
+
+        /**
+         * Whether the chunk is no longer needed by the reader.
+         */
+        private boolean abandoned;
+
+        /**
+         * The fetch of the chunk, once submitted.
+         */
+        private Future<Chunk> future;
+
+        /**
+         * Constructor.
+         *
+         * @param start The offset of the first byte of the chunk.
+         * @param expectedLength The number of bytes expected.
+         * @param buffer The buffer receiving the chunk.
+         */
+        Chunk(long start, int expectedLength, byte[] buffer)
+        {
+            this.start = start;
+            this.expectedLength = expectedLength;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Chunk call() throws Exception
+        {
+            try {
+                if (!isAbandoned()) {
+                    this.length = withRetries(this.start, new Callable<Integer>()
+                    {
+                        @Override
+                        public Integer call() throws IOException
+                        {
+                            return fetch();
+                        }
+                    });
+                }
+
+                return this;
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                    // The previous chunk ended exactly with the blob.
+                    this.length = 0;
+
+                    return this;
+                }
+                throw e;
+            } finally {
+                fetchEnded();
+            }
+        }
+
+        /**
+         * Fetch the chunk into its buffer.
+         *
+         * @return The number of bytes fetched.
+         * @throws IOException If the chunk content cannot be read.
+         */
+        private int fetch() throws IOException
+        {
+            S3Object object = client.getObject(newRequest(this.start, this.start + this.expectedLength - 1));
+            if (object == null) {
+                throw new AmazonClientException(String.format("Blob '%s' was modified during its download", key));
+            }
+
+            InputStream content = object.getObjectContent();
+            try {
+                int read = 0;
+                while (read < this.expectedLength) {
+                    int count = content.read(this.buffer, read, this.expectedLength - read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+
+                return read;
+            } finally {
+                content.close();
+            }
+        }
+
+        /**
+         * @return true if the chunk is no longer needed by the reader.
+         */
+        private synchronized boolean isAbandoned()
+        {
+            return this.abandoned;
+        }
+
+        /**
+         * Record that the fetch is over, giving back the buffer if the reader no longer needs the chunk.
+         */
+        private synchronized void fetchEnded()
+        {
+            this.fetched = true;
+            if (this.abandoned) {
+                bufferPool.release(this.buffer);
+            }
+        }
+
+        /**
+         * Record that the reader no longer needs the chunk, giving back the buffer if the fetch is over.
+         */
+        synchronized void abandon()
+        {
+            if (!this.abandoned) {
+                this.abandoned = true;
+                if (this.fetched) {
+                    bufferPool.release(this.buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * The stream handing back the chunks in order, while keeping the next ones being fetched. The first chunk is read
+     * directly from S3, and so is any following chunk for which no buffer was available to fetch it ahead, so that a
+     * download never waits for the buffers held by others.
+     */
+    private class ChunkInputStream extends InputStream
+    {
+        /**
+         * The chunks being fetched, in order.
+         */
+        private final Deque<Chunk> pendingChunks = new ArrayDeque<Chunk>();
+
+        /**
+         * The buffer used for reading a single byte.
+         */
+        private final byte[] singleByte = new byte[1];
+
+        /**
+         * The offset of the last byte to download, or -1 if unknown, in which case the chunks are fetched until a
+         * short one is returned.
+         */
+        private final long rangeEnd;
+
+        /**
+         * The content of the chunk being read directly from S3, if any.
+         */
+        private InputStream streamedChunk;
+
+        /**
+         * The number of bytes of the chunk being read directly from S3 not read yet.
+         */
+        private long streamedChunkRemaining;
+
+        /**
+         * The offset of the first byte of the next chunk to fetch.
+         */
+        private long nextChunkStart;
+
+        /**
+         * true once a chunk shorter than expected has been read, meaning that the end of the blob is reached.
+         */
+        private boolean lastChunkRead;
+
+        /**
+         * The fetched chunk currently being read, if any.
+         */
+        private Chunk currentChunk;
+
+        /**
+         * The position in the current chunk.
+         */
+        private int position;
+
+        /**
+         * Constructor.
+         *
+         * @param firstChunk The content of the first chunk.
+         * @param firstChunkLength The length of the first chunk.
+         * @param nextChunkStart The offset of the first byte of the second chunk.
+         * @param rangeEnd The offset of the last byte to download, or -1 if unknown.
+         */
+        ChunkInputStream(InputStream firstChunk, long firstChunkLength, long nextChunkStart, long rangeEnd)
+        {
+            this.streamedChunk = firstChunk;
+            this.streamedChunkRemaining = firstChunkLength;
+            this.nextChunkStart = nextChunkStart;
+            this.rangeEnd = rangeEnd;
+
+            fetchNextChunks();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return read(this.singleByte, 0, 1) < 0 ? -1 : this.singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+
+            if (this.streamedChunk != null) {
+                return readStreamedChunk(buffer, offset, length);
+            }
+
+            int read = Math.min(length, this.currentChunk.length - this.position);
+            System.arraycopy(this.currentChunk.buffer, this.position, buffer, offset, read);
+            this.position += read;
+
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            if (this.streamedChunk != null) {
+                return (int) Math.min(this.streamedChunk.available(), this.streamedChunkRemaining);
+            }
+
+            return this.currentChunk != null ? this.currentChunk.length - this.position : 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.lastChunkRead = true;
+
+            releaseCurrentChunk();
+            abandonPendingChunks();
+            closeStreamedChunk();
+        }
+
+        /**
+         * Move to the next chunk if the current one has been entirely read.
+         *
+         * @return false if the end of the blob has been reached.
+         * @throws IOException If the next chunk could not be fetched.
+         */
+        private boolean ensureAvailable() throws IOException
+        {
+            while (this.streamedChunk == null
+                && (this.currentChunk == null || this.position == this.currentChunk.length)) {
+                releaseCurrentChunk();
+                if (this.lastChunkRead) {
+                    return false;
+                }
+
+                fetchNextChunks();
+                if (!this.pendingChunks.isEmpty()) {
+                    this.currentChunk = waitForChunk(this.pendingChunks.poll());
+                    this.position = 0;
+
+                    if (this.currentChunk.length < this.currentChunk.expectedLength) {
+                        // Chunks after this one, if any, start after the end of the blob.
+                        this.lastChunkRead = true;
+                        abandonPendingChunks();
+                    }
+                } else if (this.rangeEnd < 0 || this.nextChunkStart <= this.rangeEnd) {
+                    // No buffer is available for fetching the next chunk ahead.
+                    streamNextChunk();
+                } else {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Submit the next chunks for fetching, up to the read ahead limit and as long as buffers are available.
+         */
+        private void fetchNextChunks()
+        {
+            while (!this.lastChunkRead && this.pendingChunks.size() < readAhead
+                && (this.rangeEnd < 0 || this.nextChunkStart <= this.rangeEnd)) {
+                byte[] buffer = bufferPool.tryAcquire();
+                if (buffer == null) {
+                    return;
+                }
+
+                int expectedLength = getExpectedLength(this.nextChunkStart);
+                Chunk chunk = new Chunk(this.nextChunkStart, expectedLength, buffer);
+                chunk.future = executor.submit(chunk);
+                this.pendingChunks.offer(chunk);
+                this.nextChunkStart += expectedLength;
+            }
+        }
+
+        /**
+         * Request the next chunk and read it directly from S3.
+         *
+         * @throws IOException If the chunk cannot be requested.
+         */
+        private void streamNextChunk() throws IOException
+        {
+            final long chunkStart = this.nextChunkStart;
+            final int expectedLength = getExpectedLength(chunkStart);
+            S3Object object;
+            try {
+                object = withRetries(chunkStart, new Callable<S3Object>()
+                {
+                    @Override
+                    public S3Object call()
+                    {
+                        return client.getObject(newRequest(chunkStart, chunkStart + expectedLength - 1));
+                    }
+                });
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == STATUS_RANGE_NOT_SATISFIABLE) {
+                    // The previous chunk ended exactly with the blob.
+                    this.lastChunkRead = true;
+                    return;
+                }
+                close();
+                throw new IOException(String.format("Unable to get blob '%s'", key), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException(String.format("Interrupted while getting blob '%s'", key), e);
+            } catch (Exception e) {
+                close();
+                throw new IOException(String.format("Unable to get blob '%s'", key), e);
+            }
+
+            if (object == null) {
+                close();
+                throw new IOException(String.format("Blob '%s' was modified during its download", key));
+            }
+
+            this.nextChunkStart += expectedLength;
+            this.streamedChunk = object.getObjectContent();
+            this.streamedChunkRemaining = object.getObjectMetadata().getContentLength();
+            if (this.streamedChunkRemaining < expectedLength) {
+                this.lastChunkRead = true;
+            }
+            if (this.streamedChunkRemaining == 0) {
+                closeStreamedChunk();
+            }
+        }
+
+        /**
+         * Read from the chunk being read directly from S3.
+         *
+         * @param buffer The buffer receiving the bytes.
+         * @param offset The offset in the buffer.
+         * @param length The maximum number of bytes to read.
+         * @return The number of bytes read.
+         * @throws IOException If the chunk cannot be read.
+         */
+        private int readStreamedChunk(byte[] buffer, int offset, int length) throws IOException
+        {
+            int read = this.streamedChunk.read(buffer, offset, (int) Math.min(length, this.streamedChunkRemaining));
+            if (read < 0) {
+                close();
+                throw new IOException(String.format("Unexpected end of a chunk of blob '%s'", key));
+            }
+
+            this.streamedChunkRemaining -= read;
+            if (this.streamedChunkRemaining == 0) {
+                closeStreamedChunk();
+            }
+
+            return read;
+        }
+
+        /**
+         * @param chunkStart The offset of the first byte of a chunk.
+         * @return The number of bytes expected for the chunk.
+         */
+        private int getExpectedLength(long chunkStart)
+        {
+            long chunkEnd = getChunkEnd(chunkStart);
+            if (this.rangeEnd >= 0) {
+                chunkEnd = Math.min(chunkEnd, this.rangeEnd);
+            }
+
+            return (int) (chunkEnd - chunkStart + 1);
+        }
+
+        /**
+         * Close the chunk being read directly from S3, if any.
+         *
+         * @throws IOException If the chunk cannot be closed.
+         */
+        private void closeStreamedChunk() throws IOException
+        {
+            if (this.streamedChunk != null) {
+                InputStream content = this.streamedChunk;
+                this.streamedChunk = null;
+                content.close();
+            }
+        }
+
+        /**
+         * Give back the buffer of the chunk just read.
+         */
+        private void releaseCurrentChunk()
+        {
+            if (this.currentChunk != null) {
+                this.currentChunk.abandon();
+                this.currentChunk = null;
+            }
+        }
+
+        /**
+         * Give back the buffers of the chunks fetched ahead, once they are fetched.
+         */
+        private void abandonPendingChunks()
+        {
+            for (Chunk pendingChunk : this.pendingChunks) {
+                pendingChunk.abandon();
+            }
+            this.pendingChunks.clear();
+        }
+
+        /**
+         * @param chunk A chunk being fetched.
+         * @return The chunk, once fetched.
+         * @throws IOException If the chunk could not be fetched.
+         */
+        private Chunk waitForChunk(Chunk chunk) throws IOException
+        {
+            try {
+                return chunk.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunk.abandon();
+                close();
+                throw new IOException(String.format("Interrupted while getting blob '%s'", key), e);
+            } catch (ExecutionException e) {
+                chunk.abandon();
+                close();
+                throw new IOException(String.format("Unable to get blob '%s'", key), e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the requests sent to S3 with a token bucket: the bucket holds up to a second worth of tokens, is
+ * refilled continuously at the configured rate, and each request takes a token, waiting for it if the bucket is
+ * empty. Bursts up to the capacity of the bucket are thus let through, while the average rate never exceeds the
+ * configured one.
+ *
+ * @version $Id$
+ */
+public class TokenBucketRateLimiter
+{
+    /**
+     * The number of tokens added to the bucket per nanosecond.
+     */
+    private final double tokensPerNanosecond;
+
+    /**
+     * The maximum number of tokens held by the bucket.
+     */
+    private final double capacity;
+
+    /**
+     * The number of tokens in the bucket, negative when requests are waiting for tokens.
+     */
+    private double tokens;
+
+    /**
+     * The time when the bucket was last refilled, in nanoseconds.
+     */
+    private long lastRefillTime = System.nanoTime();
+
+    /**
+     * Constructor.
+     *
+     * @param requestsPerSecond The maximum average number of requests per second.
+     */
+    public TokenBucketRateLimiter(double requestsPerSecond)
+    {
+        this.tokensPerNanosecond = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, requestsPerSecond);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Take a token, waiting until one is available.
+     *
+     * @return The time waited, in milliseconds.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public long acquire() throws InterruptedException
+    {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefillTime) * this.tokensPerNanosecond);
+            this.lastRefillTime = now;
+
+            // The token is reserved right away so that the waiting requests are served in order.
+            this.tokens--;
+            wait = this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNanosecond);
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+}
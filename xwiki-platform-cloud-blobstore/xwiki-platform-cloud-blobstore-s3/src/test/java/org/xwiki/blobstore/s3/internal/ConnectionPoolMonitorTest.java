@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Unit tests for {@link ConnectionPoolMonitor}, run against a local stand-in for S3.
+ *
+ * @version $Id$
+ */
+public class ConnectionPoolMonitorTest
+{
+    /**
+     * The bucket used by the tests.
+     */
+    private static final String BUCKET = "bucket";
+
+    /**
+     * The key used by the tests.
+     */
+    private static final String KEY = "farm/xwiki/Space/Page/file.txt";
+
+    /**
+     * The monitor being tested.
+     */
+    private ConnectionPoolMonitor monitor;
+
+    /**
+     * The client whose connections are monitored.
+     */
+    private AmazonS3 client;
+
+    /**
+     * Setup the monitor for tests.
+     */
+    @Before
+    public void setUp()
+    {
+        this.monitor = new ConnectionPoolMonitor(new InMemoryS3().getClient(), 2);
+        this.client = this.monitor.getClient();
+        this.client.putObject(BUCKET, KEY, new ByteArrayInputStream("content".getBytes()), new ObjectMetadata());
+    }
+
+    /**
+     * Check that a download holds its connection until its content is closed.
+     *
+     * @throws Exception If the content cannot be closed.
+     */
+    @Test
+    public void testDownloadHoldsConnectionUntilClosed() throws Exception
+    {
+        Assert.assertEquals(0, this.monitor.getLeasedConnections());
+
+        InputStream content = this.client.getObject(BUCKET, KEY).getObjectContent();
+        Assert.assertEquals(1, this.monitor.getLeasedConnections());
+
+        content.close();
+        content.close();
+        Assert.assertEquals(0, this.monitor.getLeasedConnections());
+        Assert.assertEquals(2, this.monitor.getRequestCount());
+    }
+
+    /**
+     * Check that a failed request releases its connection.
+     */
+    @Test
+    public void testFailedRequestReleasesConnection()
+    {
+        try {
+            this.client.getObject(BUCKET, "missing");
+            Assert.fail("The missing object should not have been found");
+        } catch (AmazonS3Exception expected) {
+            // Expected.
+        }
+
+        Assert.assertEquals(0, this.monitor.getLeasedConnections());
+    }
+
+    /**
+     * Check that requests finding all the connections in use are counted.
+     *
+     * @throws Exception If the contents cannot be closed.
+     */
+    @Test
+    public void testSaturation() throws Exception
+    {
+        InputStream first = this.client.getObject(BUCKET, KEY).getObjectContent();
+        InputStream second = this.client.getObject(BUCKET, KEY).getObjectContent();
+        Assert.assertEquals(0, this.monitor.getSaturatedCount());
+
+        this.client.deleteObject(BUCKET, "other");
+        Assert.assertEquals(1, this.monitor.getSaturatedCount());
+        Assert.assertEquals(3, this.monitor.getPeakLeasedConnections());
+
+        first.close();
+        second.close();
+        Assert.assertEquals(0, this.monitor.getLeasedConnections());
+        Assert.assertEquals(2, this.monitor.getMaxConnections());
+    }
+}
@@ -0,0 +1,676 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A local, in-memory stand-in for Amazon S3, implemented as a Mockito mock of the {@link AmazonS3} client so that
+ * interactions can also be verified. All the objects are stored in a single bucket.
+ *
+ * @version $Id$
+ */
+public class InMemoryS3
+{
+    /**
+     * The stored objects, by key.
+     */
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * The metadata of the stored objects, by key.
+     */
+    private final Map<String, ObjectMetadata> objectMetadata = new ConcurrentHashMap<String, ObjectMetadata>();
+
+    /**
+     * The parts of the multipart uploads in progress, by upload identifier.
+     */
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+
+    /**
+     * Used for generating upload identifiers.
+     */
+    private final AtomicInteger uploadCounter = new AtomicInteger();
+
+    /**
+     * Used for generating ETags.
+     */
+    private final AtomicInteger versionCounter = new AtomicInteger();
+
+    /**
+     * The number of upcoming range requests that fail with a server error.
+     */
+    private final AtomicInteger failingRangeRequests = new AtomicInteger();
+
+    /**
+     * The keys of the objects that fail to be deleted by multi-object delete requests.
+     */
+    private final Set<String> failingDeleteKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The maximum number of objects returned by a list request.
+     */
+    private volatile int listPageSize = 1000;
+
+    /**
+     * The number of the part that fails to upload, 0 for none.
+     */
+    private volatile int failingPartNumber;
+
+    /**
+     * The number of upcoming requests that fail, whatever their kind.
+     */
+    private final AtomicInteger failingRequests = new AtomicInteger();
+
+    /**
+     * The HTTP status of the failing requests, 0 for failing to reach S3.
+     */
+    private volatile int failingStatusCode;
+
+    /**
+     * The S3 error code of the failing requests.
+     */
+    private volatile String failingErrorCode;
+
+    /**
+     * The mocked client.
+     */
+    private final AmazonS3 client = mock(AmazonS3.class);
+
+    /**
+     * Constructor.
+     */
+    public InMemoryS3()
+    {
+        when(this.client.doesBucketExist(anyString())).thenReturn(true);
+
+        when(this.client.putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class)))
+            .thenAnswer(new Answer<PutObjectResult>()
+            {
+                @Override
+                public PutObjectResult answer(InvocationOnMock invocation) throws Throwable
+                {
+                    failIfRequested();
+                    Object[] arguments = invocation.getArguments();
+                    store((String) arguments[1], read((InputStream) arguments[2]), (ObjectMetadata) arguments[3]);
+
+                    return new PutObjectResult();
+                }
+            });
+
+        when(this.client.getObject(anyString(), anyString())).thenAnswer(new Answer<S3Object>()
+        {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                String key = (String) invocation.getArguments()[1];
+                byte[] content = getExistingObject(key);
+
+                S3Object object = new S3Object();
+                object.setKey(key);
+                object.setObjectMetadata(InMemoryS3.this.objectMetadata.get(key));
+                object.setObjectContent(new ByteArrayInputStream(content));
+
+                return object;
+            }
+        });
+
+        when(this.client.getObject(any(GetObjectRequest.class))).thenAnswer(new Answer<S3Object>()
+        {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                return getObject((GetObjectRequest) invocation.getArguments()[0]);
+            }
+        });
+
+        when(this.client.getObjectMetadata(anyString(), anyString())).thenAnswer(new Answer<ObjectMetadata>()
+        {
+            @Override
+            public ObjectMetadata answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                String key = (String) invocation.getArguments()[1];
+                getExistingObject(key);
+
+                return InMemoryS3.this.objectMetadata.get(key);
+            }
+        });
+
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                String key = (String) invocation.getArguments()[1];
+                InMemoryS3.this.objects.remove(key);
+                InMemoryS3.this.objectMetadata.remove(key);
+
+                return null;
+            }
+        }).when(this.client).deleteObject(anyString(), anyString());
+
+        when(this.client.copyObject(anyString(), anyString(), anyString(), anyString())).thenAnswer(
+            new Answer<CopyObjectResult>()
+            {
+                @Override
+                public CopyObjectResult answer(InvocationOnMock invocation) throws Throwable
+                {
+                    failIfRequested();
+                    Object[] arguments = invocation.getArguments();
+                    store((String) arguments[3], getExistingObject((String) arguments[1]), new ObjectMetadata());
+
+                    return new CopyObjectResult();
+                }
+            });
+
+        when(this.client.listObjects(any(ListObjectsRequest.class))).thenAnswer(new Answer<ObjectListing>()
+        {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                return listObjects((ListObjectsRequest) invocation.getArguments()[0]);
+            }
+        });
+
+        when(this.client.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(new Answer<DeleteObjectsResult>()
+        {
+            @Override
+            public DeleteObjectsResult answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                return deleteObjects((DeleteObjectsRequest) invocation.getArguments()[0]);
+            }
+        });
+
+        stubMultipartUploads();
+    }
+
+    /**
+     * Stub the multipart upload operations.
+     */
+    private void stubMultipartUploads()
+    {
+        when(this.client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(
+            new Answer<InitiateMultipartUploadResult>()
+            {
+                @Override
+                public InitiateMultipartUploadResult answer(InvocationOnMock invocation) throws Throwable
+                {
+                    failIfRequested();
+                    String uploadId = String.format("upload-%d", InMemoryS3.this.uploadCounter.incrementAndGet());
+                    InMemoryS3.this.uploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+
+                    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                    result.setUploadId(uploadId);
+
+                    return result;
+                }
+            });
+
+        when(this.client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>()
+        {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                if (request.getPartNumber() == InMemoryS3.this.failingPartNumber) {
+                    throw newException(500, "InternalError");
+                }
+
+                byte[] content = read(request.getInputStream());
+                if (content.length != request.getPartSize()) {
+                    throw newException(400, "IncompleteBody");
+                }
+                getUpload(request.getUploadId()).put(request.getPartNumber(), content);
+
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag(String.format("etag-%d", request.getPartNumber()));
+
+                return result;
+            }
+        });
+
+        when(this.client.copyPart(any(CopyPartRequest.class))).thenAnswer(new Answer<CopyPartResult>()
+        {
+            @Override
+            public CopyPartResult answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                CopyPartRequest request = (CopyPartRequest) invocation.getArguments()[0];
+                if (request.getPartNumber() == InMemoryS3.this.failingPartNumber) {
+                    throw newException(500, "InternalError");
+                }
+
+                byte[] source = getExistingObject(request.getSourceKey());
+                if (request.getLastByte() >= source.length) {
+                    throw newException(416, "InvalidRange");
+                }
+                getUpload(request.getUploadId()).put(request.getPartNumber(), Arrays.copyOfRange(source,
+                    request.getFirstByte().intValue(), request.getLastByte().intValue() + 1));
+
+                CopyPartResult result = new CopyPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag(String.format("etag-%d", request.getPartNumber()));
+
+                return result;
+            }
+        });
+
+        when(this.client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(
+            new Answer<CompleteMultipartUploadResult>()
+            {
+                @Override
+                public CompleteMultipartUploadResult answer(InvocationOnMock invocation) throws Throwable
+                {
+                    failIfRequested();
+                    CompleteMultipartUploadRequest request =
+                        (CompleteMultipartUploadRequest) invocation.getArguments()[0];
+                    Map<Integer, byte[]> parts = getUpload(request.getUploadId());
+
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    for (PartETag partETag : request.getPartETags()) {
+                        content.write(parts.get(partETag.getPartNumber()));
+                    }
+                    InMemoryS3.this.uploads.remove(request.getUploadId());
+                    store(request.getKey(), content.toByteArray(), new ObjectMetadata());
+
+                    return new CompleteMultipartUploadResult();
+                }
+            });
+
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                failIfRequested();
+                AbortMultipartUploadRequest request = (AbortMultipartUploadRequest) invocation.getArguments()[0];
+                getUpload(request.getUploadId());
+                InMemoryS3.this.uploads.remove(request.getUploadId());
+
+                return null;
+            }
+        }).when(this.client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    /**
+     * @return The mocked client.
+     */
+    public AmazonS3 getClient()
+    {
+        return this.client;
+    }
+
+    /**
+     * @param key The key of an object.
+     * @return The content of the object, null if it does not exist.
+     */
+    public byte[] getObject(String key)
+    {
+        return this.objects.get(key);
+    }
+
+    /**
+     * @return The keys of the stored objects.
+     */
+    public Set<String> getKeys()
+    {
+        return this.objects.keySet();
+    }
+
+    /**
+     * @return The number of multipart uploads that have been neither completed nor aborted.
+     */
+    public int getPendingUploadCount()
+    {
+        return this.uploads.size();
+    }
+
+    /**
+     * Make the upload or the copy of a given part fail.
+     *
+     * @param partNumber The number of the part that fails to upload, 0 for none.
+     */
+    public void failUploadPart(int partNumber)
+    {
+        this.failingPartNumber = partNumber;
+    }
+
+    /**
+     * @param listPageSize The maximum number of objects returned by a list request.
+     */
+    public void setListPageSize(int listPageSize)
+    {
+        this.listPageSize = listPageSize;
+    }
+
+    /**
+     * Make the deletion of an object by multi-object delete requests fail.
+     *
+     * @param key The key of the object.
+     */
+    public void failDelete(String key)
+    {
+        this.failingDeleteKeys.add(key);
+    }
+
+    /**
+     * Make the next range requests fail with a server error.
+     *
+     * @param count The number of range requests that fail.
+     */
+    public void failRangeRequests(int count)
+    {
+        this.failingRangeRequests.set(count);
+    }
+
+    /**
+     * Make the next requests fail, whatever their kind.
+     *
+     * @param count The number of requests that fail.
+     * @param statusCode The HTTP status of the failures, 0 for failing as if S3 could not be reached.
+     * @param errorCode The S3 error code of the failures.
+     */
+    public void failRequests(int count, int statusCode, String errorCode)
+    {
+        this.failingStatusCode = statusCode;
+        this.failingErrorCode = errorCode;
+        this.failingRequests.set(count);
+    }
+
+    /**
+     * Fail the current request if requested with {@link #failRequests(int, int, String)}.
+     */
+    private void failIfRequested()
+    {
+        if (this.failingRequests.getAndDecrement() > 0) {
+            if (this.failingStatusCode == 0) {
+                throw new AmazonClientException("Unable to execute HTTP request: Connection reset");
+            }
+            throw newException(this.failingStatusCode, this.failingErrorCode);
+        }
+    }
+
+    /**
+     * Get an object, honoring the range, ETag and date constraints of the request.
+     *
+     * @param request The request.
+     * @return The object, or null if the constraints are not met.
+     */
+    private S3Object getObject(GetObjectRequest request)
+    {
+        byte[] content = getExistingObject(request.getKey());
+        ObjectMetadata metadata = this.objectMetadata.get(request.getKey());
+
+        List<String> matchingETags = request.getMatchingETagConstraints();
+        if (matchingETags != null && !matchingETags.isEmpty() && !matchingETags.contains(metadata.getETag())) {
+            return null;
+        }
+        List<String> nonmatchingETags = request.getNonmatchingETagConstraints();
+        if (nonmatchingETags != null && nonmatchingETags.contains(metadata.getETag())) {
+            return null;
+        }
+        Date modifiedSince = request.getModifiedSinceConstraint();
+        if (modifiedSince != null && !metadata.getLastModified().after(modifiedSince)) {
+            return null;
+        }
+
+        long[] range = request.getRange();
+        if (range != null) {
+            if (this.failingRangeRequests.getAndDecrement() > 0) {
+                throw newException(503, "SlowDown");
+            }
+            if (range[0] >= content.length) {
+                throw newException(416, "InvalidRange");
+            }
+            int end = (int) Math.min(range[1], content.length - 1L) + 1;
+            metadata = getRangeMetadata(metadata, range[0], end, content.length);
+            content = Arrays.copyOfRange(content, (int) range[0], end);
+        }
+
+        S3Object object = new S3Object();
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteArrayInputStream(content));
+
+        return object;
+    }
+
+    /**
+     * @param metadata The metadata of an object.
+     * @param start The start of a range of the object.
+     * @param end The end of the range, exclusive.
+     * @param length The length of the object.
+     * @return The metadata returned by S3 along with the range.
+     */
+    private ObjectMetadata getRangeMetadata(ObjectMetadata metadata, long start, long end, long length)
+    {
+        ObjectMetadata rangeMetadata = new ObjectMetadata();
+        for (Map.Entry<String, Object> header : metadata.getRawMetadata().entrySet()) {
+            rangeMetadata.setHeader(header.getKey(), header.getValue());
+        }
+        rangeMetadata.setUserMetadata(metadata.getUserMetadata());
+        rangeMetadata.setContentLength(end - start);
+        rangeMetadata.setHeader("Content-Range", String.format("bytes %d-%d/%d", start, end - 1, length));
+
+        return rangeMetadata;
+    }
+
+    /**
+     * List the objects in ascending order of key, like S3 does without a delimiter.
+     *
+     * @param request The request.
+     * @return The page of objects following the marker of the request.
+     */
+    private ObjectListing listObjects(ListObjectsRequest request)
+    {
+        SortedMap<String, byte[]> sortedObjects = new TreeMap<String, byte[]>(this.objects);
+        if (request.getMarker() != null) {
+            // The marker itself is excluded.
+            sortedObjects = sortedObjects.tailMap(request.getMarker() + '\0');
+        }
+
+        ObjectListing listing = new ObjectListing();
+        listing.setPrefix(request.getPrefix());
+        for (Map.Entry<String, byte[]> object : sortedObjects.entrySet()) {
+            if (!object.getKey().startsWith(request.getPrefix())) {
+                continue;
+            }
+            if (listing.getObjectSummaries().size() == this.listPageSize) {
+                listing.setTruncated(true);
+                break;
+            }
+
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(object.getKey());
+            summary.setSize(object.getValue().length);
+            summary.setETag(this.objectMetadata.get(object.getKey()).getETag());
+            listing.getObjectSummaries().add(summary);
+        }
+
+        return listing;
+    }
+
+    /**
+     * Delete objects, reporting the ones which could not be deleted like S3 does in quiet mode.
+     *
+     * @param request The request.
+     * @return The result, listing no deleted object since the tests use the quiet mode.
+     */
+    private DeleteObjectsResult deleteObjects(DeleteObjectsRequest request)
+    {
+        if (request.getKeys().size() > 1000) {
+            throw newException(400, "MalformedXML");
+        }
+
+        List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<MultiObjectDeleteException.DeleteError>();
+        for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+            if (this.failingDeleteKeys.contains(key.getKey())) {
+                MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                error.setKey(key.getKey());
+                error.setCode("AccessDenied");
+                error.setMessage("Access Denied");
+                errors.add(error);
+            } else {
+                this.objects.remove(key.getKey());
+                this.objectMetadata.remove(key.getKey());
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw new MultiObjectDeleteException(errors, new ArrayList<DeleteObjectsResult.DeletedObject>());
+        }
+
+        return new DeleteObjectsResult(new ArrayList<DeleteObjectsResult.DeletedObject>());
+    }
+
+    /**
+     * Store an object.
+     *
+     * @param key The key of the object.
+     * @param content The content of the object.
+     * @param metadata The metadata of the object.
+     */
+    private void store(String key, byte[] content, ObjectMetadata metadata)
+    {
+        metadata.setContentLength(content.length);
+        metadata.setHeader("ETag", String.format("version-%d", this.versionCounter.incrementAndGet()));
+        // S3 dates have a precision of one second.
+        metadata.setLastModified(new Date(TimeUnit.SECONDS.toMillis(
+            TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()))));
+        this.objects.put(key, content);
+        this.objectMetadata.put(key, metadata);
+    }
+
+    /**
+     * @param key The key of an object.
+     * @return The content of the object.
+     */
+    private byte[] getExistingObject(String key)
+    {
+        byte[] content = this.objects.get(key);
+        if (content == null) {
+            throw newException(404, "NoSuchKey");
+        }
+
+        return content;
+    }
+
+    /**
+     * @param uploadId An upload identifier.
+     * @return The parts of the upload.
+     */
+    private Map<Integer, byte[]> getUpload(String uploadId)
+    {
+        Map<Integer, byte[]> parts = this.uploads.get(uploadId);
+        if (parts == null) {
+            throw newException(404, "NoSuchUpload");
+        }
+
+        return parts;
+    }
+
+    /**
+     * @param statusCode The HTTP status code.
+     * @param errorCode The S3 error code.
+     * @return An exception like the ones thrown by the S3 client.
+     */
+    private AmazonS3Exception newException(int statusCode, String errorCode)
+    {
+        AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+        exception.setStatusCode(statusCode);
+        exception.setErrorCode(errorCode);
+
+        return exception;
+    }
+
+    /**
+     * @param stream A stream.
+     * @return The whole content of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+            content.write(buffer, 0, read);
+        }
+
+        return content.toByteArray();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for {@link ResilientS3Client}, run against a local stand-in for S3 injecting failures.
+ *
+ * @version $Id$
+ */
+public class ResilientS3ClientTest
+{
+    /**
+     * The bucket used by the tests.
+     */
+    private static final String BUCKET = "bucket";
+
+    /**
+     * The key used by the tests.
+     */
+    private static final String KEY = "farm/xwiki/Space/Page/file.txt";
+
+    /**
+     * The content used by the tests.
+     */
+    private static final byte[] CONTENT = "content".getBytes();
+
+    /**
+     * The number of retries used by the tests.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * The local stand-in for S3.
+     */
+    private InMemoryS3 s3;
+
+    /**
+     * Setup the stand-in for tests.
+     */
+    @Before
+    public void setUp()
+    {
+        this.s3 = new InMemoryS3();
+    }
+
+    /**
+     * Check that throttled requests are retried until they succeed, rewinding their content.
+     */
+    @Test
+    public void testRetriesThrottledRequests()
+    {
+        ResilientS3Client resilientClient = newResilientClient(new CircuitBreaker(0, 0), null);
+        this.s3.failRequests(2, 503, "SlowDown");
+
+        resilientClient.getClient().putObject(BUCKET, KEY, new ByteArrayInputStream(CONTENT), new ObjectMetadata());
+
+        Assert.assertArrayEquals(CONTENT, this.s3.getObject(KEY));
+        Assert.assertEquals(2, resilientClient.getRetryCount());
+        Assert.assertEquals(2, resilientClient.getThrottledCount());
+        Assert.assertEquals(0, resilientClient.getFailedCount());
+        verify(this.s3.getClient(), times(3)).putObject(anyString(), anyString(), any(InputStream.class),
+            any(ObjectMetadata.class));
+    }
+
+    /**
+     * Check that client errors are neither retried nor counted as failures.
+     */
+    @Test
+    public void testDoesNotRetryClientErrors()
+    {
+        ResilientS3Client resilientClient = newResilientClient(new CircuitBreaker(1, 60000), null);
+
+        try {
+            resilientClient.getClient().getObject(BUCKET, "missing");
+            Assert.fail("The missing object should not have been found");
+        } catch (AmazonServiceException expected) {
+            Assert.assertEquals(404, expected.getStatusCode());
+        }
+
+        Assert.assertEquals(0, resilientClient.getRetryCount());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED.name(), resilientClient.getCircuitBreakerState());
+        verify(this.s3.getClient(), times(1)).getObject(BUCKET, "missing");
+    }
+
+    /**
+     * Check that a request failing repeatedly is given up after the configured number of retries.
+     */
+    @Test
+    public void testGivesUpAfterMaxRetries()
+    {
+        ResilientS3Client resilientClient = newResilientClient(new CircuitBreaker(0, 0), null);
+        this.s3.failRequests(MAX_RETRIES + 1, 500, "InternalError");
+
+        try {
+            resilientClient.getClient().deleteObject(BUCKET, KEY);
+            Assert.fail("The request should have failed");
+        } catch (AmazonServiceException expected) {
+            Assert.assertEquals(500, expected.getStatusCode());
+        }
+
+        Assert.assertEquals(MAX_RETRIES, resilientClient.getRetryCount());
+        Assert.assertEquals(1, resilientClient.getFailedCount());
+        verify(this.s3.getClient(), times(MAX_RETRIES + 1)).deleteObject(BUCKET, KEY);
+    }
+
+    /**
+     * Check that a request whose content cannot be rewound is not retried.
+     */
+    @Test
+    public void testDoesNotRetryNonResettableContent()
+    {
+        ResilientS3Client resilientClient = newResilientClient(new CircuitBreaker(0, 0), null);
+        this.s3.failRequests(1, 503, "SlowDown");
+
+        try {
+            resilientClient.getClient().putObject(BUCKET, KEY,
+                new PushbackInputStream(new ByteArrayInputStream(CONTENT)), new ObjectMetadata());
+            Assert.fail("The request should have failed");
+        } catch (AmazonServiceException expected) {
+            // Expected.
+        }
+
+        Assert.assertEquals(0, resilientClient.getRetryCount());
+        Assert.assertNull(this.s3.getObject(KEY));
+    }
+
+    /**
+     * Check that the circuit breaker opens after too many failures, rejects the requests while open, and closes
+     * again once a trial request succeeds.
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test
+    public void testCircuitBreakerFailsFastWhileOpen() throws Exception
+    {
+        ResilientS3Client resilientClient = new ResilientS3Client(this.s3.getClient(), 0, 0, 0, 0, null,
+            new CircuitBreaker(2, 100));
+        AmazonS3 client = resilientClient.getClient();
+        this.s3.failRequests(2, 0, null);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.deleteObject(BUCKET, KEY);
+                Assert.fail("The request should have failed");
+            } catch (AmazonClientException expected) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN.name(), resilientClient.getCircuitBreakerState());
+
+        try {
+            client.deleteObject(BUCKET, KEY);
+            Assert.fail("The request should have been rejected");
+        } catch (AmazonClientException expected) {
+            // Expected.
+        }
+        Assert.assertEquals(1, resilientClient.getRejectedCount());
+        verify(this.s3.getClient(), times(2)).deleteObject(BUCKET, KEY);
+
+        Thread.sleep(150);
+
+        client.deleteObject(BUCKET, KEY);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED.name(), resilientClient.getCircuitBreakerState());
+        verify(this.s3.getClient(), times(3)).deleteObject(BUCKET, KEY);
+    }
+
+    /**
+     * Check that a request interrupted while waiting for the rate limiter does not use up the trial request of a
+     * half-open circuit breaker.
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test
+    public void testInterruptedRateLimitWaitKeepsTheTrialRequest() throws Exception
+    {
+        ResilientS3Client resilientClient = new ResilientS3Client(this.s3.getClient(), 0, 0, 0, 0,
+            new TokenBucketRateLimiter(1), new CircuitBreaker(1, 100));
+        AmazonS3 client = resilientClient.getClient();
+        this.s3.failRequests(1, 0, null);
+
+        try {
+            client.deleteObject(BUCKET, KEY);
+            Assert.fail("The request should have failed");
+        } catch (AmazonClientException expected) {
+            // Expected.
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN.name(), resilientClient.getCircuitBreakerState());
+
+        // The single token has been used: the next request waits for the rate limiter, and is interrupted.
+        Thread.sleep(150);
+        Thread.currentThread().interrupt();
+        try {
+            client.deleteObject(BUCKET, KEY);
+            Assert.fail("The request should have been interrupted");
+        } catch (AmazonClientException expected) {
+            Assert.assertTrue(Thread.interrupted());
+        }
+
+        client.deleteObject(BUCKET, KEY);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED.name(), resilientClient.getCircuitBreakerState());
+        verify(this.s3.getClient(), times(2)).deleteObject(BUCKET, KEY);
+    }
+
+    /**
+     * Check that the requests exceeding the burst allowed by the rate limiter are delayed.
+     *
+     * @throws Exception If the test is interrupted.
+     */
+    @Test
+    public void testRateLimiterDelaysRequests() throws Exception
+    {
+        ResilientS3Client resilientClient =
+            newResilientClient(new CircuitBreaker(0, 0), new TokenBucketRateLimiter(20));
+        AmazonS3 client = resilientClient.getClient();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++) {
+            client.doesBucketExist(BUCKET);
+        }
+
+        // The first 20 requests are let through at once, the next 10 at 20 requests per second.
+        Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+        Assert.assertTrue(resilientClient.getRateLimitDelay() > 0);
+    }
+
+    /**
+     * @param circuitBreaker The circuit breaker.
+     * @param rateLimiter The rate limiter, null for none.
+     * @return A client retrying the requests with short delays.
+     */
+    private ResilientS3Client newResilientClient(CircuitBreaker circuitBreaker, TokenBucketRateLimiter rateLimiter)
+    {
+        return new ResilientS3Client(this.s3.getClient(), MAX_RETRIES, 1, 10, 0, rateLimiter, circuitBreaker);
+    }
+}
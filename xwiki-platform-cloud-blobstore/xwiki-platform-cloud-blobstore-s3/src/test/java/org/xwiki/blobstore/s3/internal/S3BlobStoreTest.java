@@ -0,0 +1,717 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link S3BlobStore}, run against a local stand-in for S3.
+ *
+ * @version $Id$
+ */
+public class S3BlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        S3BlobStore.class);
+
+    /**
+     * The part size used by the tests, which is the smallest one allowed by S3.
+     */
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The download chunk size used by the tests.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The namespace used by the tests.
+     */
+    private static final String NAMESPACE = "farm";
+
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.bin";
+
+    /**
+     * The key of the blob used by the tests.
+     */
+    private static final String KEY = NAMESPACE + '/' + PATH;
+
+    /**
+     * The local stand-in for S3.
+     */
+    private InMemoryS3 s3;
+
+    /**
+     * Setup the blob store for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.s3 = new InMemoryS3();
+
+        S3ClientFactory clientFactory = this.mocker.getInstance(S3ClientFactory.class);
+        when(clientFactory.createClient(anyString(), anyString())).thenReturn(this.s3.getClient());
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+        when(configuration.getProperty(BlobStore.BLOBSTORE_BUCKET_PROPERTY, String.class)).thenReturn("bucket");
+        when(configuration.getProperty(BlobStore.BLOBSTORE_IDENTITY_PROPERTY, String.class)).thenReturn("identity");
+        when(configuration.getProperty(BlobStore.BLOBSTORE_CREDENTIAL_PROPERTY, String.class)).thenReturn(
+            "credential");
+        when(configuration.getProperty(BlobStore.BLOBSTORE_NAMESPACE_PROPERTY, String.class)).thenReturn(NAMESPACE);
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_UPLOAD_PART_SIZE_PROPERTY), Matchers.<Object>any()))
+            .thenReturn(PART_SIZE);
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_UPLOAD_CONCURRENCY_PROPERTY),
+            Matchers.<Object>any())).thenReturn(2);
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_DOWNLOAD_CHUNK_SIZE_PROPERTY),
+            Matchers.<Object>any())).thenReturn(CHUNK_SIZE);
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_COPY_THRESHOLD_PROPERTY), Matchers.<Object>any()))
+            .thenReturn((long) PART_SIZE);
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_COPY_PART_SIZE_PROPERTY), Matchers.<Object>any()))
+            .thenReturn((long) PART_SIZE);
+    }
+
+    /**
+     * Check that a blob of unknown length spanning several parts is stored with a multipart upload.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobOfUnknownLengthUsesMultipartUpload() throws Exception
+    {
+        byte[] content = randomContent(2 * PART_SIZE + 1234);
+
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(content));
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        verify(this.s3.getClient(), times(3)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertEquals(0, this.s3.getPendingUploadCount());
+    }
+
+    /**
+     * Check that no empty trailing part is uploaded when the length is a multiple of the part size.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobOfUnknownLengthMultipleOfPartSize() throws Exception
+    {
+        byte[] content = randomContent(2 * PART_SIZE);
+
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(content));
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        verify(this.s3.getClient(), times(2)).uploadPart(any(UploadPartRequest.class));
+    }
+
+    /**
+     * Check that a blob of unknown length fitting in a single part is stored with a plain PUT.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutSmallBlobOfUnknownLengthUsesSingleRequest() throws Exception
+    {
+        byte[] content = randomContent(1234);
+
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(content));
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        verify(this.s3.getClient(), never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    /**
+     * Check that the multipart upload is aborted when a part fails to upload.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobOfUnknownLengthAbortsOnFailure() throws Exception
+    {
+        this.s3.failUploadPart(2);
+
+        try {
+            this.mocker.getComponentUnderTest().putBlob(PATH,
+                new ByteArrayInputStream(randomContent(3 * PART_SIZE)));
+            Assert.fail("The upload should have failed");
+        } catch (AmazonClientException expected) {
+            // Expected.
+        }
+
+        Assert.assertNull(this.s3.getObject(KEY));
+        verify(this.s3.getClient()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        Assert.assertEquals(0, this.s3.getPendingUploadCount());
+    }
+
+    /**
+     * Check that the part buffers are given back when the multipart upload cannot be started, so that failed uploads
+     * do not leave the following ones waiting forever for a buffer.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test(timeout = 10000)
+    public void testPutBlobOfUnknownLengthReleasesBuffersWhenInitiateFails() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        // More failed uploads than part buffers.
+        for (int i = 0; i < 3; i++) {
+            this.s3.failRequests(1, 403, "AccessDenied");
+            try {
+                blobStore.putBlob(PATH, new ByteArrayInputStream(randomContent(2 * PART_SIZE)));
+                Assert.fail("The upload should have failed");
+            } catch (AmazonClientException expected) {
+                // Expected.
+            }
+        }
+
+        byte[] content = randomContent(3 * PART_SIZE);
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content));
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        verify(this.s3.getClient(), times(3)).uploadPart(any(UploadPartRequest.class));
+    }
+
+    /**
+     * Check that a blob of known length is streamed with a single request.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testPutBlobOfKnownLength() throws Exception
+    {
+        byte[] content = randomContent(PART_SIZE + 1);
+
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        verify(this.s3.getClient(), never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    /**
+     * Check that a blob larger than a chunk is downloaded with several range requests and reassembled in order.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetLargeBlobWithParallelRangeRequests() throws Exception
+    {
+        byte[] content = randomContent(10 * CHUNK_SIZE + 123);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+        verify(this.s3.getClient(), atLeast(11)).getObject(any(GetObjectRequest.class));
+    }
+
+    /**
+     * Check that a blob whose length is a multiple of the chunk size is entirely downloaded.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobMultipleOfChunkSize() throws Exception
+    {
+        byte[] content = randomContent(3 * CHUNK_SIZE);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+    }
+
+    /**
+     * Check that a blob smaller than a chunk is downloaded with a single request.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetSmallBlobWithSingleRequest() throws Exception
+    {
+        byte[] content = randomContent(CHUNK_SIZE - 1);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+        verify(this.s3.getClient(), times(1)).getObject(any(GetObjectRequest.class));
+    }
+
+    /**
+     * Check that concurrent downloads of large blobs share the bounded chunk buffers without waiting for each other,
+     * even when there are fewer buffers than downloads.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testConcurrentDownloadsShareBoundedBuffers() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(eq(S3BlobStore.BLOBSTORE_DOWNLOAD_BUFFERS_PROPERTY), Matchers.<Object>any()))
+            .thenReturn(1);
+
+        byte[] content = randomContent(4 * CHUNK_SIZE + 123);
+        byte[] otherContent = randomContent(3 * CHUNK_SIZE + 45);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+        blobStore.putBlob("other.bin", new ByteArrayInputStream(otherContent), otherContent.length);
+
+        InputStream stream = blobStore.getBlob(PATH);
+        InputStream otherStream = blobStore.getBlob("other.bin");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream otherOutput = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE / 3];
+        int read = 0;
+        int otherRead = 0;
+        while (read >= 0 || otherRead >= 0) {
+            if (read >= 0 && (read = stream.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+            if (otherRead >= 0 && (otherRead = otherStream.read(buffer)) > 0) {
+                otherOutput.write(buffer, 0, otherRead);
+            }
+        }
+        stream.close();
+        otherStream.close();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+        Assert.assertArrayEquals(otherContent, otherOutput.toByteArray());
+
+        // The buffers are given back, including by downloads closed before their end.
+        stream = blobStore.getBlob(PATH);
+        stream.read(buffer);
+        stream.close();
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+    }
+
+    /**
+     * Check that chunks failing to download are retried individually.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobRetriesFailedChunks() throws Exception
+    {
+        byte[] content = randomContent(5 * CHUNK_SIZE + 1);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        this.s3.failRangeRequests(2);
+
+        Assert.assertArrayEquals(content, read(blobStore.getBlob(PATH)));
+    }
+
+    /**
+     * Check that getting a missing blob returns null.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetMissingBlob() throws Exception
+    {
+        Assert.assertNull(this.mocker.getComponentUnderTest().getBlob("missing"));
+    }
+
+    /**
+     * Check that several ranges of a blob, such as the ones of a multiple range HTTP request, are read without
+     * transferring the rest of the blob.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobRanges() throws Exception
+    {
+        byte[] content = randomContent(5 * CHUNK_SIZE + 123);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        long[][] ranges = {{0, 100}, {CHUNK_SIZE - 10, 20}, {3 * CHUNK_SIZE + 5, 2 * CHUNK_SIZE},
+            {content.length - 50, -1}, {content.length - 10, 100}, {2 * CHUNK_SIZE, CHUNK_SIZE}};
+        for (long[] range : ranges) {
+            int end = range[1] < 0 ? content.length : (int) Math.min(range[0] + range[1], content.length);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, (int) range[0], end),
+                read(blobStore.getBlob(PATH, range[0], range[1])));
+        }
+        Assert.assertEquals(0, read(blobStore.getBlob(PATH, content.length + 1, 10)).length);
+        Assert.assertNull(blobStore.getBlob("missing", 0, 10));
+
+        // Each range takes a single request, except the one spanning two chunks.
+        verify(this.s3.getClient(), times(ranges.length + 3)).getObject(any(GetObjectRequest.class));
+    }
+
+    /**
+     * Check that reading a blob returns its metadata along with its content.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadBlobReturnsMetadata() throws Exception
+    {
+        byte[] content = randomContent(3 * CHUNK_SIZE + 1);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        Blob blob = blobStore.readBlob(PATH, null, null);
+
+        Assert.assertTrue(blob.isModified());
+        Assert.assertArrayEquals(content, read(blob.getContent()));
+        Assert.assertEquals(PATH, blob.getMetadata().getPath());
+        Assert.assertEquals(content.length, blob.getMetadata().getLength());
+        Assert.assertNotNull(blob.getMetadata().getEtag());
+        Assert.assertNotNull(blob.getMetadata().getLastModified());
+    }
+
+    /**
+     * Check that a blob whose entity tag matches is not transferred again.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadBlobNotModifiedSinceEtag() throws Exception
+    {
+        byte[] content = randomContent(3 * CHUNK_SIZE + 1);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+        String etag = blobStore.readBlob(PATH, null, null).getMetadata().getEtag();
+
+        Blob blob = blobStore.readBlob(PATH, etag, null);
+
+        Assert.assertFalse(blob.isModified());
+        Assert.assertNull(blob.getContent());
+        Assert.assertEquals(etag, blob.getMetadata().getEtag());
+
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        blob = blobStore.readBlob(PATH, etag, null);
+        Assert.assertTrue(blob.isModified());
+        Assert.assertArrayEquals(content, read(blob.getContent()));
+    }
+
+    /**
+     * Check that a blob not modified since a date is not transferred again.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadBlobNotModifiedSinceDate() throws Exception
+    {
+        byte[] content = randomContent(100);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+        Date lastModified = blobStore.readBlob(PATH, null, null).getMetadata().getLastModified();
+
+        Assert.assertFalse(blobStore.readBlob(PATH, null, lastModified).isModified());
+        Assert.assertTrue(blobStore.readBlob(PATH, null, new Date(lastModified.getTime() - 1000)).isModified());
+    }
+
+    /**
+     * Check that reading a missing blob returns null.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testReadMissingBlob() throws Exception
+    {
+        Assert.assertNull(this.mocker.getComponentUnderTest().readBlob("missing", "etag", new Date()));
+    }
+
+    /**
+     * Check that the metadata of a blob is fetched without its content, kept in memory, and fetched again once the
+     * blob was written.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobMetadataWithoutContent() throws Exception
+    {
+        byte[] content = randomContent(3 * CHUNK_SIZE + 1);
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        BlobMetadata metadata = blobStore.getBlobMetadata(PATH);
+
+        Assert.assertEquals(PATH, metadata.getPath());
+        Assert.assertEquals(content.length, metadata.getLength());
+        Assert.assertNotNull(metadata.getEtag());
+        Assert.assertNotNull(metadata.getLastModified());
+        Assert.assertSame(metadata, blobStore.getBlobMetadata(PATH));
+        verify(this.s3.getClient()).getObjectMetadata("bucket", KEY);
+        verify(this.s3.getClient(), never()).getObject(any(GetObjectRequest.class));
+
+        blobStore.putBlob(PATH, new ByteArrayInputStream(content, 0, 10), 10);
+
+        Assert.assertEquals(10, blobStore.getBlobMetadata(PATH).getLength());
+        verify(this.s3.getClient(), times(2)).getObjectMetadata("bucket", KEY);
+
+        blobStore.deleteBlob(PATH);
+
+        Assert.assertNull(blobStore.getBlobMetadata(PATH));
+        Assert.assertNull(blobStore.getBlobMetadata(PATH));
+        verify(this.s3.getClient(), times(3)).getObjectMetadata("bucket", KEY);
+    }
+
+    /**
+     * Check that the metadata of several blobs is fetched with one request per blob not kept in memory, leaving the
+     * missing blobs out.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobMetadataOfSeveralBlobs() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String path = String.format("xwiki/Space/Page%d/file.txt", i);
+            if (i % 2 == 0) {
+                blobStore.putBlob(path, new ByteArrayInputStream(new byte[i]), i);
+            }
+            paths.add(path);
+        }
+        blobStore.getBlobMetadata(paths.get(0));
+
+        Map<String, BlobMetadata> metadata = blobStore.getBlobMetadata(paths);
+
+        Assert.assertEquals(10, metadata.size());
+        for (int i = 0; i < 20; i += 2) {
+            Assert.assertEquals(i, metadata.get(paths.get(i)).getLength());
+        }
+        verify(this.s3.getClient(), times(20)).getObjectMetadata(anyString(), anyString());
+    }
+
+    /**
+     * Check that a blob is moved by copying it inside the bucket.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMoveBlobCopiesInsideBucket() throws Exception
+    {
+        byte[] content = randomContent(100);
+        this.mocker.getComponentUnderTest().putBlob(".staging/tx/" + PATH, new ByteArrayInputStream(content),
+            content.length);
+
+        this.mocker.getComponentUnderTest().moveBlob(".staging/tx/" + PATH, PATH);
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        Assert.assertNull(this.s3.getObject(NAMESPACE + "/.staging/tx/" + PATH));
+        verify(this.s3.getClient()).copyObject(anyString(), eq(NAMESPACE + "/.staging/tx/" + PATH), anyString(),
+            eq(KEY));
+    }
+
+    /**
+     * Check that a blob is copied inside the bucket, and that the source blob is kept.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testCopyBlobCopiesInsideBucket() throws Exception
+    {
+        byte[] content = randomContent(100);
+        this.mocker.getComponentUnderTest().putBlob(PATH, new ByteArrayInputStream(content), content.length);
+
+        this.mocker.getComponentUnderTest().copyBlob(PATH, ".archive/" + PATH);
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        Assert.assertArrayEquals(content, this.s3.getObject(NAMESPACE + "/.archive/" + PATH));
+        verify(this.s3.getClient()).copyObject(anyString(), eq(KEY), anyString(), eq(NAMESPACE + "/.archive/" + PATH));
+    }
+
+    /**
+     * Check that a blob larger than the copy threshold, which stands for the 5 GB limit of S3 copies, is moved with a
+     * multipart copy of ranges of the blob.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMoveLargeBlobWithMultipartCopy() throws Exception
+    {
+        byte[] content = randomContent(2 * PART_SIZE + 1234);
+        this.mocker.getComponentUnderTest().putBlob(".staging/tx/" + PATH, new ByteArrayInputStream(content),
+            content.length);
+
+        this.mocker.getComponentUnderTest().moveBlob(".staging/tx/" + PATH, PATH);
+
+        Assert.assertArrayEquals(content, this.s3.getObject(KEY));
+        Assert.assertNull(this.s3.getObject(NAMESPACE + "/.staging/tx/" + PATH));
+        verify(this.s3.getClient(), times(3)).copyPart(any(CopyPartRequest.class));
+        verify(this.s3.getClient(), never()).copyObject(anyString(), anyString(), anyString(), anyString());
+        Assert.assertEquals(0, this.s3.getPendingUploadCount());
+    }
+
+    /**
+     * Check that a failed multipart copy is aborted and leaves the source blob in place.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testMoveLargeBlobAbortsOnFailure() throws Exception
+    {
+        byte[] content = randomContent(2 * PART_SIZE + 1234);
+        this.mocker.getComponentUnderTest().putBlob(".staging/tx/" + PATH, new ByteArrayInputStream(content),
+            content.length);
+        this.s3.failUploadPart(2);
+
+        try {
+            this.mocker.getComponentUnderTest().moveBlob(".staging/tx/" + PATH, PATH);
+            Assert.fail("The move should have failed");
+        } catch (AmazonClientException e) {
+            // Expected.
+        }
+
+        Assert.assertNull(this.s3.getObject(KEY));
+        Assert.assertArrayEquals(content, this.s3.getObject(NAMESPACE + "/.staging/tx/" + PATH));
+        verify(this.s3.getClient()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        Assert.assertEquals(0, this.s3.getPendingUploadCount());
+    }
+
+    /**
+     * @param stream A stream.
+     * @return The whole content of the stream.
+     * @throws Exception If the stream cannot be read.
+     */
+    private byte[] read(InputStream stream) throws Exception
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return content.toByteArray();
+    }
+
+    /**
+     * Check that many blobs are deleted with multi-object delete requests of at most 1000 keys, and that the blobs
+     * which could not be deleted are reported without preventing the others from being deleted.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteBlobsInChunks() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 2500; i++) {
+            String path = String.format("xwiki/Space/Page%d/file.txt", i);
+            blobStore.putBlob(path, new ByteArrayInputStream(new byte[] {1}), 1);
+            paths.add(path);
+        }
+        this.s3.failDelete(NAMESPACE + "/xwiki/Space/Page1234/file.txt");
+
+        Map<String, Exception> failures = blobStore.deleteBlobs(paths);
+
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.containsKey("xwiki/Space/Page1234/file.txt"));
+        Assert.assertEquals(1, this.s3.getKeys().size());
+        verify(this.s3.getClient(), times(3)).deleteObjects(any(DeleteObjectsRequest.class));
+        verify(this.s3.getClient(), never()).deleteObject(anyString(), anyString());
+    }
+
+    /**
+     * Check that blobs are listed in order, page by page, without the namespace and only under the given prefix.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testListBlobsPageByPage() throws Exception
+    {
+        BlobStore blobStore = this.mocker.getComponentUnderTest();
+        for (int i = 0; i < 25; i++) {
+            blobStore.putBlob(String.format("xwiki/Space/Page%02d/file.txt", i), new ByteArrayInputStream(
+                new byte[i]), i);
+        }
+        blobStore.putBlob("other/Space/Page/file.txt", new ByteArrayInputStream(new byte[1]), 1);
+        this.s3.setListPageSize(10);
+
+        Iterator<BlobMetadata> blobs = blobStore.listBlobs("xwiki/");
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(blobs.hasNext());
+            BlobMetadata blob = blobs.next();
+            Assert.assertEquals(String.format("xwiki/Space/Page%02d/file.txt", i), blob.getPath());
+            Assert.assertEquals(i, blob.getLength());
+            Assert.assertNotNull(blob.getEtag());
+        }
+        Assert.assertFalse(blobs.hasNext());
+
+        verify(this.s3.getClient(), times(3)).listObjects(any(ListObjectsRequest.class));
+    }
+
+    /**
+     * @param length The length of the content.
+     * @return Some random content.
+     */
+    private byte[] randomContent(int length)
+    {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+
+        return content;
+    }
+}
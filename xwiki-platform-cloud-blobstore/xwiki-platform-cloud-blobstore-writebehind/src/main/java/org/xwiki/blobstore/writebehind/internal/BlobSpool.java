@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.writebehind.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Directory holding the blobs waiting to be uploaded. Each blob is stored in its own file, named after its id and
+ * starting with its path, so that the spool can be recovered after a restart. A file is only given its final name
+ * once its content has been written and synced to the disk, so that the spool never holds a partial blob.
+ *
+ * @version $Id$
+ */
+public class BlobSpool
+{
+    /**
+     * The extension of the spool files.
+     */
+    private static final String SPOOL_EXTENSION = ".spool";
+
+    /**
+     * The extension of the spool files being written.
+     */
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    /**
+     * The directory of the spool.
+     */
+    private final File directory;
+
+    /**
+     * The id of the last spooled blob.
+     */
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * The total length of the spooled blobs.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory of the spool.
+     * @throws IOException If the directory cannot be created.
+     */
+    public BlobSpool(File directory) throws IOException
+    {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create the spool directory [%s]", directory));
+        }
+    }
+
+    /**
+     * Load the blobs left in the spool by a previous run, and remove the partially written ones.
+     *
+     * @return The spooled blobs, in the order they were written.
+     * @throws IOException If the spool cannot be read.
+     */
+    public List<SpooledBlob> recover() throws IOException
+    {
+        List<SpooledBlob> blobs = new ArrayList<SpooledBlob>();
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException(String.format("Unable to list the spool directory [%s]", this.directory));
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_EXTENSION)) {
+                Files.deleteIfExists(file.toPath());
+            } else if (name.endsWith(SPOOL_EXTENSION)) {
+                long id = Long.parseLong(name.substring(0, name.length() - SPOOL_EXTENSION.length()));
+                String path;
+                try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                    path = input.readUTF();
+                }
+                long offset = getHeader(path).length;
+                blobs.add(new SpooledBlob(id, path, file, offset, file.length() - offset));
+                this.lastId.set(Math.max(this.lastId.get(), id));
+            }
+        }
+
+        Collections.sort(blobs, new Comparator<SpooledBlob>()
+        {
+            @Override
+            public int compare(SpooledBlob blob1, SpooledBlob blob2)
+            {
+                return Long.compare(blob1.getId(), blob2.getId());
+            }
+        });
+        for (SpooledBlob blob : blobs) {
+            this.size.addAndGet(blob.getLength());
+        }
+
+        return blobs;
+    }
+
+    /**
+     * Write a blob to the spool, returning once it is on the disk.
+     *
+     * @param path The path of the blob.
+     * @param content The content of the blob.
+     * @return The spooled blob.
+     * @throws IOException If the blob cannot be written.
+     */
+    public SpooledBlob write(String path, InputStream content) throws IOException
+    {
+        long id = this.lastId.incrementAndGet();
+        File temporaryFile = new File(this.directory, id + TEMPORARY_EXTENSION);
+        File file = new File(this.directory, id + SPOOL_EXTENSION);
+
+        byte[] header = getHeader(path);
+
+        long length;
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            output.write(header);
+            length = IOUtils.copyLarge(content, output);
+            output.flush();
+            output.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile.toPath());
+            throw e;
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.size.addAndGet(length);
+
+        return new SpooledBlob(id, path, file, header.length, length);
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @return The header of the spool file of the blob, holding its path.
+     * @throws IOException If the path is too long to be written.
+     */
+    private static byte[] getHeader(String path) throws IOException
+    {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new DataOutputStream(header).writeUTF(path);
+
+        return header.toByteArray();
+    }
+
+    /**
+     * @param blob A spooled blob.
+     * @return The content of the blob.
+     * @throws IOException If the blob cannot be read, for instance because it has been uploaded in the meantime.
+     */
+    public InputStream open(SpooledBlob blob) throws IOException
+    {
+        return open(blob, 0);
+    }
+
+    /**
+     * @param blob A spooled blob.
+     * @param offset The position of the first byte to read.
+     * @return The content of the blob, from the given position.
+     * @throws IOException If the blob cannot be read, for instance because it has been uploaded in the meantime.
+     */
+    public InputStream open(SpooledBlob blob, long offset) throws IOException
+    {
+        FileInputStream input = new FileInputStream(blob.getFile());
+        try {
+            input.getChannel().position(blob.getOffset() + Math.min(offset, blob.getLength()));
+        } catch (IOException e) {
+            IOUtils.closeQuietly(input);
+            throw e;
+        }
+
+        return input;
+    }
+
+    /**
+     * Remove a blob from the spool. Does nothing if it has already been removed.
+     *
+     * @param blob The spooled blob.
+     * @throws IOException If the spool file cannot be deleted.
+     */
+    public void delete(SpooledBlob blob) throws IOException
+    {
+        if (blob.markDeleted()) {
+            Files.deleteIfExists(blob.getFile().toPath());
+            this.size.addAndGet(-blob.getLength());
+        }
+    }
+
+    /**
+     * @return The total length of the spooled blobs.
+     */
+    public long getSize()
+    {
+        return this.size.get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.writebehind.internal;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A blob written to the spool and not uploaded yet.
+ *
+ * @version $Id$
+ */
+public class SpooledBlob
+{
+    /**
+     * The id of the blob, increasing with the order of the writes.
+     */
+    private final long id;
+
+    /**
+     * The path of the blob.
+     */
+    private final String path;
+
+    /**
+     * The spool file.
+     */
+    private final File file;
+
+    /**
+     * The position of the content in the spool file.
+     */
+    private final long offset;
+
+    /**
+     * The length of the content.
+     */
+    private final long length;
+
+    /**
+     * Whether the spool file has been deleted.
+     */
+    private final AtomicBoolean deleted = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param id The id of the blob.
+     * @param path The path of the blob.
+     * @param file The spool file.
+     * @param offset The position of the content in the spool file.
+     * @param length The length of the content.
+     */
+    public SpooledBlob(long id, String path, File file, long offset, long length)
+    {
+        this.id = id;
+        this.path = path;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return The id of the blob, increasing with the order of the writes.
+     */
+    public long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return The path of the blob.
+     */
+    public String getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * @return The spool file.
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * @return The position of the content in the spool file.
+     */
+    public long getOffset()
+    {
+        return this.offset;
+    }
+
+    /**
+     * @return The length of the content.
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @return true the first time it is called, so that the spool file is deleted once.
+     */
+    boolean markDeleted()
+    {
+        return this.deleted.compareAndSet(false, true);
+    }
+}
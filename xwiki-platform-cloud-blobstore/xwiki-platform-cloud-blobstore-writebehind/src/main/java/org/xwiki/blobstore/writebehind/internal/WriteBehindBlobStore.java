@@ -0,0 +1,721 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.writebehind.internal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.blobstore.Blob;
+import org.xwiki.blobstore.BlobMetadata;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.blobstore.BlobStoreException;
+import org.xwiki.blobstore.RangeInputStream;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+/**
+ * Blob store writing blobs to a spool on the local disk and uploading them to another blob store in the background,
+ * so that saving an attachment does not wait for the remote storage. A write returns once the blob is synced to the
+ * spool, which survives restarts: the blobs not uploaded yet are uploaded at the next start. Until then they are read
+ * from the spool. The blobs of a given path are uploaded in the order they were written, by the same uploader thread,
+ * and a blob written again before being uploaded is only uploaded once, with its latest content.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(WriteBehindBlobStore.HINT)
+@Singleton
+public class WriteBehindBlobStore implements BlobStore, WriteBehindBlobStoreMBean, Initializable, Disposable
+{
+    /**
+     * The hint of this blob store.
+     */
+    public static final String HINT = "writebehind";
+
+    /**
+     * The hint of the blob store the blobs are uploaded to.
+     */
+    public static final String BLOBSTORE_WRITEBEHIND_STORE_PROPERTY =
+        "xwiki.store.attachments.blobstore.writebehind.store";
+
+    /**
+     * The directory of the spool.
+     */
+    public static final String BLOBSTORE_WRITEBEHIND_DIRECTORY_PROPERTY =
+        "xwiki.store.attachments.blobstore.writebehind.directory";
+
+    /**
+     * The total size in bytes of the spool above which the writes wait for uploads to complete.
+     */
+    public static final String BLOBSTORE_WRITEBEHIND_MAX_SIZE_PROPERTY =
+        "xwiki.store.attachments.blobstore.writebehind.maxSize";
+
+    /**
+     * The number of uploader threads.
+     */
+    public static final String BLOBSTORE_WRITEBEHIND_THREADS_PROPERTY =
+        "xwiki.store.attachments.blobstore.writebehind.threads";
+
+    /**
+     * The number of times a failed upload is retried, with an exponential backoff, before being moved to the end of
+     * the queue.
+     */
+    public static final String BLOBSTORE_WRITEBEHIND_RETRIES_PROPERTY =
+        "xwiki.store.attachments.blobstore.writebehind.retries";
+
+    /**
+     * The name of the write-behind MBean.
+     */
+    public static final String MBEAN_NAME = "org.xwiki.blobstore:type=WriteBehind";
+
+    /**
+     * The default blob store the blobs are uploaded to.
+     */
+    private static final String DEFAULT_STORE = "s3";
+
+    /**
+     * The default maximum size of the spool, 1 GB.
+     */
+    private static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * The default number of uploader threads.
+     */
+    private static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default number of retries of a failed upload.
+     */
+    private static final int DEFAULT_RETRIES = 5;
+
+    /**
+     * The delay before the first retry of a failed upload, in milliseconds. It doubles with each retry.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * How long to wait for the uploads in progress when the wiki stops, in seconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
+    /**
+     * Logger.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The component manager for looking up the blob store the blobs are uploaded to.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Configuration.
+     */
+    @Inject
+    @Named("cloud")
+    private ConfigurationSource configurationSource;
+
+    /**
+     * The environment, for getting the default spool directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The blob store the blobs are uploaded to.
+     */
+    private BlobStore store;
+
+    /**
+     * The spool.
+     */
+    private BlobSpool spool;
+
+    /**
+     * The latest spooled blob of each path waiting to be uploaded.
+     */
+    private final ConcurrentMap<String, SpooledBlob> pending = new ConcurrentHashMap<String, SpooledBlob>();
+
+    /**
+     * The blob being uploaded for each path. Also used as the monitor notified when an upload is over.
+     */
+    private final ConcurrentMap<String, SpooledBlob> uploading = new ConcurrentHashMap<String, SpooledBlob>();
+
+    /**
+     * The queues of the uploader threads. The blobs of a path always go to the same queue.
+     */
+    private final List<BlockingQueue<SpooledBlob>> queues = new ArrayList<BlockingQueue<SpooledBlob>>();
+
+    /**
+     * The uploader threads.
+     */
+    private final List<Thread> uploaders = new ArrayList<Thread>();
+
+    /**
+     * The monitor notified when room is made in the spool.
+     */
+    private final Object spoolSpace = new Object();
+
+    /**
+     * The number of uploads that failed after all their retries.
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * The total size of the spool above which the writes wait for uploads to complete.
+     */
+    private long maxSize;
+
+    /**
+     * The number of retries of a failed upload.
+     */
+    private int retries;
+
+    /**
+     * Whether the blob store is stopping.
+     */
+    private volatile boolean stopping;
+
+    /**
+     * The name under which the MBean is registered in JMX, null if the registration failed.
+     */
+    private ObjectName mbeanName;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String storeHint = this.configurationSource.getProperty(BLOBSTORE_WRITEBEHIND_STORE_PROPERTY, DEFAULT_STORE);
+        if (HINT.equals(storeHint)) {
+            throw new InitializationException(String.format("%s cannot be '%s'",
+                BLOBSTORE_WRITEBEHIND_STORE_PROPERTY, HINT));
+        }
+
+        try {
+            this.store = this.componentManager.getInstance(BlobStore.class, storeHint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Unable to lookup the blob store '%s'", storeHint), e);
+        }
+
+        String directoryName =
+            this.configurationSource.getProperty(BLOBSTORE_WRITEBEHIND_DIRECTORY_PROPERTY, String.class);
+        File directory;
+        if (StringUtils.isNotBlank(directoryName)) {
+            directory = new File(directoryName);
+        } else {
+            // The spool must survive restarts, so it does not go to the temporary directory.
+            directory = new File(this.environment.getPermanentDirectory(), "blobstore-spool");
+        }
+
+        this.maxSize = this.configurationSource.getProperty(BLOBSTORE_WRITEBEHIND_MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+        this.retries = this.configurationSource.getProperty(BLOBSTORE_WRITEBEHIND_RETRIES_PROPERTY, DEFAULT_RETRIES);
+        int threads =
+            Math.max(1, this.configurationSource.getProperty(BLOBSTORE_WRITEBEHIND_THREADS_PROPERTY, DEFAULT_THREADS));
+
+        List<SpooledBlob> recovered;
+        try {
+            this.spool = new BlobSpool(directory);
+            recovered = this.spool.recover();
+        } catch (IOException e) {
+            throw new InitializationException("Unable to initialize the blob store spool", e);
+        }
+
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<SpooledBlob> queue = new LinkedBlockingQueue<SpooledBlob>();
+            this.queues.add(queue);
+            Thread uploader = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    processQueue(queue);
+                }
+            }, "Blob uploader " + i);
+            uploader.setDaemon(true);
+            this.uploaders.add(uploader);
+        }
+
+        // The blobs are recovered in the order they were written, so the latest blob of each path wins.
+        for (SpooledBlob blob : recovered) {
+            this.pending.put(blob.getPath(), blob);
+            enqueue(blob);
+        }
+        if (!recovered.isEmpty()) {
+            this.logger.info("Resuming the upload of {} spooled blobs", recovered.size());
+        }
+
+        for (Thread uploader : this.uploaders) {
+            uploader.start();
+        }
+
+        registerMBean();
+
+        this.logger.debug("Write-behind to blob store '{}' initialized with spool '{}' and {} uploaders", storeHint,
+            directory, threads);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.stopping = true;
+        synchronized (this.spoolSpace) {
+            this.spoolSpace.notifyAll();
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT);
+        try {
+            for (Thread uploader : this.uploaders) {
+                uploader.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!this.pending.isEmpty()) {
+            this.logger.info("{} spooled blobs will be uploaded at the next start", this.pending.size());
+        }
+
+        if (this.mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+            } catch (JMException e) {
+                this.logger.warn("Unable to unregister the write-behind blob store MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content)
+    {
+        waitForSpoolSpace();
+
+        SpooledBlob blob;
+        try {
+            blob = this.spool.write(path, content);
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Unable to spool blob [%s]", path), e);
+        }
+
+        SpooledBlob previous = this.pending.put(path, blob);
+        if (previous != null && this.uploading.get(path) != previous) {
+            // The previous content will not be uploaded anymore: do not keep it for the next start either.
+            deleteSpooled(previous);
+        }
+
+        enqueue(blob);
+    }
+
+    @Override
+    public void putBlob(String path, InputStream content, long length)
+    {
+        putBlob(path, content);
+    }
+
+    @Override
+    public InputStream getBlob(String path)
+    {
+        Blob blob = readSpooledBlob(path, 0);
+
+        return blob != null ? blob.getContent() : this.store.getBlob(path);
+    }
+
+    @Override
+    public InputStream getBlob(String path, long offset, long length)
+    {
+        Blob blob = readSpooledBlob(path, offset);
+
+        return blob != null ? new RangeInputStream(blob.getContent(), 0, length)
+            : this.store.getBlob(path, offset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A blob waiting to be uploaded is always read from the spool, since it is newer than any copy held by the caller.
+     *
+     * @see org.xwiki.blobstore.BlobStore#readBlob(java.lang.String, java.lang.String, java.util.Date)
+     */
+    @Override
+    public Blob readBlob(String path, String ifNoneMatch, Date ifModifiedSince)
+    {
+        Blob blob = readSpooledBlob(path, 0);
+
+        return blob != null ? blob : this.store.readBlob(path, ifNoneMatch, ifModifiedSince);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The metadata of a blob waiting to be uploaded only holds its length.
+     *
+     * @see org.xwiki.blobstore.BlobStore#getBlobMetadata(java.lang.String)
+     */
+    @Override
+    public BlobMetadata getBlobMetadata(String path)
+    {
+        SpooledBlob blob = this.pending.get(path);
+
+        return blob != null ? new BlobMetadata(path, blob.getLength(), null, null) : this.store.getBlobMetadata(path);
+    }
+
+    @Override
+    public Map<String, BlobMetadata> getBlobMetadata(Collection<String> paths)
+    {
+        Map<String, BlobMetadata> metadata = new LinkedHashMap<String, BlobMetadata>();
+        List<String> uploadedPaths = new ArrayList<String>();
+        for (String path : paths) {
+            SpooledBlob blob = this.pending.get(path);
+            if (blob != null) {
+                metadata.put(path, new BlobMetadata(path, blob.getLength(), null, null));
+            } else {
+                uploadedPaths.add(path);
+            }
+        }
+
+        if (!uploadedPaths.isEmpty()) {
+            metadata.putAll(this.store.getBlobMetadata(uploadedPaths));
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @param path The path of a blob.
+     * @param offset The position of the first byte to read.
+     * @return The blob, read from the spool from the given position, or null if it is not waiting to be uploaded.
+     */
+    private Blob readSpooledBlob(String path, long offset)
+    {
+        SpooledBlob blob = this.pending.get(path);
+        while (blob != null) {
+            try {
+                this.logger.debug("Getting blob '{}' from the spool", path);
+
+                return new Blob(new BlobMetadata(path, blob.getLength(), null, null), this.spool.open(blob, offset));
+            } catch (FileNotFoundException e) {
+                // Uploaded or written again in the meantime.
+                SpooledBlob latest = this.pending.get(path);
+                blob = latest != blob ? latest : null;
+            } catch (IOException e) {
+                throw new BlobStoreException(String.format("Unable to read spooled blob [%s]", path), e);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void deleteBlob(String path)
+    {
+        cancelUpload(path);
+        this.store.deleteBlob(path);
+    }
+
+    @Override
+    public Map<String, Exception> deleteBlobs(Collection<String> paths)
+    {
+        for (String path : paths) {
+            cancelUpload(path);
+        }
+
+        return this.store.deleteBlobs(paths);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A blob not uploaded yet is moved in the spool. The others are moved by the blob store they were uploaded to.
+     *
+     * @see org.xwiki.blobstore.BlobStore#moveBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void moveBlob(String sourcePath, String targetPath)
+    {
+        if (this.pending.containsKey(sourcePath)) {
+            InputStream content = getBlob(sourcePath);
+            if (content != null) {
+                try {
+                    putBlob(targetPath, content);
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+                deleteBlob(sourcePath);
+
+                return;
+            }
+        }
+
+        cancelUpload(targetPath);
+        this.store.moveBlob(sourcePath, targetPath);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A blob not uploaded yet is copied in the spool. The others are copied by the blob store they were uploaded to.
+     *
+     * @see org.xwiki.blobstore.BlobStore#copyBlob(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void copyBlob(String sourcePath, String targetPath)
+    {
+        if (this.pending.containsKey(sourcePath)) {
+            InputStream content = getBlob(sourcePath);
+            if (content != null) {
+                try {
+                    putBlob(targetPath, content);
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+
+                return;
+            }
+        }
+
+        cancelUpload(targetPath);
+        this.store.copyBlob(sourcePath, targetPath);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix)
+    {
+        return this.store.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterator<BlobMetadata> listBlobs(String prefix, String startAfter)
+    {
+        return this.store.listBlobs(prefix, startAfter);
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        return this.pending.size();
+    }
+
+    @Override
+    public long getSpoolSize()
+    {
+        return this.spool.getSize();
+    }
+
+    @Override
+    public long getMaxSpoolSize()
+    {
+        return this.maxSize;
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return this.failedCount.get();
+    }
+
+    /**
+     * Wait for the uploads to make room in the spool, so that the spool does not grow without limit when the blob
+     * store is slower than the writes.
+     */
+    private void waitForSpoolSpace()
+    {
+        synchronized (this.spoolSpace) {
+            while (this.spool.getSize() >= this.maxSize && !this.stopping) {
+                try {
+                    this.spoolSpace.wait(TimeUnit.SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BlobStoreException("Interrupted while waiting for room in the blob store spool");
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the upload of a blob about to be deleted, waiting for it to complete if it is in progress so that the
+     * deletion is not followed by the upload.
+     *
+     * @param path The path of the blob.
+     */
+    private void cancelUpload(String path)
+    {
+        SpooledBlob removed = this.pending.remove(path);
+        if (removed != null && this.uploading.get(path) != removed) {
+            deleteSpooled(removed);
+        }
+
+        synchronized (this.uploading) {
+            SpooledBlob inProgress = this.uploading.get(path);
+            while (inProgress != null && this.uploading.get(path) == inProgress) {
+                try {
+                    this.uploading.wait(TimeUnit.SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BlobStoreException(String.format("Interrupted while waiting for the upload of [%s]",
+                        path));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param blob A spooled blob.
+     */
+    private void enqueue(SpooledBlob blob)
+    {
+        this.queues.get((blob.getPath().hashCode() & Integer.MAX_VALUE) % this.queues.size()).add(blob);
+    }
+
+    /**
+     * Upload the blobs of a queue until the blob store is stopped. The blobs still waiting are left in the spool.
+     *
+     * @param queue The queue.
+     */
+    private void processQueue(BlockingQueue<SpooledBlob> queue)
+    {
+        while (!this.stopping) {
+            try {
+                SpooledBlob blob = queue.poll(1, TimeUnit.SECONDS);
+                if (blob != null && !upload(blob)) {
+                    queue.add(blob);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Upload a spooled blob, unless it has been written again or deleted since it was spooled.
+     *
+     * @param blob The spooled blob.
+     * @return false if the upload failed after all its retries.
+     * @throws InterruptedException If interrupted while waiting for retrying.
+     */
+    private boolean upload(SpooledBlob blob) throws InterruptedException
+    {
+        String path = blob.getPath();
+        this.uploading.put(path, blob);
+        try {
+            if (this.pending.get(path) != blob) {
+                deleteSpooled(blob);
+
+                return true;
+            }
+
+            for (int attempt = 0;; attempt++) {
+                try (InputStream content = this.spool.open(blob)) {
+                    this.store.putBlob(path, content, blob.getLength());
+                    break;
+                } catch (Exception e) {
+                    if (this.stopping) {
+                        return true;
+                    } else if (attempt >= this.retries) {
+                        this.failedCount.incrementAndGet();
+                        this.logger.error("Failed to upload spooled blob '{}', it will be retried later", path, e);
+
+                        return false;
+                    }
+                    this.logger.debug("Failed to upload spooled blob '{}', retrying: {}", path, e.getMessage());
+                    Thread.sleep(RETRY_DELAY << attempt);
+                }
+            }
+
+            this.pending.remove(path, blob);
+            deleteSpooled(blob);
+
+            return true;
+        } finally {
+            synchronized (this.uploading) {
+                this.uploading.remove(path, blob);
+                this.uploading.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Remove a blob from the spool, making room for other blobs.
+     *
+     * @param blob The spooled blob.
+     */
+    private void deleteSpooled(SpooledBlob blob)
+    {
+        try {
+            this.spool.delete(blob);
+        } catch (IOException e) {
+            this.logger.warn("Unable to delete spooled blob '{}': {}", blob.getPath(), e.getMessage());
+        }
+
+        synchronized (this.spoolSpace) {
+            this.spoolSpace.notifyAll();
+        }
+    }
+
+    /**
+     * Register the write-behind statistics in JMX. Failing to do so does not prevent the blob store from working.
+     */
+    private void registerMBean()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            this.mbeanName = name;
+        } catch (JMException e) {
+            this.logger.warn("Unable to register the write-behind blob store MBean: {}", e.getMessage());
+        }
+    }
+}
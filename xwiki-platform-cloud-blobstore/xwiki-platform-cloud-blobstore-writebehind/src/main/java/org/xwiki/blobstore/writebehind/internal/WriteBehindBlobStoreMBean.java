@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.writebehind.internal;
+
+/**
+ * The JMX view of the write-behind blob store, for following the uploads waiting in the spool.
+ *
+ * @version $Id$
+ */
+public interface WriteBehindBlobStoreMBean
+{
+    /**
+     * @return The number of blobs waiting to be uploaded.
+     */
+    int getPendingCount();
+
+    /**
+     * @return The total size in bytes of the blobs in the spool.
+     */
+    long getSpoolSize();
+
+    /**
+     * @return The total size in bytes of the spool above which the writes wait for uploads to complete.
+     */
+    long getMaxSpoolSize();
+
+    /**
+     * @return The number of uploads that failed after all their retries and were moved back to the end of the queue.
+     */
+    long getFailedCount();
+}
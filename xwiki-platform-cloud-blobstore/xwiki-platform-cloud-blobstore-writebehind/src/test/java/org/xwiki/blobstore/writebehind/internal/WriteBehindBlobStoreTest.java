@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.blobstore.writebehind.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.blobstore.BlobStore;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link WriteBehindBlobStore}.
+ *
+ * @version $Id$
+ */
+public class WriteBehindBlobStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<BlobStore> mocker = new MockitoComponentMockingRule<BlobStore>(
+        WriteBehindBlobStore.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The path of the blob used by the tests.
+     */
+    private static final String PATH = "xwiki/Space/Page/file.txt";
+
+    /**
+     * The path of a blob whose upload is blocked until {@link #blocker} is released.
+     */
+    private static final String BLOCKED_PATH = "xwiki/Space/Page/blocked.txt";
+
+    /**
+     * How long to wait for the uploads, in milliseconds.
+     */
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * The blobs uploaded to the blob store.
+     */
+    private final Map<String, String> uploaded = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Released for letting the upload of {@link #BLOCKED_PATH} complete.
+     */
+    private final CountDownLatch blocker = new CountDownLatch(1);
+
+    /**
+     * The blob store the blobs are uploaded to.
+     */
+    private BlobStore store;
+
+    /**
+     * Setup the mocks for tests.
+     *
+     * @throws Exception If the mocked components cannot be looked up.
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = mock(BlobStore.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception
+            {
+                String path = (String) invocation.getArguments()[0];
+                if (BLOCKED_PATH.equals(path)) {
+                    blocker.await();
+                }
+                InputStream content = (InputStream) invocation.getArguments()[1];
+                uploaded.put(path, IOUtils.toString(content, StandardCharsets.UTF_8));
+                return null;
+            }
+        }).when(this.store).putBlob(anyString(), any(InputStream.class), anyLong());
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(BlobStore.class, "s3")).thenReturn(this.store);
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "cloud");
+        when(configuration.getProperty(anyString(), Matchers.<Object>any())).thenAnswer(
+            AdditionalAnswers.returnsSecondArg());
+        when(configuration.getProperty(WriteBehindBlobStore.BLOBSTORE_WRITEBEHIND_DIRECTORY_PROPERTY, String.class))
+            .thenReturn(this.folder.getRoot().getAbsolutePath());
+        // A single uploader, so that the blocked upload delays the other ones.
+        when(configuration.getProperty(eq(WriteBehindBlobStore.BLOBSTORE_WRITEBEHIND_THREADS_PROPERTY),
+            Matchers.<Object>any())).thenReturn(1);
+    }
+
+    /**
+     * Check that a blob is read from the spool until it is uploaded.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testGetBlobFromSpoolBeforeUpload() throws Exception
+    {
+        WriteBehindBlobStore writeBehind = (WriteBehindBlobStore) this.mocker.getComponentUnderTest();
+        writeBehind.putBlob(BLOCKED_PATH, new ByteArrayInputStream("blocked".getBytes()));
+        writeBehind.putBlob(PATH, new ByteArrayInputStream("content".getBytes()));
+
+        Assert.assertEquals("content", IOUtils.toString(writeBehind.getBlob(PATH), StandardCharsets.UTF_8));
+        verify(this.store, never()).getBlob(PATH);
+        Assert.assertEquals(2, writeBehind.getPendingCount());
+
+        this.blocker.countDown();
+        waitForUploads(writeBehind);
+
+        Assert.assertEquals("content", this.uploaded.get(PATH));
+        Assert.assertEquals(0, writeBehind.getSpoolSize());
+        Assert.assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    /**
+     * Check that a blob written again before being uploaded is only uploaded with its latest content.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testOnlyLatestContentIsUploaded() throws Exception
+    {
+        WriteBehindBlobStore writeBehind = (WriteBehindBlobStore) this.mocker.getComponentUnderTest();
+        writeBehind.putBlob(BLOCKED_PATH, new ByteArrayInputStream("blocked".getBytes()));
+        writeBehind.putBlob(PATH, new ByteArrayInputStream("first".getBytes()));
+        writeBehind.putBlob(PATH, new ByteArrayInputStream("second".getBytes()));
+
+        Assert.assertEquals("second", IOUtils.toString(writeBehind.getBlob(PATH), StandardCharsets.UTF_8));
+
+        this.blocker.countDown();
+        waitForUploads(writeBehind);
+
+        Assert.assertEquals("second", this.uploaded.get(PATH));
+        verify(this.store).putBlob(eq(PATH), any(InputStream.class), anyLong());
+    }
+
+    /**
+     * Check that deleting a blob not uploaded yet cancels its upload.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testDeleteBlobCancelsUpload() throws Exception
+    {
+        WriteBehindBlobStore writeBehind = (WriteBehindBlobStore) this.mocker.getComponentUnderTest();
+        writeBehind.putBlob(BLOCKED_PATH, new ByteArrayInputStream("blocked".getBytes()));
+        writeBehind.putBlob(PATH, new ByteArrayInputStream("content".getBytes()));
+        writeBehind.deleteBlob(PATH);
+
+        verify(this.store).deleteBlob(PATH);
+        Assert.assertNull(writeBehind.getBlob(PATH));
+
+        this.blocker.countDown();
+        waitForUploads(writeBehind);
+
+        Assert.assertFalse(this.uploaded.containsKey(PATH));
+    }
+
+    /**
+     * Check that the blobs left in the spool by a previous run are uploaded at startup.
+     *
+     * @throws Exception If the component under test cannot be looked up.
+     */
+    @Test
+    public void testSpooledBlobsAreUploadedAtStartup() throws Exception
+    {
+        BlobSpool spool = new BlobSpool(this.folder.getRoot());
+        spool.write(PATH, new ByteArrayInputStream("first".getBytes()));
+        spool.write(PATH, new ByteArrayInputStream("second".getBytes()));
+        // A blob whose writing was interrupted by a crash.
+        new File(this.folder.getRoot(), "3.tmp").createNewFile();
+
+        WriteBehindBlobStore writeBehind = (WriteBehindBlobStore) this.mocker.getComponentUnderTest();
+        waitForUploads(writeBehind);
+
+        Assert.assertEquals("second", this.uploaded.get(PATH));
+        Assert.assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    /**
+     * Wait for the spooled blobs to be uploaded.
+     *
+     * @param writeBehind The write-behind blob store.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void waitForUploads(WriteBehindBlobStore writeBehind) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((writeBehind.getPendingCount() > 0 || writeBehind.getSpoolSize() > 0)
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, writeBehind.getPendingCount());
+    }
+}